@@ -21,9 +21,15 @@ import java.util.zip.Deflater;
 
 /**
  * Compresses an input stream using java.util.zip.Deflater.
+ * <p>
+ * The {@code Deflater} is not allocated until data is first read,
+ * so a stream that is never read costs little.  Alternatively, a
+ * caller that compresses many streams, one after another, may supply
+ * a {@code Deflater} to be reused for each of them.
  */
 public class CompressedFilterInputStream extends FilterInputStream {
-  private final Deflater deflater;
+  private Deflater deflater;
+  private final boolean ownsDeflater;
   private final byte[] inputBuff;
   private final byte[] oneByte = new byte[1];
 
@@ -46,8 +52,29 @@ public class CompressedFilterInputStream extends FilterInputStream {
    */
   public CompressedFilterInputStream(InputStream in, int bufferSize) {
     super(in);
-    deflater = new Deflater();
-    inputBuff = new byte[bufferSize];
+    this.deflater = null;
+    this.ownsDeflater = true;
+    this.inputBuff = new byte[bufferSize];
+  }
+
+  /**
+   * Given some InputStream, create an InputStream that compresses the
+   * input stream using the supplied {@code Deflater}.  The {@code Deflater}
+   * is reset before use, and again when this stream is closed, but is not
+   * ended.  It must not be used by any other stream until this one is
+   * closed.
+   *
+   * @param in an InputStream providing source data for compressing.
+   * @param bufferSize size in bytes of I/O buffer used.
+   * @param deflater a {@code Deflater} owned by the caller
+   */
+  public CompressedFilterInputStream(InputStream in, int bufferSize,
+      Deflater deflater) {
+    super(in);
+    deflater.reset();
+    this.deflater = deflater;
+    this.ownsDeflater = false;
+    this.inputBuff = new byte[bufferSize];
   }
 
 
@@ -60,6 +87,9 @@ public class CompressedFilterInputStream extends FilterInputStream {
 
   @Override
   public int read(byte b[], int off, int len) throws IOException {
+    if (deflater == null) {
+      deflater = new Deflater();
+    }
     if (deflater.finished()) {
       return -1;
     }
@@ -102,7 +132,13 @@ public class CompressedFilterInputStream extends FilterInputStream {
 
   @Override
   public void close() throws IOException {
-    deflater.end();
+    if (deflater != null) {
+      if (ownsDeflater) {
+        deflater.end();
+      } else {
+        deflater.reset();
+      }
+    }
     super.close();
   }
 
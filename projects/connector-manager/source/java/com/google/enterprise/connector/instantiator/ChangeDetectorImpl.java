@@ -63,6 +63,13 @@ class ChangeDetectorImpl implements ChangeDetector {
     try {
       ImmutableMap<StoreContext, ConnectorStamps> persistentInventory =
           store.getInventory();
+      // A store that updates its inventory incrementally returns the same
+      // stamps if nothing has changed.  Since the in-memory inventory holds
+      // the persistent stamps unless a change failed to be applied, there
+      // is nothing to do if they are equal.
+      if (persistentInventory.equals(inMemoryInventory)) {
+        return;
+      }
       SortedSet<StoreContext> persistentInstances =
           new TreeSet<StoreContext>(persistentInventory.keySet());
 
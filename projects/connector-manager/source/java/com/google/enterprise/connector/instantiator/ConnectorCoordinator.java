@@ -278,6 +278,16 @@ public interface ConnectorCoordinator {
    */
   public boolean startBatch() throws ConnectorNotFoundException;
 
+  /**
+   * Returns the number of milliseconds until this {@link ConnectorCoordinator}
+   * might be able to start a batch, or 0 if it might be able to start one
+   * now.  Returns {@code Long.MAX_VALUE} if that cannot be predicted,
+   * for instance because a batch is running or traversals are disabled.
+   *
+   * @return a delay in milliseconds
+   */
+  public long getBatchDelayMillis();
+
   /**
    * Shuts down this {@link ConnectorCoordinator} if {@link #exists()}.
    */
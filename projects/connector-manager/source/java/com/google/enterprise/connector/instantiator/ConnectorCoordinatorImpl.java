@@ -31,6 +31,7 @@ import com.google.enterprise.connector.scheduler.HostLoadManager;
 import com.google.enterprise.connector.scheduler.LoadManager;
 import com.google.enterprise.connector.scheduler.LoadManagerFactory;
 import com.google.enterprise.connector.scheduler.Schedule;
+import com.google.enterprise.connector.scheduler.TraversalNotifier;
 import com.google.enterprise.connector.spi.AuthenticationManager;
 import com.google.enterprise.connector.spi.AuthorizationManager;
 import com.google.enterprise.connector.spi.ConfigureResponse;
@@ -90,6 +91,7 @@ class ConnectorCoordinatorImpl implements
   private final ThreadPool threadPool;
   private final ChangeDetector changeDetector;
   private final Clock clock;
+  private final TraversalNotifier traversalNotifier;
 
   /**
    * Context set when an instance is created or configured and cleared when the
@@ -166,14 +168,19 @@ class ConnectorCoordinatorImpl implements
    * @param threadPool the {@link ThreadPool} for running traversals.
    * @param changeDetector used to invoke the ChangeHandlers for changes
    *        originiting within this Manager instance (or from the Servlets).
+   * @param clock the {@link Clock} used for timing traversals
+   * @param traversalNotifier used to wake the TraversalScheduler when this
+   *        connector might be able to start a batch; may be {@code null}
    */
   ConnectorCoordinatorImpl(String name, PusherFactory pusherFactory,
       LoadManagerFactory loadManagerFactory,
       ConnectorPersistentStoreFactory connectorPersistentStoreFactory,
-      ThreadPool threadPool, ChangeDetector changeDetector, Clock clock) {
+      ThreadPool threadPool, ChangeDetector changeDetector, Clock clock,
+      TraversalNotifier traversalNotifier) {
     this.name = name;
     this.threadPool = threadPool;
     this.clock = clock;
+    this.traversalNotifier = traversalNotifier;
     this.changeDetector = changeDetector;
     this.pusherFactory = pusherFactory;
     this.loadManager = loadManagerFactory.newLoadManager(name);
@@ -453,6 +460,7 @@ class ConnectorCoordinatorImpl implements
           schedule.setDisabled(false);
           getInstanceInfo().setConnectorSchedule(schedule);
       }
+      wakeupScheduler();
     }
 
     // TODO: Remove this if we switch completely to JDBC PersistentStore.
@@ -743,6 +751,17 @@ class ConnectorCoordinatorImpl implements
                     + " minutes after encountering an error.");
         break;
     }
+    wakeupScheduler();
+  }
+
+  /**
+   * Tells the TraversalScheduler to reconsider this connector, because it
+   * might be able to start a batch sooner than previously expected.
+   */
+  private void wakeupScheduler() {
+    if (traversalNotifier != null) {
+      traversalNotifier.wakeup(name);
+    }
   }
 
   /**
@@ -785,6 +804,33 @@ class ConnectorCoordinatorImpl implements
     return getSchedule().inScheduledInterval();
   }
 
+  /**
+   * Returns the number of milliseconds until {@link #shouldRun} might
+   * return {@code true}, or {@code Long.MAX_VALUE} if that cannot be
+   * predicted.  This must be kept consistent with {@code shouldRun}.
+   */
+  @Override
+  public synchronized long getBatchDelayMillis() {
+    // These conditions only change along with a call to wakeupScheduler,
+    // or not at all.
+    if (instanceInfo == null || !traversalEnabled
+        || (taskHandle != null && !taskHandle.isDone())
+        || getSchedule().isDisabled()) {
+      return Long.MAX_VALUE;
+    }
+
+    long delay = Math.max(traversalDelayEnd - clock.getTimeMillis(),
+                          loadManager.getDelayMillis());
+
+    // nextScheduledInterval returns -1 if there is no next scheduled
+    // interval at all, for instance, if the schedule has no intervals.
+    int intervalDelaySeconds = getSchedule().nextScheduledInterval();
+    if (intervalDelaySeconds < 0) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0L, Math.max(delay, intervalDelaySeconds * 1000L));
+  }
+
   /**
    * Starts running a batch for this {@link ConnectorCoordinator} if a batch is
    * not already running.
@@ -836,6 +882,9 @@ class ConnectorCoordinatorImpl implements
    */
   @Override
   public synchronized void recordResult(BatchResult result) {
+    // The batch has done all its work.  Don't make the next batch wait
+    // for the thread running this one to finish exiting.
+    taskHandle = null;
     loadManager.recordResult(result);
     delayTraversal(result.getDelayPolicy());
   }
@@ -870,6 +919,7 @@ class ConnectorCoordinatorImpl implements
     traversalManager = null;
     retriever = null;
     traversalSchedule = null;
+    wakeupScheduler();
   }
 
   /**
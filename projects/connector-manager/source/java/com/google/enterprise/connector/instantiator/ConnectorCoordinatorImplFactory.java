@@ -17,6 +17,7 @@ package com.google.enterprise.connector.instantiator;
 import com.google.enterprise.connector.database.ConnectorPersistentStoreFactory;
 import com.google.enterprise.connector.pusher.PusherFactory;
 import com.google.enterprise.connector.scheduler.LoadManagerFactory;
+import com.google.enterprise.connector.scheduler.TraversalNotifier;
 import com.google.enterprise.connector.spi.Connector;
 import com.google.enterprise.connector.util.Clock;
 
@@ -33,6 +34,7 @@ public class ConnectorCoordinatorImplFactory
   private ThreadPool threadPool;
   private ChangeDetector changeDetector;
   private Clock clock;
+  private TraversalNotifier traversalNotifier;
 
   /**
    * Sets the {@link PusherFactory} used to create instances of
@@ -87,6 +89,17 @@ public class ConnectorCoordinatorImplFactory
     this.clock = clock;
   }
 
+  /**
+   * Sets the {@link TraversalNotifier} used to wake the
+   * {@link com.google.enterprise.connector.scheduler.TraversalScheduler
+   * TraversalScheduler} when a connector might be able to start a batch.
+   *
+   * @param traversalNotifier a {@link TraversalNotifier}, or {@code null}
+   */
+  public void setTraversalNotifier(TraversalNotifier traversalNotifier) {
+    this.traversalNotifier = traversalNotifier;
+  }
+
   /**
    * Sets the {@link ChangeDetector} used for invoking the local
    * {@link ChangeHandler} for connector configuration, schedule, and
@@ -118,6 +131,6 @@ public class ConnectorCoordinatorImplFactory
   public ConnectorCoordinator newConnectorCoordinator(String connectorName) {
     return new ConnectorCoordinatorImpl(connectorName,
         pusherFactory, loadManagerFactory, connectorPersistentStoreFactory,
-        threadPool, changeDetector, clock);
+        threadPool, changeDetector, clock, traversalNotifier);
   }
 }
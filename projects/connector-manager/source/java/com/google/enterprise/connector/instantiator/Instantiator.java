@@ -236,6 +236,17 @@ public interface Instantiator {
   public void startBatch(String connectorName)
       throws ConnectorNotFoundException;
 
+  /**
+   * Returns the number of milliseconds until a named connector might be
+   * able to start a batch, or 0 if it might be able to start one now.
+   * Returns {@code Long.MAX_VALUE} if that cannot be predicted, for
+   * instance because a batch is running or traversals are disabled.
+   *
+   * @throws ConnectorNotFoundException if the named connector is not found
+   */
+  public long getBatchDelayMillis(String connectorName)
+      throws ConnectorNotFoundException;
+
   /**
    * Shutdown all the Connector instances.
    */
@@ -149,6 +149,12 @@ public class SpringInstantiator implements Instantiator {
     getConnectorCoordinator(connectorName).startBatch();
   }
 
+  @Override
+  public long getBatchDelayMillis(String connectorName)
+      throws ConnectorNotFoundException {
+    return getConnectorCoordinator(connectorName).getBatchDelayMillis();
+  }
+
   @VisibleForTesting
   ConnectorCoordinator getConnectorCoordinator(String connectorName)
       throws ConnectorNotFoundException {
@@ -0,0 +1,389 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
+import com.google.enterprise.connector.util.BasicChecksumGenerator;
+import com.google.enterprise.connector.util.ChecksumGenerator;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Caches the PERMIT and DENY decisions of the connector instances'
+ * {@link com.google.enterprise.connector.spi.AuthorizationManager
+ * AuthorizationManagers}, by identity and docid.  Each connector instance
+ * has its own cache, holding at most {@code maxSize} decisions, and each
+ * decision expires {@code ttlSeconds} after it was made.  INDETERMINATE
+ * decisions are never cached.
+ * <p>
+ * The decisions for a document are invalidated when traversal feeds the
+ * document again.  Rather than search the cache for every identity's
+ * decision, the time of the invalidation is recorded for the docid, and
+ * any decision made before that time is ignored.
+ * <p>
+ * The cache is disabled by default.
+ *
+ * @since 3.4
+ */
+public class AuthorizationCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(AuthorizationCache.class.getName());
+
+  /** Digests the passwords, so that the cache does not hold them. */
+  private static final ChecksumGenerator PASSWORD_DIGEST =
+      new BasicChecksumGenerator(BasicChecksumGenerator.SHA256);
+
+  private Clock clock = new SystemClock();
+
+  /** The most decisions cached for each connector instance. */
+  private volatile int maxSize = 0;
+
+  /** The time, in milliseconds, that a decision may be used. */
+  private volatile long ttlMillis = 5 * 60 * 1000L;
+
+  /** The caches, by connector instance name. */
+  private final ConcurrentMap<String, ConnectorCache> caches =
+      new ConcurrentHashMap<String, ConnectorCache>();
+
+  /**
+   * Sets the {@link Clock} used to expire the cached decisions.
+   *
+   * @param clock a {@link Clock}
+   */
+  public void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Sets the most decisions cached for each connector instance.
+   * A size of zero disables the cache.
+   *
+   * @param maxSize a number of decisions
+   */
+  public void setMaxSize(int maxSize) {
+    if (maxSize >= 0) {
+      this.maxSize = maxSize;
+      caches.clear();
+    } else {
+      LOGGER.warning("Invalid authorization cache size: " + maxSize);
+    }
+  }
+
+  /**
+   * Sets the time, in seconds, that a cached decision may be used.
+   * A time of zero disables the cache.
+   *
+   * @param ttlSeconds a number of seconds
+   */
+  public void setTtlSeconds(int ttlSeconds) {
+    if (ttlSeconds >= 0) {
+      this.ttlMillis = ttlSeconds * 1000L;
+      caches.clear();
+    } else {
+      LOGGER.warning("Invalid authorization cache time: " + ttlSeconds);
+    }
+  }
+
+  /** Returns {@code true} if decisions are cached. */
+  public boolean isEnabled() {
+    return maxSize > 0 && ttlMillis > 0;
+  }
+
+  /** Returns the cache for the named connector instance. */
+  private ConnectorCache getCache(String connectorName) {
+    ConnectorCache cache = caches.get(connectorName);
+    if (cache == null) {
+      cache = new ConnectorCache(maxSize, ttlMillis);
+      ConnectorCache existing = caches.putIfAbsent(connectorName, cache);
+      if (existing != null) {
+        cache = existing;
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Looks up the cached decisions for the documents.  The decisions found
+   * are added to {@code cached}, and the docids of the documents with no
+   * cached decision are added to {@code uncached}.
+   *
+   * @param connectorName the name of a connector instance
+   * @param identity the user's identity
+   * @param docids the docids to look up
+   * @param cached the cached decisions
+   * @param uncached the docids that must be authorized by the connector
+   */
+  public void lookup(String connectorName, AuthenticationIdentity identity,
+      List<String> docids, Collection<AuthorizationResponse> cached,
+      Collection<String> uncached) {
+    if (!isEnabled()) {
+      uncached.addAll(docids);
+      return;
+    }
+    ConnectorCache cache = getCache(connectorName);
+    String password = digest(identity.getPassword());
+    for (String docid : docids) {
+      Decision decision = cache.get(new Key(identity, password, docid));
+      if (decision == null) {
+        uncached.add(docid);
+      } else {
+        cached.add(new AuthorizationResponse(decision.status, docid));
+      }
+    }
+  }
+
+  /**
+   * Caches the decisions made by the connector instance.
+   *
+   * @param connectorName the name of a connector instance
+   * @param identity the user's identity
+   * @param responses the connector's decisions
+   * @param docCount the number of documents the connector was asked about
+   * @param startTime the time at which the connector was asked, from
+   *        {@link #getTimeMillis}
+   */
+  public void store(String connectorName, AuthenticationIdentity identity,
+      Collection<AuthorizationResponse> responses, int docCount,
+      long startTime) {
+    if (!isEnabled()) {
+      return;
+    }
+    ConnectorCache cache = getCache(connectorName);
+    cache.recordLatency(docCount, getTimeMillis() - startTime);
+    String password = digest(identity.getPassword());
+    for (AuthorizationResponse response : responses) {
+      AuthorizationResponse.Status status = response.getStatus();
+      if (status == AuthorizationResponse.Status.PERMIT
+          || status == AuthorizationResponse.Status.DENY) {
+        cache.put(new Key(identity, password, response.getDocid()),
+                  new Decision(status, startTime));
+      }
+    }
+  }
+
+  /**
+   * Invalidates the cached decisions for a document.
+   *
+   * @param connectorName the name of a connector instance
+   * @param docid the document's docid
+   */
+  public void invalidate(String connectorName, String docid) {
+    if (isEnabled() && docid != null) {
+      // A decision may be in progress, even if none have been cached yet.
+      getCache(connectorName).invalidate(docid, getTimeMillis());
+    }
+  }
+
+  /**
+   * Discards the cache for a connector instance.
+   *
+   * @param connectorName the name of a connector instance
+   */
+  public void invalidateAll(String connectorName) {
+    caches.remove(connectorName);
+  }
+
+  /** Returns the current time, in milliseconds. */
+  public long getTimeMillis() {
+    return clock.getTimeMillis();
+  }
+
+  /**
+   * Returns the cache statistics for a connector instance, or {@code null}
+   * if its decisions are not cached.
+   *
+   * @param connectorName the name of a connector instance
+   * @return the cache {@link Statistics}, or {@code null}
+   */
+  public Statistics getStatistics(String connectorName) {
+    if (!isEnabled()) {
+      return null;
+    }
+    ConnectorCache cache = caches.get(connectorName);
+    if (cache == null) {
+      return new Statistics(0L, 0L, 0L);
+    }
+    CacheStats stats = cache.decisions.stats();
+    // Stale decisions count as hits in the underlying cache.
+    long misses = stats.missCount() + cache.staleCount.get();
+    long hits = stats.requestCount() - misses;
+    return new Statistics(hits, misses, hits * cache.getMillisPerDocument());
+  }
+
+  /** The cache hit rate and the connector time it saved. */
+  public static class Statistics {
+    private final long hitCount;
+    private final long missCount;
+    private final long savedMillis;
+
+    Statistics(long hitCount, long missCount, long savedMillis) {
+      this.hitCount = hitCount;
+      this.missCount = missCount;
+      this.savedMillis = savedMillis;
+    }
+
+    /** Returns the number of decisions found in the cache. */
+    public long getHitCount() {
+      return hitCount;
+    }
+
+    /** Returns the number of decisions not found in the cache. */
+    public long getMissCount() {
+      return missCount;
+    }
+
+    /** Returns the fraction of the decisions found in the cache. */
+    public double getHitRate() {
+      long requestCount = hitCount + missCount;
+      return (requestCount == 0) ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    /**
+     * Returns an estimate of the connector's authorization time saved by
+     * the cache, in milliseconds.
+     */
+    public long getSavedMillis() {
+      return savedMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "{ hits = " + hitCount + ", misses = " + missCount
+          + ", savedMillis = " + savedMillis + " }";
+    }
+  }
+
+  /** The cached decisions of one connector instance. */
+  private class ConnectorCache {
+    final Cache<Key, Decision> decisions;
+    final DocumentInvalidations invalidations;
+
+    final AtomicLong staleCount = new AtomicLong();
+    final AtomicLong authorizedCount = new AtomicLong();
+    final AtomicLong authorizedMillis = new AtomicLong();
+
+    ConnectorCache(int maxSize, long ttlMillis) {
+      Ticker ticker = new Ticker() {
+          @Override
+          public long read() {
+            return TimeUnit.MILLISECONDS.toNanos(getTimeMillis());
+          }
+        };
+      decisions = CacheBuilder.newBuilder()
+          .ticker(ticker)
+          .maximumSize(maxSize)
+          .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+          .build();
+      invalidations = new DocumentInvalidations(ticker, maxSize, ttlMillis);
+    }
+
+    /** Returns the decision, or {@code null} if it is missing or stale. */
+    Decision get(Key key) {
+      Decision decision = decisions.getIfPresent(key);
+      if (decision != null) {
+        if (invalidations.isStale(key.docid, decision.time)) {
+          decisions.invalidate(key);
+          staleCount.incrementAndGet();
+          return null;
+        }
+      }
+      return decision;
+    }
+
+    void put(Key key, Decision decision) {
+      decisions.put(key, decision);
+    }
+
+    void invalidate(String docid, long time) {
+      invalidations.invalidate(docid, time);
+    }
+
+    void recordLatency(int docCount, long millis) {
+      authorizedCount.addAndGet(docCount);
+      authorizedMillis.addAndGet(Math.max(0L, millis));
+    }
+
+    /** Returns the average time the connector took per document. */
+    long getMillisPerDocument() {
+      long count = authorizedCount.get();
+      return (count == 0) ? 0L : authorizedMillis.get() / count;
+    }
+  }
+
+  /** A decision, and the time at which the connector was asked for it. */
+  private static class Decision {
+    final AuthorizationResponse.Status status;
+    final long time;
+
+    Decision(AuthorizationResponse.Status status, long time) {
+      this.status = status;
+      this.time = time;
+    }
+  }
+
+  /** Returns the digest of a password, or {@code null} if it is null. */
+  private static String digest(String password) {
+    return (password == null) ? null : PASSWORD_DIGEST.getChecksum(password);
+  }
+
+  /**
+   * The identity and docid of a decision.  The password is held only as
+   * a digest.
+   */
+  private static class Key {
+    final String domain;
+    final String username;
+    final String password;
+    final String docid;
+
+    Key(AuthenticationIdentity identity, String password, String docid) {
+      this.domain = identity.getDomain();
+      this.username = identity.getUsername();
+      this.password = password;
+      this.docid = docid;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(domain, username, password, docid);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return Objects.equal(docid, other.docid)
+          && Objects.equal(username, other.username)
+          && Objects.equal(domain, other.domain)
+          && Objects.equal(password, other.password);
+    }
+  }
+}
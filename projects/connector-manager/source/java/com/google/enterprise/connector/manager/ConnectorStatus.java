@@ -25,6 +25,7 @@ public class ConnectorStatus {
   private final String schedule;
   private final String globalNamespace;
   private final String localNamespace;
+  private final AuthorizationCache.Statistics authorizationCacheStatistics;
 
   /**
    * Primary constructor.
@@ -35,6 +36,23 @@ public class ConnectorStatus {
    */
   public ConnectorStatus(String name, String type, int status, String schedule,
                          String globalNamespace, String localNamespace) {
+    this(name, type, status, schedule, globalNamespace, localNamespace, null);
+  }
+
+  /**
+   * Constructor that includes the authorization cache statistics.
+   * @param name the connector's name
+   * @param type the connector's type
+   * @param status the connector's status
+   * @param schedule the connector's schedule
+   * @param authorizationCacheStatistics the connector's authorization cache
+   *        statistics, or {@code null} if its decisions are not cached
+   * @since 3.4
+   */
+  public ConnectorStatus(String name, String type, int status, String schedule,
+                         String globalNamespace, String localNamespace,
+                         AuthorizationCache.Statistics
+                         authorizationCacheStatistics) {
     super();
     this.name = name;
     this.type = type;
@@ -42,6 +60,7 @@ public class ConnectorStatus {
     this.schedule = (schedule == null) ? null : schedule.trim();
     this.globalNamespace = globalNamespace;
     this.localNamespace = localNamespace;
+    this.authorizationCacheStatistics = authorizationCacheStatistics;
   }
 
   /**
@@ -92,10 +111,22 @@ public class ConnectorStatus {
     return localNamespace;
   }
 
+  /**
+   * Gets the authorization cache statistics
+   * @return the statistics, or {@code null} if decisions are not cached
+   * @since 3.4
+   */
+  public AuthorizationCache.Statistics getAuthorizationCacheStatistics() {
+    return authorizationCacheStatistics;
+  }
+
   @Override
   public String toString() {
     return "{ connector = " + name + ", type = " + type + ", status = " + status
             + ", schedule = " + schedule + ", globalNamespace = "
-            + globalNamespace + ", localNamespace = " + localNamespace + " }";
+            + globalNamespace + ", localNamespace = " + localNamespace
+            + ((authorizationCacheStatistics == null) ? ""
+               : ", authorizationCache = " + authorizationCacheStatistics)
+            + " }";
   }
 }
@@ -22,6 +22,7 @@ import com.google.enterprise.connector.instantiator.Instantiator;
 import com.google.enterprise.connector.instantiator.InstantiatorException;
 import com.google.enterprise.connector.instantiator.SpringInstantiator;
 import com.google.enterprise.connector.instantiator.ThreadPool;
+import com.google.enterprise.connector.persist.JdbcStore;
 import com.google.enterprise.connector.pusher.GsaFeedConnection;
 import com.google.enterprise.connector.scheduler.TraversalScheduler;
 import com.google.enterprise.connector.spi.SimpleTraversalContext;
@@ -857,11 +858,31 @@ public class Context {
             ThreadPool.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS);
         instantiator = null;
       }
+      flushPersistentStores();
       closeDatabases();
       started = false;
     }
   }
 
+  /**
+   * Writes the pending connector states of any Spring-configured JdbcStore
+   * instances, before their databases are shut down.  Stores that have
+   * not been created are not created now.
+   */
+  @SuppressWarnings("unchecked")
+  private void flushPersistentStores() {
+    Collection<JdbcStore> stores = (Collection<JdbcStore>)
+        applicationContext.getBeansOfType(JdbcStore.class, false, false)
+        .values();
+    for (JdbcStore store : stores) {
+      try {
+        store.flushConnectorStates();
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "Failed to store connector states", e);
+      }
+    }
+  }
+
   /**
    * Shuts down any Spring-configured JdbcDatabase instances.
    */
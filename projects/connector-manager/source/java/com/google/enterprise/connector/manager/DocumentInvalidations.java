@@ -0,0 +1,82 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The times at which the documents of a connector instance were
+ * invalidated, by docid, used by the {@link AuthorizationCache} and the
+ * {@link DocumentMetadataCache} to recognize stale entries.  Rather than
+ * search a cache for every entry for a document, the time of the
+ * invalidation is recorded, and any entry made before that time is stale.
+ * <p>
+ * At most {@code maxSize} times are kept, each for {@code ttlMillis}.
+ * If a time is evicted before it expires, every entry made before that
+ * time is treated as stale, since it may be.
+ */
+class DocumentInvalidations {
+  /** The times at which documents were invalidated, by docid. */
+  private final Cache<String, Long> invalidations;
+
+  /**
+   * The latest invalidation time evicted from {@code invalidations}
+   * before it expired.  Any older entry may be stale.
+   */
+  private final AtomicLong evictedTime = new AtomicLong(Long.MIN_VALUE);
+
+  DocumentInvalidations(Ticker ticker, int maxSize, long ttlMillis) {
+    invalidations = CacheBuilder.newBuilder()
+        .ticker(ticker)
+        .maximumSize(maxSize)
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .removalListener(new RemovalListener<String, Long>() {
+            @Override
+            public void onRemoval(RemovalNotification<String, Long> n) {
+              if (n.getCause() == RemovalCause.SIZE) {
+                long time = n.getValue();
+                long evicted;
+                while ((evicted = evictedTime.get()) < time
+                       && !evictedTime.compareAndSet(evicted, time)) {
+                }
+              }
+            }
+          })
+        .build();
+  }
+
+  /** Records that the document was invalidated at the given time. */
+  void invalidate(String docid, long time) {
+    invalidations.put(docid, time);
+  }
+
+  /**
+   * Returns {@code true} if the document may have been invalidated at or
+   * after the given time.
+   */
+  boolean isStale(String docid, long time) {
+    Long invalidated = invalidations.getIfPresent(docid);
+    return time <= evictedTime.get()
+        || (invalidated != null && time <= invalidated);
+  }
+}
@@ -0,0 +1,271 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Caches the document metadata used to answer content requests from the
+ * {@link com.google.enterprise.connector.spi.Retriever Retrievers} of the
+ * connector instances, by docid, so that conditional requests from the
+ * GSA may be answered without asking the repository.  Each connector
+ * instance has its own cache, holding at most {@code maxSize} entries,
+ * and each entry expires {@code ttlSeconds} after the metadata was
+ * retrieved.
+ * <p>
+ * An entry is invalidated when traversal feeds the document again.  The
+ * time of the invalidation is recorded for the docid, so that metadata
+ * retrieved before the document was fed is not cached afterward.
+ * <p>
+ * The cache is disabled by default.
+ *
+ * @since 3.4
+ */
+public class DocumentMetadataCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(DocumentMetadataCache.class.getName());
+
+  private Clock clock = new SystemClock();
+
+  /** The most entries cached for each connector instance. */
+  private volatile int maxSize = 0;
+
+  /** The time, in milliseconds, that an entry may be used. */
+  private volatile long ttlMillis = 5 * 60 * 1000L;
+
+  /** The caches, by connector instance name. */
+  private final ConcurrentMap<String, ConnectorCache> caches =
+      new ConcurrentHashMap<String, ConnectorCache>();
+
+  /**
+   * Sets the {@link Clock} used to expire the cached entries.
+   *
+   * @param clock a {@link Clock}
+   */
+  public void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Sets the most entries cached for each connector instance.
+   * A size of zero disables the cache.
+   *
+   * @param maxSize a number of entries
+   */
+  public void setMaxSize(int maxSize) {
+    if (maxSize >= 0) {
+      this.maxSize = maxSize;
+      caches.clear();
+    } else {
+      LOGGER.warning("Invalid document metadata cache size: " + maxSize);
+    }
+  }
+
+  /**
+   * Sets the time, in seconds, that a cached entry may be used.
+   * A time of zero disables the cache.
+   *
+   * @param ttlSeconds a number of seconds
+   */
+  public void setTtlSeconds(int ttlSeconds) {
+    if (ttlSeconds >= 0) {
+      this.ttlMillis = ttlSeconds * 1000L;
+      caches.clear();
+    } else {
+      LOGGER.warning("Invalid document metadata cache time: " + ttlSeconds);
+    }
+  }
+
+  /** Returns {@code true} if metadata is cached. */
+  public boolean isEnabled() {
+    return maxSize > 0 && ttlMillis > 0;
+  }
+
+  /** Returns the cache for the named connector instance. */
+  private ConnectorCache getCache(String connectorName) {
+    ConnectorCache cache = caches.get(connectorName);
+    if (cache == null) {
+      cache = new ConnectorCache(maxSize, ttlMillis);
+      ConnectorCache existing = caches.putIfAbsent(connectorName, cache);
+      if (existing != null) {
+        cache = existing;
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the cached metadata for a document.
+   *
+   * @param connectorName the name of a connector instance
+   * @param docid the document's docid
+   * @return the cached {@link Entry}, or {@code null} if there is none
+   */
+  public Entry get(String connectorName, String docid) {
+    if (!isEnabled()) {
+      return null;
+    }
+    ConnectorCache cache = caches.get(connectorName);
+    return (cache == null) ? null : cache.entries.getIfPresent(docid);
+  }
+
+  /**
+   * Caches the metadata for a document, unless the document has been
+   * invalidated since the metadata was retrieved.  Metadata that does
+   * not say whether the document is public is not cached.
+   *
+   * @param connectorName the name of a connector instance
+   * @param docid the document's docid
+   * @param entry the metadata
+   * @param startTime the time at which the metadata was retrieved, from
+   *        {@link #getTimeMillis}
+   */
+  public void put(String connectorName, String docid, Entry entry,
+      long startTime) {
+    if (isEnabled() && entry.isPublic() != null) {
+      getCache(connectorName).put(docid, entry, startTime);
+    }
+  }
+
+  /**
+   * Invalidates the cached metadata for a document.
+   *
+   * @param connectorName the name of a connector instance
+   * @param docid the document's docid
+   */
+  public void invalidate(String connectorName, String docid) {
+    if (isEnabled() && docid != null) {
+      // The metadata may be being retrieved, even if none is cached yet.
+      getCache(connectorName).invalidate(docid, getTimeMillis());
+    }
+  }
+
+  /**
+   * Discards the cache for a connector instance.
+   *
+   * @param connectorName the name of a connector instance
+   */
+  public void invalidateAll(String connectorName) {
+    caches.remove(connectorName);
+  }
+
+  /** Returns the current time, in milliseconds. */
+  public long getTimeMillis() {
+    return clock.getTimeMillis();
+  }
+
+  /** The metadata used to answer a content request for a document. */
+  public static class Entry {
+    private final long lastModified;
+    private final String mimeType;
+    private final Integer contentLength;
+    private final Boolean isPublic;
+    private final String metadataHeader;
+
+    /**
+     * Constructs an entry.
+     *
+     * @param lastModified the last modified time of the document, in
+     *        milliseconds since the epoch, or -1 if it is not known
+     * @param mimeType the content type of the document
+     * @param contentLength the content length, or {@code null} if it
+     *        is not known
+     * @param isPublic {@code true} if the document is public, or
+     *        {@code null} if that could not be determined
+     * @param metadataHeader the value of the metadata header
+     */
+    public Entry(long lastModified, String mimeType, Integer contentLength,
+        Boolean isPublic, String metadataHeader) {
+      this.lastModified = lastModified;
+      this.mimeType = mimeType;
+      this.contentLength = contentLength;
+      this.isPublic = isPublic;
+      this.metadataHeader = metadataHeader;
+    }
+
+    /** Returns the last modified time, or -1 if it is not known. */
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    /** Returns the content type. */
+    public String getMimeType() {
+      return mimeType;
+    }
+
+    /** Returns the content length, or {@code null} if it is not known. */
+    public Integer getContentLength() {
+      return contentLength;
+    }
+
+    /**
+     * Returns {@code true} if the document is public, or {@code null}
+     * if that could not be determined.
+     */
+    public Boolean isPublic() {
+      return isPublic;
+    }
+
+    /** Returns the value of the metadata header. */
+    public String getMetadataHeader() {
+      return metadataHeader;
+    }
+  }
+
+  /** The cached entries of one connector instance. */
+  private class ConnectorCache {
+    final Cache<String, Entry> entries;
+    final DocumentInvalidations invalidations;
+
+    ConnectorCache(int maxSize, long ttlMillis) {
+      Ticker ticker = new Ticker() {
+          @Override
+          public long read() {
+            return TimeUnit.MILLISECONDS.toNanos(getTimeMillis());
+          }
+        };
+      entries = CacheBuilder.newBuilder()
+          .ticker(ticker)
+          .maximumSize(maxSize)
+          .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+          .build();
+      invalidations = new DocumentInvalidations(ticker, maxSize, ttlMillis);
+    }
+
+    void put(String docid, Entry entry, long startTime) {
+      if (!invalidations.isStale(docid, startTime)) {
+        entries.put(docid, entry);
+        // Check again, in case the document was invalidated meanwhile.
+        if (invalidations.isStale(docid, startTime)) {
+          entries.invalidate(docid);
+        }
+      }
+    }
+
+    void invalidate(String docid, long time) {
+      invalidations.invalidate(docid, time);
+      entries.invalidate(docid);
+    }
+  }
+}
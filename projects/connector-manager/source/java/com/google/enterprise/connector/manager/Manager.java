@@ -201,6 +201,17 @@ public interface Manager {
   public Collection<AuthorizationResponse> authorizeDocids(String connectorName,
       List<String> docidList, AuthenticationIdentity identity);
 
+  /**
+   * Gets the time allowed for a named connector to authorize documents.
+   * Documents that are not authorized within that time are considered
+   * INDETERMINATE.
+   *
+   * @param connectorName
+   * @return the timeout in milliseconds
+   * @since 3.4
+   */
+  public long getAuthorizationTimeoutMillis(String connectorName);
+
   /**
    * Return an {@code InputStream} that may be used to access content for the
    * document identified by {@code docid}.
@@ -40,14 +40,19 @@ import com.google.enterprise.connector.spi.AuthorizationResponse;
 import com.google.enterprise.connector.spi.ConfigureResponse;
 import com.google.enterprise.connector.spi.ConnectorType;
 import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.HasTimeout;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.RepositoryLoginException;
 import com.google.enterprise.connector.spi.Retriever;
 import com.google.enterprise.connector.spi.SpiConstants.FeedType;
+import com.google.enterprise.connector.spi.TraversalContext;
 import com.google.enterprise.connector.util.EofFilterInputStream;
 import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
 
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -68,6 +73,10 @@ public class ProductionManager implements Manager {
   Instantiator instantiator;
   private DocumentFilterFactoryFactory documentFilterFactoryFactory = null;
   private FeedConnection feedConnection;
+  private long authorizationTimeoutMillis = 30 * 1000L;
+  private AuthorizationCache authorizationCache = null;
+  private DocumentMetadataCache metadataCache = null;
+  private TraversalContext traversalContext = null;
 
   public ProductionManager() {
   }
@@ -97,6 +106,53 @@ public class ProductionManager implements Manager {
     this.feedConnection = feedConnection;
   }
 
+  /**
+   * Sets the time allowed for a connector to authorize documents, unless
+   * its {@link AuthorizationManager} implements {@link HasTimeout}.
+   *
+   * @param authorizationTimeoutMillis the timeout in milliseconds
+   * @since 3.4
+   */
+  public void setAuthorizationTimeoutMillis(long authorizationTimeoutMillis) {
+    if (authorizationTimeoutMillis > 0) {
+      this.authorizationTimeoutMillis = authorizationTimeoutMillis;
+    } else {
+      LOGGER.warning("Invalid authorization timeout: "
+          + authorizationTimeoutMillis);
+    }
+  }
+
+  /**
+   * Sets the cache of authorization decisions.
+   *
+   * @param authorizationCache an {@link AuthorizationCache}, or {@code null}
+   * @since 3.4
+   */
+  public void setAuthorizationCache(AuthorizationCache authorizationCache) {
+    this.authorizationCache = authorizationCache;
+  }
+
+  /**
+   * Sets the cache of document metadata used to answer content requests.
+   *
+   * @param metadataCache a {@link DocumentMetadataCache}, or {@code null}
+   * @since 3.4
+   */
+  public void setMetadataCache(DocumentMetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
+  }
+
+  /**
+   * Sets the {@link TraversalContext} whose {@code maxDocumentSize} limits
+   * the size of document content returned by a {@link Retriever}.
+   *
+   * @param traversalContext a {@link TraversalContext}, or {@code null}
+   * @since 3.4
+   */
+  public void setTraversalContext(TraversalContext traversalContext) {
+    this.traversalContext = traversalContext;
+  }
+
   @Override
   public AuthenticationResponse authenticate(String connectorName,
       AuthenticationIdentity identity) {
@@ -151,8 +207,38 @@ public class ProductionManager implements Manager {
       if (LOGGER.isLoggable(Level.FINE)) {
         LOGGER.fine("AUTHORIZE: " + identity + ": docids = " + docidList);
       }
+      List<AuthorizationResponse> cached = null;
+      if (authorizationCache != null && authorizationCache.isEnabled()) {
+        cached = new ArrayList<AuthorizationResponse>();
+        List<String> uncached = new ArrayList<String>();
+        authorizationCache.lookup(connectorName, identity, docidList, cached,
+                                  uncached);
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("AUTHORIZATION: " + identity + ": found "
+              + cached.size() + " of " + docidList.size()
+              + " documents in the cache.");
+        }
+        if (uncached.isEmpty()) {
+          return cached;
+        }
+        docidList = uncached;
+      }
+      long startTime =
+          (cached == null) ? 0L : authorizationCache.getTimeMillis();
       Collection<AuthorizationResponse> results =
           authzManager.authorizeDocids(docidList, identity);
+      if (results == null) {
+        // The connector has no answer for the uncached documents. They must
+        // not be denied merely because other documents were in the cache.
+        if (cached == null || cached.isEmpty()) {
+          return null;
+        }
+        for (String docid : docidList) {
+          cached.add(new AuthorizationResponse(
+              AuthorizationResponse.Status.INDETERMINATE, docid));
+        }
+        return cached;
+      }
       if (LOGGER.isLoggable(Level.FINE)) {
          LOGGER.fine("AUTHORIZATION: " + identity + ": authorized for "
             + results.size() + " of " + docidList.size() + " documents.");
@@ -163,6 +249,14 @@ public class ProductionManager implements Manager {
                         + response.getStatus());
         }
       }
+      if (cached != null) {
+        authorizationCache.store(connectorName, identity, results,
+                                 docidList.size(), startTime);
+        if (!cached.isEmpty()) {
+          cached.addAll(results);
+          return cached;
+        }
+      }
       return results;
     } catch (ConnectorNotFoundException e) {
       LOGGER.log(Level.WARNING, "Connector " + connectorName + " not found", e);
@@ -176,6 +270,25 @@ public class ProductionManager implements Manager {
     return null;
   }
 
+  @Override
+  public long getAuthorizationTimeoutMillis(String connectorName) {
+    try {
+      AuthorizationManager authzManager =
+          instantiator.getAuthorizationManager(connectorName);
+      if (authzManager instanceof HasTimeout) {
+        int timeout = ((HasTimeout) authzManager).getTimeoutMillis();
+        if (timeout > 0) {
+          return timeout;
+        }
+      }
+    } catch (ConnectorNotFoundException e) {
+      // authorizeDocids will report this.
+    } catch (InstantiatorException e) {
+      // authorizeDocids will report this.
+    }
+    return authorizationTimeoutMillis;
+  }
+
   @Override
   public InputStream getDocumentContent(String connectorName, String docid)
       throws ConnectorNotFoundException, InstantiatorException,
@@ -194,10 +307,26 @@ public class ProductionManager implements Manager {
     InputStream in = retriever.getContent(docid);
     if (in == null) {
       LOGGER.finer("RETRIEVER: Document has no content.");
+    } else if (in instanceof FileInputStream) {
+      // The length of a file is known before any of it is served, so
+      // non-empty file content within the size limit is served directly,
+      // and oversized file content is replaced by the alternate content.
+      long length = getRemainingLength((FileInputStream) in);
+      long maxDocumentSize = (traversalContext == null)
+          ? Long.MAX_VALUE : traversalContext.maxDocumentSize();
+      if (length > 0 && length <= maxDocumentSize) {
+        return in;
+      } else if (length > maxDocumentSize) {
+        LOGGER.finer("RETRIEVER: Document content is too large.");
+        closeQuietly(in);
+        in = null;
+      }
     }
     // The GSA can't handle meta-and-url feeds with no content, so we
     // provide some minimal content of a single space, if none is available.
-    // We are only detecting empty content here, not large documents.
+    // We are only detecting empty content here, not large documents, since
+    // the content of other streams may already have been served by the
+    // time it is found to be too large.
     // TODO: Figure out how to handle CONTENT morphing document filters.
     return
         new AlternateContentFilterInputStream(
@@ -207,6 +336,28 @@ public class ProductionManager implements Manager {
             null);
   }
 
+  /**
+   * Returns the length of the file content left to read, or -1 if
+   * it could not be determined.
+   */
+  private static long getRemainingLength(FileInputStream in) {
+    try {
+      FileChannel channel = in.getChannel();
+      return channel.size() - channel.position();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINEST, "Failed to get the length of a file", e);
+      return -1L;
+    }
+  }
+
+  private static void closeQuietly(InputStream in) {
+    try {
+      in.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINEST, "Failed to close document content", e);
+    }
+  }
+
   @Override
   public Document getDocumentMetaData(String connectorName, String docid)
       throws ConnectorNotFoundException, InstantiatorException,
@@ -314,7 +465,9 @@ public class ProductionManager implements Manager {
     // handle it.
     // TODO: resolve the third parameter - we need to give status a meaning
     return new ConnectorStatus(connectorName, connectorTypeName, 0,
-        Schedule.toString(schedule), globalNamespace, localNamespace);
+        Schedule.toString(schedule), globalNamespace, localNamespace,
+        (authorizationCache == null)
+        ? null : authorizationCache.getStatistics(connectorName));
   }
 
   @Override
@@ -347,8 +500,11 @@ public class ProductionManager implements Manager {
       Configuration configuration, String language, boolean update)
       throws ConnectorNotFoundException, PersistentStoreException,
       InstantiatorException {
-    return instantiator.setConnectorConfiguration(connectorName, configuration,
+    ConfigureResponse response = instantiator.setConnectorConfiguration(
+        connectorName, configuration,
         I18NUtil.getLocaleFromStandardLocaleString(language), update);
+    invalidateCaches(connectorName);
+    return response;
   }
 
   @Override
@@ -379,6 +535,20 @@ public class ProductionManager implements Manager {
   public void removeConnector(String connectorName)
       throws InstantiatorException {
     instantiator.removeConnector(connectorName);
+    invalidateCaches(connectorName);
+  }
+
+  /**
+   * Discards the cached decisions and metadata of a changed connector
+   * instance.
+   */
+  private void invalidateCaches(String connectorName) {
+    if (authorizationCache != null) {
+      authorizationCache.invalidateAll(connectorName);
+    }
+    if (metadataCache != null) {
+      metadataCache.invalidateAll(connectorName);
+    }
   }
 
   @Override
@@ -15,7 +15,10 @@
 package com.google.enterprise.connector.persist;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.enterprise.connector.common.PropertiesException;
 import com.google.enterprise.connector.common.PropertiesUtils;
@@ -26,13 +29,23 @@ import com.google.enterprise.connector.util.database.DatabaseResourceBundleManag
 import com.google.enterprise.connector.util.database.JdbcDatabase;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.text.MessageFormat;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +55,20 @@ import javax.sql.DataSource;
  * Manage persistence for schedule and state and configuration
  * for a named connector. The persistent store for these data items
  * are columns in a database table, accessed via JDBC.
+ * <p>
+ * The SQL statements are prepared once for each pooled {@link Connection}
+ * and reused.  A value is written by updating its row, and the row is
+ * inserted only if the update finds none.  Connector state, which is
+ * stored after every batch, may optionally be written behind: repeated
+ * stores for a connector are coalesced, and the latest states of all the
+ * connectors are written in a single batch after a short delay.
+ * <p>
+ * Every transaction that writes values takes the next number of a global
+ * modification sequence, kept in a reserved row of the table, and uses it
+ * as the modification stamp of the rows it writes.  After the first full
+ * scan of the table, the inventory is updated by reading only the rows
+ * whose stamps are greater than the last sequence number seen.  The table
+ * is scanned in full again periodically, and after any failure.
  */
 public class JdbcStore implements PersistentStore {
 
@@ -55,6 +82,19 @@ public class JdbcStore implements PersistentStore {
   static final String MAP = "configuration_map";
   static final String XML = "configuration_xml";
 
+  /*
+   * The reserved row holding the global modification sequence.  The name
+   * is not a valid connector name, so it cannot conflict with a connector.
+   */
+  @VisibleForTesting
+  static final String SEQUENCE_CONNECTOR = "_sequence";
+  @VisibleForTesting
+  static final String SEQUENCE = "modify_sequence";
+
+  /* The number of incremental inventories between full scans. */
+  @VisibleForTesting
+  static final int FULL_INVENTORY_INTERVAL = 100;
+
   static final String RESOURCE_BUNDLE_NAME = "sql.connector-manager.JdbcStore";
   private DatabaseResourceBundle resourceBundle = null;
 
@@ -67,12 +107,62 @@ public class JdbcStore implements PersistentStore {
   private String inventoryStampsQuery;
   private String inventoryTypesQuery;
   private String getValueQuery;
-  private String setValueQuery;
+  private String updateValueQuery;
+  private String insertValueQuery;
+  private String nextSequenceQuery;
+  private String getSequenceQuery;
+  private String getMaxStampQuery;
+  private String getSequenceRowsQuery;
+  private String deleteRowQuery;
+  private String inventoryChangesQuery;
   private String connectorNameColumn;
   private String modifyStampColumn;
   private String propertyNameColumn;
   private String propertyValueColumn;
 
+  /* The delay, in milliseconds, before writing connector state. */
+  private volatile long writeBehindDelay = 0L;
+
+  /*
+   * Connector states that have not yet been written, by connector name.
+   * A state remains here until it has been committed, so that it is
+   * returned by getConnectorState in the meantime.  Guarded by itself.
+   */
+  private final Map<String, String> pendingStates =
+      new LinkedHashMap<String, String>();
+  private Timer writeBehindTimer;
+  private boolean flushScheduled = false;
+
+  /* Allows only one flush of the pending states at a time. */
+  private final Object flushLock = new Object();
+
+  /*
+   * The inventory as of the last modification sequence seen, kept so that
+   * it may be updated incrementally.  Guarded by inventoryLock.
+   */
+  private final Object inventoryLock = new Object();
+  private final Map<String, Map<String, JdbcStamp>> stampAlbum =
+      new HashMap<String, Map<String, JdbcStamp>>();
+  private final Map<String, String> connectorTypes =
+      new TreeMap<String, String>();
+  private ImmutableMap<StoreContext, ConnectorStamps> inventory =
+      ImmutableMap.of();
+  private long inventorySequence = -1L;
+  private int incrementalCount = 0;
+
+  /** A property value to write. */
+  private static class Field {
+    final String connectorName;
+    final String fieldName;
+    final String fieldValue;
+
+    Field(String connectorName, String fieldName, String fieldValue) {
+      this.connectorName = connectorName;
+      this.fieldName = fieldName;
+      this.fieldValue = fieldValue;
+    }
+  }
+
   private synchronized void init() {
     if (resourceBundle != null) {
       return;
@@ -101,16 +191,31 @@ public class JdbcStore implements PersistentStore {
     }
 
     // Cache some SQL resources.
-    // TODO: These queries should really be PreparedStatements.
     inventoryStampsQuery = getResource("getinventory.stamps.query");
     inventoryTypesQuery = getResource("getinventory.types.query");
     getValueQuery = getResource("getvalue.query");
-    setValueQuery = getResource("setvalue.query");
+    updateValueQuery = getResource("updatevalue.query");
+    insertValueQuery = getResource("insertvalue.query");
+    nextSequenceQuery = getResource("nextsequence.query");
+    getSequenceQuery = getResource("getsequence.query");
+    getMaxStampQuery = getResource("getmaxstamp.query");
+    getSequenceRowsQuery = getResource("getsequencerows.query");
+    deleteRowQuery = getResource("deleterow.query");
+    inventoryChangesQuery = getResource("getinventory.changes.query");
 
     connectorNameColumn = getResource("column.connector_name");
     modifyStampColumn = getResource("column.modify_stamp");
     propertyNameColumn = getResource("column.property_name");
     propertyValueColumn = getResource("column.property_value");
+
+    try {
+      startSequence();
+    } catch (SQLException e) {
+      resourceBundle = null;
+      // TODO: PersistentStore interface methods should be able to throw PersistentStoreExceptions.
+      throw new RuntimeException(
+          "Failed to start the modification sequence in " + tableName, e);
+    }
   }
 
   /**
@@ -128,6 +233,29 @@ public class JdbcStore implements PersistentStore {
     return database;
   }
 
+  /**
+   * Sets the delay before connector state is written to the database.
+   * Connector states stored within the delay are coalesced, so that only
+   * the latest state of each connector is written, and the states of all
+   * the connectors are written in a single batch.  A delay of zero, the
+   * default, writes each connector state as it is stored.
+   * <p>
+   * Pending states are written by {@link #flushConnectorStates} when the
+   * Connector Manager shuts down.  States that have not been written when
+   * the Connector Manager stops abruptly are lost, and the connectors
+   * resume from their previous state.
+   *
+   * @param writeBehindDelay the delay in milliseconds
+   * @since 3.4
+   */
+  public void setWriteBehindDelay(long writeBehindDelay) {
+    if (writeBehindDelay >= 0) {
+      this.writeBehindDelay = writeBehindDelay;
+    } else {
+      LOGGER.warning("Invalid write behind delay: " + writeBehindDelay);
+    }
+  }
+
   /* Sets the ClassLoader that will be used to locate SQL Resources. */
   @VisibleForTesting
   void setResourceClassLoader(ClassLoader classLoader) {
@@ -157,91 +285,311 @@ public class JdbcStore implements PersistentStore {
   }
 
   /**
-   * Gets the version stamps of all persistent objects.  Reads the entire
-   * connector instance table and extracts the MODIFY_STAMPS for all peristed
-   * data.
+   * Gets the version stamps of all persistent objects.  The first time,
+   * and periodically thereafter, this reads the entire connector instance
+   * table and extracts the MODIFY_STAMPS for all peristed data.  Otherwise,
+   * only the rows modified since the last inventory are read.  If nothing
+   * has been modified, the previous inventory is returned.
    *
    * @return an immutable map containing the version stamps; may be
    * empty but not {@code null}
    */
   @Override
   public ImmutableMap<StoreContext, ConnectorStamps> getInventory() {
-    ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder =
-        new ImmutableMap.Builder<StoreContext, ConnectorStamps>();
-    try {
-      init();
-      Connection connection = database.getConnectionPool().getConnection();
+    // Write any pending states, so that their stamps are current.
+    flushConnectorStates();
+    synchronized (inventoryLock) {
       try {
-        // TODO: We should consider using a PreparedStatement - however this
-        // is non-trivial when using connection pools.  Try using
-        // MapMaker.makeComputingMap() to map connections to PreparedStatements.
-        Map<String, Map<String, JdbcStamp>> stampAlbum =
-            new HashMap<String, Map<String, JdbcStamp>>();
-
-        // Collect the Stamps for the various interesting properties.
-        Statement statement = connection.createStatement(
-            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        init();
+        Connection connection = database.getConnectionPool().getConnection();
         try {
-          ResultSet resultSet = statement.executeQuery(inventoryStampsQuery);
-          while (resultSet.next()) {
-            String connectorName = resultSet.getString(connectorNameColumn);
-            Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
-            if (stamps == null) {
-              stamps = new HashMap<String, JdbcStamp>();
-              stampAlbum.put(connectorName, stamps);
-            }
-            stamps.put(resultSet.getString(propertyNameColumn),
-                       new JdbcStamp(resultSet.getLong(modifyStampColumn)));
+          if (inventorySequence < 0
+              || incrementalCount >= FULL_INVENTORY_INTERVAL) {
+            readInventory(connection);
+          } else {
+            readInventoryChanges(connection);
           }
+        } catch (SQLException e) {
+          closeStatements(connection);
+          throw e;
         } finally {
-          statement.close();
+          database.getConnectionPool().releaseConnection(connection);
         }
+      } catch (SQLException e) {
+        LOGGER.log(Level.WARNING, "Failed to retrieve Connector Inventory", e);
+        // Scan the whole table next time.
+        stampAlbum.clear();
+        connectorTypes.clear();
+        inventory = ImmutableMap.of();
+        inventorySequence = -1L;
+      }
+      return inventory;
+    }
+  }
+
+  /**
+   * Reads the entire connector instance table.  The caller must hold
+   * {@code inventoryLock}.
+   */
+  private void readInventory(Connection connection) throws SQLException {
+    // Read the sequence first, so that no changes made during the scan
+    // are missed by the next incremental inventory.
+    long sequence = getSequence(connection);
+    stampAlbum.clear();
+    connectorTypes.clear();
+
+    // Collect the Stamps for the various interesting properties.
+    PreparedStatement statement =
+        prepareStatement(connection, inventoryStampsQuery);
+    ResultSet resultSet = statement.executeQuery();
+    try {
+      while (resultSet.next()) {
+        putStamp(resultSet.getString(connectorNameColumn),
+            resultSet.getString(propertyNameColumn),
+            resultSet.getLong(modifyStampColumn));
+      }
+    } finally {
+      resultSet.close();
+    }
+
+    // Find all connectors with non-null Type.
+    // (Connectors with no Type have been deleted.)
+    statement = prepareStatement(connection, inventoryTypesQuery);
+    statement.setString(1, TYPE);
+    resultSet = statement.executeQuery();
+    try {
+      while (resultSet.next()) {
+        connectorTypes.put(resultSet.getString(connectorNameColumn),
+            resultSet.getString(propertyValueColumn));
+      }
+    } finally {
+      resultSet.close();
+    }
+
+    inventory = buildInventory(null);
+    // Without a sequence, the next inventory is also a full scan.
+    inventorySequence = sequence;
+    incrementalCount = 0;
+  }
+
+  /**
+   * Reads the rows modified since the last inventory, and applies them to
+   * the inventory.  The caller must hold {@code inventoryLock}.
+   */
+  private void readInventoryChanges(Connection connection)
+      throws SQLException {
+    Set<String> changedConnectors = new HashSet<String>();
+    long sequence = inventorySequence;
+    PreparedStatement statement =
+        prepareStatement(connection, inventoryChangesQuery);
+    statement.setLong(1, inventorySequence);
+    ResultSet resultSet = statement.executeQuery();
+    try {
+      while (resultSet.next()) {
+        long stamp = resultSet.getLong(modifyStampColumn);
+        sequence = Math.max(sequence, stamp);
+        String connectorName = resultSet.getString(connectorNameColumn);
+        if (SEQUENCE_CONNECTOR.equals(connectorName)) {
+          continue;
+        }
+        changedConnectors.add(connectorName);
+        String propertyName = resultSet.getString(propertyNameColumn);
+        String propertyValue = resultSet.getString(propertyValueColumn);
+        if (propertyValue == null) {
+          Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
+          if (stamps != null) {
+            stamps.remove(propertyName);
+          }
+          if (TYPE.equals(propertyName)) {
+            connectorTypes.remove(connectorName);
+          }
+        } else {
+          putStamp(connectorName, propertyName, stamp);
+          if (TYPE.equals(propertyName)) {
+            connectorTypes.put(connectorName, propertyValue);
+          }
+        }
+      }
+    } finally {
+      resultSet.close();
+    }
+
+    if (!changedConnectors.isEmpty()) {
+      inventory = buildInventory(changedConnectors);
+    }
+    inventorySequence = sequence;
+    incrementalCount++;
+  }
+
+  private void putStamp(String connectorName, String propertyName,
+      long stamp) {
+    Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
+    if (stamps == null) {
+      stamps = new HashMap<String, JdbcStamp>();
+      stampAlbum.put(connectorName, stamps);
+    }
+    stamps.put(propertyName, new JdbcStamp(stamp));
+  }
+
+  /**
+   * Constructs a StoreContext for each connector with a Type, and builds
+   * an inventory of that connector's stamps.  The stamps of unchanged
+   * connectors are reused from the previous inventory.
+   *
+   * @param changedConnectors the names of the changed connectors, or
+   *        {@code null} if they have all changed
+   */
+  private ImmutableMap<StoreContext, ConnectorStamps> buildInventory(
+      Set<String> changedConnectors) {
+    ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder =
+        new ImmutableMap.Builder<StoreContext, ConnectorStamps>();
+    Map<String, ConnectorStamps> previousStamps =
+        new HashMap<String, ConnectorStamps>();
+    if (changedConnectors != null) {
+      for (Map.Entry<StoreContext, ConnectorStamps> entry
+               : inventory.entrySet()) {
+        previousStamps.put(entry.getKey().getConnectorName(),
+            entry.getValue());
+      }
+    }
+    for (Map.Entry<String, String> entry : connectorTypes.entrySet()) {
+      String connectorName = entry.getKey();
+      StoreContext storeContext =
+          new StoreContext(connectorName, entry.getValue());
+      ConnectorStamps connectorStamps = null;
+      if (changedConnectors != null
+          && !changedConnectors.contains(connectorName)) {
+        connectorStamps = previousStamps.get(connectorName);
+      }
+      if (connectorStamps == null) {
+        connectorStamps = getConnectorStamps(stampAlbum.get(connectorName));
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("Found connector: name = " + connectorName
+                      + "  type = " + storeContext.getTypeName()
+                      + "  stamps = " + connectorStamps);
+        }
+      }
+      mapBuilder.put(storeContext, connectorStamps);
+    }
+    return mapBuilder.build();
+  }
+
+  private static ConnectorStamps getConnectorStamps(
+      Map<String, JdbcStamp> stamps) {
+    if (stamps == null) {
+      return new ConnectorStamps(null, null, null);
+    }
+    JdbcStamp mapStamp = stamps.get(MAP);
+    JdbcStamp xmlStamp = stamps.get(XML);
+    JdbcStamp configStamp = new JdbcStamp(
+        ((mapStamp == null) ? 0L : mapStamp.version) +
+        ((xmlStamp == null) ? 0L : xmlStamp.version));
+    return new ConnectorStamps(
+        stamps.get(STATE), configStamp, stamps.get(SCHEDULE));
+  }
+
+  /**
+   * Returns the current value of the global modification sequence,
+   * or -1 if there is none.
+   */
+  private long getSequence(Connection connection) throws SQLException {
+    PreparedStatement statement =
+        prepareStatement(connection, getSequenceQuery);
+    statement.setString(1, SEQUENCE_CONNECTOR);
+    statement.setString(2, SEQUENCE);
+    return getLong(statement);
+  }
 
-        // Find all connectors with non-null Type, construct a StoreContext
-        // for the connector+type, and build an inventory of that connector's
-        // stamps from the previous query.
-        // (Connectors with no Type have been deleted.)
-        statement = connection.createStatement(
-            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+  /**
+   * Starts the global modification sequence, if it does not exist yet.
+   * The table has no unique key, so two Connector Managers starting at
+   * the same time may both insert the sequence row.  The extra rows are
+   * then deleted, keeping the highest sequence so that it never goes
+   * backwards.  This is done before any property values are written.
+   */
+  private void startSequence() throws SQLException {
+    Connection connection = database.getConnectionPool().getConnection();
+    boolean originalAutoCommit = true;
+    try {
+      originalAutoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(true);
+      if (getSequence(connection) < 0) {
+        // Start the sequence at the highest existing stamp, so that the
+        // stamps of the rows written next keep increasing.
+        long sequence = Math.max(0L,
+            getLong(prepareStatement(connection, getMaxStampQuery)));
+        PreparedStatement insert =
+            prepareStatement(connection, insertValueQuery);
+        insert.setLong(1, sequence);
+        insert.setString(2, SEQUENCE_CONNECTOR);
+        insert.setString(3, SEQUENCE);
+        insert.setNull(4, Types.VARCHAR);
+        insert.executeUpdate();
+
+        List<Long> rowIds = new ArrayList<Long>();
+        PreparedStatement select =
+            prepareStatement(connection, getSequenceRowsQuery);
+        select.setString(1, SEQUENCE_CONNECTOR);
+        select.setString(2, SEQUENCE);
+        ResultSet resultSet = select.executeQuery();
         try {
-          Object[] params = { quoteValue(TYPE) };
-          String query = MessageFormat.format(inventoryTypesQuery, params);
-          ResultSet resultSet = statement.executeQuery(query);
           while (resultSet.next()) {
-            String connectorName = resultSet.getString(connectorNameColumn);
-            StoreContext storeContext = new StoreContext(connectorName,
-                resultSet.getString(propertyValueColumn));
-            Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
-            ConnectorStamps connectorStamps;
-            if (stamps == null) {
-              connectorStamps = new ConnectorStamps(null, null, null);
-            } else {
-              JdbcStamp mapStamp = stamps.get(MAP);
-              JdbcStamp xmlStamp = stamps.get(XML);
-              JdbcStamp configStamp = new JdbcStamp(
-                  ((mapStamp == null) ? 0L : mapStamp.version) +
-                  ((xmlStamp == null) ? 0L : xmlStamp.version));
-              connectorStamps = new ConnectorStamps(
-                  stamps.get(STATE), configStamp, stamps.get(SCHEDULE));
-            }
-            mapBuilder.put(storeContext, connectorStamps);
-            if (LOGGER.isLoggable(Level.FINE)) {
-              LOGGER.fine("Found connector: name = " + connectorName
-                          + "  type = " + storeContext.getTypeName()
-                          + "  stamps = " + connectorStamps);
-            }
+            rowIds.add(resultSet.getLong(1));
           }
         } finally {
-          statement.close();
+          resultSet.close();
+        }
+        if (rowIds.size() > 1) {
+          LOGGER.fine("Deleting " + (rowIds.size() - 1)
+              + " extra modification sequence rows");
+          PreparedStatement delete =
+              prepareStatement(connection, deleteRowQuery);
+          for (Long rowId : rowIds.subList(1, rowIds.size())) {
+            delete.setLong(1, rowId);
+            delete.executeUpdate();
+          }
         }
-      } finally {
-        database.getConnectionPool().releaseConnection(connection);
       }
     } catch (SQLException e) {
-      LOGGER.log(Level.WARNING, "Failed to retrieve Connector Inventory", e);
+      closeStatements(connection);
+      throw e;
+    } finally {
+      try {
+        connection.setAutoCommit(originalAutoCommit);
+      } catch (SQLException ignored) {}
+      database.getConnectionPool().releaseConnection(connection);
+    }
+  }
+
+  /**
+   * Increments the global modification sequence and returns the new
+   * value.  The caller must be in a transaction.
+   */
+  private long nextSequence(Connection connection) throws SQLException {
+    PreparedStatement update = prepareStatement(connection, nextSequenceQuery);
+    update.setString(1, SEQUENCE_CONNECTOR);
+    update.setString(2, SEQUENCE);
+    if (update.executeUpdate() == 0) {
+      throw new SQLException("The modification sequence row is missing");
+    }
+    return getSequence(connection);
+  }
+
+  /** Returns the single value of a query, or -1 if it is null. */
+  private static long getLong(PreparedStatement statement)
+      throws SQLException {
+    ResultSet resultSet = statement.executeQuery();
+    try {
+      if (resultSet.next()) {
+        long value = resultSet.getLong(1);
+        if (!resultSet.wasNull()) {
+          return value;
+        }
+      }
+      return -1L;
+    } finally {
+      resultSet.close();
     }
-      // Finally, construct the inventory.
-    return mapBuilder.build();
   }
 
   /**
@@ -310,6 +658,12 @@ public class JdbcStore implements PersistentStore {
    */
   @Override
   public String getConnectorState(StoreContext context) {
+    testStoreContext(context);
+    synchronized (pendingStates) {
+      if (pendingStates.containsKey(context.getConnectorName())) {
+        return pendingStates.get(context.getConnectorName());
+      }
+    }
     return getField(context, STATE);
   }
 
@@ -321,7 +675,80 @@ public class JdbcStore implements PersistentStore {
    */
   @Override
   public void storeConnectorState(StoreContext context, String connectorState) {
-    setField(context, STATE, connectorState);
+    testStoreContext(context);
+    long delay = writeBehindDelay;
+    if (delay > 0) {
+      synchronized (pendingStates) {
+        pendingStates.put(context.getConnectorName(), connectorState);
+        scheduleFlush(delay);
+      }
+    } else {
+      // Write any pending states first, so they do not overwrite this one.
+      flushConnectorStates();
+      setField(context, STATE, connectorState);
+    }
+  }
+
+  /**
+   * Schedules a flush of the pending connector states, if one is not
+   * already scheduled.  The caller must hold the lock on
+   * {@code pendingStates}.
+   */
+  private void scheduleFlush(long delay) {
+    if (flushScheduled) {
+      return;
+    }
+    if (writeBehindTimer == null) {
+      writeBehindTimer = new Timer("JdbcStore", true);
+    }
+    writeBehindTimer.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          try {
+            flushConnectorStates();
+          } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to store connector states", e);
+          }
+        }
+      }, delay);
+    flushScheduled = true;
+  }
+
+  /**
+   * Writes the connector states that have been stored but not yet written,
+   * in a single batch.  If the states cannot be written, they remain
+   * pending and another attempt is scheduled.
+   *
+   * @since 3.4
+   */
+  public void flushConnectorStates() {
+    synchronized (flushLock) {
+      List<Field> fields = new ArrayList<Field>();
+      synchronized (pendingStates) {
+        flushScheduled = false;
+        if (pendingStates.isEmpty()) {
+          return;
+        }
+        for (Map.Entry<String, String> entry : pendingStates.entrySet()) {
+          fields.add(new Field(entry.getKey(), STATE, entry.getValue()));
+        }
+      }
+      boolean written = setFields(fields);
+      synchronized (pendingStates) {
+        if (written) {
+          // Keep any states that were stored while these were written.
+          for (Field field : fields) {
+            if (Objects.equal(field.fieldValue,
+                    pendingStates.get(field.connectorName))) {
+              pendingStates.remove(field.connectorName);
+            }
+          }
+        }
+        if (!pendingStates.isEmpty()) {
+          scheduleFlush(Math.max(writeBehindDelay, 1000L));
+        }
+      }
+    }
   }
 
   /**
@@ -384,9 +811,11 @@ public class JdbcStore implements PersistentStore {
       configXml = configuration.getXml();
       type = configuration.getTypeName();
     }
-    setField(context, TYPE, type);
-    setField(context, XML, configXml);
-    setField(context, MAP, configMap);
+    String connectorName = context.getConnectorName();
+    setFields(ImmutableList.of(
+        new Field(connectorName, TYPE, type),
+        new Field(connectorName, XML, configXml),
+        new Field(connectorName, MAP, configMap)));
   }
 
   /**
@@ -409,19 +838,22 @@ public class JdbcStore implements PersistentStore {
   }
 
   /**
-   * Quotes the supplied value using single qoutes.  MessageFormat
-   * considers embedded single-quotes special, and doesn't do
-   * substitutions within them.  Unfortunately, this is exactly
-   * where we want to use substitutions: in SQL queries like:
-   * {@code ... WHERE ( connector_name='{0}' ...}.
-   * <p>
-   * One solution is to add the quote characters to the value being
-   * substituted in (the purpose of this method).  Another solution would
-   * be to avoid MessageFormat, possibly trying PreparedStatement syntax.
+   * Returns a {@link PreparedStatement} for the query, prepared on the
+   * given {@link Connection}.  The statements are cached by the connection
+   * pool with each pooled {@code Connection}, and must not be closed by
+   * the caller.
+   */
+  private PreparedStatement prepareStatement(Connection connection,
+      String query) throws SQLException {
+    return database.getConnectionPool().prepareStatement(connection, query);
+  }
+
+  /**
+   * Closes and discards the cached statements for a {@link Connection},
+   * after a failure that may have left them unusable.
    */
-  // TODO: Use PreparedStatements.
-  private String quoteValue(String value) {
-    return "'" + value.replace("'", "''") + "'";
+  private void closeStatements(Connection connection) {
+    database.getConnectionPool().closeStatements(connection);
   }
 
   /**
@@ -437,18 +869,20 @@ public class JdbcStore implements PersistentStore {
       init();
       Connection connection = database.getConnectionPool().getConnection();
       try {
-        Object[] params =
-            { quoteValue(context.getConnectorName()), quoteValue(fieldName) };
-        String query = MessageFormat.format(getValueQuery, params);
-        Statement stmt = connection.createStatement();
+        PreparedStatement stmt = prepareStatement(connection, getValueQuery);
+        stmt.setString(1, context.getConnectorName());
+        stmt.setString(2, fieldName);
+        ResultSet rs = stmt.executeQuery();
         try {
-          ResultSet rs = stmt.executeQuery(query);
           if (rs.next()) {
             return rs.getString(propertyValueColumn);
           }
         } finally {
-          stmt.close();
+          rs.close();
         }
+      } catch (SQLException e) {
+        closeStatements(connection);
+        throw e;
       } finally {
         database.getConnectionPool().releaseConnection(connection);
       }
@@ -469,6 +903,20 @@ public class JdbcStore implements PersistentStore {
   private void setField(StoreContext context,
                         String fieldName, String fieldValue) {
     testStoreContext(context);
+    setFields(ImmutableList.of(
+        new Field(context.getConnectorName(), fieldName, fieldValue)));
+  }
+
+  /**
+   * Updates database field values in a single transaction.  The existing
+   * rows are updated in one batch, setting their ModifyStamps to the next
+   * modification sequence so others may know the values have changed, and
+   * the fields that do not yet exist are then inserted in another batch.
+   *
+   * @param fields the fields to write
+   * @return {@code true} if the fields were written
+   */
+  private boolean setFields(List<Field> fields) {
     Connection connection = null;
     boolean originalAutoCommit = true;
     try {
@@ -478,45 +926,47 @@ public class JdbcStore implements PersistentStore {
         originalAutoCommit = connection.getAutoCommit();
         connection.setAutoCommit(false);
 
-        Object[] params =
-            { quoteValue(context.getConnectorName()), quoteValue(fieldName) };
-        String query = MessageFormat.format(setValueQuery, params);
-        Statement stmt = connection.createStatement(
-            ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-        try {
-          ResultSet rs = stmt.executeQuery(query);
-          if (rs.next()) {
-            // This connector property exists, update the property value.
-            if (fieldValue == null) {
-              rs.updateNull(propertyValueColumn);
-            } else {
-              rs.updateString(propertyValueColumn, fieldValue);
-            }
-            // Bump the ModifyStamp, so others may know the value has changed.
-            rs.updateInt(modifyStampColumn, rs.getInt(modifyStampColumn) + 1);
-            rs.updateRow();
-          } else {
-            // This connector property does not exist, insert it with new value.
-            rs.moveToInsertRow();
-            rs.updateInt(modifyStampColumn, 1); // Bootstrap the ModifyStamp
-            rs.updateString(connectorNameColumn, context.getConnectorName());
-            rs.updateString(propertyNameColumn, fieldName);
-            if (fieldValue == null) {
-              rs.updateNull(propertyValueColumn);
-            } else {
-              rs.updateString(propertyValueColumn, fieldValue);
+        long stamp = nextSequence(connection);
+        PreparedStatement update =
+            prepareStatement(connection, updateValueQuery);
+        for (Field field : fields) {
+          setUpdateParameters(update, field, stamp);
+          update.addBatch();
+        }
+        int[] counts = update.executeBatch();
+
+        PreparedStatement insert = null;
+        for (int i = 0; i < fields.size(); i++) {
+          Field field = fields.get(i);
+          int count = (i < counts.length) ? counts[i] : 0;
+          if (count == Statement.SUCCESS_NO_INFO) {
+            // The driver does not say whether the row exists, so update
+            // it again by itself.
+            setUpdateParameters(update, field, stamp);
+            count = update.executeUpdate();
+          }
+          if (count == 0) {
+            // This connector property does not exist, insert it.
+            if (insert == null) {
+              insert = prepareStatement(connection, insertValueQuery);
             }
-            rs.insertRow();
+            insert.setLong(1, stamp);
+            insert.setString(2, field.connectorName);
+            insert.setString(3, field.fieldName);
+            setValueParameter(insert, 4, field.fieldValue);
+            insert.addBatch();
           }
-          connection.commit();
-          rs.close();
-        } finally {
-          stmt.close();
         }
+        if (insert != null) {
+          insert.executeBatch();
+        }
+        connection.commit();
+        return true;
       } catch (SQLException e) {
         try {
           connection.rollback();
         } catch (SQLException ignored) {}
+        closeStatements(connection);
         throw e;
       } finally {
         try {
@@ -525,8 +975,33 @@ public class JdbcStore implements PersistentStore {
         database.getConnectionPool().releaseConnection(connection);
       }
     } catch (SQLException e) {
-      LOGGER.log(Level.WARNING, "Failed to store " + fieldName
-          + " for connector " + context.getConnectorName(), e);
+      Set<String> fieldNames = new LinkedHashSet<String>();
+      Set<String> connectorNames = new LinkedHashSet<String>();
+      for (Field field : fields) {
+        fieldNames.add(field.fieldName);
+        connectorNames.add(field.connectorName);
+      }
+      LOGGER.log(Level.WARNING, "Failed to store "
+          + Joiner.on(", ").join(fieldNames) + " for connector "
+          + Joiner.on(", ").join(connectorNames), e);
+      return false;
+    }
+  }
+
+  private static void setUpdateParameters(PreparedStatement update,
+      Field field, long stamp) throws SQLException {
+    setValueParameter(update, 1, field.fieldValue);
+    update.setLong(2, stamp);
+    update.setString(3, field.connectorName);
+    update.setString(4, field.fieldName);
+  }
+
+  private static void setValueParameter(PreparedStatement statement,
+      int index, String value) throws SQLException {
+    if (value == null) {
+      statement.setNull(index, Types.VARCHAR);
+    } else {
+      statement.setString(index, value);
     }
   }
 }
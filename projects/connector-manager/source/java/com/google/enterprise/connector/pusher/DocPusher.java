@@ -16,7 +16,9 @@ package com.google.enterprise.connector.pusher;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.logging.NDC;
+import com.google.enterprise.connector.manager.AuthorizationCache;
 import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.manager.DocumentMetadataCache;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
@@ -31,12 +33,15 @@ import java.io.OutputStream;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,6 +62,12 @@ public class DocPusher implements Pusher {
       Logger.getLogger(FEED_WRAPPER_LOGGER.getName() + ".FEED");
   private static final Level FEED_LOG_LEVEL = Level.FINER;
 
+  /**
+   * The default number of feeds that may be waiting to be sent before
+   * the Pusher reports a {@link PusherStatus#LOCAL_FEED_BACKLOG}.
+   */
+  public static final int DEFAULT_MAX_PENDING_FEEDS = 10;
+
   /**
    * Configured maximum document size and maximum feed file size supported.
    */
@@ -84,12 +95,32 @@ public class DocPusher implements Pusher {
   private final String connectorName;
 
   /**
-   * ExcecutorService that submits a Feed to the GSA in a separate thread.
+   * Executor that submits a Feed to the GSA in a separate thread.
    * This allows us to overlap I/O reading content from the Repository
    * in the traversal thread, and submitting content to the GSA in
-   * a submitFeed thread.
+   * a submitFeed thread.  This is typically a view of a
+   * {@link FeedSenderPool} shared by all connectors.
+   */
+  private final Executor feedSender;
+
+  /**
+   * If this DocPusher created its own feed sender thread, this is
+   * that ExecutorService, which must be shut down with the DocPusher.
+   * Otherwise, this is {@code null}.
+   */
+  private final ExecutorService privateFeedSender;
+
+  /**
+   * The maximum number of feeds that may be waiting to be sent before
+   * the Pusher reports a {@link PusherStatus#LOCAL_FEED_BACKLOG}.
+   */
+  private final int maxPendingFeeds;
+
+  /**
+   * Flag indicating the pusher has been flushed or canceled.
+   * No more documents will be accepted.
    */
-  private final ExecutorService feedSender;
+  private volatile boolean isShutdown = false;
 
   /**
    * This is the list of outstanding asynchronous feed submissions.
@@ -104,6 +135,13 @@ public class DocPusher implements Pusher {
    */
   private XmlFeed xmlFeed = null;
 
+  /**
+   * If the FeedConnection supports streaming, this is the stream to which
+   * the current XmlFeed is sent as records are added.  Otherwise, this is
+   * {@code null}, and the XmlFeed is sent once it is complete.
+   */
+  private FeedStream feedStream = null;
+
   /**
    * This field is used to construct a feed record in parallel to the main feed
    * InputStream construction.  It is only used if the feed logging level is set
@@ -113,6 +151,19 @@ public class DocPusher implements Pusher {
    */
   private StringBuilder feedLog = null;
 
+  /**
+   * The cache of authorization decisions, which are invalidated for each
+   * document fed, or {@code null} if decisions are not cached.
+   */
+  private AuthorizationCache authorizationCache = null;
+
+  /**
+   * The cache of document metadata used to answer content requests,
+   * which is invalidated for each document fed, or {@code null} if
+   * metadata is not cached.
+   */
+  private DocumentMetadataCache metadataCache = null;
+
   // For use by unit tests.
   private String gsaResponse;
 
@@ -121,6 +172,8 @@ public class DocPusher implements Pusher {
    * {@code feedConnection} and {@code connectorName}.  The supplied
    * {@link FileSizeLimitInfo} specifies constraints as to the size of a
    * Document's content and the size of generated Feed files.
+   * The {@code DocPusher} sends its feeds to the GSA from its own
+   * private feed sender thread.
    *
    * @param feedConnection a FeedConnection
    * @param connectorName The connector name that is the source of the feed
@@ -132,14 +185,74 @@ public class DocPusher implements Pusher {
   public DocPusher(FeedConnection feedConnection, String connectorName,
                    FileSizeLimitInfo fileSizeLimitInfo,
                    DocumentFilterFactory documentFilterFactory) {
+    this(feedConnection, connectorName, fileSizeLimitInfo,
+         documentFilterFactory, Executors.newSingleThreadExecutor(), true,
+         DEFAULT_MAX_PENDING_FEEDS);
+  }
+
+  /**
+   * Creates a {@code DocPusher} object from the specified
+   * {@code feedConnection} and {@code connectorName}.  The supplied
+   * {@link FileSizeLimitInfo} specifies constraints as to the size of a
+   * Document's content and the size of generated Feed files.
+   * Feeds are sent to the GSA using threads from the supplied
+   * {@link FeedSenderPool}.
+   *
+   * @param feedConnection a FeedConnection
+   * @param connectorName The connector name that is the source of the feed
+   * @param fileSizeLimitInfo FileSizeLimitInfo constraints on document content
+   *        and feed size.
+   * @param documentFilterFactory a {@link DocumentFilterFactory} that creates
+   *        document processing filters.
+   * @param feedSenderPool a {@link FeedSenderPool} used to send feeds
+   * @param maxPendingFeeds the maximum number of feeds that may be waiting
+   *        to be sent before the Pusher reports a local feed backlog
+   */
+  public DocPusher(FeedConnection feedConnection, String connectorName,
+                   FileSizeLimitInfo fileSizeLimitInfo,
+                   DocumentFilterFactory documentFilterFactory,
+                   FeedSenderPool feedSenderPool, int maxPendingFeeds) {
+    this(feedConnection, connectorName, fileSizeLimitInfo,
+         documentFilterFactory, feedSenderPool.newExecutor(), false,
+         maxPendingFeeds);
+  }
+
+  private DocPusher(FeedConnection feedConnection, String connectorName,
+                    FileSizeLimitInfo fileSizeLimitInfo,
+                    DocumentFilterFactory documentFilterFactory,
+                    Executor feedSender, boolean isPrivateFeedSender,
+                    int maxPendingFeeds) {
     this.feedConnection = feedConnection;
     this.connectorName = connectorName;
     this.fileSizeLimit = fileSizeLimitInfo;
     this.documentFilterFactory = documentFilterFactory;
+    this.maxPendingFeeds = maxPendingFeeds;
 
     // Initialize background feed submission.
     this.submissions = new LinkedList<FutureTask<String>>();
-    this.feedSender = Executors.newSingleThreadExecutor();
+    this.feedSender = feedSender;
+    this.privateFeedSender =
+        (isPrivateFeedSender) ? (ExecutorService) feedSender : null;
+  }
+
+  /**
+   * Sets the cache of authorization decisions to invalidate for each
+   * document fed.
+   *
+   * @param authorizationCache an {@link AuthorizationCache}, or {@code null}
+   */
+  void setAuthorizationCache(AuthorizationCache authorizationCache) {
+    this.authorizationCache = authorizationCache;
+  }
+
+  /**
+   * Sets the cache of document metadata to invalidate for each
+   * document fed.
+   *
+   * @param metadataCache a {@link DocumentMetadataCache}, or {@code null}
+   */
+  void setMetadataCache(DocumentMetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
   }
 
   /**
@@ -187,7 +300,7 @@ public class DocPusher implements Pusher {
   @Override
   public PusherStatus take(Document document)
       throws PushException, FeedException, RepositoryException {
-    if (feedSender.isShutdown()) {
+    if (isShutdown) {
       return PusherStatus.DISABLED;
     }
     checkSubmissions();
@@ -242,8 +355,23 @@ public class DocPusher implements Pusher {
             connectorName});
       }
 
+      // The document may have changed, so discard its cached decisions.
+      if (authorizationCache != null && authorizationCache.isEnabled()) {
+        authorizationCache.invalidate(connectorName,
+            DocUtils.getOptionalString(document, SpiConstants.PROPNAME_DOCID));
+        authorizationCache.invalidate(connectorName,
+            DocUtils.getOptionalString(document,
+                SpiConstants.PROPNAME_SEARCHURL));
+      }
+      // And its cached metadata.
+      if (metadataCache != null && metadataCache.isEnabled()) {
+        metadataCache.invalidate(connectorName,
+            DocUtils.getOptionalString(document, SpiConstants.PROPNAME_DOCID));
+      }
+
       // Add this document to the feed.
       xmlFeed.addRecord(document);
+      commitFeed();
 
       // If the feed is full, send it off to the GSA.
       if (xmlFeed.isFull() || lowMemory()) {
@@ -300,23 +428,41 @@ public class DocPusher implements Pusher {
   @Override
   public void flush() throws PushException, FeedException, RepositoryException {
     checkSubmissions();
-    if (!feedSender.isShutdown()) {
+    if (!isShutdown) {
       if (xmlFeed != null) {
         LOGGER.fine("Flushing accumulated feed to GSA");
         submitFeed();
       }
-      feedSender.shutdown();
+      isShutdown = true;
+      if (privateFeedSender != null) {
+        privateFeedSender.shutdown();
+      }
     }
-    while (!feedSender.isTerminated()) {
+    FutureTask<String> future;
+    while ((future = oldestSubmission()) != null) {
       try {
-        feedSender.awaitTermination(10, TimeUnit.SECONDS);
+        future.get(10, TimeUnit.SECONDS);
+      } catch (TimeoutException te) {
+        // Keep waiting.
+      } catch (ExecutionException ee) {
+        // checkSubmissions() will rethrow the failure.
       } catch (InterruptedException ie) {
         if (checkSubmissions() > 0) {
           throw new FeedException("Interrupted while waiting for feeds.");
         }
       }
+      checkSubmissions();
+    }
+  }
+
+  /**
+   * Returns the oldest outstanding feed submission, or {@code null}
+   * if there are none.
+   */
+  private FutureTask<String> oldestSubmission() {
+    synchronized(submissions) {
+      return submissions.isEmpty() ? null : submissions.getFirst();
     }
-    checkSubmissions();
   }
 
   /**
@@ -327,20 +473,30 @@ public class DocPusher implements Pusher {
     // Discard any feed under construction.
     if (xmlFeed != null) {
       LOGGER.fine("Discarding accumulated feed for " + connectorName);
+      abortFeedStream();
+      xmlFeed.release();
       xmlFeed = null;
     }
     if (feedLog != null) {
       feedLog = null;
     }
     // Cancel any feeds under asynchronous submission.
-    feedSender.shutdownNow();
+    isShutdown = true;
+    synchronized(submissions) {
+      for (FutureTask<String> future : submissions) {
+        future.cancel(true);
+      }
+    }
+    if (privateFeedSender != null) {
+      privateFeedSender.shutdownNow();
+    }
   }
 
   @Override
   public PusherStatus getPusherStatus()
       throws PushException, FeedException, RepositoryException {
     // Is Pusher shutdown?
-    if (feedSender.isShutdown()) {
+    if (isShutdown) {
       return PusherStatus.DISABLED;
     }
 
@@ -352,7 +508,7 @@ public class DocPusher implements Pusher {
 
     // If the number of feeds waiting to be sent has backed up,
     // tell the Traverser to finish this batch.
-    if (checkSubmissions() > 10) {
+    if (checkSubmissions() > maxPendingFeeds) {
       return PusherStatus.LOCAL_FEED_BACKLOG;
     } else if (feedConnection.isBacklogged()) {
       return PusherStatus.GSA_FEED_BACKLOG;
@@ -382,6 +538,8 @@ public class DocPusher implements Pusher {
             gsaResponse = future.get();
           } catch (InterruptedException ie) {
             // Shouldn't happen if isDone.
+          } catch (CancellationException ce) {
+            // The feed was canceled along with this Pusher.
           } catch (ExecutionException ee) {
             Throwable cause = ee.getCause();
             if (cause == null) {
@@ -411,7 +569,7 @@ public class DocPusher implements Pusher {
    * @return true if free memory is running low.
    */
   private boolean lowMemory() {
-    long threshold = ((fileSizeLimit.maxFeedSize() + fileSizeLimit.maxDocumentSize()) * 4) / 3;
+    long threshold = ((fileSizeLimit.feedMemorySize() + fileSizeLimit.maxDocumentSize()) * 4) / 3;
     Runtime rt = Runtime.getRuntime();
     if ((rt.maxMemory() - (rt.totalMemory() - rt.freeMemory())) < threshold) {
       rt.gc();
@@ -427,7 +585,8 @@ public class DocPusher implements Pusher {
    *
    * @param feedType
    */
-  private void startNewFeed(FeedType feedType) throws PushException {
+  private void startNewFeed(FeedType feedType)
+      throws PushException, FeedException {
     // Allocate a buffer to construct the feed log.
     try {
       if (FEED_LOGGER.isLoggable(FEED_LOG_LEVEL) && feedLog == null) {
@@ -440,7 +599,7 @@ public class DocPusher implements Pusher {
            "Unable to allocate feed log buffer for connector " + connectorName);
     }
 
-    long feedSize = fileSizeLimit.maxFeedSize();
+    long feedSize = fileSizeLimit.feedMemorySize();
     try {
       try {
         // Allocate XmlFeed of the target size.
@@ -470,9 +629,56 @@ public class DocPusher implements Pusher {
     }
 
     LOGGER.fine("Allocated a new feed of size " + feedSize);
+
+    // If possible, start sending the feed while it is being built.
+    // A teed feed file requires the complete feed, so don't stream then.
+    if (feedConnection instanceof StreamingFeedConnection
+        && ((StreamingFeedConnection) feedConnection).isStreaming()
+        && Context.getInstance().getTeedFeedFile() == null) {
+      feedStream =
+          ((StreamingFeedConnection) feedConnection).openFeedStream(xmlFeed);
+      try {
+        xmlFeed.startStreaming(feedStream.getOutputStream());
+      } catch (IOException ioe) {
+        abortFeedStream();
+        xmlFeed.release();
+        xmlFeed = null;
+        throw new FeedException("Error streaming feed", ioe);
+      }
+      LOGGER.fine("Streaming new feed for " + connectorName);
+    }
     return;
   }
 
+  /**
+   * If streaming the current feed, sends the records added so far.
+   * Those records can no longer be rolled back.
+   *
+   * @throws FeedException if the records could not be sent
+   */
+  private void commitFeed() throws FeedException {
+    if (feedStream != null) {
+      try {
+        xmlFeed.commit();
+      } catch (IOException ioe) {
+        abortFeedStream();
+        xmlFeed.release();
+        xmlFeed = null;
+        throw new FeedException("Error streaming feed", ioe);
+      }
+    }
+  }
+
+  /**
+   * Abandons the stream for the current feed, if any.
+   */
+  private void abortFeedStream() {
+    if (feedStream != null) {
+      feedStream.abort();
+      feedStream = null;
+    }
+  }
+
   /**
    * Takes the accumulated XmlFeed and sends the feed to the GSA.
    *
@@ -499,9 +705,23 @@ public class DocPusher implements Pusher {
     try {
       feed.close();
     } catch (IOException ioe) {
+      abortFeedStream();
+      feed.release();
       throw new PushException("Error closing feed", ioe);
     }
 
+    final FeedStream stream = feedStream;
+    feedStream = null;
+    if (stream != null) {
+      try {
+        feed.commit();
+      } catch (IOException ioe) {
+        stream.abort();
+        feed.release();
+        throw new FeedException("Error streaming feed", ioe);
+      }
+    }
+
     try {
       // Send the feed to the GSA in a separate thread.
       FutureTask<String> future = new FutureTask<String> (
@@ -510,19 +730,32 @@ public class DocPusher implements Pusher {
                 throws PushException, FeedException, RepositoryException {
               try {
                 NDC.push("Feed " + feed.getDataSource());
-                return submitFeed(feed, logMessage);
+                return submitFeed(feed, stream, logMessage);
               } finally {
                 NDC.remove();
               }
             }
           }
-        );
+        ) {
+          @Override
+          protected void done() {
+            // Free the feed once it is sent, fails, or is canceled.
+            if (stream != null && isCancelled()) {
+              stream.abort();
+            }
+            feed.release();
+          }
+        };
       feedSender.execute(future);
       // Add the future to list of outstanding submissions.
       synchronized(submissions) {
         submissions.add(future);
       }
     } catch (RejectedExecutionException ree) {
+      if (stream != null) {
+        stream.abort();
+      }
+      feed.release();
       throw new FeedException("Asynchronous feed was rejected. ", ree);
     }
   }
@@ -531,13 +764,16 @@ public class DocPusher implements Pusher {
    * Takes the supplied XmlFeed and sends that feed to the GSA.
    *
    * @param feed an XmlFeed
+   * @param stream the FeedStream to which the feed has been written,
+   *        or {@code null} if the feed was not streamed
    * @param logMessage a Feed Log message
    * @return response String from GSA
    * @throws PushException if Pusher problem
    * @throws FeedException if transient Feed problem
    * @throws RepositoryException
    */
-  private String submitFeed(XmlFeed feed, String logMessage)
+  private String submitFeed(XmlFeed feed, FeedStream stream,
+      String logMessage)
       throws PushException, FeedException, RepositoryException {
 
     if (LOGGER.isLoggable(Level.FINE)) {
@@ -552,8 +788,9 @@ public class DocPusher implements Pusher {
     }
 
     // Write the Feed to the TeedFeedFile, if one was specified.
+    // Streamed feeds have already been sent, and are not teed.
     String teedFeedFilename = Context.getInstance().getTeedFeedFile();
-    if (teedFeedFilename != null) {
+    if (teedFeedFilename != null && stream == null) {
       boolean isThrowing = false;
       OutputStream os = null;
       try {
@@ -576,7 +813,8 @@ public class DocPusher implements Pusher {
       }
     }
 
-    String gsaResponse = feedConnection.sendData(feed);
+    String gsaResponse = (stream == null)
+        ? feedConnection.sendData(feed) : stream.finish();
     if (!gsaResponse.equals(GsaFeedConnection.SUCCESS_RESPONSE)) {
       String eMessage = gsaResponse;
       if (GsaFeedConnection.UNAUTHORIZED_RESPONSE.equals(gsaResponse)) {
@@ -16,6 +16,8 @@ package com.google.enterprise.connector.pusher;
 
 import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactory;
 import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactoryImpl;
+import com.google.enterprise.connector.manager.AuthorizationCache;
+import com.google.enterprise.connector.manager.DocumentMetadataCache;
 import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
 
 import java.util.logging.Logger;
@@ -52,6 +54,30 @@ public class DocPusherFactory implements PusherFactory {
    */
   private final DocumentFilterFactoryFactory documentFilterFactoryFactory;
 
+  /**
+   * The {@link FeedSenderPool} shared by all the DocPushers, or {@code null}
+   * if each DocPusher should send its feeds from its own thread.
+   */
+  private final FeedSenderPool feedSenderPool;
+
+  /**
+   * The maximum number of feeds a DocPusher may have waiting to be sent
+   * before reporting a local feed backlog.
+   */
+  private final int maxPendingFeeds;
+
+  /**
+   * The cache of authorization decisions, which the DocPushers invalidate
+   * for each document fed, or {@code null} if decisions are not cached.
+   */
+  private AuthorizationCache authorizationCache = null;
+
+  /**
+   * The cache of document metadata, which the DocPushers invalidate
+   * for each document fed, or {@code null} if metadata is not cached.
+   */
+  private DocumentMetadataCache metadataCache = null;
+
   /**
    * Creates a {@code DocPusherFactory} object from the specified
    * {@code feedConnection}.  This constructor is Used by the tests.
@@ -78,18 +104,77 @@ public class DocPusherFactory implements PusherFactory {
   public DocPusherFactory(FeedConnection feedConnection,
       FileSizeLimitInfo fileSizeLimit,
       DocumentFilterFactoryFactory documentFilterFactoryFactory) {
+    this(feedConnection, fileSizeLimit, documentFilterFactoryFactory, null,
+         DocPusher.DEFAULT_MAX_PENDING_FEEDS);
+  }
+
+  /**
+   * Creates a {@code DocPusherFactory} object from the specified
+   * {@code feedConnection}.  The supplied {@link FileSizeLimitInfo} specifies
+   * constraints as to the size of a Document's content and the size of
+   * generated Feed files.  The created {@link DocPusher DocPushers} send
+   * their feeds using threads from the shared {@link FeedSenderPool}.
+   *
+   * @param feedConnection a {@link FeedConnection} sink for documents.
+   * @param fileSizeLimit {@link FileSizeLimitInfo} constraints on document
+   *        content and feed size.
+   * @param documentFilterFactoryFactory a {@link DocumentFilterFactoryFactory}
+   *        that will be used to create document processing filters.
+   * @param feedSenderPool a {@link FeedSenderPool} shared by all DocPushers,
+   *        or {@code null} to give each DocPusher its own feed sender thread.
+   * @param maxPendingFeeds the maximum number of feeds a DocPusher may have
+   *        waiting to be sent before reporting a local feed backlog.
+   */
+  public DocPusherFactory(FeedConnection feedConnection,
+      FileSizeLimitInfo fileSizeLimit,
+      DocumentFilterFactoryFactory documentFilterFactoryFactory,
+      FeedSenderPool feedSenderPool, int maxPendingFeeds) {
     this.feedConnection = feedConnection;
     this.fileSizeLimit = fileSizeLimit;
     this.documentFilterFactoryFactory = documentFilterFactoryFactory;
+    this.feedSenderPool = feedSenderPool;
+    this.maxPendingFeeds = maxPendingFeeds;
 
     LOGGER.config(feedConnection.toString());
     LOGGER.config(fileSizeLimit.toString());
     LOGGER.config(documentFilterFactoryFactory.toString());
   }
 
+  /**
+   * Sets the cache of authorization decisions to invalidate for each
+   * document fed.
+   *
+   * @param authorizationCache an {@link AuthorizationCache}, or {@code null}
+   * @since 3.4
+   */
+  public void setAuthorizationCache(AuthorizationCache authorizationCache) {
+    this.authorizationCache = authorizationCache;
+  }
+
+  /**
+   * Sets the cache of document metadata to invalidate for each
+   * document fed.
+   *
+   * @param metadataCache a {@link DocumentMetadataCache}, or {@code null}
+   * @since 3.4
+   */
+  public void setMetadataCache(DocumentMetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
+  }
+
   @Override
   public Pusher newPusher(String dataSource) {
-    return new DocPusher(feedConnection, dataSource, fileSizeLimit,
-        documentFilterFactoryFactory.getDocumentFilterFactory(dataSource));
+    DocPusher pusher;
+    if (feedSenderPool == null) {
+      pusher = new DocPusher(feedConnection, dataSource, fileSizeLimit,
+          documentFilterFactoryFactory.getDocumentFilterFactory(dataSource));
+    } else {
+      pusher = new DocPusher(feedConnection, dataSource, fileSizeLimit,
+          documentFilterFactoryFactory.getDocumentFilterFactory(dataSource),
+          feedSenderPool, maxPendingFeeds);
+    }
+    pusher.setAuthorizationCache(authorizationCache);
+    pusher.setMetadataCache(metadataCache);
+    return pusher;
   }
 }
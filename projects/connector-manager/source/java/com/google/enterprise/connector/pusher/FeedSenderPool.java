@@ -0,0 +1,204 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Preconditions;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of threads that submit feeds to the GSA, shared by all
+ * the {@link DocPusher DocPushers} created by a {@link DocPusherFactory}.
+ * <p>
+ * Each {@code DocPusher} is handed its own {@link Executor} view of the
+ * pool that limits the number of feeds that connector may have in flight
+ * at once.  The default limit of one feed per connector preserves the
+ * order in which a connector's feeds arrive at the GSA, while still
+ * allowing different connectors to send their feeds concurrently.
+ * Raising the per-connector limit allows a single large traversal to
+ * post several feeds in parallel, at the cost of that ordering guarantee.
+ */
+public class FeedSenderPool {
+  private static final Logger LOGGER =
+      Logger.getLogger(FeedSenderPool.class.getName());
+
+  /** The default number of feed sender threads. */
+  public static final int DEFAULT_THREADS = 10;
+
+  /** The default number of concurrent feeds per connector. */
+  public static final int DEFAULT_FEEDS_PER_CONNECTOR = 1;
+
+  /** How long an idle feed sender thread lingers before exiting. */
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  private final ThreadPoolExecutor executor;
+
+  private final int maxFeedsPerConnector;
+
+  /** The number of feeds submitted, but not yet sent. */
+  private final AtomicInteger pendingCount = new AtomicInteger();
+
+  /**
+   * Creates a {@code FeedSenderPool} with the default number of threads,
+   * and one concurrent feed per connector.
+   */
+  public FeedSenderPool() {
+    this(DEFAULT_THREADS, DEFAULT_FEEDS_PER_CONNECTOR);
+  }
+
+  /**
+   * Creates a {@code FeedSenderPool}.
+   *
+   * @param threads the maximum number of feeds that may be sent
+   *        concurrently, across all connectors
+   * @param maxFeedsPerConnector the maximum number of feeds that any single
+   *        connector may be sending concurrently
+   */
+  public FeedSenderPool(int threads, int maxFeedsPerConnector) {
+    Preconditions.checkArgument(threads > 0,
+        "The number of feed sender threads must be positive.");
+    Preconditions.checkArgument(maxFeedsPerConnector > 0,
+        "The number of feeds per connector must be positive.");
+    this.maxFeedsPerConnector = maxFeedsPerConnector;
+    this.executor = new ThreadPoolExecutor(threads, threads,
+        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new FeedSenderThreadFactory());
+    // Let idle threads exit, so that an idle pool holds no threads and
+    // does not prevent the JVM from shutting down.
+    this.executor.allowCoreThreadTimeOut(true);
+    LOGGER.config("FeedSenderPool: threads = " + threads
+        + ", maxFeedsPerConnector = " + maxFeedsPerConnector);
+  }
+
+  /** Returns the maximum number of feeds that may be sent concurrently. */
+  public int getThreads() {
+    return executor.getMaximumPoolSize();
+  }
+
+  /** Returns the maximum number of concurrent feeds per connector. */
+  public int getMaxFeedsPerConnector() {
+    return maxFeedsPerConnector;
+  }
+
+  /** Returns the number of feeds currently being sent. */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * Returns the number of feeds that have been submitted, but not yet
+   * sent, including those currently being sent.
+   */
+  public int getPendingCount() {
+    return pendingCount.get();
+  }
+
+  /**
+   * Returns a new {@link Executor} for a connector's feeds.  At most
+   * {@code maxFeedsPerConnector} tasks submitted to the returned
+   * {@code Executor} run at a time; additional tasks are run
+   * in the order they were submitted as earlier tasks complete.
+   */
+  public Executor newExecutor() {
+    return new LimitedExecutor(executor, maxFeedsPerConnector, pendingCount);
+  }
+
+  /**
+   * An {@link Executor} that runs at most {@code limit} of its tasks
+   * concurrently on a shared delegate {@code Executor}.
+   */
+  private static class LimitedExecutor implements Executor {
+    private final Executor delegate;
+    private final int limit;
+    private final AtomicInteger pendingCount;
+    private final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+    private int running = 0;
+
+    LimitedExecutor(Executor delegate, int limit, AtomicInteger pendingCount) {
+      this.delegate = delegate;
+      this.limit = limit;
+      this.pendingCount = pendingCount;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+      Preconditions.checkNotNull(command);
+      pendingCount.incrementAndGet();
+      synchronized (this) {
+        pending.add(command);
+      }
+      scheduleNext();
+    }
+
+    private void scheduleNext() {
+      final Runnable next;
+      synchronized (this) {
+        if (running >= limit || pending.isEmpty()) {
+          return;
+        }
+        next = pending.removeFirst();
+        running++;
+      }
+      try {
+        delegate.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                next.run();
+              } finally {
+                finished();
+              }
+            }
+          });
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          running--;
+        }
+        pendingCount.decrementAndGet();
+        throw e;
+      }
+    }
+
+    private void finished() {
+      synchronized (this) {
+        running--;
+      }
+      pendingCount.decrementAndGet();
+      scheduleNext();
+    }
+  }
+
+  /** Creates named daemon threads for the feed sender pool. */
+  private static class FeedSenderThreadFactory implements ThreadFactory {
+    private final ThreadFactory delegate = Executors.defaultThreadFactory();
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = delegate.newThread(r);
+      t.setName("FeedSender-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+/**
+ * Measurements of the load on a feed host, for use in controlling
+ * the rate at which documents are fed to it.  A {@link FeedConnection}
+ * may implement this interface.
+ *
+ * @since 3.4
+ */
+public interface FeedStatistics {
+  /**
+   * Returns a moving average of the time taken to post a feed and receive
+   * the feed host's response.
+   *
+   * @return the average response time in milliseconds, or -1 if no feeds
+   *         have been sent
+   */
+  public long getAverageResponseMillis();
+
+  /**
+   * Returns the most recently retrieved count of feed items the feed host
+   * has received, but not yet processed.
+   *
+   * @return the backlog count, or -1 if it is unknown
+   */
+  public int getLastBacklogCount();
+}
@@ -0,0 +1,47 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import java.io.OutputStream;
+
+/**
+ * A feed that is sent to the feed server as it is being generated.
+ *
+ * @see StreamingFeedConnection
+ */
+public interface FeedStream {
+
+  /**
+   * Returns the {@code OutputStream} to which the feed data is written.
+   * The feed data must not be written once {@link #finish} or
+   * {@link #abort} has been called.
+   *
+   * @return the feed data {@code OutputStream}
+   */
+  public OutputStream getOutputStream();
+
+  /**
+   * Completes sending the feed, and waits for the feed server's response.
+   *
+   * @return response from the feed server.
+   * @throws FeedException if there was a problem sending the feed.
+   */
+  public String finish() throws FeedException;
+
+  /**
+   * Abandons the feed.  The feed server will discard the partial feed.
+   */
+  public void abort();
+}
@@ -18,7 +18,6 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.enterprise.connector.servlet.ServletUtil;
 import com.google.enterprise.connector.util.Clock;
-import com.google.enterprise.connector.util.SslUtil;
 import com.google.enterprise.connector.util.SystemClock;
 
 import java.io.BufferedReader;
@@ -30,15 +29,16 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.net.ssl.HttpsURLConnection;
-
 /**
  * Opens a connection to a url and sends data to it.
  */
-public class GsaFeedConnection implements FeedConnection {
+public class GsaFeedConnection
+    implements StreamingFeedConnection, FeedStatistics {
   private static final Logger LOGGER =
       Logger.getLogger(GsaFeedConnection.class.getName());
 
@@ -107,9 +107,27 @@ public class GsaFeedConnection implements FeedConnection {
   // How often to check for backlog (in milliseconds).
   private long backlogCheckInterval = 2 * 60 * 1000L;
 
+  // The most recently retrieved backlog count, or -1 if unknown.
+  private int lastBacklogCount = -1;
+
+  // Moving average of the feed response time, or -1 if no feeds sent.
+  private long averageResponseMillis = -1L;
+
   /** Whether HTTPS connections validate the server certificate. */
   private boolean validateCertificate = true;
 
+  // Maximum number of feeds that may be posted to the GSA concurrently.
+  private int maxConnections = Integer.MAX_VALUE;
+
+  // Limits the number of concurrent feed posts to maxConnections.
+  private Semaphore connectionPermits = null;
+
+  // Chunk size used when streaming feeds, or 0 if streaming is disabled.
+  private int streamingChunkSize = 0;
+
+  // Opens the HTTP connections to the GSA, reusing them where possible.
+  private HttpConnectionPool httpConnectionPool = new HttpConnectionPool();
+
   public GsaFeedConnection(String protocol, String host, int port,
       int securePort) throws MalformedURLException {
     if (Strings.isNullOrEmpty(protocol)) {
@@ -189,6 +207,52 @@ public class GsaFeedConnection implements FeedConnection {
     return validateCertificate;
   }
 
+  /**
+   * Sets the maximum number of feeds that may be posted to the GSA
+   * concurrently.  Additional feeds wait for a connection to become
+   * available.  Values less than 1 imply no limit.
+   *
+   * @param maxConnections the maximum number of concurrent feed connections
+   */
+  public synchronized void setMaxConnections(int maxConnections) {
+    this.maxConnections = (maxConnections < 1)
+        ? Integer.MAX_VALUE : maxConnections;
+    this.connectionPermits = (this.maxConnections == Integer.MAX_VALUE)
+        ? null : new Semaphore(this.maxConnections, true);
+  }
+
+  /** For the unit tests. */
+  public synchronized int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Sets the pool of keep-alive HTTP connections used to communicate
+   * with the GSA.
+   *
+   * @param httpConnectionPool an {@link HttpConnectionPool}
+   */
+  public synchronized void setHttpConnectionPool(
+      HttpConnectionPool httpConnectionPool) {
+    this.httpConnectionPool = httpConnectionPool;
+  }
+
+  /** For the unit tests and for connection reuse statistics. */
+  public synchronized HttpConnectionPool getHttpConnectionPool() {
+    return httpConnectionPool;
+  }
+
+  /**
+   * Sets the HTTP chunk size used when streaming feeds to the GSA while
+   * they are being generated.  A value of zero or less disables feed
+   * streaming, so that each feed is fully built before being sent.
+   *
+   * @param streamingChunkSize the chunk size, in bytes
+   */
+  public synchronized void setStreamingChunkSize(int streamingChunkSize) {
+    this.streamingChunkSize = Math.max(0, streamingChunkSize);
+  }
+
   private static final void controlHeader(StringBuilder builder,
         String name, String mimetype) {
     builder.append("--").append(BOUNDARY).append(CRLF);
@@ -198,55 +262,100 @@ public class GsaFeedConnection implements FeedConnection {
     builder.append(CRLF);
   }
 
+  /**
+   * Builds the multipart/form-data prefix that precedes the feed XML.
+   */
+  private static byte[] feedPrefix(FeedData feedData) {
+    StringBuilder buf = new StringBuilder();
+    controlHeader(buf, "datasource", ServletUtil.MIMETYPE_TEXT_PLAIN);
+    buf.append(feedData.getDataSource()).append(CRLF);
+    controlHeader(buf, "feedtype", ServletUtil.MIMETYPE_TEXT_PLAIN);
+    buf.append(feedData.getFeedType().toLegacyString()).append(CRLF);
+    controlHeader(buf, "data", ServletUtil.MIMETYPE_XML);
+    return buf.toString().getBytes(Charsets.UTF_8);
+  }
+
+  /**
+   * Builds the multipart/form-data suffix that follows the feed XML.
+   */
+  private static byte[] feedSuffix() {
+    StringBuilder buf = new StringBuilder();
+    buf.append(CRLF).append("--").append(BOUNDARY).append("--").append(CRLF);
+    return buf.toString().getBytes(Charsets.UTF_8);
+  }
+
+  /**
+   * Waits for a connection permit, if the number of concurrent
+   * connections is limited.
+   *
+   * @return the Semaphore from which a permit was acquired,
+   *         or {@code null} if connections are not limited
+   */
+  private Semaphore acquireConnectionPermit() throws FeedException {
+    Semaphore permits;
+    synchronized (this) {
+      permits = connectionPermits;
+    }
+    if (permits != null) {
+      try {
+        permits.acquire();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new FeedException("Interrupted while waiting for a connection"
+                                + " to " + feedUrl, ie);
+      }
+    }
+    return permits;
+  }
+
   @Override
   public String sendData(FeedData feedData)
       throws FeedException {
+    Semaphore permits = acquireConnectionPermit();
     try {
+      long startTime = clock.getTimeMillis();
       String response = sendFeedData((XmlFeed)feedData);
+      recordResponseTime(startTime);
       gotFeedError = !response.equalsIgnoreCase(SUCCESS_RESPONSE);
       return response;
     } catch (FeedException fe) {
       gotFeedError = true;
       throw fe;
+    } finally {
+      if (permits != null) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Opens a feed connection to the GSA, ready to post a multipart
+   * form.  The caller must set the streaming mode before writing.
+   */
+  private HttpURLConnection openFeedConnection()
+      throws IOException, GeneralSecurityException {
+    HttpURLConnection uc;
+    LOGGER.finest("Opening feed connection to " + feedUrl);
+    synchronized (this) {
+      uc = httpConnectionPool.openConnection(feedUrl, validateCertificate);
     }
+    uc.setDoInput(true);
+    uc.setDoOutput(true);
+    uc.setRequestProperty("Content-Type", "multipart/form-data; boundary="
+        + BOUNDARY);
+    return uc;
   }
 
   private String sendFeedData(XmlFeed feed)
       throws FeedException {
-    String feedType = feed.getFeedType().toLegacyString();
-    String dataSource = feed.getDataSource();
     OutputStream outputStream;
     HttpURLConnection uc;
-    StringBuilder buf = new StringBuilder();
-    byte[] prefix;
-    byte[] suffix;
+    byte[] prefix = feedPrefix(feed);
+    byte[] suffix = feedSuffix();
     try {
-      // Build prefix.
-      controlHeader(buf, "datasource", ServletUtil.MIMETYPE_TEXT_PLAIN);
-      buf.append(dataSource).append(CRLF);
-      controlHeader(buf, "feedtype", ServletUtil.MIMETYPE_TEXT_PLAIN);
-      buf.append(feedType).append(CRLF);
-      controlHeader(buf, "data", ServletUtil.MIMETYPE_XML);
-      prefix = buf.toString().getBytes(Charsets.UTF_8);
-
-      // Build suffix.
-      buf.setLength(0);
-      buf.append(CRLF).append("--").append(BOUNDARY).append("--").append(CRLF);
-      suffix = buf.toString().getBytes(Charsets.UTF_8);
-
-      LOGGER.finest("Opening feed connection to " + feedUrl);
-      synchronized (this) {
-        uc = (HttpURLConnection) feedUrl.openConnection();
-      }
-      if (uc instanceof HttpsURLConnection && !validateCertificate) {
-        SslUtil.setTrustingHttpsOptions((HttpsURLConnection) uc);
-      }
-      uc.setDoInput(true);
-      uc.setDoOutput(true);
+      uc = openFeedConnection();
       uc.setFixedLengthStreamingMode(prefix.length + feed.size()
           + suffix.length);
-      uc.setRequestProperty("Content-Type", "multipart/form-data; boundary="
-          + BOUNDARY);
       outputStream = uc.getOutputStream();
     } catch (IOException ioe) {
       throw new FeedException(feedUrl.toString(), ioe);
@@ -255,7 +364,7 @@ public class GsaFeedConnection implements FeedConnection {
     }
 
     boolean isThrowing = false;
-    buf.setLength(0);
+    String response = null;
     try {
       LOGGER.finest("Writing feed data to feed connection.");
       // If there is an exception during this read/write, we do our
@@ -289,38 +398,180 @@ public class GsaFeedConnection implements FeedConnection {
         }
       }
     } finally {
-      BufferedReader br = null;
+      response = readResponse(uc, isThrowing);
+    }
+    return response;
+  }
+
+  /**
+   * Reads the GSA's response to a posted feed, then releases the
+   * connection for reuse, or discards it if there was an error.
+   *
+   * @param uc the feed connection
+   * @param isThrowing {@code true} if an exception is already being thrown,
+   *        in which case errors reading the response are ignored
+   * @return the response from the GSA
+   */
+  private String readResponse(HttpURLConnection uc, boolean isThrowing)
+      throws FeedException {
+    StringBuilder buf = new StringBuilder();
+    BufferedReader br = null;
+    boolean isReusable = !isThrowing;
+    try {
+      LOGGER.finest("Waiting for response from feed connection.");
+      InputStream inputStream = uc.getInputStream();
+      br = new BufferedReader(new InputStreamReader(inputStream, "UTF8"));
+      String line;
+      while ((line = br.readLine()) != null) {
+        buf.append(line);
+      }
+    } catch (IOException ioe) {
+      isReusable = false;
+      if (!isThrowing) {
+        throw new FeedException(ioe);
+      }
+    } finally {
       try {
-        LOGGER.finest("Waiting for response from feed connection.");
-        InputStream inputStream = uc.getInputStream();
-        br = new BufferedReader(new InputStreamReader(inputStream, "UTF8"));
-        String line;
-        while ((line = br.readLine()) != null) {
-          buf.append(line);
-        }
-      } catch (IOException ioe) {
-        if (!isThrowing) {
-          throw new FeedException(ioe);
+        if (br != null) {
+          br.close();
         }
-      } finally {
+      } catch (IOException e) {
+        isReusable = false;
+        LOGGER.log(Level.SEVERE,
+                   "IOException while closing after post: continuing", e);
+      }
+      HttpConnectionPool pool = getHttpConnectionPool();
+      if (isReusable) {
+        pool.release(uc);
+      } else {
+        pool.discard(uc);
+      }
+      if (LOGGER.isLoggable(Level.FINEST)) {
+        LOGGER.finest("Received response from feed connection: "
+                      + buf.toString());
+      }
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine(pool.toString());
+      }
+    }
+    return buf.toString();
+  }
+
+  @Override
+  public synchronized boolean isStreaming() {
+    return streamingChunkSize > 0;
+  }
+
+  @Override
+  public FeedStream openFeedStream(FeedData feedData) throws FeedException {
+    int chunkSize;
+    synchronized (this) {
+      chunkSize = streamingChunkSize;
+    }
+    if (chunkSize <= 0) {
+      throw new IllegalStateException("Feed streaming is disabled.");
+    }
+    Semaphore permits = acquireConnectionPermit();
+    try {
+      HttpURLConnection uc = openFeedConnection();
+      uc.setChunkedStreamingMode(chunkSize);
+      OutputStream outputStream = uc.getOutputStream();
+      outputStream.write(feedPrefix(feedData));
+      return new GsaFeedStream(uc, outputStream, permits);
+    } catch (IOException ioe) {
+      gotFeedError = true;
+      if (permits != null) {
+        permits.release();
+      }
+      throw new FeedException(feedUrl.toString(), ioe);
+    } catch (GeneralSecurityException e) {
+      gotFeedError = true;
+      if (permits != null) {
+        permits.release();
+      }
+      throw new FeedException(feedUrl.toString(), e);
+    } catch (RuntimeException e) {
+      if (permits != null) {
+        permits.release();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * A feed being posted to the GSA using chunked transfer encoding
+   * while it is being generated.
+   */
+  private class GsaFeedStream implements FeedStream {
+    private final HttpURLConnection uc;
+    private final OutputStream outputStream;
+    private final Semaphore permits;
+    private final AtomicBoolean isReleased = new AtomicBoolean(false);
+
+    GsaFeedStream(HttpURLConnection uc, OutputStream outputStream,
+        Semaphore permits) {
+      this.uc = uc;
+      this.outputStream = outputStream;
+      this.permits = permits;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return outputStream;
+    }
+
+    @Override
+    public synchronized String finish() throws FeedException {
+      boolean isThrowing = false;
+      String response = null;
+      long startTime = clock.getTimeMillis();
+      try {
+        LOGGER.finest("Finishing streamed feed.");
         try {
-          if (br != null) {
-            br.close();
-          }
+          outputStream.write(feedSuffix());
+          outputStream.flush();
         } catch (IOException e) {
           LOGGER.log(Level.SEVERE,
-                     "IOException while closing after post: continuing", e);
-        }
-        if (uc != null) {
-          uc.disconnect();
+              "IOException while posting: will retry later", e);
+          isThrowing = true;
+          throw new FeedException(e);
+        } finally {
+          try {
+            outputStream.close();
+          } catch (IOException e) {
+            LOGGER.log(Level.SEVERE,
+                "IOException while closing after post: will retry later", e);
+            if (!isThrowing) {
+              isThrowing = true;
+              throw new FeedException(e);
+            }
+          }
         }
-        if (LOGGER.isLoggable(Level.FINEST)) {
-          LOGGER.finest("Received response from feed connection: "
-                        + buf.toString());
+      } finally {
+        try {
+          response = readResponse(uc, isThrowing);
+          recordResponseTime(startTime);
+        } finally {
+          releasePermit();
+          gotFeedError = (response == null)
+              || !response.equalsIgnoreCase(SUCCESS_RESPONSE);
         }
       }
+      return response;
+    }
+
+    @Override
+    public void abort() {
+      LOGGER.finest("Aborting streamed feed to " + feedUrl);
+      getHttpConnectionPool().discard(uc);
+      releasePermit();
+    }
+
+    private void releasePermit() {
+      if (permits != null && isReleased.compareAndSet(false, true)) {
+        permits.release();
+      }
     }
-    return buf.toString();
   }
 
   @Override
@@ -357,6 +608,7 @@ public class GsaFeedConnection implements FeedConnection {
         lastBacklogCheck = now;
         try {
           int backlogCount = getBacklogCount();
+          lastBacklogCount = backlogCount;
           if (backlogCount >= 0) {
             if (gotFeedError) {
               gotFeedError = false;
@@ -399,6 +651,30 @@ public class GsaFeedConnection implements FeedConnection {
     return isBacklogged || gotFeedError;
   }
 
+  @Override
+  public synchronized int getLastBacklogCount() {
+    return lastBacklogCount;
+  }
+
+  @Override
+  public synchronized long getAverageResponseMillis() {
+    return averageResponseMillis;
+  }
+
+  /**
+   * Folds the response time of a feed posted at {@code startTime} into
+   * the moving average.
+   */
+  private synchronized void recordResponseTime(long startTime) {
+    long responseMillis = clock.getTimeMillis() - startTime;
+    if (averageResponseMillis < 0) {
+      averageResponseMillis = responseMillis;
+    } else {
+      // Exponentially weighted, giving the latest feed a weight of 1/4.
+      averageResponseMillis += (responseMillis - averageResponseMillis) / 4;
+    }
+  }
+
   /**
    * @return the current feed backlog count of the GSA,
    *         or -1 if the count is unavailable.
@@ -454,6 +730,7 @@ public class GsaFeedConnection implements FeedConnection {
    */
   private String doGet(URL url, String name) throws FeedException {
     HttpURLConnection conn = null;
+    boolean isReusable = false;
     BufferedReader br = null;
     String str = null;
     StringBuilder buf = new StringBuilder();
@@ -461,10 +738,7 @@ public class GsaFeedConnection implements FeedConnection {
       if (LOGGER.isLoggable(Level.FINEST)) {
         LOGGER.finest("Opening " + name + " connection to " + url);
       }
-      conn = (HttpURLConnection)url.openConnection();
-      if (conn instanceof HttpsURLConnection && !validateCertificate) {
-        SslUtil.setTrustingHttpsOptions((HttpsURLConnection) conn);
-      }
+      conn = httpConnectionPool.openConnection(url, validateCertificate);
       conn.connect();
       int responseCode = conn.getResponseCode();
       if (responseCode == HttpURLConnection.HTTP_OK) {
@@ -474,16 +748,21 @@ public class GsaFeedConnection implements FeedConnection {
           buf.append(str);
         }
         str = buf.toString().trim();
+        isReusable = true;
         if (LOGGER.isLoggable(Level.FINEST)) {
           LOGGER.finest("Received " + name + ": " + str);
         }
         return str;
       } else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+        // The error response is discarded when the connection is released.
+        isReusable = true;
         throw new UnsupportedOperationException(
             "GSA lacks " + name + " support.");
       } else {
+        String message = conn.getResponseMessage();
+        isReusable = true;
         throw new FeedException(url.toString() + " returned response "
-            + responseCode + "  " + conn.getResponseMessage());
+            + responseCode + "  " + message);
       }
     } catch (IOException ioe) {
       throw new FeedException(url.toString(), ioe);
@@ -495,11 +774,16 @@ public class GsaFeedConnection implements FeedConnection {
           br.close();
         }
       } catch (IOException e) {
+        isReusable = false;
         LOGGER.warning("Error after reading response for " + name + ": "
                        + e.getMessage());
       } finally {
         if (conn != null) {
-          conn.disconnect();
+          if (isReusable) {
+            httpConnectionPool.release(conn);
+          } else {
+            httpConnectionPool.discard(conn);
+          }
         }
       }
     }
@@ -0,0 +1,352 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.util.SslUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens HTTP connections to the GSA so that the underlying sockets, and
+ * their SSL sessions, are reused from one request to the next.
+ * <p>
+ * The JVM keeps idle HTTP connections in a keep-alive cache, keyed by
+ * host, port, and {@code SSLSocketFactory}.  A connection is returned to
+ * that cache only if its response is read to the end and closed without
+ * calling {@link HttpURLConnection#disconnect()}, and an HTTPS connection
+ * is found there again only if the same {@code SSLSocketFactory} is used.
+ * This class shares one {@code SSLSocketFactory} for validating and one for
+ * trusting connections, and {@link #release releases} connections in a way
+ * that lets the JVM reuse them.  The JVM evicts an idle connection once
+ * the keep-alive timeout advertised by the server (or five seconds, if none
+ * is advertised) has elapsed.  The number of idle connections kept per
+ * destination is set for the whole JVM by the {@code http.maxConnections}
+ * system property.
+ * <p>
+ * For HTTPS connections, this class also counts the sockets that were
+ * opened and the SSL handshakes that resumed an existing session, from
+ * which the connection {@link #getReuseRatio reuse ratio} is derived.
+ */
+public class HttpConnectionPool {
+  private static final Logger LOGGER =
+      Logger.getLogger(HttpConnectionPool.class.getName());
+
+  /** The default lifetime of a cached SSL session, in seconds. */
+  public static final int DEFAULT_SSL_SESSION_TIMEOUT = 24 * 60 * 60;
+
+  /** Whether connections are kept alive for reuse. */
+  private volatile boolean keepAlive = true;
+
+  /** The lifetime of a cached SSL session, in seconds. */
+  private int sslSessionTimeout = DEFAULT_SSL_SESSION_TIMEOUT;
+
+  /** Socket factory for HTTPS connections that validate certificates. */
+  private CountingSocketFactory validatingFactory = null;
+
+  /** Socket factory for HTTPS connections that trust all certificates. */
+  private CountingSocketFactory trustingFactory = null;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong secureRequests = new AtomicLong();
+  private final AtomicLong socketsOpened = new AtomicLong();
+  private final AtomicLong handshakes = new AtomicLong();
+  private final AtomicLong resumedSessions = new AtomicLong();
+
+  /**
+   * Sets whether connections are kept alive for reuse.  If {@code false},
+   * each connection is closed once its response has been read.
+   *
+   * @param keepAlive {@code true} to reuse connections
+   */
+  public void setKeepAlive(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
+  /** Returns {@code true} if connections are kept alive for reuse. */
+  public boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+  /**
+   * Sets the lifetime of cached SSL sessions for connections that trust
+   * all certificates.  Within that time, new HTTPS connections resume an
+   * existing session with an abbreviated handshake.  Connections that
+   * validate certificates use the JVM's default SSL context, whose
+   * session cache is shared with the rest of the JVM and is left alone.
+   *
+   * @param sslSessionTimeout the session lifetime, in seconds; zero
+   *        means no limit
+   */
+  public synchronized void setSslSessionTimeout(int sslSessionTimeout) {
+    this.sslSessionTimeout = Math.max(0, sslSessionTimeout);
+    if (trustingFactory != null) {
+      trustingFactory.setSessionTimeout(this.sslSessionTimeout);
+    }
+  }
+
+  /**
+   * Opens a connection to the supplied URL.  The connection must be
+   * {@link #release released} once its response has been read,
+   * or {@link #discard discarded} if an error occurs.
+   *
+   * @param url the URL to connect to
+   * @param validateCertificate if {@code true}, HTTPS connections validate
+   *        the server certificate and hostname
+   * @return an unconnected {@code HttpURLConnection}
+   * @throws IOException if the connection could not be opened
+   * @throws GeneralSecurityException if the SSL context could not be created
+   */
+  public HttpURLConnection openConnection(URL url, boolean validateCertificate)
+      throws IOException, GeneralSecurityException {
+    HttpURLConnection uc = (HttpURLConnection) url.openConnection();
+    requests.incrementAndGet();
+    if (uc instanceof HttpsURLConnection) {
+      HttpsURLConnection https = (HttpsURLConnection) uc;
+      secureRequests.incrementAndGet();
+      https.setSSLSocketFactory(getSocketFactory(validateCertificate));
+      if (!validateCertificate) {
+        https.setHostnameVerifier(SslUtil.getTrustingHostnameVerifier());
+      }
+    }
+    if (!keepAlive) {
+      uc.setRequestProperty("Connection", "close");
+    }
+    return uc;
+  }
+
+  /**
+   * Releases a connection so that it may be reused.  The caller must
+   * already have read the response to the end and closed it.  Any unread
+   * error response is discarded.
+   *
+   * @param uc the connection to release
+   */
+  public void release(HttpURLConnection uc) {
+    if (!keepAlive) {
+      uc.disconnect();
+      return;
+    }
+    // An error response must also be read to the end, and closed,
+    // for the JVM to return the connection to its keep-alive cache.
+    InputStream errorStream = uc.getErrorStream();
+    if (errorStream != null) {
+      try {
+        try {
+          byte[] buffer = new byte[1024];
+          while (errorStream.read(buffer) != -1) {
+            // Discard the error response.
+          }
+        } finally {
+          errorStream.close();
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.FINEST, "Discarding connection to " + uc.getURL(), e);
+        uc.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Closes a connection that failed, so that it is not reused.
+   * <p>
+   * This only closes the underlying socket if the response has not been
+   * read to the end.  Once a response has been read to the end, the JVM
+   * may already have returned the socket to its keep-alive cache, and
+   * {@link HttpURLConnection#disconnect()} leaves it there.  Such a
+   * socket is between responses, so it is safe to reuse.
+   *
+   * @param uc the connection to discard
+   */
+  public void discard(HttpURLConnection uc) {
+    uc.disconnect();
+  }
+
+  private synchronized SSLSocketFactory getSocketFactory(
+      boolean validateCertificate) throws GeneralSecurityException {
+    if (validateCertificate) {
+      if (validatingFactory == null) {
+        // Wrap the default factory, so that the keystores configured for
+        // the JVM, or a factory installed by the servlet container, apply.
+        validatingFactory = new CountingSocketFactory(
+            HttpsURLConnection.getDefaultSSLSocketFactory(), null);
+      }
+      return validatingFactory;
+    } else {
+      if (trustingFactory == null) {
+        SSLContext context = SslUtil.newTrustingContext();
+        trustingFactory = new CountingSocketFactory(
+            context.getSocketFactory(), context.getClientSessionContext());
+        trustingFactory.setSessionTimeout(sslSessionTimeout);
+      }
+      return trustingFactory;
+    }
+  }
+
+  /** Returns the number of requests made through this pool. */
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  /** Returns the number of HTTPS requests made through this pool. */
+  public long getSecureRequestCount() {
+    return secureRequests.get();
+  }
+
+  /** Returns the number of HTTPS sockets opened by this pool. */
+  public long getSocketCount() {
+    return socketsOpened.get();
+  }
+
+  /** Returns the number of SSL handshakes completed by this pool. */
+  public long getHandshakeCount() {
+    return handshakes.get();
+  }
+
+  /** Returns the number of SSL handshakes that resumed a cached session. */
+  public long getResumedSessionCount() {
+    return resumedSessions.get();
+  }
+
+  /**
+   * Returns the fraction of HTTPS requests that reused an already open
+   * connection, or zero if there have been no HTTPS requests.  Reuse of
+   * plain HTTP connections is not visible to this class.
+   */
+  public double getReuseRatio() {
+    long secure = secureRequests.get();
+    if (secure == 0) {
+      return 0.0;
+    }
+    long reused = secure - socketsOpened.get();
+    return (reused <= 0) ? 0.0 : (double) reused / secure;
+  }
+
+  @Override
+  public String toString() {
+    return "HttpConnectionPool: keepAlive = " + keepAlive
+        + ", requests = " + getRequestCount()
+        + ", secureRequests = " + getSecureRequestCount()
+        + ", socketsOpened = " + getSocketCount()
+        + ", reuseRatio = " + String.format("%.2f", getReuseRatio())
+        + ", handshakes = " + getHandshakeCount()
+        + ", resumedSessions = " + getResumedSessionCount();
+  }
+
+  /**
+   * An {@code SSLSocketFactory} that counts the sockets it creates,
+   * and the SSL handshakes on those sockets that resumed a session.
+   */
+  private class CountingSocketFactory extends SSLSocketFactory {
+    private final SSLSocketFactory delegate;
+    private final SSLSessionContext sessions;
+
+    /**
+     * @param delegate the factory that creates the sockets
+     * @param sessions the session cache of the delegate's own SSL context,
+     *        or {@code null} if the session cache is not ours to change
+     */
+    CountingSocketFactory(SSLSocketFactory delegate,
+        SSLSessionContext sessions) {
+      this.delegate = delegate;
+      this.sessions = sessions;
+    }
+
+    void setSessionTimeout(int seconds) {
+      if (sessions != null) {
+        sessions.setSessionTimeout(seconds);
+      }
+    }
+
+    private Socket counted(Socket socket) {
+      socketsOpened.incrementAndGet();
+      if (socket instanceof SSLSocket) {
+        final long created = System.currentTimeMillis();
+        ((SSLSocket) socket).addHandshakeCompletedListener(
+            new HandshakeCompletedListener() {
+              @Override
+              public void handshakeCompleted(HandshakeCompletedEvent event) {
+                handshakes.incrementAndGet();
+                // A resumed session was created before this socket was.
+                if (event.getSession().getCreationTime() < created) {
+                  resumedSessions.incrementAndGet();
+                }
+              }
+            });
+      }
+      return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      return counted(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port,
+        boolean autoClose) throws IOException {
+      return counted(delegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      return counted(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost,
+        int localPort) throws IOException {
+      return counted(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return counted(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port,
+        InetAddress localAddress, int localPort) throws IOException {
+      return counted(
+          delegate.createSocket(address, port, localAddress, localPort));
+    }
+  }
+}
@@ -0,0 +1,42 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+/**
+ * A {@link FeedConnection} that can send a feed to the feed server
+ * while the feed is still being generated.
+ */
+public interface StreamingFeedConnection extends FeedConnection {
+
+  /**
+   * Returns {@code true} if feeds should be streamed to the feed server
+   * using {@link #openFeedStream}, or {@code false} if feeds should be
+   * fully built, then sent using {@link #sendData}.
+   *
+   * @return {@code true} if feed streaming is enabled
+   */
+  public boolean isStreaming();
+
+  /**
+   * Opens a connection to the feed server for a feed that will be
+   * written as it is generated.  The supplied {@code FeedData} is
+   * used only to identify the data source and feed type.
+   *
+   * @param feedData the feed that will be written to the stream
+   * @return a {@link FeedStream} to which the feed data is written
+   * @throws FeedException if the connection could not be opened
+   */
+  public FeedStream openFeedStream(FeedData feedData) throws FeedException;
+}
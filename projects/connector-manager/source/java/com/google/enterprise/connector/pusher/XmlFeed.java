@@ -16,6 +16,7 @@ package com.google.enterprise.connector.pusher;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -46,19 +47,40 @@ import com.google.enterprise.connector.util.UniqueIdGenerator;
 import com.google.enterprise.connector.util.UuidGenerator;
 import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 /**
  * Class to generate XML Feed for a document from the Document and send it
  * to GSA.
+ * <p>
+ * If the {@link FileSizeLimitInfo#maxFeedMemorySize() maxFeedMemorySize}
+ * is smaller than the {@link FileSizeLimitInfo#maxFeedSize() maxFeedSize},
+ * at most that much of the feed is held in memory.  The rest of the feed
+ * is spilled to a temporary file, which is deleted when the feed is
+ * {@link #release() released}.
+ * <p>
+ * Alternatively, a feed may be {@link #startStreaming streamed} to the
+ * GSA as it is built.  In that case, the records added to the feed are
+ * held in memory only until they are {@link #commit() committed}.
  */
 public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   private static final Logger LOGGER =
@@ -110,6 +132,74 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   private boolean isClosed;
   private int recordCount;
 
+  /**
+   * Content smaller than this many bytes is not compressed.  The savings
+   * do not justify the cost of compression and the encoding overhead.
+   */
+  @VisibleForTesting
+  static final int MIN_COMPRESSIBLE_SIZE = 1024;
+
+  /** MIME types whose content is typically already compressed. */
+  private static final Set<String> INCOMPRESSIBLE_MIME_TYPES =
+      ImmutableSet.of(
+          "application/zip",
+          "application/x-zip-compressed",
+          "application/gzip",
+          "application/x-gzip",
+          "application/x-bzip2",
+          "application/x-xz",
+          "application/x-7z-compressed",
+          "application/x-rar-compressed",
+          "application/java-archive",
+          "application/epub+zip",
+          "image/jpeg",
+          "image/pjpeg",
+          "image/png",
+          "image/gif",
+          "image/webp",
+          "image/jp2");
+
+  /** MIME type prefixes whose content is typically already compressed. */
+  private static final List<String> INCOMPRESSIBLE_MIME_TYPE_PREFIXES =
+      ImmutableList.of(
+          "application/vnd.openxmlformats-officedocument.",
+          "application/vnd.oasis.opendocument.",
+          "audio/mpeg",
+          "audio/mp4",
+          "video/");
+
+  /** Reused to compress the content of each record, if needed. */
+  private Deflater deflater;
+
+  /** The amount of feed data held in memory before spilling to disk. */
+  private final int maxMemorySize;
+
+  /** True if feed data beyond maxMemorySize is spilled to disk. */
+  private boolean isSpillable;
+
+  /** The temporary file holding spilled feed data, or null if none. */
+  private File spillFile = null;
+  private RandomAccessFile spillStore = null;
+
+  /**
+   * The number of bytes of feed data held in the spill file.  The feed
+   * data consists of these bytes followed by the bytes held in memory.
+   */
+  private long spillSize = 0L;
+
+  /**
+   * The OutputStream to which committed feed data is streamed,
+   * or null if the feed is not streamed.
+   */
+  private OutputStream streamSink = null;
+
+  /**
+   * The number of bytes of feed data already written to the streamSink.
+   * The feed data consists of these bytes followed by the bytes held
+   * in memory.  Streamed data can no longer be rolled back.
+   */
+  private long streamedSize = 0L;
+
   @SuppressWarnings("deprecation")
   public static final Set<String> propertySkipSet = ImmutableSet.<String>of(
       // TODO: What about displayurl, ispublic, searchurl? Should we
@@ -176,8 +266,10 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   public XmlFeed(String dataSource, FeedType feedType, 
       FileSizeLimitInfo fileSizeLimit, Appendable feedLogBuilder,
       FeedConnection feedConnection) throws IOException {
-    super((int) fileSizeLimit.maxFeedSize());
+    super((int) fileSizeLimit.feedMemorySize());
     this.maxFeedSize = (int) fileSizeLimit.maxFeedSize();
+    this.maxMemorySize = (int) fileSizeLimit.feedMemorySize();
+    this.isSpillable = (maxMemorySize < maxFeedSize);
     this.dataSource = dataSource;
     this.feedType = feedType;
     this.fileSizeLimit = fileSizeLimit;
@@ -199,7 +291,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
         >= 0) ? ContentEncoding.BASE64COMPRESSED : ContentEncoding.BASE64BINARY;
 
     String prefix = xmlFeedPrefix(dataSource, feedType);
-    write(prefix.getBytes(XML_DEFAULT_CHARSET));
+    appendBytes(prefix.getBytes(XML_DEFAULT_CHARSET));
   }
 
   @VisibleForTesting
@@ -297,11 +389,192 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
    * @param size new data size.
    */
   public synchronized void reset(int size) {
-    if (size < 0 || size > count) {
+    if (size < 0 || size > size()) {
       throw new IllegalArgumentException(
           "New size must not be negative or greater than the current size.");
     }
-    count = size;
+    if (size < streamedSize) {
+      throw new IllegalArgumentException(
+          "New size must not be less than the size already streamed.");
+    }
+    if (size >= spillSize + streamedSize) {
+      count = (int) (size - spillSize - streamedSize);
+    } else {
+      // Discard the in-memory data and the tail of the spill file.
+      // The next spill overwrites the discarded portion of the file.
+      spillSize = size;
+      count = 0;
+    }
+  }
+
+  @Override
+  public synchronized void reset() {
+    reset(0);
+  }
+
+  @Override
+  public synchronized int size() {
+    return (int) (spillSize + streamedSize + count);
+  }
+
+  /**
+   * Writes the complete contents of this feed to the supplied OutputStream.
+   * Any portion of the feed that was spilled to disk is transferred directly
+   * from the spill file.
+   *
+   * @param out the OutputStream to which to write the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  @Override
+  public synchronized void writeTo(OutputStream out) throws IOException {
+    Preconditions.checkState(streamSink == null,
+        "The data of a streamed feed is not available.");
+    if (spillSize > 0) {
+      FileChannel channel = spillStore.getChannel();
+      WritableByteChannel target = (out instanceof FileOutputStream)
+          ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out);
+      long position = 0L;
+      while (position < spillSize) {
+        position += channel.transferTo(position, spillSize - position, target);
+      }
+    }
+    out.write(buf, 0, count);
+  }
+
+  @Override
+  public synchronized byte[] toByteArray() {
+    Preconditions.checkState(streamSink == null,
+        "The data of a streamed feed is not available.");
+    byte[] bytes = new byte[size()];
+    if (spillSize > 0) {
+      try {
+        spillStore.seek(0L);
+        spillStore.readFully(bytes, 0, (int) spillSize);
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read feed spill file "
+                                        + spillFile, e);
+      }
+    }
+    System.arraycopy(buf, 0, bytes, (int) spillSize, count);
+    return bytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return (spillSize == 0) ? super.toString() : new String(toByteArray());
+  }
+
+  @Override
+  public synchronized String toString(String charsetName)
+      throws UnsupportedEncodingException {
+    return (spillSize == 0) ? super.toString(charsetName)
+        : new String(toByteArray(), charsetName);
+  }
+
+  /**
+   * Returns {@code true} if some of this feed's data has been spilled
+   * to a temporary file.
+   */
+  @VisibleForTesting
+  synchronized boolean isSpilled() {
+    return spillStore != null;
+  }
+
+  /**
+   * Starts streaming this feed to the supplied {@code OutputStream}.
+   * The feed data accumulated so far is written to the stream immediately,
+   * and subsequent data is written each time the feed is
+   * {@link #commit() committed}.  A streamed feed is never spilled to disk.
+   *
+   * @param sink the {@code OutputStream} to which the feed is streamed
+   * @throws IOException if an I/O error occurs
+   */
+  public synchronized void startStreaming(OutputStream sink)
+      throws IOException {
+    Preconditions.checkState(streamSink == null && spillStore == null,
+        "The feed is already streamed or spilled.");
+    isSpillable = false;
+    streamSink = sink;
+    commit();
+  }
+
+  /**
+   * Returns {@code true} if this feed is being streamed.
+   */
+  public synchronized boolean isStreaming() {
+    return streamSink != null;
+  }
+
+  /**
+   * If this feed is being streamed, writes the feed data held in memory
+   * to the stream.  The committed data can no longer be {@link #reset(int)
+   * reset}.  If the feed is not being streamed, this does nothing.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public synchronized void commit() throws IOException {
+    if (streamSink != null && count > 0) {
+      streamSink.write(buf, 0, count);
+      streamedSize += count;
+      count = 0;
+    }
+  }
+
+  /**
+   * Releases the resources held by this feed, deleting its spill file,
+   * if any.  The feed data is no longer available once released.
+   */
+  public synchronized void release() {
+    if (deflater != null) {
+      deflater.end();
+      deflater = null;
+    }
+    count = 0;
+    spillSize = 0L;
+    streamedSize = 0L;
+    streamSink = null;
+    if (spillStore != null) {
+      try {
+        spillStore.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to close feed spill file "
+                   + spillFile, e);
+      }
+      spillStore = null;
+      if (!spillFile.delete()) {
+        LOGGER.warning("Failed to delete feed spill file " + spillFile);
+      }
+      spillFile = null;
+    }
+  }
+
+  /**
+   * Writes the in-memory feed data to the spill file, creating it
+   * if necessary, freeing the memory buffer for more data.
+   */
+  private void spill() throws IOException {
+    if (spillStore == null) {
+      spillFile = File.createTempFile("feed-" + dataSource + "-", ".xml");
+      spillStore = new RandomAccessFile(spillFile, "rw");
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("Spilling feed for " + dataSource + " to " + spillFile);
+      }
+    }
+    spillStore.seek(spillSize);
+    spillStore.write(buf, 0, count);
+    spillSize += count;
+    count = 0;
+  }
+
+  /**
+   * Appends the supplied bytes to the feed, spilling the feed to disk
+   * first if they would overflow the memory buffer.
+   */
+  private synchronized void appendBytes(byte[] bytes) throws IOException {
+    if (isSpillable && count > 0 && count + bytes.length > maxMemorySize) {
+      spill();
+    }
+    write(bytes, 0, bytes.length);
   }
 
   /**
@@ -319,11 +592,16 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     do {
       count += bytes;
       if (count >= buf.length) {
-        // Need to grow buffer.
-        int incr = Math.min(buf.length, 8 * 1024 * 1024);
-        byte[] newbuf = new byte[buf.length + incr];
-        System.arraycopy(buf, 0, newbuf, 0, buf.length);
-        buf = newbuf;
+        if (isSpillable && count >= maxMemorySize) {
+          // Empty the buffer into the spill file.
+          spill();
+        } else {
+          // Need to grow buffer.
+          int incr = Math.min(buf.length, 8 * 1024 * 1024);
+          byte[] newbuf = new byte[buf.length + incr];
+          System.arraycopy(buf, 0, newbuf, 0, buf.length);
+          buf = newbuf;
+        }
       }
       bytes = in.read(buf, count, buf.length - count);
     } while (bytes != -1);
@@ -334,7 +612,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     if (!isClosed) {
       isClosed = true;
       String suffix = xmlFeedSuffix();
-      write(suffix.getBytes(XML_DEFAULT_CHARSET));
+      appendBytes(suffix.getBytes(XML_DEFAULT_CHARSET));
     }
   }
 
@@ -534,50 +812,69 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     StringBuilder suffix = new StringBuilder();
     ContentEncoding documentContentEncoding = null;
     ContentEncoding alternateEncoding = null;
-    if (contentAllowed) {
-      // Determine the content encoding to specify.
-      String documentContentEncodingStr = DocUtils.getOptionalString(
-          document, SpiConstants.PROPNAME_CONTENT_ENCODING);
-
-      if (!Strings.isNullOrEmpty(documentContentEncodingStr)) {
-        documentContentEncoding =
-            ContentEncoding.findContentEncoding(documentContentEncodingStr);
-        if (documentContentEncoding == ContentEncoding.ERROR
-            || supportedEncodings.indexOf(documentContentEncodingStr) < 0) {
-          String message =
-              "Unsupported content encoding: " + documentContentEncodingStr;
-          LOGGER.log(Level.WARNING, message);
-          throw new RepositoryDocumentException(message);
+    InputStream contentStream = null;
+    try {
+      if (contentAllowed) {
+        // Determine the content encoding to specify.
+        String documentContentEncodingStr = DocUtils.getOptionalString(
+            document, SpiConstants.PROPNAME_CONTENT_ENCODING);
+
+        if (!Strings.isNullOrEmpty(documentContentEncodingStr)) {
+          documentContentEncoding =
+              ContentEncoding.findContentEncoding(documentContentEncodingStr);
+          if (documentContentEncoding == ContentEncoding.ERROR
+              || supportedEncodings.indexOf(documentContentEncodingStr) < 0) {
+            String message =
+                "Unsupported content encoding: " + documentContentEncodingStr;
+            LOGGER.log(Level.WARNING, message);
+            throw new RepositoryDocumentException(message);
+          }
         }
-      }
-      alternateEncoding = (documentContentEncoding == null) 
-          ? contentEncoding : documentContentEncoding;
-  
-      // If including document content, wrap it with <content> tags.
-      prefix.append("<");
-      prefix.append(XML_CONTENT);
-      XmlUtils.xmlAppendAttr(XML_ENCODING,
-          alternateEncoding.toString(), prefix);
-      prefix.append(">\n");
 
-      suffix.append('\n');
-      XmlUtils.xmlAppendEndTag(XML_CONTENT, suffix);
-    }
+        contentStream =
+            DocUtils.getOptionalStream(document, SpiConstants.PROPNAME_CONTENT);
+        if (documentContentEncoding != null) {
+          alternateEncoding = documentContentEncoding;
+        } else if (contentEncoding == ContentEncoding.BASE64COMPRESSED) {
+          // Don't compress missing, small, or already compressed content.
+          if (contentStream != null && isCompressible(mimetype)) {
+            contentStream = new BufferedInputStream(contentStream,
+                                                    MIN_COMPRESSIBLE_SIZE);
+            alternateEncoding = isSmall(contentStream)
+                ? ContentEncoding.BASE64BINARY : contentEncoding;
+          } else {
+            alternateEncoding = ContentEncoding.BASE64BINARY;
+          }
+        } else {
+          alternateEncoding = contentEncoding;
+        }
 
-    write(prefix.toString().getBytes(XML_DEFAULT_CHARSET));
+        // If including document content, wrap it with <content> tags.
+        prefix.append("<");
+        prefix.append(XML_CONTENT);
+        XmlUtils.xmlAppendAttr(XML_ENCODING,
+            alternateEncoding.toString(), prefix);
+        prefix.append(">\n");
 
-    if (contentAllowed) {
-      InputStream contentStream = getContentStream(
-          document, documentContentEncoding, alternateEncoding);
-      try {
+        suffix.append('\n');
+        XmlUtils.xmlAppendEndTag(XML_CONTENT, suffix);
+      }
+
+      appendBytes(prefix.toString().getBytes(XML_DEFAULT_CHARSET));
+
+      if (contentAllowed) {
+        contentStream = getContentStream(document, contentStream,
+            documentContentEncoding, alternateEncoding);
         readFrom(contentStream);
-      } finally {
+      }
+    } finally {
+      if (contentStream != null) {
         contentStream.close();
       }
     }
 
     XmlUtils.xmlAppendEndTag(XML_RECORD, suffix);
-    write(suffix.toString().getBytes(XML_DEFAULT_CHARSET));
+    appendBytes(suffix.toString().getBytes(XML_DEFAULT_CHARSET));
 
     if (feedLogBuilder != null) {
       try {
@@ -633,7 +930,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     StringBuilder aclBuff = new StringBuilder();
     xmlWrapAclRecord(aclBuff, acl);
 
-    write(aclBuff.toString().getBytes(XML_DEFAULT_CHARSET));
+    appendBytes(aclBuff.toString().getBytes(XML_DEFAULT_CHARSET));
 
     if (feedLogBuilder != null) {
       try {
@@ -839,21 +1136,62 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     }
   }
 
+  /**
+   * Returns {@code true} if content of the supplied MIME type is worth
+   * compressing, or {@code false} if it is typically already compressed.
+   */
+  @VisibleForTesting
+  static boolean isCompressible(String mimeType) {
+    mimeType = Strings.nullToEmpty(mimeType).toLowerCase(Locale.ENGLISH);
+    int index = mimeType.indexOf(';');
+    if (index >= 0) {
+      mimeType = mimeType.substring(0, index).trim();
+    }
+    if (INCOMPRESSIBLE_MIME_TYPES.contains(mimeType)) {
+      return false;
+    }
+    for (String prefix : INCOMPRESSIBLE_MIME_TYPE_PREFIXES) {
+      if (mimeType.startsWith(prefix)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns {@code true} if the supplied content is too small to be
+   * worth compressing.  The stream is reset to its start before returning.
+   *
+   * @param content a {@code BufferedInputStream} of the content, with
+   *        a buffer of at least {@code MIN_COMPRESSIBLE_SIZE} bytes
+   */
+  private static boolean isSmall(InputStream content) throws IOException {
+    content.mark(MIN_COMPRESSIBLE_SIZE);
+    try {
+      long skipped = 0;
+      while (skipped < MIN_COMPRESSIBLE_SIZE
+             && content.read() != -1) {
+        skipped++;
+      }
+      return skipped < MIN_COMPRESSIBLE_SIZE;
+    } finally {
+      content.reset();
+    }
+  }
+
   /**
    * Return an InputStream for the Document's content.
    */
-  private InputStream getContentStream(Document document,
+  private InputStream getContentStream(Document document, InputStream content,
       ContentEncoding documentContentEncoding,
       ContentEncoding alternateEncoding) throws RepositoryException {
-    InputStream contentStream;
       InputStream original = new BigEmptyDocumentFilterInputStream(
-          DocUtils.getOptionalStream(document, SpiConstants.PROPNAME_CONTENT),
-          fileSizeLimit.maxDocumentSize());
+          content, fileSizeLimit.maxDocumentSize());
       InputStream encodedContentStream;
       if (documentContentEncoding == null) {
-        encodedContentStream = getEncodedStream(contentEncoding, 
+        encodedContentStream = getEncodedStream(alternateEncoding,
             original, (Context.getInstance().getTeedFeedFile() != null),
-            1024 * 1024);
+            1024 * 1024, getDeflater());
       } else {
         encodedContentStream = original;
       }
@@ -862,23 +1200,38 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
           AlternateContentFilterInputStream.getAlternateContent(
           DocUtils.getOptionalString(document, SpiConstants.PROPNAME_TITLE), 
           DocUtils.getOptionalString(document, SpiConstants.PROPNAME_MIMETYPE)),
-          false, 2048);
+          false, 2048, null);
 
       return new AlternateContentFilterInputStream(
           encodedContentStream, encodedAlternateStream, this);
   }
 
+  /**
+   * Returns the {@code Deflater} reused to compress the content of each
+   * record in this feed.  Allocating a {@code Deflater} is expensive.
+   */
+  private Deflater getDeflater() {
+    if (deflater == null) {
+      deflater = new Deflater();
+    }
+    return deflater;
+  }
+
   /**
    * Wrap the content stream with the suitable encoding (either
    * Base64 or Base64Compressed, based upon GSA encoding support.
+   *
+   * @param deflater the {@code Deflater} used for compression,
+   *        or {@code null} to allocate one if needed
    */
-  // TODO: Don't compress tiny content or already compressed data
-  // (based on mimetype).  This is harder than it sounds.
   private InputStream getEncodedStream(ContentEncoding contentEncoding,
-      InputStream content, boolean wrapLines, int ioBufferSize) {
+      InputStream content, boolean wrapLines, int ioBufferSize,
+      Deflater deflater) {
     if (contentEncoding == ContentEncoding.BASE64COMPRESSED) {
-      return new Base64FilterInputStream(
-          new CompressedFilterInputStream(content, ioBufferSize), wrapLines);
+      return new Base64FilterInputStream((deflater == null)
+          ? new CompressedFilterInputStream(content, ioBufferSize)
+          : new CompressedFilterInputStream(content, ioBufferSize, deflater),
+          wrapLines);
     } else {
       return new Base64FilterInputStream(content, wrapLines);
     }
@@ -0,0 +1,249 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.scheduler;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.pusher.FeedConnection;
+import com.google.enterprise.connector.pusher.FeedSenderPool;
+import com.google.enterprise.connector.pusher.FeedStatistics;
+import com.google.enterprise.connector.traversal.BatchResult;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+import com.google.enterprise.connector.util.Clock;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link HostLoadManager} that uses feedback from the feed host to
+ * control the rate at which a connector instance feeds documents.
+ * <p>
+ * Rather than resizing each batch to steer the measured rate back into
+ * a band around the target load, this paces the batches: after a batch
+ * of {@code n} documents, the next batch does not start until {@code n}
+ * documents' worth of time at the allowed rate has passed since the
+ * previous batch started.
+ * <p>
+ * The allowed rate follows an additive-increase, multiplicative-decrease
+ * (AIMD) policy.  While the feed host shows no sign of congestion, the
+ * allowed rate grows by a tenth of the target rate after each batch, up
+ * to the target rate.  When the feed host is congested, the allowed rate
+ * is halved, at most once per measurement period.  The feed host is
+ * considered congested if its average feed response time exceeds a
+ * target, if its feed backlog exceeds a limit, or if too many feeds are
+ * waiting to be sent to it.  Batch sizes are scaled with the allowed rate.
+ */
+/* @NotThreadSafe */
+/* @GuardedBy("ConnectorCoordinatorImpl") */
+public class AdaptiveLoadManager extends HostLoadManager {
+  private static final Logger LOGGER =
+      Logger.getLogger(AdaptiveLoadManager.class.getName());
+
+  /** The fraction of the target rate added after each uncongested batch. */
+  @VisibleForTesting
+  static final double INCREASE_FRACTION = 0.1;
+
+  /** The factor applied to the allowed rate when congested. */
+  @VisibleForTesting
+  static final double DECREASE_FACTOR = 0.5;
+
+  /** The allowed rate is never reduced below this fraction of the target. */
+  @VisibleForTesting
+  static final double MIN_RATE_FRACTION = 0.05;
+
+  private final Clock clock;
+
+  /** Measurements of the feed host, or null if not available. */
+  private final FeedStatistics feedStatistics;
+
+  /** The pool of threads sending feeds, or null if not available. */
+  private final FeedSenderPool feedSenderPool;
+
+  private long targetResponseMillis = 30 * 1000L;
+  private int maxBacklogCount = 1000;
+  private int maxPendingFeeds = 10;
+
+  /** The allowed feed rate, in documents per millisecond. */
+  private double allowedRate;
+
+  /** The time by which the documents fed so far are paid for. */
+  private long budgetTime;
+
+  /** The earliest time the next batch may start. */
+  private long nextStartTime;
+
+  /** The time the allowed rate was last reduced, or -1 if never. */
+  private long lastDecreaseTime;
+
+  /**
+   * Constructor used by {@link AdaptiveLoadManagerFactory} to create a
+   * {@link LoadManager} for a a connector instance.
+   *
+   * @param feedConnection a {@link FeedConnection}, which may also
+   *        implement {@link FeedStatistics}
+   * @param fileSizeLimit a {@link FileSizeLimitInfo}
+   * @param feedSenderPool the {@link FeedSenderPool}, or {@code null}
+   * @param clock a {@link Clock}
+   */
+  public AdaptiveLoadManager(FeedConnection feedConnection,
+      FileSizeLimitInfo fileSizeLimit, FeedSenderPool feedSenderPool,
+      Clock clock) {
+    super(feedConnection, fileSizeLimit, clock);
+    this.clock = clock;
+    this.feedStatistics = (feedConnection instanceof FeedStatistics)
+        ? (FeedStatistics) feedConnection : null;
+    this.feedSenderPool = feedSenderPool;
+    reset();
+  }
+
+  /**
+   * Sets the feed response time above which the feed host is considered
+   * congested.  A value of 0 ignores the response time.
+   *
+   * @param targetResponseMillis a response time in milliseconds
+   */
+  public void setTargetResponseMillis(long targetResponseMillis) {
+    this.targetResponseMillis = targetResponseMillis;
+  }
+
+  /**
+   * Sets the feed backlog count above which the feed host is considered
+   * congested.  A value of 0 ignores the backlog count.
+   *
+   * @param maxBacklogCount a number of unprocessed feed items
+   */
+  public void setMaxBacklogCount(int maxBacklogCount) {
+    this.maxBacklogCount = maxBacklogCount;
+  }
+
+  /**
+   * Sets the number of feeds waiting to be sent above which the feed host
+   * is considered congested.  A value of 0 ignores the waiting feeds.
+   *
+   * @param maxPendingFeeds a number of feeds
+   */
+  public void setMaxPendingFeeds(int maxPendingFeeds) {
+    this.maxPendingFeeds = maxPendingFeeds;
+  }
+
+  @Override
+  public void setLoad(int load) {
+    super.setLoad(load);
+    reset();
+  }
+
+  @Override
+  public void setPeriod(int periodInSeconds) {
+    super.setPeriod(periodInSeconds);
+    reset();
+  }
+
+  @Override
+  public void setBatchSize(int batchSize) {
+    super.setBatchSize(batchSize);
+    reset();
+  }
+
+  /** Starts feeding at the target rate, with no delay. */
+  private void reset() {
+    allowedRate = getTargetRate();
+    budgetTime = 0L;
+    nextStartTime = 0L;
+    lastDecreaseTime = -1L;
+  }
+
+  /** Returns the target feed rate, in documents per millisecond. */
+  private double getTargetRate() {
+    return ((double) getLoad()) / getPeriodMillis();
+  }
+
+  /** Returns the allowed feed rate, in documents per millisecond. */
+  @VisibleForTesting
+  double getAllowedRate() {
+    return allowedRate;
+  }
+
+  @Override
+  public void recordResult(BatchResult batchResult) {
+    super.recordResult(batchResult);
+    int count = batchResult.getCountProcessed();
+    if (count <= 0) {
+      return;
+    }
+    if (allowedRate > 0) {
+      budgetTime = Math.max(budgetTime, batchResult.getStartTime())
+          + (long) (count / allowedRate);
+      nextStartTime = Math.max(batchResult.getEndTime(), budgetTime);
+    }
+    adjustRate(batchResult.getEndTime());
+  }
+
+  /** Applies the AIMD policy to the allowed rate. */
+  private void adjustRate(long now) {
+    double targetRate = getTargetRate();
+    if (isCongested()) {
+      if (lastDecreaseTime < 0 || now - lastDecreaseTime >= getPeriodMillis()) {
+        allowedRate = Math.max(targetRate * MIN_RATE_FRACTION,
+                               allowedRate * DECREASE_FACTOR);
+        lastDecreaseTime = now;
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("Feed host is congested, reducing feed rate to "
+              + Math.round(allowedRate * getPeriodMillis())
+              + " documents per period");
+        }
+      }
+    } else {
+      allowedRate = Math.min(targetRate,
+                             allowedRate + targetRate * INCREASE_FRACTION);
+    }
+  }
+
+  /** Returns {@code true} if the feed host shows signs of congestion. */
+  @VisibleForTesting
+  boolean isCongested() {
+    if (feedStatistics != null) {
+      if (targetResponseMillis > 0
+          && feedStatistics.getAverageResponseMillis() > targetResponseMillis) {
+        return true;
+      }
+      if (maxBacklogCount > 0
+          && feedStatistics.getLastBacklogCount() > maxBacklogCount) {
+        return true;
+      }
+    }
+    return feedSenderPool != null && maxPendingFeeds > 0
+        && feedSenderPool.getPendingCount() > maxPendingFeeds;
+  }
+
+  /**
+   * Determines the size of the next batch from the allowed rate, or
+   * returns 0 if the next batch must wait.
+   */
+  @Override
+  int determineBatchHint() {
+    if (getRateLimitDelayMillis() > 0 || allowedRate <= 0
+        || getBatchSize() <= 0) {
+      return 0;
+    }
+    long size = Math.max(1L, Math.round(allowedRate * getPeriodMillis()));
+    return (int) Math.min(getBatchSize(), size);
+  }
+
+  @Override
+  long getRateLimitDelayMillis() {
+    // As in HostLoadManager, if there is less than 100ms left, let it go.
+    long remaining = nextStartTime - (clock.getTimeMillis() + 100);
+    return (remaining >= 0) ? remaining + 1 : 0L;
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.scheduler;
+
+import com.google.enterprise.connector.pusher.FeedConnection;
+import com.google.enterprise.connector.pusher.FeedSenderPool;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+import com.google.enterprise.connector.util.Clock;
+
+/**
+ * A factory that creates {@link AdaptiveLoadManager} instances
+ * dedicated to the named connector instance.
+ */
+public class AdaptiveLoadManagerFactory extends HostLoadManagerFactory {
+  private FeedSenderPool feedSenderPool;
+  private long targetResponseMillis = 30 * 1000L;
+  private int maxBacklogCount = 1000;
+  private int maxPendingFeeds = 10;
+
+  /**
+   * Sets the {@link FeedSenderPool} used to determine the number of
+   * feeds waiting to be sent.
+   *
+   * @param feedSenderPool a {@link FeedSenderPool}
+   */
+  public void setFeedSenderPool(FeedSenderPool feedSenderPool) {
+    this.feedSenderPool = feedSenderPool;
+  }
+
+  /**
+   * Sets the feed response time above which the feed host is considered
+   * congested.
+   *
+   * @param targetResponseMillis a response time in milliseconds
+   */
+  public void setTargetResponseMillis(long targetResponseMillis) {
+    this.targetResponseMillis = targetResponseMillis;
+  }
+
+  /**
+   * Sets the feed backlog count above which the feed host is considered
+   * congested.
+   *
+   * @param maxBacklogCount a number of unprocessed feed items
+   */
+  public void setMaxBacklogCount(int maxBacklogCount) {
+    this.maxBacklogCount = maxBacklogCount;
+  }
+
+  /**
+   * Sets the number of feeds waiting to be sent above which the feed host
+   * is considered congested.
+   *
+   * @param maxPendingFeeds a number of feeds
+   */
+  public void setMaxPendingFeeds(int maxPendingFeeds) {
+    this.maxPendingFeeds = maxPendingFeeds;
+  }
+
+  @Override
+  HostLoadManager newHostLoadManager(FeedConnection feedConnection,
+      FileSizeLimitInfo fileSizeLimit, Clock clock) {
+    AdaptiveLoadManager alm = new AdaptiveLoadManager(feedConnection,
+        fileSizeLimit, feedSenderPool, clock);
+    alm.setTargetResponseMillis(targetResponseMillis);
+    alm.setMaxBacklogCount(maxBacklogCount);
+    alm.setMaxPendingFeeds(maxPendingFeeds);
+    return alm;
+  }
+}
@@ -0,0 +1,346 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.scheduler;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.util.Clock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Limits the combined feed rate of all the connector instances in this
+ * Connector Manager.  The per-connector load limits of the
+ * {@link HostLoadManager} still apply.
+ * <p>
+ * This is a token bucket, holding up to {@code burstSize} documents and
+ * refilled at {@code load} documents per period.  Each connector instance
+ * takes documents from the bucket through its {@link Share}.  A single
+ * request may take at most the connector's fair share of the bucket,
+ * which is its weight in proportion to the total weight of the connector
+ * instances that are currently active, and over time it may take no more
+ * than its weighted fraction of the feed rate.  Only the connector
+ * instances that have asked to feed documents within the last period are
+ * active, so the shares of idle connector instances are available to the
+ * busy ones.
+ * <p>
+ * The bucket is kept as the time at which it would be empty, so that
+ * taking documents from it is a single compare-and-set.
+ *
+ * @since 3.4
+ */
+public class FeedRateGovernor {
+  private static final Logger LOGGER =
+      Logger.getLogger(FeedRateGovernor.class.getName());
+
+  private final Clock clock;
+
+  /** The connector instances sharing the feed rate, by name. */
+  private final ConcurrentMap<String, Share> shares =
+      new ConcurrentHashMap<String, Share>();
+
+  /**
+   * The time, in microseconds, at which the bucket would be empty.
+   * Any time more than {@code burstMicros} ago means the bucket is full,
+   * and a time in the future means documents have been fed on credit.
+   */
+  private final AtomicLong emptyTime = new AtomicLong(Long.MIN_VALUE / 2);
+
+  /** The target load, in documents per period.  Zero means unlimited. */
+  private volatile int load = 0;
+
+  /** The period, in milliseconds. */
+  private volatile long periodMillis = 60 * 1000L;
+
+  /** The maximum number of documents the bucket holds. */
+  private volatile int burstSize = 1000;
+
+  /** The time to refill one document, in microseconds. */
+  private volatile double microsPerDocument;
+
+  /** The time to refill the whole bucket, in microseconds. */
+  private volatile long burstMicros;
+
+  /**
+   * Constructs a {@code FeedRateGovernor} with no limit on the feed rate.
+   *
+   * @param clock a {@link Clock} used to measure time periods
+   */
+  public FeedRateGovernor(Clock clock) {
+    this.clock = clock;
+    seedRate();
+  }
+
+  /**
+   * Sets the target load, in documents per period, shared by all the
+   * connector instances.  A load of zero does not limit the feed rate.
+   *
+   * @param load the target load in documents per period
+   */
+  public void setLoad(int load) {
+    if (load >= 0) {
+      this.load = load;
+      seedRate();
+    } else {
+      LOGGER.warning("Invalid global load: " + load);
+    }
+  }
+
+  /**
+   * Sets the measurement period in seconds.
+   *
+   * @param periodInSeconds measurement period in seconds
+   */
+  public void setPeriod(int periodInSeconds) {
+    if (periodInSeconds > 0) {
+      this.periodMillis = periodInSeconds * 1000L;
+      seedRate();
+    } else {
+      LOGGER.warning("Invalid load measurement period: " + periodInSeconds);
+    }
+  }
+
+  /**
+   * Sets the maximum number of documents that may be fed in a burst,
+   * after the connector instances have been idle.
+   *
+   * @param burstSize a number of documents
+   */
+  public void setBurstSize(int burstSize) {
+    if (burstSize > 0) {
+      this.burstSize = burstSize;
+      seedRate();
+    } else {
+      LOGGER.warning("Invalid burst size: " + burstSize);
+    }
+  }
+
+  private void seedRate() {
+    if (load > 0) {
+      microsPerDocument = (periodMillis * 1000.0) / load;
+      burstMicros = (long) Math.ceil(burstSize * microsPerDocument);
+    } else {
+      microsPerDocument = 0.0;
+      burstMicros = 0L;
+    }
+  }
+
+  /** Returns {@code true} if the feed rate is limited. */
+  public boolean isEnabled() {
+    return microsPerDocument > 0.0;
+  }
+
+  /**
+   * Returns the {@link Share} of the feed rate for the named connector
+   * instance, replacing any previous {@code Share} for that name.
+   *
+   * @param connectorName the name of a connector instance
+   * @param weight the relative weight of the connector instance
+   * @return a {@link Share} of the feed rate
+   */
+  public Share newShare(String connectorName, int weight) {
+    Share share = new Share(weight);
+    shares.put(connectorName, share);
+    return share;
+  }
+
+  /**
+   * Returns the number of documents currently in the bucket.
+   */
+  @VisibleForTesting
+  long getAvailable() {
+    if (!isEnabled()) {
+      return Long.MAX_VALUE;
+    }
+    long now = getTimeMicros();
+    long base = Math.max(emptyTime.get(), now - burstMicros);
+    return (long) Math.floor((now - base) / microsPerDocument);
+  }
+
+  private long getTimeMicros() {
+    return clock.getTimeMillis() * 1000L;
+  }
+
+  /**
+   * Returns the total weight of the connector instances that have asked
+   * to feed documents within the last period.
+   */
+  private long getActiveWeight(Share self, long nowMillis) {
+    long total = self.getWeight();
+    for (Share share : shares.values()) {
+      if (share != self && nowMillis - share.lastActiveTime < periodMillis) {
+        total += share.getWeight();
+      }
+    }
+    return total;
+  }
+
+  /**
+   * A connector instance's share of the feed rate.  Each share has its
+   * own bucket, refilled at its weighted fraction of the feed rate, so
+   * that a connector instance that asks more often than the others does
+   * not take more than its share.  A {@code Share} is used by one
+   * connector instance at a time.
+   */
+  public class Share {
+    private volatile int weight;
+    private volatile long lastActiveTime = Long.MIN_VALUE / 2;
+
+    /** The time, in microseconds, at which this share would be empty. */
+    private volatile long shareEmptyTime = Long.MIN_VALUE / 2;
+
+    private Share(int weight) {
+      setWeight(weight);
+    }
+
+    /**
+     * Sets the relative weight of this connector instance.
+     *
+     * @param weight a non-negative weight
+     */
+    public void setWeight(int weight) {
+      this.weight = Math.max(0, weight);
+    }
+
+    /** Returns the weight, treating 0 as the smallest possible weight. */
+    private int getWeight() {
+      return Math.max(1, weight);
+    }
+
+    /**
+     * Returns the most documents that a single request may take, and the
+     * time to refill one document in this share, based upon the currently
+     * active connector instances.
+     */
+    private Allotment getAllotment(long nowMillis) {
+      long activeWeight = getActiveWeight(this, nowMillis);
+      int size = (int) Math.max(1L, (burstSize * (long) getWeight())
+                                / activeWeight);
+      return new Allotment(size,
+          (microsPerDocument * activeWeight) / getWeight());
+    }
+
+    /**
+     * Returns the number of milliseconds until {@link #acquire} could
+     * grant the given number of documents, limited to the connector's
+     * fair share, or 0 if it could do so now.  This marks the connector
+     * instance as active.
+     *
+     * @param wanted the number of documents wanted
+     * @return a delay in milliseconds
+     */
+    public long getDelayMillis(int wanted) {
+      if (!isEnabled() || wanted <= 0) {
+        return 0L;
+      }
+      long nowMillis = clock.getTimeMillis();
+      lastActiveTime = nowMillis;
+      Allotment allotment = getAllotment(nowMillis);
+      int needed = Math.min(wanted, allotment.size);
+      long now = nowMillis * 1000L;
+      long base = Math.max(emptyTime.get(), now - burstMicros);
+      long remaining = base + (long) Math.ceil(needed * microsPerDocument);
+      long shareBase = Math.max(shareEmptyTime, now - allotment.burstMicros);
+      remaining = Math.max(remaining,
+          shareBase + (long) Math.ceil(needed * allotment.microsPerDocument))
+          - now;
+      return (remaining > 0) ? (remaining + 999L) / 1000L : 0L;
+    }
+
+    /**
+     * Takes up to {@code requested} documents from the bucket, limited to
+     * the connector's fair share.  No documents are taken unless both the
+     * bucket and this share hold at least the lesser of {@code requested}
+     * and the fair share.  This marks the connector instance as active.
+     *
+     * @param requested the number of documents wanted
+     * @return the number of documents granted, possibly 0
+     */
+    public int acquire(int requested) {
+      if (!isEnabled() || requested <= 0) {
+        return requested;
+      }
+      long nowMillis = clock.getTimeMillis();
+      lastActiveTime = nowMillis;
+      Allotment allotment = getAllotment(nowMillis);
+      int limit = Math.min(requested, allotment.size);
+      long now = nowMillis * 1000L;
+      long shareBase = Math.max(shareEmptyTime, now - allotment.burstMicros);
+      if ((now - shareBase) / allotment.microsPerDocument < limit) {
+        return 0;
+      }
+      while (true) {
+        long empty = emptyTime.get();
+        long base = Math.max(empty, now - burstMicros);
+        if ((now - base) / microsPerDocument < limit) {
+          return 0;
+        }
+        long next = base + (long) Math.ceil(limit * microsPerDocument);
+        if (emptyTime.compareAndSet(empty, next)) {
+          shareEmptyTime = shareBase
+              + (long) Math.ceil(limit * allotment.microsPerDocument);
+          return limit;
+        }
+      }
+    }
+
+    /**
+     * Settles a grant once the batch has been fed.  Documents granted
+     * but not fed are returned to the bucket, and documents fed beyond
+     * the grant are taken from it, possibly on credit.
+     *
+     * @param granted the number of documents granted by {@link #acquire}
+     * @param used the number of documents actually fed
+     */
+    public void settle(int granted, int used) {
+      if (!isEnabled() || granted == used) {
+        return;
+      }
+      long nowMillis = clock.getTimeMillis();
+      Allotment allotment = getAllotment(nowMillis);
+      long now = nowMillis * 1000L;
+      long adjustment = (long) ((used - granted) * microsPerDocument);
+      while (true) {
+        long empty = emptyTime.get();
+        long base = Math.max(empty, now - burstMicros);
+        if (emptyTime.compareAndSet(empty, base + adjustment)) {
+          break;
+        }
+      }
+      shareEmptyTime = Math.max(shareEmptyTime, now - allotment.burstMicros)
+          + (long) ((used - granted) * allotment.microsPerDocument);
+    }
+  }
+
+  /** The size and refill rate of a share's bucket. */
+  private static class Allotment {
+    /** The most documents the share may take at once. */
+    final int size;
+
+    /** The time to refill one document, in microseconds. */
+    final double microsPerDocument;
+
+    /** The time to refill the whole share, in microseconds. */
+    final long burstMicros;
+
+    Allotment(int size, double microsPerDocument) {
+      this.size = size;
+      this.microsPerDocument = microsPerDocument;
+      this.burstMicros = (long) Math.ceil(size * microsPerDocument);
+    }
+  }
+}
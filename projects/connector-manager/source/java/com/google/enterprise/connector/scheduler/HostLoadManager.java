@@ -36,6 +36,12 @@ public class HostLoadManager implements LoadManager {
 
   private static final long MINUTE_IN_MILLIS = 60 * 1000L;
 
+  /**
+   * How often to recheck conditions that delay traversals, but whose
+   * end cannot be predicted, such as low memory or a backlogged GSA.
+   */
+  static final long RECHECK_DELAY_MILLIS = 1000L;
+
   // TODO(bmj): Raise this to 1000 when the GSA moves there.
   public static final int DEFAULT_HOST_LOAD = 500;
 
@@ -102,6 +108,15 @@ public class HostLoadManager implements LoadManager {
   private boolean gotLowMemory = false;
   private long lastLowMemMessage = 0L;
 
+  /**
+   * This connector instance's share of the global feed rate, or
+   * {@code null} if the global feed rate is not limited.
+   */
+  private FeedRateGovernor.Share feedRateShare;
+
+  /** The number of documents granted by the feedRateShare, not yet fed. */
+  private int grantedCount = 0;
+
   /**
    * Constructor used by {@link HostLoadManagerFactory} to create a
    * {@link LoadManager} for a a connector instance.
@@ -129,6 +144,9 @@ public class HostLoadManager implements LoadManager {
       LOGGER.fine("Setting host load to " + load);
       this.load = load;
       seedLoad();
+      if (feedRateShare != null) {
+        feedRateShare.setWeight(load);
+      }
     } else {
       LOGGER.warning("Invalid host load: " + load);
     }
@@ -190,6 +208,20 @@ public class HostLoadManager implements LoadManager {
     if (batchResult.getCountProcessed() > 0) {
       lastBatchResult = batchResult;
     }
+    if (feedRateShare != null) {
+      feedRateShare.settle(grantedCount,
+                           Math.max(0, batchResult.getCountProcessed()));
+      grantedCount = 0;
+    }
+  }
+
+  /**
+   * Sets this connector instance's share of the global feed rate.
+   *
+   * @param feedRateShare a {@link FeedRateGovernor.Share}, or {@code null}
+   */
+  void setFeedRateShare(FeedRateGovernor.Share feedRateShare) {
+    this.feedRateShare = feedRateShare;
   }
 
   /**
@@ -202,6 +234,23 @@ public class HostLoadManager implements LoadManager {
    */
   @Override
   public BatchSize determineBatchSize() {
+    int hint = determineBatchHint();
+    if (hint > 0 && feedRateShare != null) {
+      // Return any grant for a batch that never ran.
+      feedRateShare.settle(grantedCount, 0);
+      hint = feedRateShare.acquire(hint);
+      grantedCount = hint;
+    }
+    return new BatchSize(hint);
+  }
+
+  /**
+   * Determines the batch size hint needed to maintain this connector
+   * instance's load, without regard to the global feed rate.
+   *
+   * @return the number of documents to traverse, or 0 to traverse none
+   */
+  int determineBatchHint() {
     BatchRequest batchReq = getBatchRequest();
     if (LOGGER.isLoggable(Level.FINEST)) {
       LOGGER.finest(batchReq.toString());
@@ -212,9 +261,9 @@ public class HostLoadManager implements LoadManager {
         (lastBatchResult.getEndTime() + batchReq.delay <
          clock.getTimeMillis() + 100)) {
       lastBatchSize = batchReq.batchSize;
-      return new BatchSize(batchReq.batchSize);
+      return batchReq.batchSize;
     }
-    return new BatchSize();
+    return 0;
   }
 
   /**
@@ -225,15 +274,62 @@ public class HostLoadManager implements LoadManager {
    */
   @Override
   public boolean shouldDelay() {
-    BatchRequest batchReq = getBatchRequest();
-
     // If the delay time hasn't expired, continue delay.
-    // However, if there is less that 100ms left, just let it go.
-    if ((lastBatchResult.getEndTime() + batchReq.delay) >=
-        clock.getTimeMillis() + 100) {
+    if (getRateLimitDelayMillis() > 0) {
       return true;
     }
+    // If the other connectors have used up the global feed rate, delay.
+    if (getFeedRateDelayMillis() > 0) {
+      return true;
+    }
+    return isOverloaded();
+  }
 
+  /**
+   * Returns the number of milliseconds until this connector instance
+   * might be scheduled for traversal, or 0 if it may be scheduled now.
+   *
+   * @return a delay in milliseconds
+   */
+  @Override
+  public long getDelayMillis() {
+    long delay = getRateLimitDelayMillis();
+    if (delay > 0) {
+      return delay;
+    }
+    delay = getFeedRateDelayMillis();
+    if (delay > 0) {
+      return delay;
+    }
+    return isOverloaded() ? RECHECK_DELAY_MILLIS : 0L;
+  }
+
+  /**
+   * Returns the number of milliseconds until the global feed rate allows
+   * a batch, or 0 if the global feed rate is not limited.
+   */
+  private long getFeedRateDelayMillis() {
+    return (feedRateShare == null)
+        ? 0L : feedRateShare.getDelayMillis(Math.min(load, batchSize));
+  }
+
+  /**
+   * Returns the number of milliseconds that the next traversal must be
+   * delayed to maintain the target load, or 0 if it need not be delayed.
+   * If there is less than 100ms left, the delay is ignored.
+   */
+  long getRateLimitDelayMillis() {
+    BatchRequest batchReq = getBatchRequest();
+    long remaining = (lastBatchResult.getEndTime() + batchReq.delay)
+        - (clock.getTimeMillis() + 100);
+    return (remaining >= 0) ? remaining + 1 : 0L;
+  }
+
+  /**
+   * Returns true if the process is running low on memory, or the GSA
+   * this connector is feeding is backlogged handling feeds.
+   */
+  private boolean isOverloaded() {
     // If the process is running low on memory, don't traverse.
     if (fileSizeLimit != null) {
       Runtime rt = Runtime.getRuntime();
@@ -266,6 +362,21 @@ public class HostLoadManager implements LoadManager {
     return false;
   }
 
+  /** Returns the target load in documents per period. */
+  int getLoad() {
+    return load;
+  }
+
+  /** Returns the measurement period in milliseconds. */
+  long getPeriodMillis() {
+    return periodInMillis;
+  }
+
+  /** Returns the target batch size. */
+  int getBatchSize() {
+    return batchSize;
+  }
+
   /**
    * Calculate the batch size for the next traversal batch.
    * This uses the throughput of the previous traversal batch and
@@ -51,6 +51,11 @@ public class HostLoadManagerFactory implements LoadManagerFactory {
    */
   private Clock clock = new SystemClock();
 
+  /**
+   * Limits the combined feed rate of all connector instances.
+   */
+  private FeedRateGovernor feedRateGovernor;
+
   /**
    * Sets the {@link FeedConnection} used to determine distal feed backlogs.
    *
@@ -80,6 +85,16 @@ public class HostLoadManagerFactory implements LoadManagerFactory {
     this.clock = clock;
   }
 
+  /**
+   * Sets the {@link FeedRateGovernor} that limits the combined feed rate
+   * of all connector instances.
+   *
+   * @param feedRateGovernor a {@link FeedRateGovernor}
+   */
+  public void setFeedRateGovernor(FeedRateGovernor feedRateGovernor) {
+    this.feedRateGovernor = feedRateGovernor;
+  }
+
   /**
    * Sets the measurement period in seconds.
    *
@@ -107,9 +122,26 @@ public class HostLoadManagerFactory implements LoadManagerFactory {
    */
   @Override
   public LoadManager newLoadManager(String connectorName) {
-    HostLoadManager hlm = new HostLoadManager(feedConnection, fileSizeLimit, clock);
+    HostLoadManager hlm = newHostLoadManager(feedConnection, fileSizeLimit, clock);
     hlm.setPeriod(period);
     hlm.setBatchSize(batchSize);
+    if (feedRateGovernor != null && feedRateGovernor.isEnabled()) {
+      hlm.setFeedRateShare(
+          feedRateGovernor.newShare(connectorName, hlm.getLoad()));
+    }
     return hlm;
   }
+
+  /**
+   * Constructs a {@link HostLoadManager}.  Subclasses may override this
+   * to construct a subclass of {@code HostLoadManager}.
+   *
+   * @param feedConnection a {@link FeedConnection}.
+   * @param fileSizeLimit a {@link FileSizeLimitInfo}.
+   * @param clock a {@link Clock}.
+   */
+  HostLoadManager newHostLoadManager(FeedConnection feedConnection,
+      FileSizeLimitInfo fileSizeLimit, Clock clock) {
+    return new HostLoadManager(feedConnection, fileSizeLimit, clock);
+  }
 }
@@ -66,4 +66,14 @@ public interface LoadManager extends BatchResultRecorder {
    * maintain the target load management.
    */
   public boolean shouldDelay();
+
+  /**
+   * Returns the number of milliseconds the caller should wait before
+   * {@link #shouldDelay} might return {@code false}, or 0 if it already
+   * does.  For conditions whose end cannot be predicted, this returns
+   * a short interval after which they should be checked again.
+   *
+   * @return a delay in milliseconds
+   */
+  public long getDelayMillis();
 }
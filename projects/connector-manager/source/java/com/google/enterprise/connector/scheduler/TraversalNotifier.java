@@ -0,0 +1,69 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.scheduler;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Lets connector instances tell the {@link TraversalScheduler} that
+ * something has happened that may allow them to start a traversal batch
+ * sooner than it expected, such as the completion of a batch, or a change
+ * to the connector's schedule or checkpoint.  This class is thread safe.
+ *
+ * @since 3.4
+ */
+public class TraversalNotifier {
+  /** The connectors named since the scheduler last checked. */
+  private final Set<String> pending = new LinkedHashSet<String>();
+
+  /** Set to wake the scheduler without naming a connector. */
+  private boolean isWoken = false;
+
+  /**
+   * Asks the scheduler to reconsider the named connector now.
+   *
+   * @param connectorName the name of the connector instance
+   */
+  public synchronized void wakeup(String connectorName) {
+    pending.add(connectorName);
+    notifyAll();
+  }
+
+  /** Wakes the scheduler without naming a connector. */
+  synchronized void wakeup() {
+    isWoken = true;
+    notifyAll();
+  }
+
+  /**
+   * Waits for up to {@code timeoutMillis} milliseconds for a connector
+   * to be named, then returns the connectors named since the last call.
+   *
+   * @param timeoutMillis the maximum time to wait, in milliseconds
+   * @return the names of the connectors, which may be empty
+   * @throws InterruptedException if interrupted while waiting
+   */
+  synchronized Set<String> await(long timeoutMillis)
+      throws InterruptedException {
+    if (pending.isEmpty() && !isWoken && timeoutMillis > 0) {
+      wait(timeoutMillis);
+    }
+    isWoken = false;
+    Set<String> names = new LinkedHashSet<String>(pending);
+    pending.clear();
+    return names;
+  }
+}
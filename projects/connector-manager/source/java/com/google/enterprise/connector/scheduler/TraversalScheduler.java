@@ -14,10 +14,16 @@
 
 package com.google.enterprise.connector.scheduler;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.instantiator.Instantiator;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,31 +31,44 @@ import java.util.logging.Logger;
  * Scheduler that schedules connector traversal.  This class is thread safe.
  * Must initialize TraversalScheduler before running it.
  *
- * <p> This facility includes a schedule thread that runs a loop.
- * Each iteration it asks the instantiator for the schedule
- * for each Connector Instance and runs batches for those that
- * are
+ * <p> This facility includes a schedule thread that runs batches for
+ * Connector Instances that are
  * <OL>
  * <LI> scheduled to run.
  * <LI> have not exhausted their quota for the current time interval.
  * <LI> are not currently running.
  * </OL>
+ * Rather than polling every Connector Instance, the thread keeps a queue
+ * of connectors ordered by the time at which each might next be able
+ * to run, as reported by {@link Instantiator#getBatchDelayMillis}, and
+ * sleeps until the first of them is due.  Connector Instances that
+ * cannot predict when they will next run, such as those that are running
+ * a batch, are removed from the queue until they send a wakeup through
+ * the {@link TraversalNotifier}, for instance when a batch completes.
+ * As a safety net, every connector is reconsidered at least once every
+ * {@link #MAX_SLEEP_MILLIS} milliseconds.
  * The implementation must handle the situation that a Connector
  * Instance is running.
  */
-/* TODO (bmj): This should be removed and its functionality moved to
- * ConnectorCoordinator.  Connectors should be in charge of their own
- * scheduling.  In particular, the ConnectorCoordinator could leverage
- * Schedule.nextScheduledInterval(), sleeping when unscheduled rather
- * than checking all schedules once per second.
- */
 public class TraversalScheduler implements Runnable {
   public static final String SCHEDULER_CURRENT_TIME = "/Scheduler/currentTime";
 
   private static final Logger LOGGER =
     Logger.getLogger(TraversalScheduler.class.getName());
 
+  /** The longest a connector goes without being reconsidered. */
+  @VisibleForTesting
+  static final long MAX_SLEEP_MILLIS = 60 * 1000L;
+
+  /**
+   * How long to wait before reconsidering a connector that could have
+   * run, but did not start a batch.
+   */
+  @VisibleForTesting
+  static final long RETRY_DELAY_MILLIS = 1000L;
+
   private final Instantiator instantiator;
+  private final TraversalNotifier notifier;
 
   private boolean isInitialized; // Protected by instance lock.
   private boolean isShutdown; // Protected by instance lock.
@@ -60,7 +79,19 @@ public class TraversalScheduler implements Runnable {
    * @param instantiator used to get schedule for connector instances
    */
   public TraversalScheduler(Instantiator instantiator) {
+    this(instantiator, new TraversalNotifier());
+  }
+
+  /**
+   * Create a scheduler object.
+   *
+   * @param instantiator used to get schedule for connector instances
+   * @param notifier used by connector instances to wake the scheduler
+   */
+  public TraversalScheduler(Instantiator instantiator,
+      TraversalNotifier notifier) {
     this.instantiator = instantiator;
+    this.notifier = notifier;
     this.isInitialized = false;
     this.isShutdown = false;
   }
@@ -80,6 +111,7 @@ public class TraversalScheduler implements Runnable {
     }
     isInitialized = false;
     isShutdown = true;
+    notifier.wakeup();
   }
 
   /**
@@ -92,22 +124,39 @@ public class TraversalScheduler implements Runnable {
     return isInitialized && !isShutdown;
   }
 
-  private void scheduleBatches() {
-    for (String connectorName : instantiator.getConnectorNames()) {
-      NDC.pushAppend(connectorName);
-      try {
-        instantiator.startBatch(connectorName);
-      } catch (ConnectorNotFoundException e) {
-        // Looks like the connector just got deleted.  Don't schedule it.
-      } finally {
-        NDC.pop();
+  /**
+   * Tries to start a batch for the named connector, then queues the
+   * connector to be reconsidered when it might next be able to run.
+   */
+  private void scheduleBatch(String connectorName, WakeupQueue queue) {
+    NDC.pushAppend(connectorName);
+    try {
+      instantiator.startBatch(connectorName);
+      long delay = instantiator.getBatchDelayMillis(connectorName);
+      if (delay == Long.MAX_VALUE) {
+        // Wait to be notified.
+        queue.remove(connectorName);
+      } else {
+        if (delay <= 0) {
+          // The connector could have run, but did not start a batch.
+          delay = RETRY_DELAY_MILLIS;
+        }
+        queue.add(connectorName, System.currentTimeMillis() + delay);
       }
+    } catch (ConnectorNotFoundException e) {
+      // Looks like the connector just got deleted.  Don't schedule it.
+      queue.remove(connectorName);
+    } finally {
+      NDC.pop();
     }
   }
 
   public void run() {
     NDC.push("Traverse");
     try {
+      WakeupQueue queue = new WakeupQueue();
+      Set<String> ready = new LinkedHashSet<String>();
+      long nextScan = 0L;
       while (true) {
         try {
           if (!isRunningState()) {
@@ -115,22 +164,108 @@ public class TraversalScheduler implements Runnable {
                 + "shutdown or not being initialized.");
             return;
           }
-          scheduleBatches();
-          // Give someone else a chance to run.
+          long now = System.currentTimeMillis();
+          if (now >= nextScan) {
+            nextScan = now + MAX_SLEEP_MILLIS;
+            ready.addAll(instantiator.getConnectorNames());
+          }
+          queue.pollDue(now, ready);
+          for (String connectorName : ready) {
+            scheduleBatch(connectorName, queue);
+          }
+          ready.clear();
+
+          // Sleep until a connector is due, or we are notified.
+          long timeout = Math.min(queue.nextWakeupTime(), nextScan)
+              - System.currentTimeMillis();
           try {
-            synchronized (this) {
-              wait(1000);
-            }
+            ready.addAll(notifier.await(timeout));
           } catch (InterruptedException e) {
             // May have been interrupted for shutdown.
           }
         } catch (Throwable t) {
           LOGGER.log(Level.SEVERE,
               "TraversalScheduler caught unexpected Throwable: ", t);
+          ready.clear();
         }
       }
     } finally {
       NDC.remove();
     }
   }
+
+  /**
+   * A queue of connector names, ordered by the time at which each
+   * should next be considered.  A connector is queued at most once;
+   * queue entries superseded by a later call to {@code add} or
+   * {@code remove} are discarded as they reach the head of the queue.
+   * This class is not thread safe.
+   */
+  @VisibleForTesting
+  static class WakeupQueue {
+    private final PriorityQueue<Wakeup> queue = new PriorityQueue<Wakeup>();
+
+    /** The current wakeup time for each queued connector. */
+    private final Map<String, Long> wakeupTimes = new HashMap<String, Long>();
+
+    /** Queues the named connector to be considered at the given time. */
+    void add(String connectorName, long time) {
+      Long previous = wakeupTimes.put(connectorName, time);
+      if (previous == null || previous.longValue() != time) {
+        queue.add(new Wakeup(connectorName, time));
+      }
+    }
+
+    /** Removes the named connector from the queue. */
+    void remove(String connectorName) {
+      wakeupTimes.remove(connectorName);
+    }
+
+    /**
+     * Removes the connectors that are due at or before {@code now}
+     * from the queue, adding their names to {@code due}.
+     */
+    void pollDue(long now, Set<String> due) {
+      Wakeup wakeup;
+      while ((wakeup = queue.peek()) != null && wakeup.time <= now) {
+        queue.poll();
+        if (isCurrent(wakeup)) {
+          wakeupTimes.remove(wakeup.connectorName);
+          due.add(wakeup.connectorName);
+        }
+      }
+    }
+
+    /**
+     * Returns the time the first queued connector is due, or
+     * {@code Long.MAX_VALUE} if the queue is empty.
+     */
+    long nextWakeupTime() {
+      Wakeup wakeup;
+      while ((wakeup = queue.peek()) != null && !isCurrent(wakeup)) {
+        queue.poll();
+      }
+      return (wakeup == null) ? Long.MAX_VALUE : wakeup.time;
+    }
+
+    private boolean isCurrent(Wakeup wakeup) {
+      Long time = wakeupTimes.get(wakeup.connectorName);
+      return time != null && time.longValue() == wakeup.time;
+    }
+  }
+
+  private static class Wakeup implements Comparable<Wakeup> {
+    final String connectorName;
+    final long time;
+
+    Wakeup(String connectorName, long time) {
+      this.connectorName = connectorName;
+      this.time = time;
+    }
+
+    @Override
+    public int compareTo(Wakeup other) {
+      return (time < other.time) ? -1 : ((time == other.time) ? 0 : 1);
+    }
+  }
 }
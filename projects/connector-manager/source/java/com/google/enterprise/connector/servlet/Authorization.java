@@ -18,6 +18,7 @@ package com.google.enterprise.connector.servlet;
 import com.google.enterprise.connector.manager.Manager;
 
 import java.io.PrintWriter;
+import java.io.Reader;
 
 /**
  * Admin servlet for authorization
@@ -31,4 +32,16 @@ public class Authorization extends ConnectorManagerServlet {
     AuthorizationHandler authorizationHandler = new AuthorizationHandler(xmlBody, manager, out);
     authorizationHandler.handleDoPost();
   }
+
+  /**
+   * Parses the request as it is read, rather than reading it into a
+   * {@code String} first.
+   */
+  @Override
+  protected void processRequest(String connectorManagerUrl, Reader reader,
+      Manager manager, PrintWriter out) {
+    AuthorizationHandler authorizationHandler =
+        new AuthorizationHandler(reader, manager, out);
+    authorizationHandler.handleDoPost();
+  }
 }
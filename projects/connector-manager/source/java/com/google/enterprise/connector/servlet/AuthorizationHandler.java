@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.servlet;
 
+import com.google.common.base.Preconditions;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.Manager;
 import com.google.enterprise.connector.servlet.AuthorizationParser.ConnectorQueries;
@@ -24,37 +25,131 @@ import com.google.enterprise.connector.spi.XmlUtils;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * This class does the real work for the authorization servlet
+ * This class does the real work for the authorization servlet.
+ * <p>
+ * The documents are authorized by each connector for each identity
+ * concurrently, on a bounded pool of threads shared by all requests.
+ * Each connector has until its authorization timeout, measured from the
+ * start of the request, to respond.  The documents of a connector that
+ * does not respond in time are INDETERMINATE.  The answers are written
+ * as each connector responds.
+ * <p>
+ * A connector that does not respond may keep its threads after its
+ * requests are cancelled, so each connector may only use a limited
+ * number of the threads at once.  Its other requests wait for one
+ * of its threads to finish.
  */
 public class AuthorizationHandler {
   private static final Logger LOGGER =
       Logger.getLogger(AuthorizationHandler.class.getName());
 
-  String xmlBody;
+  /** The default most connector requests run at once, across all searches. */
+  private static final int DEFAULT_MAX_THREADS = 20;
+
+  /** The default most threads used at once by the requests to a connector. */
+  private static final int DEFAULT_MAX_THREADS_PER_CONNECTOR = 5;
+
+  private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+      DEFAULT_MAX_THREADS, DEFAULT_MAX_THREADS, 60L, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new AuthorizationThreadFactory());
+
+  static {
+    // Let idle threads exit, so that an idle pool holds no threads.
+    EXECUTOR.allowCoreThreadTimeOut(true);
+  }
+
+  private static volatile int maxThreadsPerConnector =
+      DEFAULT_MAX_THREADS_PER_CONNECTOR;
+
+  /** The requests running or waiting to run, by connector name. */
+  private static final ConcurrentMap<String, ConnectorThrottle> THROTTLES =
+      new ConcurrentHashMap<String, ConnectorThrottle>();
+
+  Reader xmlBody;
   Manager manager;
   PrintWriter out;
   ConnectorMessageCode status;
 
+  /**
+   * The results to write once they have all arrived, or {@code null} to
+   * write each result as it arrives.
+   */
   Map<AuthorizationResource, AuthorizationResponse.Status> results;
 
+  /** Whether the AuthorizationResponse element has been started. */
+  private boolean responseStarted = false;
+
   AuthorizationHandler(String xmlBody, Manager manager, PrintWriter out) {
+    this(new StringReader(xmlBody), manager, out);
+  }
+
+  AuthorizationHandler(Reader xmlBody, Manager manager, PrintWriter out) {
     this.xmlBody = xmlBody;
     this.manager = manager;
     this.out = out;
-    results = new HashMap<AuthorizationResource, AuthorizationResponse.Status>();
+  }
+
+  /**
+   * Sets the most connector requests run at once, across all searches.
+   *
+   * @param maxThreads the size of the authorization thread pool
+   * @since 3.4
+   */
+  public static synchronized void setMaxThreads(int maxThreads) {
+    Preconditions.checkArgument(maxThreads > 0,
+        "maxThreads must be positive: %s", maxThreads);
+    // The core size may never exceed the maximum size.
+    if (maxThreads > EXECUTOR.getMaximumPoolSize()) {
+      EXECUTOR.setMaximumPoolSize(maxThreads);
+      EXECUTOR.setCorePoolSize(maxThreads);
+    } else {
+      EXECUTOR.setCorePoolSize(maxThreads);
+      EXECUTOR.setMaximumPoolSize(maxThreads);
+    }
+  }
+
+  /**
+   * Sets the most threads used at once by the requests to a single
+   * connector instance, across all searches.  Threads that are still
+   * running after their request has timed out count against this limit.
+   *
+   * @param maxThreads the most threads used by a connector instance
+   * @since 3.4
+   */
+  public static void setMaxThreadsPerConnector(int maxThreads) {
+    Preconditions.checkArgument(maxThreads > 0,
+        "maxThreadsPerConnector must be positive: %s", maxThreads);
+    maxThreadsPerConnector = maxThreads;
   }
 
   /**
@@ -84,33 +179,41 @@ public class AuthorizationHandler {
         ServletUtil.writeResponse(out,status);
         return;
       }
+      ServletUtil.writeRootTag(out, false);
       computeResultSet(authorizationParser);
-      generateXml();
+      if (results != null) {
+        for (Entry<AuthorizationResource, AuthorizationResponse.Status> e :
+             results.entrySet()) {
+          writeResultElement(e.getKey(), e.getValue());
+        }
+      }
+      if (responseStarted) {
+        ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE,
+                                true);
+      }
+      ServletUtil.writeMessageCode(out, status);
+      ServletUtil.writeRootTag(out, true);
     } finally {
       NDC.pop();
     }
   }
 
-  private void generateXml() {
-    ServletUtil.writeRootTag(out, false);
-    if (results.size() > 0) {
-      ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE, false);
-      generateEachResultXml();
-      ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE, true);
-    }
-    ServletUtil.writeMessageCode(out, status);
-    ServletUtil.writeRootTag(out, true);
-  }
-
-  private void generateEachResultXml() {
-    for (Entry<AuthorizationResource, AuthorizationResponse.Status> e :
-         results.entrySet()) {
-      writeResultElement(e.getKey(), e.getValue());
+  /** Records a result, writing it now if results are streamed. */
+  private void addResult(AuthorizationResource resource,
+      AuthorizationResponse.Status decision) {
+    if (results == null) {
+      writeResultElement(resource, decision);
+    } else {
+      results.put(resource, decision);
     }
   }
 
   private void writeResultElement(AuthorizationResource resource,
       AuthorizationResponse.Status decision) {
+    if (!responseStarted) {
+      ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE, false);
+      responseStarted = true;
+    }
     ServletUtil.writeXMLTag(out, 2, ServletUtil.XMLTAG_ANSWER, false);
     // Add the connector name attribute to the resource element.
     try {
@@ -132,41 +235,232 @@ public class AuthorizationHandler {
   }
 
   private void computeResultSet(AuthorizationParser authorizationParser) {
+    long startTime = System.currentTimeMillis();
+    BlockingQueue<QueryTask> completed = new LinkedBlockingQueue<QueryTask>();
+    Set<QueryTask> pending = new HashSet<QueryTask>();
     for (AuthenticationIdentity identity: authorizationParser.getIdentities()) {
       NDC.pushAppend(identity.getUsername());
       try {
-        ConnectorQueries queries =
+        ConnectorQueries urlsByConnector =
             authorizationParser.getConnectorQueriesForIdentity(identity);
-        runManagerQueries(identity, queries);
+        for (String connectorName : urlsByConnector.getConnectors()) {
+          NDC.pushAppend(connectorName);
+          try {
+            ConnectorQuery query = new ConnectorQuery(identity, connectorName,
+                urlsByConnector.getQueryResources(connectorName),
+                startTime + manager.getAuthorizationTimeoutMillis(connectorName));
+            QueryTask task = new QueryTask(query, completed);
+            pending.add(task);
+            getThrottle(connectorName).execute(task);
+          } finally {
+            NDC.pop();
+          }
+        }
       } finally {
         NDC.pop();
       }
     }
+
+    try {
+      while (!pending.isEmpty()) {
+        long deadline = Long.MAX_VALUE;
+        for (QueryTask task : pending) {
+          deadline = Math.min(deadline, task.query.deadline);
+        }
+        long wait = deadline - System.currentTimeMillis();
+        QueryTask task = (wait > 0)
+            ? completed.poll(wait, TimeUnit.MILLISECONDS)
+            : completed.poll();
+        if (task == null) {
+          expireQueries(pending, System.currentTimeMillis());
+        } else if (pending.remove(task)) {
+          // Cancelled tasks are also completed, but are no longer pending.
+          Collection<AuthorizationResponse> answerSet = getAnswers(task);
+          if (answerSet != null) {
+            accumulateQueryResults(answerSet, task.query.urlsByDocid);
+          }
+        }
+        if (results == null) {
+          // Send the answers written so far.
+          out.flush();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      expireQueries(pending, Long.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Returns the answers of a completed query, which may be {@code null},
+   * or INDETERMINATE answers for all of its documents if they could not
+   * be authorized.
+   */
+  private Collection<AuthorizationResponse> getAnswers(QueryTask task) {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      LOGGER.log(Level.WARNING, "Authorization failed for connector "
+          + task.query.connectorName + ": " + task.query.identity,
+          e.getCause());
+    } catch (InterruptedException e) {
+      // Can't happen, the query has completed.
+      Thread.currentThread().interrupt();
+    }
+    List<AuthorizationResponse> answers =
+        new ArrayList<AuthorizationResponse>();
+    for (String docid : task.query.urlsByDocid.getDocids()) {
+      answers.add(new AuthorizationResponse(
+          AuthorizationResponse.Status.INDETERMINATE, docid));
+    }
+    return answers;
+  }
+
+  /**
+   * Cancels the queries whose deadlines have passed, and answers
+   * INDETERMINATE for their documents.
+   */
+  private void expireQueries(Set<QueryTask> pending, long now) {
+    Iterator<QueryTask> it = pending.iterator();
+    while (it.hasNext()) {
+      QueryTask task = it.next();
+      ConnectorQuery query = task.query;
+      if (query.deadline <= now) {
+        task.cancel(true);
+        getThrottle(query.connectorName).remove(task);
+        it.remove();
+        LOGGER.warning("Authorization timed out for connector "
+            + query.connectorName + ": " + query.identity);
+        for (String docid : query.urlsByDocid.getDocids()) {
+          addResult(query.urlsByDocid.getResource(docid),
+                    AuthorizationResponse.Status.INDETERMINATE);
+        }
+      }
+    }
   }
 
-  private void runManagerQueries(AuthenticationIdentity identity,
-      ConnectorQueries urlsByConnector) {
-    for (String connectorName : urlsByConnector.getConnectors()) {
-      NDC.pushAppend(connectorName);
+  /** Authorizes the documents of one connector for one identity. */
+  private class ConnectorQuery
+      implements Callable<Collection<AuthorizationResponse>> {
+    final AuthenticationIdentity identity;
+    final String connectorName;
+    final QueryResources urlsByDocid;
+    final long deadline;
+    private final String context = NDC.peek();
+
+    ConnectorQuery(AuthenticationIdentity identity, String connectorName,
+        QueryResources urlsByDocid, long deadline) {
+      this.identity = identity;
+      this.connectorName = connectorName;
+      this.urlsByDocid = urlsByDocid;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public Collection<AuthorizationResponse> call() {
+      NDC.push(context);
       try {
         // TODO [bmj]: It is conceivable that multiple URLs (resources) could
         // map to the same repository document (docid).  We should handle the
         // duplicates, somehow?
-        QueryResources urlsByDocid = urlsByConnector.getQueryResources(connectorName);
         List<String> docidList = new ArrayList<String>(urlsByDocid.getDocids());
-        Collection<AuthorizationResponse> answerSet =
-            manager.authorizeDocids(connectorName, docidList, identity);
-        if (answerSet != null) {
-          accumulateQueryResults(answerSet, urlsByDocid);
-        }
+        return manager.authorizeDocids(connectorName, docidList, identity);
       } finally {
-        NDC.pop();
+        NDC.clear();
+      }
+    }
+  }
+
+  /** A query that is added to a queue when it completes. */
+  private static class QueryTask
+      extends FutureTask<Collection<AuthorizationResponse>> {
+    final ConnectorQuery query;
+    private final BlockingQueue<QueryTask> completed;
+
+    QueryTask(ConnectorQuery query, BlockingQueue<QueryTask> completed) {
+      super(query);
+      this.query = query;
+      this.completed = completed;
+    }
+
+    @Override
+    protected void done() {
+      completed.add(this);
+    }
+  }
+
+  private static ConnectorThrottle getThrottle(String connectorName) {
+    ConnectorThrottle throttle = THROTTLES.get(connectorName);
+    if (throttle == null) {
+      throttle = new ConnectorThrottle();
+      ConnectorThrottle existing =
+          THROTTLES.putIfAbsent(connectorName, throttle);
+      if (existing != null) {
+        throttle = existing;
+      }
+    }
+    return throttle;
+  }
+
+  /**
+   * Limits the threads used by the requests to one connector.  A thread
+   * is released when its request returns, even if it was cancelled.
+   */
+  private static class ConnectorThrottle {
+    private final Queue<FutureTask<?>> waiting =
+        new LinkedList<FutureTask<?>>();
+    private int running = 0;
+
+    /** Runs the task now, or once one of this connector's threads ends. */
+    synchronized void execute(FutureTask<?> task) {
+      if (running < maxThreadsPerConnector) {
+        running++;
+        EXECUTOR.execute(new ThrottledTask(task));
+      } else {
+        waiting.add(task);
+      }
+    }
+
+    /** Forgets a task that has been cancelled before it ran. */
+    synchronized void remove(FutureTask<?> task) {
+      waiting.remove(task);
+    }
+
+    /** Starts the next waiting task in place of a task that has ended. */
+    private synchronized void next() {
+      // The limit may have been lowered while this thread ran.
+      FutureTask<?> task =
+          (running > maxThreadsPerConnector) ? null : waiting.poll();
+      if (task == null) {
+        running--;
+      } else {
+        EXECUTOR.execute(new ThrottledTask(task));
+      }
+    }
+
+    private class ThrottledTask implements Runnable {
+      private final FutureTask<?> task;
+
+      ThrottledTask(FutureTask<?> task) {
+        this.task = task;
+      }
+
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          next();
+        }
       }
     }
   }
 
   private void accumulateQueryResults(Collection<AuthorizationResponse> answerSet,
       QueryResources urlsByDocid) {
+    // Collect the answers first, so that the last answer for a document wins.
+    Map<AuthorizationResource, AuthorizationResponse.Status> answers =
+        new LinkedHashMap<AuthorizationResource, AuthorizationResponse.Status>();
     Set<String> docids = new HashSet<String>(urlsByDocid.getDocids());
     for (AuthorizationResponse response : answerSet) {
       String docid = response.getDocid();
@@ -175,18 +469,36 @@ public class AuthorizationHandler {
         LOGGER.warning("Received unexpected AuthorizationResponse for document "
                        + docid);
       } else {
-        results.put(resource, response.getStatus());
+        answers.put(resource, response.getStatus());
         docids.remove(docid);
       }
     }
     // Return DENY for documents not returned by connector.
     for (String docid : docids) {
       AuthorizationResource resource = urlsByDocid.getResource(docid);
-      results.put(resource, AuthorizationResponse.Status.DENY);
+      answers.put(resource, AuthorizationResponse.Status.DENY);
       if (LOGGER.isLoggable(Level.FINEST)) {
         LOGGER.finest("AUTHORIZED " + docid + ": "
                       + AuthorizationResponse.Status.DENY);
       }
     }
+    for (Entry<AuthorizationResource, AuthorizationResponse.Status> e :
+         answers.entrySet()) {
+      addResult(e.getKey(), e.getValue());
+    }
+  }
+
+  /** Creates named daemon threads for the authorization requests. */
+  private static class AuthorizationThreadFactory implements ThreadFactory {
+    private final ThreadFactory delegate = Executors.defaultThreadFactory();
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = delegate.newThread(r);
+      t.setName("Authorization-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
   }
 }
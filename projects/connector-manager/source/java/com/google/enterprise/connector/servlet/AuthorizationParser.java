@@ -16,17 +16,24 @@ package com.google.enterprise.connector.servlet;
 
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
-import com.google.enterprise.connector.util.XmlParseUtil;
-
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 /**
  * This class parses the xml body of an Authorization request.
  * <p>
@@ -45,23 +52,51 @@ import java.util.logging.Logger;
  * </pre>
  * Note that both the {@code domain} and {@code password} attributes of the
  * {@code Identity} element are optional.
+ * <p>
+ * The request is parsed as it is read, so that large requests do not
+ * need a DOM.
  */
 public class AuthorizationParser {
 
   private static final Logger LOGGER =
       Logger.getLogger(AuthorizationParser.class.getName());
 
-  private final String xmlBody;
+  private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+  static {
+    // Requests never need external entities, and they must not be fetched.
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                        Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+  }
+
   private ConnectorMessageCode status;
   private int numDocs;
   private final Map<AuthenticationIdentity, ConnectorQueries> parseMap;
 
+  /**
+   * The identities in {@code parseMap}, keyed by the username, password,
+   * and domain, with {@code null} as the empty string.
+   */
+  private final Map<List<String>, AuthenticationIdentity> identities;
+
   public AuthorizationParser(String xmlBody) {
-    this.xmlBody = xmlBody;
-    parseMap = new HashMap<AuthenticationIdentity, ConnectorQueries>();
+    this(new StringReader(xmlBody));
+  }
+
+  /**
+   * Parses the request as it is read, without building a DOM.
+   *
+   * @param xmlBody a {@code Reader} of the XML request body
+   * @since 3.4
+   */
+  public AuthorizationParser(Reader xmlBody) {
+    parseMap = new LinkedHashMap<AuthenticationIdentity, ConnectorQueries>();
+    identities = new HashMap<List<String>, AuthenticationIdentity>();
     status = new ConnectorMessageCode();
     numDocs = 0;
-    parse();
+    parse(xmlBody);
   }
 
   /**
@@ -84,42 +119,158 @@ public class AuthorizationParser {
    * two levels (AuthorizationParser and ConnectorQueries) each have only one
    * item.
    */
-  private void parse() {
-    Element root = XmlParseUtil.parseAndGetRootElement(xmlBody,
-        ServletUtil.XMLTAG_AUTHZ_QUERY);
+  private void parse(Reader xmlBody) {
+    try {
+      XMLStreamReader reader = factory.createXMLStreamReader(xmlBody);
+      try {
+        if (!nextElement(reader, ServletUtil.XMLTAG_AUTHZ_QUERY)) {
+          LOGGER.log(Level.WARNING,
+              "Empty node: " + ServletUtil.XMLTAG_AUTHZ_QUERY);
+          setParseError();
+          return;
+        }
+
+        int queryCount = 0;
+        while (nextElement(reader, ServletUtil.XMLTAG_CONNECTOR_QUERY)) {
+          queryCount++;
+          parseConnectorQuery(reader);
+        }
 
-    if (root == null) {
-      setStatus(ConnectorMessageCode.ERROR_PARSING_XML_REQUEST);
+        if (queryCount == 0) {
+          LOGGER.log(Level.WARNING, ServletUtil.LOG_RESPONSE_EMPTY_NODE);
+          return;
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      LOGGER.log(Level.SEVERE, "XML Stream Exception", e);
+      setParseError();
       return;
     }
 
-    NodeList queryList =
-        root.getElementsByTagName(ServletUtil.XMLTAG_CONNECTOR_QUERY);
-
-    if (queryList.getLength() == 0) {
-      LOGGER.log(Level.WARNING, ServletUtil.LOG_RESPONSE_EMPTY_NODE);
+    if (numDocs == 0) {
+      LOGGER.warning("No docid available.");
       return;
     }
+  }
 
+  /**
+   * Discards anything parsed so far, and reports an unparsable request.
+   */
+  private void setParseError() {
+    parseMap.clear();
+    identities.clear();
     numDocs = 0;
+    status = new ConnectorMessageCode(
+        ConnectorMessageCode.ERROR_PARSING_XML_REQUEST);
+  }
 
-    for (int i = 0; i < queryList.getLength(); ++i) {
-      Element queryItem = (Element) queryList.item(i);
-      AuthenticationIdentity identity = parseIdentityGroup(queryItem);
-      // Only consider Resources for which there is an associated identity.
-      // A null Identity is considered an error on the part of the GSA.
-      // Skip all its resources and continue with the next ConnectorQuery item.
-      // Subsequently, this ConnectorQuery will not run and none of its
-      // QueryResources will be returned. The GSA will then consider them
-      // INDETERMINATE.
-      if (identity != null) {
-        parseResourceGroup(identity, queryItem);
+  /**
+   * Advances to the start of the next element with the given name,
+   * at any depth.
+   *
+   * @return {@code false} if there is no such element
+   */
+  private static boolean nextElement(XMLStreamReader reader, String name)
+      throws XMLStreamException {
+    while (reader.hasNext()) {
+      if (reader.next() == XMLStreamConstants.START_ELEMENT
+          && name.equals(reader.getLocalName())) {
+        return true;
       }
     }
+    return false;
+  }
 
-    if (numDocs == 0) {
-      LOGGER.warning("No docid available.");
-      return;
+  /**
+   * Returns the text of the current element, or {@code null} if it is
+   * empty.  Any child elements are skipped.
+   */
+  private static String getText(XMLStreamReader reader)
+      throws XMLStreamException {
+    StringBuilder text = new StringBuilder();
+    int depth = 1;
+    while (depth > 0) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          if (depth == 1) {
+            text.append(reader.getText());
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return (text.length() == 0) ? null : text.toString();
+  }
+
+  /** Returns the value of an attribute, or the empty string if it is absent. */
+  private static String getAttribute(XMLStreamReader reader, String name) {
+    String value = reader.getAttributeValue(null, name);
+    return (value == null) ? "" : value;
+  }
+
+  /**
+   * Parses a {@code ConnectorQuery} element.  The identity is the first
+   * {@code Identity} element, and the resources are all the
+   * {@code Resource} elements.
+   */
+  private void parseConnectorQuery(XMLStreamReader reader)
+      throws XMLStreamException {
+    boolean hasIdentity = false;
+    String username = null;
+    String password = null;
+    String domain = null;
+    List<AuthorizationResource> resources =
+        new ArrayList<AuthorizationResource>();
+    int depth = 1;
+    while (depth > 0) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          String name = reader.getLocalName();
+          if (ServletUtil.XMLTAG_IDENTITY.equals(name) && !hasIdentity) {
+            hasIdentity = true;
+            domain = getAttribute(reader, ServletUtil.XMLTAG_DOMAIN_ATTRIBUTE);
+            password =
+                getAttribute(reader, ServletUtil.XMLTAG_PASSWORD_ATTRIBUTE);
+            username = getText(reader);
+          } else if (ServletUtil.XMLTAG_RESOURCE.equals(name)) {
+            String connectorName = getAttribute(reader,
+                ServletUtil.XMLTAG_CONNECTOR_NAME_ATTRIBUTE);
+            String url = getText(reader);
+            resources.add(new AuthorizationResource(
+                (url == null) ? "" : url, connectorName));
+          } else {
+            depth++;
+          }
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          break;
+        default:
+          break;
+      }
+    }
+
+    AuthenticationIdentity identity =
+        parseIdentityGroup(username, password, domain);
+    // Only consider Resources for which there is an associated identity.
+    // A null Identity is considered an error on the part of the GSA.
+    // Skip all its resources and continue with the next ConnectorQuery item.
+    // Subsequently, this ConnectorQuery will not run and none of its
+    // QueryResources will be returned. The GSA will then consider them
+    // INDETERMINATE.
+    if (identity != null) {
+      parseResourceGroup(identity, resources);
     }
   }
 
@@ -127,16 +278,8 @@ public class AuthorizationParser {
    * Utility function to establish the first level mapping from the Identity
    * to the ConnectorQueries.
    */
-  private AuthenticationIdentity parseIdentityGroup(Element queryItem) {
-    String username = XmlParseUtil.getFirstElementByTagName(queryItem,
-        ServletUtil.XMLTAG_IDENTITY);
-    String domain =
-        XmlParseUtil.getFirstAttribute(queryItem, ServletUtil.XMLTAG_IDENTITY,
-        ServletUtil.XMLTAG_DOMAIN_ATTRIBUTE);
-    String password =
-        XmlParseUtil.getFirstAttribute(queryItem, ServletUtil.XMLTAG_IDENTITY,
-        ServletUtil.XMLTAG_PASSWORD_ATTRIBUTE);
-
+  private AuthenticationIdentity parseIdentityGroup(String username,
+      String password, String domain) {
     if (username == null) {
       LOGGER.warning("Null Identity");
       // TODO: Is this the only way this can happen?
@@ -168,10 +311,8 @@ public class AuthorizationParser {
    * can be routed to a connector for authorization.
    */
   private void parseResourceGroup(AuthenticationIdentity identity,
-      Element queryItem) {
-    NodeList resourceList =
-        queryItem.getElementsByTagName(ServletUtil.XMLTAG_RESOURCE);
-    if (resourceList.getLength() == 0) {
+      List<AuthorizationResource> resources) {
+    if (resources.isEmpty()) {
       LOGGER.warning("Null Resources");
       setStatus(ConnectorMessageCode.RESPONSE_NULL_RESOURCE);
       return;
@@ -180,9 +321,7 @@ public class AuthorizationParser {
     // Get the ConnectorQueries for the given Identity.
     ConnectorQueries urlsByConnector =
         getConnectorQueriesForIdentity(identity);
-    for (int i = 0; i < resourceList.getLength(); ++i) {
-      Element resourceItem = (Element) resourceList.item(i);
-      AuthorizationResource resource = new AuthorizationResource(resourceItem);
+    for (AuthorizationResource resource : resources) {
       if (resource.getStatus() != ConnectorMessageCode.SUCCESS) {
         setStatus(resource.getStatus());
         // Skip this failed resource and continue with the next one.
@@ -235,12 +374,22 @@ public class AuthorizationParser {
 
   private AuthenticationIdentity findIdentity(String username, String password,
       String domain) {
-    for (AuthenticationIdentity identity : parseMap.keySet()) {
-      if (matchesIdentity(identity, username, password, domain)) {
-        return identity;
-      }
+    List<String> key = identityKey(username, password, domain);
+    AuthenticationIdentity identity = identities.get(key);
+    if (identity == null) {
+      identity = new SimpleAuthenticationIdentity(username, password, domain);
     }
-    return new SimpleAuthenticationIdentity(username, password, domain);
+    return identity;
+  }
+
+  /**
+   * Returns the key of an identity, treating null the same as the empty
+   * string, as {@link #matchesIdentity} does.
+   */
+  private static List<String> identityKey(String username, String password,
+      String domain) {
+    return Arrays.asList(username, (password == null) ? "" : password,
+                         (domain == null) ? "" : domain);
   }
 
   public int getNumDocs() {
@@ -266,6 +415,8 @@ public class AuthorizationParser {
   private void putConnectorQueriesForIdentity(AuthenticationIdentity identity,
       ConnectorQueries urlsByConnector) {
     parseMap.put(identity, urlsByConnector);
+    identities.put(identityKey(identity.getUsername(), identity.getPassword(),
+        identity.getDomain()), identity);
   }
 
   public Collection<AuthenticationIdentity> getIdentities() {
@@ -14,7 +14,6 @@
 
 package com.google.enterprise.connector.servlet;
 
-import com.google.common.base.Strings;
 import com.google.enterprise.connector.common.StringUtils;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.Context;
@@ -23,6 +22,8 @@ import com.google.enterprise.connector.manager.Manager;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.PushbackReader;
+import java.io.Reader;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,6 +52,24 @@ public abstract class ConnectorManagerUrlServlet extends HttpServlet {
   protected abstract void processDoPost(String connectorManagerUrl, 
       String xmlBody, Manager manager, PrintWriter out);
 
+  /**
+   * Processes the request body.  By default, this reads the whole body
+   * and calls {@link #processDoPost(String, String, Manager, PrintWriter)}.
+   * Servlets that can process the body as it is read may override this.
+   *
+   * @param connectorManagerUrl URL string for the Connector Manager servlet
+   * @param reader a {@code Reader} of the non-empty request body
+   * @param manager Manager
+   * @param out PrintWriter where the XML response body is written
+   * @throws IOException if the request body cannot be read
+   * @since 3.4
+   */
+  protected void processRequest(String connectorManagerUrl, Reader reader,
+      Manager manager, PrintWriter out) throws IOException {
+    processDoPost(connectorManagerUrl, StringUtils.readAllToString(reader),
+                  manager, out);
+  }
+
   /**
    * Returns an XML response to the HTTP GET request.
    *
@@ -92,14 +111,16 @@ public abstract class ConnectorManagerUrlServlet extends HttpServlet {
     NDC.push(NDC.peek());
     try {
       // I encountered a null reader if no content or body.
-      String xmlBody =
-          (reader == null) ? null : StringUtils.readAllToString(reader);
-      if (Strings.isNullOrEmpty(xmlBody)) {
+      PushbackReader body =
+          (reader == null) ? null : new PushbackReader(reader);
+      int first = (body == null) ? -1 : body.read();
+      if (first == -1) {
         ServletUtil.writeResponse(
             out, ConnectorMessageCode.RESPONSE_EMPTY_REQUEST);
         LOGGER.log(Level.WARNING, ServletUtil.LOG_RESPONSE_EMPTY_REQUEST);
         return;
       }
+      body.unread(first);
 
       // Get the URL for the Connector Manager servlet context.
       StringBuffer requestUrl = req.getRequestURL();
@@ -113,7 +134,7 @@ public abstract class ConnectorManagerUrlServlet extends HttpServlet {
       String webappUrl = requestUrl.toString();
 
       Manager manager = Context.getInstance().getManager();
-      processDoPost(webappUrl, xmlBody, manager, out);
+      processRequest(webappUrl, body, manager, out);
 
     } finally {
       out.close();
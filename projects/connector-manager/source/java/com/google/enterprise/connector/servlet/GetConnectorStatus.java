@@ -14,12 +14,14 @@
 
 package com.google.enterprise.connector.servlet;
 
+import com.google.enterprise.connector.manager.AuthorizationCache;
 import com.google.enterprise.connector.manager.ConnectorStatus;
 import com.google.enterprise.connector.manager.Manager;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 import com.google.enterprise.connector.scheduler.Schedule;
 
 import java.io.PrintWriter;
+import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -100,6 +102,24 @@ public class GetConnectorStatus extends ConnectorManagerGetServlet {
             ServletUtil.XMLTAG_CONNECTOR_SCHEDULES, true);
         out.println(buffer.toString());
       }
+
+      AuthorizationCache.Statistics stats =
+          connectorStatus.getAuthorizationCacheStatistics();
+      if (stats != null) {
+        ServletUtil.writeXMLTag(out, 2, ServletUtil.XMLTAG_AUTHZ_CACHE, false);
+        ServletUtil.writeXMLElement(out, 3, ServletUtil.XMLTAG_AUTHZ_CACHE_HITS,
+            Long.toString(stats.getHitCount()));
+        ServletUtil.writeXMLElement(out, 3,
+            ServletUtil.XMLTAG_AUTHZ_CACHE_MISSES,
+            Long.toString(stats.getMissCount()));
+        ServletUtil.writeXMLElement(out, 3,
+            ServletUtil.XMLTAG_AUTHZ_CACHE_HIT_RATE,
+            String.format(Locale.US, "%.3f", stats.getHitRate()));
+        ServletUtil.writeXMLElement(out, 3,
+            ServletUtil.XMLTAG_AUTHZ_CACHE_SAVED_MILLIS,
+            Long.toString(stats.getSavedMillis()));
+        ServletUtil.writeXMLTag(out, 2, ServletUtil.XMLTAG_AUTHZ_CACHE, true);
+      }
       ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_CONNECTOR_STATUS,
           true);
     }
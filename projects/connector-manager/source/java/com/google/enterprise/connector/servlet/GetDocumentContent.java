@@ -19,6 +19,7 @@ import com.google.common.base.Strings;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.ConnectorManagerException;
 import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.manager.DocumentMetadataCache;
 import com.google.enterprise.connector.manager.Manager;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 import com.google.enterprise.connector.pusher.FeedConnection;
@@ -35,14 +36,18 @@ import com.google.enterprise.connector.spiimpl.DateValue;
 import com.google.enterprise.connector.spiimpl.ValueImpl;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.text.ParseException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
@@ -70,6 +75,13 @@ public class GetDocumentContent extends HttpServlet {
    */
   private static final String METADATA_CACHE_NAME =
       GetDocumentContent.class.getName() + ".document";
+  /**
+   * Attribute name on the ServletRequest containing a cache of the
+   * {@link DocumentMetadataCache.Entry} for the requested document.
+   */
+  private static final String METADATA_ENTRY_CACHE_NAME =
+      GetDocumentContent.class.getName() + ".metadataEntry";
+
   /**
    * Distinguished attribute value denoting that the metadata is already known
    * to be unavailable.
@@ -80,8 +92,39 @@ public class GetDocumentContent extends HttpServlet {
   private static final String EXTERNAL_METADATA_HEADER =
       "X-Gsa-External-Metadata";
 
+  /** The size of the buffers used to copy document content. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Copy buffers kept for reuse by later requests, so that concurrent
+   * fetches do not each allocate a new buffer.
+   */
+  private static final BlockingQueue<byte[]> bufferPool =
+      new ArrayBlockingQueue<byte[]>(32);
+
+  /** A range of bytes requested by an HTTP Range header. */
+  @VisibleForTesting
+  static class ByteRange {
+    final long first;
+    final long last;
+
+    ByteRange(long first, long last) {
+      this.first = first;
+      this.last = last;
+    }
+
+    long getLength() {
+      return last - first + 1;
+    }
+  }
+
+  /** Distinguished range denoting a range that cannot be satisfied. */
+  @VisibleForTesting
+  static final ByteRange UNSATISFIABLE_RANGE = new ByteRange(-1L, -2L);
+
   private static boolean useCompression = false;
   private static FeedConnection feedConnection;
+  private static DocumentMetadataCache metadataCache;
   /**
    * GSA 7.0 introduces the ability to provide a HTTP header that specifies
    * whether the document is secure. In previous GSAs we are required to use
@@ -101,6 +144,17 @@ public class GetDocumentContent extends HttpServlet {
     feedConnection = fc;
   }
 
+  /**
+   * Sets the cache of document metadata used to answer requests without
+   * asking the connector instance.
+   *
+   * @param cache a {@link DocumentMetadataCache}, or {@code null}
+   * @since 3.4
+   */
+  public static void setMetadataCache(DocumentMetadataCache cache) {
+    metadataCache = cache;
+  }
+
   private synchronized static boolean isSecurityHeaderSupported() {
     if (securityHeaderSupported != null) {
       return securityHeaderSupported;
@@ -117,8 +171,6 @@ public class GetDocumentContent extends HttpServlet {
     return securityHeaderSupported;
   }
 
-  // TODO: Range requests?
-
   /**
    * Retrieves the content of a document from a connector instance.
    *
@@ -164,8 +216,9 @@ public class GetDocumentContent extends HttpServlet {
     if (Strings.isNullOrEmpty(connectorName) || Strings.isNullOrEmpty(docid)) {
       return -1L;
     }
-    return handleGetLastModified(getDocumentMetaDataNoThrow(req,
-        Context.getInstance().getManager(), connectorName, docid));
+    DocumentMetadataCache.Entry entry = getMetadataEntryNoThrow(req,
+        Context.getInstance().getManager(), connectorName, docid);
+    return (entry == null) ? -1L : entry.getLastModified();
   }
 
   /**
@@ -194,14 +247,14 @@ public class GetDocumentContent extends HttpServlet {
       Manager manager) throws IOException {
     // The servlet relies on proper security to be handled by a filter.
 
-    if ("SecMgr".equals(req.getHeader("User-Agent")) || 
-        req.getHeader("Range") != null ||
+    if ("SecMgr".equals(req.getHeader("User-Agent")) ||
+        isHeadRequestProbe(req.getHeader("Range")) ||
         "HEAD".equals(req.getMethod())) {
       // GSA does a GET with Range:0-0 to simulate head request.
       // Assume that a "HEAD" request to check authz is being performed
-      // due to presence of Range header.
+      // due to presence of that Range header.
       // We don't support authz by hr so we always issue deny.
-      // TODO(ejona): Remove checking for Range header and HEAD once 
+      // TODO(ejona): Remove checking for Range header and HEAD once
       // Legacy Authz is removed from supported GSA versions.
       LOGGER.finest("RETRIEVER: Head request denied");
       res.sendError(HttpServletResponse.SC_FORBIDDEN);
@@ -219,62 +272,190 @@ public class GetDocumentContent extends HttpServlet {
     }
     NDC.pushAppend("Retrieve " + connectorName + " "
                    + docid.substring(docid.lastIndexOf('/') + 1));
+    try {
+      doGet(req, res, manager, connectorName, docid);
+    } finally {
+      NDC.pop();
+    }
+  }
 
-    Document metadata;
+  private static void doGet(HttpServletRequest req, HttpServletResponse res,
+      Manager manager, String connectorName, String docid)
+      throws IOException {
+    DocumentMetadataCache.Entry metadata;
     try {
-      metadata = getDocumentMetaData(req, manager, connectorName, docid);
+      metadata = getMetadataEntry(req, manager, connectorName, docid);
     } catch (Exception e) {
       res.sendError(handleException("metadata", e));
       return;
     }
 
-    int securityCode = handleMarkingDocumentSecurity(req, res, metadata);
+    int securityCode = handleMarkingDocumentSecurity(req, res,
+        (metadata == null) ? null : metadata.isPublic());
     if (securityCode != HttpServletResponse.SC_OK) {
       res.sendError(securityCode);
       return;
     }
 
-    // Set the Content-Type. 
-    String mimeType = handleGetContentType(metadata);
-    LOGGER.log(Level.FINEST, "Document Content-Type {0}", mimeType);
-    res.setContentType(mimeType);
-
-    Integer contentLength = handleGetContentLength(metadata);
-    if (contentLength != null) {
-      LOGGER.log(Level.FINEST, "Document Content-Length {0}", contentLength);
-      res.setContentLength(contentLength);
+    InputStream in;
+    try {
+      in = getDocumentContent(manager, connectorName, docid);
+    } catch (Exception e) {
+      res.sendError(handleException("content", e));
+      return;
     }
 
-    // Supply the document metadata in an X-Gsa-External-Metadata header.
-    if (metadata != null) {
-      res.setHeader(EXTERNAL_METADATA_HEADER, getMetadataHeader(metadata));
-    }
+    try {
+      // Set the Content-Type.
+      String mimeType = (metadata == null)
+          ? SpiConstants.DEFAULT_MIMETYPE : metadata.getMimeType();
+      LOGGER.log(Level.FINEST, "Document Content-Type {0}", mimeType);
+      res.setContentType(mimeType);
+
+      // Supply the document metadata in an X-Gsa-External-Metadata header.
+      if (metadata != null) {
+        res.setHeader(EXTERNAL_METADATA_HEADER, metadata.getMetadataHeader());
+      }
+
+      OutputStream out = res.getOutputStream();
+      boolean compressed = false;
+      if (useCompression) {
+        // Select Content-Encoding based on the client's Accept-Encoding header.
+        // Choose GZIP if the header includes "gzip", otherwise no compression.
+        String encodings = req.getHeader("Accept-Encoding");
+        if (encodings != null && encodings.matches(".*\\bgzip\\b.*")) {
+          res.setHeader("Content-Encoding", "gzip");
+          out = new GZIPOutputStream(out, 64 * 1024);
+          compressed = true;
+        }
+        res.setHeader("Vary", "Accept-Encoding");
+      }
 
-    OutputStream out = res.getOutputStream();
-    if (useCompression) {
-      // Select Content-Encoding based on the client's Accept-Encoding header.
-      // Choose GZIP if the header includes "gzip", otherwise no compression.
-      String encodings = req.getHeader("Accept-Encoding");
-      if (encodings != null && encodings.matches(".*\\bgzip\\b.*")) {
-        res.setHeader("Content-Encoding", "gzip");
-        out = new GZIPOutputStream(out, 64 * 1024);
+      try {
+        // Ranges are only served for uncompressed file content, whose
+        // length is known. Other content is streamed without a length.
+        // A conditional range request is answered with the whole document.
+        long length = compressed ? -1L : getContentLength(in);
+        ByteRange range = null;
+        if (length >= 0) {
+          LOGGER.log(Level.FINEST, "Document Content-Length {0}", length);
+          res.setHeader("Accept-Ranges", "bytes");
+          if (req.getHeader("If-Range") == null) {
+            range = parseRange(req.getHeader("Range"), length);
+          }
+        }
+
+        if (range == UNSATISFIABLE_RANGE) {
+          res.setHeader("Content-Range", "bytes */" + length);
+          res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        } else if (range != null) {
+          LOGGER.log(Level.FINEST, "Document Content-Range {0}-{1}",
+                     new Object[] { range.first, range.last });
+          res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+          res.setHeader("Content-Range",
+              "bytes " + range.first + "-" + range.last + "/" + length);
+          setContentLength(res, range.getLength());
+          copyContent(in, out, range.first, range.getLength());
+        } else {
+          if (length >= 0) {
+            setContentLength(res, length);
+          }
+          res.setStatus(HttpServletResponse.SC_OK);
+          copyContent(in, out, 0L, -1L);
+        }
+      } finally {
+        out.close();
       }
-      res.setHeader("Vary", "Accept-Encoding");
+    } finally {
+      in.close();
     }
+  }
+
+  /**
+   * Returns {@code true} if the Range header is the single byte range
+   * that the GSA uses in place of a HEAD request.
+   */
+  private static boolean isHeadRequestProbe(String range) {
+    return range != null
+        && range.replaceFirst("^\\s*bytes\\s*=", "").trim().equals("0-0");
+  }
 
-    // TODO: Configure chunked output?
+  /** Sets a Content-Length that may be too large for an {@code int}. */
+  private static void setContentLength(HttpServletResponse res, long length) {
+    if (length <= Integer.MAX_VALUE) {
+      res.setContentLength((int) length);
+    } else {
+      res.setHeader("Content-Length", Long.toString(length));
+    }
+  }
 
+  /**
+   * Parses an HTTP Range header.  Only a single range of bytes is
+   * supported.  Any other range is ignored, and the whole document
+   * is served, as allowed by RFC 2616.
+   *
+   * @param header the value of the Range header, may be {@code null}
+   * @param length the length of the document content
+   * @return the requested range, {@link #UNSATISFIABLE_RANGE} if the
+   *         range lies beyond the end of the content, or {@code null}
+   *         if the whole document should be served
+   */
+  @VisibleForTesting
+  static ByteRange parseRange(String header, long length) {
+    if (header == null) {
+      return null;
+    }
+    String spec = header.trim();
+    if (!spec.regionMatches(true, 0, "bytes", 0, 5)) {
+      return null;
+    }
+    spec = spec.substring(5).trim();
+    if (!spec.startsWith("=")) {
+      return null;
+    }
+    spec = spec.substring(1).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0 || spec.indexOf(',') >= 0) {
+      return null;
+    }
+    String firstStr = spec.substring(0, dash).trim();
+    String lastStr = spec.substring(dash + 1).trim();
     try {
-      int code = handleDoGet(manager, connectorName, docid, out);
-      if (code != HttpServletResponse.SC_OK) {
-        res.sendError(code);
-      } else {
-        res.setStatus(code);
+      if (firstStr.length() == 0) {
+        // A suffix range of the last N bytes.
+        long suffix = Long.parseLong(lastStr);
+        if (suffix < 0) {
+          return null;
+        } else if (suffix == 0 || length == 0) {
+          return UNSATISFIABLE_RANGE;
+        }
+        return new ByteRange(Math.max(0L, length - suffix), length - 1);
       }
-    } finally {
-      out.close();
-      NDC.pop();
+      long first = Long.parseLong(firstStr);
+      long last = (lastStr.length() == 0) ? Long.MAX_VALUE
+          : Long.parseLong(lastStr);
+      if (first < 0 || last < first) {
+        return null;
+      } else if (first >= length) {
+        return UNSATISFIABLE_RANGE;
+      }
+      return new ByteRange(first, Math.min(last, length - 1));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the remaining length of a file-backed stream, or -1 if the
+   * length is not known. The content length supplied in the metadata is
+   * not used, since the content actually served may differ from it.
+   */
+  private static long getContentLength(InputStream in) throws IOException {
+    if (in instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) in).getChannel();
+      return channel.size() - channel.position();
     }
+    return -1L;
   }
 
   /**
@@ -346,20 +527,8 @@ public class GetDocumentContent extends HttpServlet {
       OutputStream out) throws IOException {
     InputStream in = null;
     try {
-      in = manager.getDocumentContent(connectorName, docid);
-      if (in == null) {
-        // This is unlikely to happen, since Production Manager
-        // will return an AlternateContent InputStream.
-        in = new ByteArrayInputStream(new byte[0]);
-      }
-      byte[] buffer = new byte[1024 * 1024];
-      int bytes;
-      do {
-        bytes = in.read(buffer);
-        if (bytes > 0) {
-          out.write(buffer, 0, bytes);
-        }
-      } while (bytes != -1);
+      in = getDocumentContent(manager, connectorName, docid);
+      copyContent(in, out, 0L, -1L);
       return HttpServletResponse.SC_OK;
     } catch (Exception e) {
       return handleException("content", e);
@@ -371,22 +540,84 @@ public class GetDocumentContent extends HttpServlet {
   }
 
   /**
-   * Retrieve and cache the metadata of the currently requested document.
-   * The metadata is cached for the life of the servlet request.
-   * No checked exceptions are thrown.
-   * If a problem occurs  {@code null} is returned.
+   * Retrieves the content of a document from a connector instance.
+   *
+   * @return an InputStream, never {@code null}
+   */
+  private static InputStream getDocumentContent(Manager manager,
+      String connectorName, String docid)
+      throws ConnectorManagerException, RepositoryException {
+    InputStream in = manager.getDocumentContent(connectorName, docid);
+    if (in == null) {
+      // This is unlikely to happen, since Production Manager
+      // will return an AlternateContent InputStream.
+      in = new ByteArrayInputStream(new byte[0]);
+    }
+    return in;
+  }
+
+  /**
+   * Copies a range of the document content to the output, through a
+   * pooled buffer.  The servlet output stream is not a channel that a
+   * {@code FileChannel} can transfer to without copying, so files are
+   * copied the same way.
+   *
+   * @param in the document content
+   * @param out OutputStream to which to write the content
+   * @param offset the number of bytes of content to skip
+   * @param count the number of bytes to copy, or -1 to copy to the end
+   * @throws IOException
+   */
+  @VisibleForTesting
+  static void copyContent(InputStream in, OutputStream out, long offset,
+      long count) throws IOException {
+    long remaining = (count < 0) ? Long.MAX_VALUE : count;
+    byte[] buffer = bufferPool.poll();
+    if (buffer == null) {
+      buffer = new byte[BUFFER_SIZE];
+    }
+    try {
+      while (offset > 0) {
+        long bytes = in.skip(offset);
+        if (bytes <= 0) {
+          // Not all streams can skip, so read to be sure of EOF.
+          bytes = in.read(buffer, 0, (int) Math.min(buffer.length, offset));
+          if (bytes == -1) {
+            return;
+          }
+        }
+        offset -= bytes;
+      }
+      while (remaining > 0) {
+        int bytes = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (bytes == -1) {
+          break;
+        }
+        out.write(buffer, 0, bytes);
+        remaining -= bytes;
+      }
+    } finally {
+      bufferPool.offer(buffer);
+    }
+  }
+
+  /**
+   * Retrieve and cache the metadata entry of the currently requested
+   * document.  No checked exceptions are thrown.
+   * If a problem occurs {@code null} is returned.
    *
    * @param req Request to use for caching return value
    * @param manager a Manager
    * @param connectorName the name of the connector instance that
    *        can access the document
    * @param docId the document identifer
-   * @return document's metadata or {@code null} if it is unavailable
+   * @return document's metadata entry or {@code null} if it is unavailable
    */
-  private static Document getDocumentMetaDataNoThrow(HttpServletRequest req, 
-      Manager manager, String connectorName, String docid) {
+  private static DocumentMetadataCache.Entry getMetadataEntryNoThrow(
+      HttpServletRequest req, Manager manager, String connectorName,
+      String docid) {
     try {
-      return getDocumentMetaData(req, manager, connectorName, docid);
+      return getMetadataEntry(req, manager, connectorName, docid);
     } catch (ConnectorManagerException e) {
       return null;
     } catch (RepositoryException e) {
@@ -394,6 +625,63 @@ public class GetDocumentContent extends HttpServlet {
     }
   }
 
+  /**
+   * Retrieve and cache the metadata entry of the currently requested
+   * document.  The entry is cached for the life of the servlet request,
+   * and in the {@link DocumentMetadataCache}, if there is one.
+   *
+   * @param req Request to use for caching return value
+   * @param manager a Manager
+   * @param connectorName the name of the connector instance that
+   *        can access the document
+   * @param docId the document identifer
+   * @return document's metadata entry or {@code null} if it is unavailable
+   */
+  @VisibleForTesting
+  static DocumentMetadataCache.Entry getMetadataEntry(HttpServletRequest req,
+      Manager manager, String connectorName, String docid)
+      throws ConnectorManagerException, RepositoryException {
+    Object cache = req.getAttribute(METADATA_ENTRY_CACHE_NAME);
+    if (cache != null) {
+      return cache == NEGATIVE_METADATA_CACHE_VALUE
+          ? null : (DocumentMetadataCache.Entry) cache;
+    }
+
+    DocumentMetadataCache metadataCache = GetDocumentContent.metadataCache;
+    DocumentMetadataCache.Entry entry = (metadataCache == null)
+        ? null : metadataCache.get(connectorName, docid);
+    if (entry == null) {
+      long startTime =
+          (metadataCache == null) ? 0L : metadataCache.getTimeMillis();
+      entry = newMetadataEntry(
+          getDocumentMetaData(req, manager, connectorName, docid));
+      if (metadataCache != null && entry != null) {
+        metadataCache.put(connectorName, docid, entry, startTime);
+      }
+    }
+    req.setAttribute(METADATA_ENTRY_CACHE_NAME,
+        (entry == null) ? NEGATIVE_METADATA_CACHE_VALUE : entry);
+    return entry;
+  }
+
+  /**
+   * Extracts the values used to answer a content request from the
+   * document's metadata.
+   *
+   * @param metadata the Document metadata, may be {@code null}
+   * @return a metadata entry, or {@code null} if the metadata is
+   *         {@code null}
+   */
+  @VisibleForTesting
+  static DocumentMetadataCache.Entry newMetadataEntry(Document metadata) {
+    if (metadata == null) {
+      return null;
+    }
+    return new DocumentMetadataCache.Entry(handleGetLastModified(metadata),
+        handleGetContentType(metadata), handleGetContentLength(metadata),
+        isPublic(metadata), getMetadataHeader(metadata));
+  }
+
   /**
    * Retrieve and cache the metadata of the currently requested document.
    * The metadata is cached for the life of the servlet request.
@@ -519,27 +807,45 @@ public class GetDocumentContent extends HttpServlet {
     return null;
   }
   
+  /**
+   * Returns {@code true} if the document is public, or {@code null} if
+   * the isPublic property could not be retrieved.
+   */
+  private static Boolean isPublic(Document metadata) {
+    try {
+      ValueImpl isPublicVal = (ValueImpl) Value.getSingleValue(metadata,
+          SpiConstants.PROPNAME_ISPUBLIC);
+      return isPublicVal == null || isPublicVal.toBoolean();
+    } catch (RepositoryException ex) {
+      LOGGER.log(Level.WARNING, "Failed retrieving isPublic property", ex);
+      return null;
+    }
+  }
+
   @VisibleForTesting
   static int handleMarkingDocumentSecurity(HttpServletRequest req,
       HttpServletResponse res, Document metadata) throws IOException {
+    return handleMarkingDocumentSecurity(req, res,
+        (metadata == null) ? null : isPublic(metadata));
+  }
+
+  /**
+   * Marks the document as public or secure.
+   *
+   * @param isPublic {@code true} if the document is public, or
+   *        {@code null} if that is not known
+   * @return an HTTP Status Code
+   */
+  private static int handleMarkingDocumentSecurity(HttpServletRequest req,
+      HttpServletResponse res, Boolean isPublic) throws IOException {
     if (req.getHeader("Authorization") != null) {
       // GSA logged in; it is aware of the access restrictions on the document.
       return HttpServletResponse.SC_OK;
     }
 
-    if (metadata == null) {
-      return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
-    }
-
-    ValueImpl isPublicVal;
-    try {
-      isPublicVal = (ValueImpl) Value.getSingleValue(metadata,
-          SpiConstants.PROPNAME_ISPUBLIC);
-    } catch (RepositoryException ex) {
-      LOGGER.log(Level.WARNING, "Failed retrieving isPublic property", ex);
+    if (isPublic == null) {
       return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
     }
-    boolean isPublic = isPublicVal == null || isPublicVal.toBoolean();
 
     if (isSecurityHeaderSupported()) {
       res.setHeader("X-Gsa-Serve-Security", isPublic ? "public" : "secure");
@@ -157,6 +157,11 @@ public class ServletUtil {
   public static final String XMLTAG_AUTHZ_RESPONSE = "AuthorizationResponse";
   public static final String XMLTAG_ANSWER = "Answer";
   public static final String XMLTAG_DECISION = "Decision";
+  public static final String XMLTAG_AUTHZ_CACHE = "AuthorizationCache";
+  public static final String XMLTAG_AUTHZ_CACHE_HITS = "Hits";
+  public static final String XMLTAG_AUTHZ_CACHE_MISSES = "Misses";
+  public static final String XMLTAG_AUTHZ_CACHE_HIT_RATE = "HitRate";
+  public static final String XMLTAG_AUTHZ_CACHE_SAVED_MILLIS = "SavedMillis";
 
   public static final String XMLTAG_CONNECTOR_SCHEDULES = "ConnectorSchedules";
   @Deprecated
@@ -0,0 +1,414 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.spi;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats and parses the dates of {@link Value} without locking.  Each
+ * thread has its own formatter, which reuses a buffer, the fields of the
+ * last day formatted, and the time zone offset of the last hour formatted.
+ * <p>
+ * The output matches {@code SimpleDateFormat} exactly.  Dates outside the
+ * years 1583 to 9999 of the Gregorian calendar, and strings that are not
+ * in a canonical ISO-8601 form with an explicit time zone, are handled by
+ * the formatter's own {@code SimpleDateFormat} instances.
+ *
+ * @since 3.4
+ */
+final class DateFormatter {
+  /* The precisions of the ISO-8601 formats. */
+  static final int DATE = 0;
+  static final int MINUTES = 1;
+  static final int SECONDS = 2;
+  static final int MILLIS = 3;
+  private static final int RFC822 = 4;
+
+  /* The SimpleDateFormat patterns, by precision. */
+  private static final String[] PATTERNS = {
+    "yyyy-MM-dd",
+    "yyyy-MM-dd'T'HH:mmZ",
+    "yyyy-MM-dd'T'HH:mm:ssZ",
+    "yyyy-MM-dd'T'HH:mm:ss.SSSZ",
+    "EEE', 'dd' 'MMM' 'yyyy' 'HH:mm:ss Z" };
+
+  private static final String[] DAY_NAMES =
+      { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
+  private static final String[] MONTH_NAMES = { "Jan", "Feb", "Mar", "Apr",
+      "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+  private static final int[] DAYS_IN_MONTH =
+      { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+  private static final long MILLIS_PER_HOUR = 60 * 60 * 1000L;
+  private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+  /* The range of years that are formatted without SimpleDateFormat. */
+  private static final int MIN_YEAR = 1583;
+  private static final int MAX_YEAR = 9999;
+
+  /**
+   * The fast paths compute Gregorian calendar fields, which only match
+   * {@code SimpleDateFormat} if the default calendar is Gregorian.
+   */
+  private static final boolean GREGORIAN =
+      Calendar.getInstance().getClass() == GregorianCalendar.class;
+
+  private static volatile TimeZone timeZone = TimeZone.getDefault();
+
+  private static final ThreadLocal<DateFormatter> FORMATTERS =
+      new ThreadLocal<DateFormatter>() {
+        @Override
+        protected DateFormatter initialValue() {
+          return new DateFormatter();
+        }
+      };
+
+  /** Sets the time zone of the formatted dates. */
+  static void setTimeZone(TimeZone tz) {
+    timeZone = tz;
+  }
+
+  /** Gets the time zone of the formatted dates. */
+  static TimeZone getTimeZone() {
+    return timeZone;
+  }
+
+  /** Gets this thread's formatter. */
+  static DateFormatter get() {
+    return FORMATTERS.get();
+  }
+
+  private final StringBuilder buffer = new StringBuilder(32);
+  private final SimpleDateFormat[] formats =
+      new SimpleDateFormat[PATTERNS.length];
+
+  /* The UTC hour during which the offset of offsetZone is constant. */
+  private TimeZone offsetZone;
+  private long offsetHour = Long.MIN_VALUE;
+  private int offset;
+
+  /* The fields of the local day that was last formatted. */
+  private long epochDay = Long.MIN_VALUE;
+  private int year;
+  private int month;
+  private int day;
+  private int dayOfWeek;
+
+  private DateFormatter() {
+  }
+
+  /**
+   * Formats a time in ISO-8601 format, using "Z" for the UTC time zone.
+   *
+   * @param millis the time in milliseconds since the epoch
+   * @param precision one of {@link #DATE}, {@link #MINUTES},
+   *        {@link #SECONDS} or {@link #MILLIS}
+   */
+  String formatIso8601(long millis, int precision) {
+    TimeZone tz = timeZone;
+    int millisOfDay = setLocalTime(millis, tz);
+    if (millisOfDay < 0) {
+      return fixZone(getFormat(precision, tz).format(new Date(millis)), "Z");
+    }
+    buffer.setLength(0);
+    appendNumber(year, 4);
+    buffer.append('-');
+    appendNumber(month, 2);
+    buffer.append('-');
+    appendNumber(day, 2);
+    if (precision > DATE) {
+      buffer.append('T');
+      appendTime(millisOfDay, precision);
+      if (offset / 60000 == 0) {
+        buffer.append('Z');
+      } else {
+        appendOffset();
+      }
+    }
+    return buffer.toString();
+  }
+
+  /**
+   * Formats a time in RFC 822 format, using "GMT" for the UTC time zone.
+   *
+   * @param millis the time in milliseconds since the epoch
+   */
+  String formatRfc822(long millis) {
+    TimeZone tz = timeZone;
+    int millisOfDay = setLocalTime(millis, tz);
+    if (millisOfDay < 0) {
+      return fixZone(getFormat(RFC822, tz).format(new Date(millis)), "GMT");
+    }
+    buffer.setLength(0);
+    buffer.append(DAY_NAMES[dayOfWeek]).append(", ");
+    appendNumber(day, 2);
+    buffer.append(' ').append(MONTH_NAMES[month - 1]).append(' ');
+    appendNumber(year, 4);
+    buffer.append(' ');
+    appendTime(millisOfDay, SECONDS);
+    buffer.append(' ');
+    if (offset / 60000 == 0) {
+      buffer.append("GMT");
+    } else {
+      appendOffset();
+    }
+    return buffer.toString();
+  }
+
+  /** Replaces a trailing "+0000" time zone. */
+  private static String fixZone(String formatted, String utc) {
+    return formatted.endsWith("+0000")
+        ? formatted.substring(0, formatted.length() - 5) + utc
+        : formatted;
+  }
+
+  /**
+   * Parses an ISO-8601 date, trying each precision from milliseconds
+   * down to a date alone.  A time zone of "Z" is UTC.
+   *
+   * @param s the date string
+   * @return the parsed date
+   * @throws ParseException if the string cannot be parsed
+   */
+  Date parseIso8601(String s) throws ParseException {
+    if (s.endsWith("Z")) {
+      s = s.substring(0, s.length() - 1) + "+0000";
+    }
+    long millis = parseCanonical(s);
+    if (millis != Long.MIN_VALUE) {
+      return new Date(millis);
+    }
+    TimeZone tz = timeZone;
+    ParseException exception = null;
+    for (int precision = MILLIS; precision >= DATE; precision--) {
+      try {
+        return getFormat(precision, tz).parse(s);
+      } catch (ParseException e) {
+        exception = e;
+      }
+    }
+    throw exception;
+  }
+
+  /**
+   * Parses an ISO-8601 time with minutes, seconds, or milliseconds, and
+   * a numeric time zone, with every field in range.
+   *
+   * @return the time in milliseconds since the epoch, or
+   *         {@code Long.MIN_VALUE} if the string is not in that form
+   */
+  private static long parseCanonical(String s) {
+    int length = s.length();
+    if (!GREGORIAN || (length != 21 && length != 24 && length != 28)
+        || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T'
+        || s.charAt(13) != ':') {
+      return Long.MIN_VALUE;
+    }
+    int year = parseNumber(s, 0, 4);
+    int month = parseNumber(s, 5, 2);
+    int day = parseNumber(s, 8, 2);
+    int hour = parseNumber(s, 11, 2);
+    int minute = parseNumber(s, 14, 2);
+    int second = 0;
+    int millis = 0;
+    if (length > 21) {
+      if (s.charAt(16) != ':') {
+        return Long.MIN_VALUE;
+      }
+      second = parseNumber(s, 17, 2);
+      if (length > 24) {
+        if (s.charAt(19) != '.') {
+          return Long.MIN_VALUE;
+        }
+        millis = parseNumber(s, 20, 3);
+      }
+    }
+    char sign = s.charAt(length - 5);
+    int offsetHours = parseNumber(s, length - 4, 2);
+    int offsetMinutes = parseNumber(s, length - 2, 2);
+    if (year < MIN_YEAR || month < 1 || month > 12 || day < 1
+        || day > daysInMonth(year, month) || hour > 23 || minute > 59
+        || second > 59 || millis < 0 || (sign != '+' && sign != '-')
+        || offsetHours > 23 || offsetMinutes > 59
+        || hour < 0 || minute < 0 || second < 0
+        || offsetHours < 0 || offsetMinutes < 0) {
+      return Long.MIN_VALUE;
+    }
+    long offsetMillis = (offsetHours * 60 + offsetMinutes) * 60000L;
+    return toEpochDay(year, month, day) * MILLIS_PER_DAY
+        + ((hour * 60 + minute) * 60 + second) * 1000L + millis
+        - ((sign == '-') ? -offsetMillis : offsetMillis);
+  }
+
+  /** Returns the decimal number at the offset, or -1 if it is not one. */
+  private static int parseNumber(String s, int start, int length) {
+    int value = 0;
+    for (int i = start; i < start + length; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    if (month == 2
+        && !(year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))) {
+      return 28;
+    }
+    return DAYS_IN_MONTH[month - 1];
+  }
+
+  /**
+   * Sets the fields of the local day for the given time, and the offset
+   * of the time zone.
+   *
+   * @return the milliseconds since the start of the local day, or -1 if
+   *         the time must be formatted by {@code SimpleDateFormat}
+   */
+  private int setLocalTime(long millis, TimeZone tz) {
+    if (!GREGORIAN) {
+      return -1;
+    }
+    long hour = floorDiv(millis, MILLIS_PER_HOUR);
+    if (hour != offsetHour || tz != offsetZone) {
+      // A time zone does not change its offset twice within an hour, so
+      // if the offset is the same at both ends of the hour, it is the
+      // same throughout the hour.
+      offset = tz.getOffset(millis);
+      long hourStart = hour * MILLIS_PER_HOUR;
+      if (tz.getOffset(hourStart) == offset
+          && tz.getOffset(hourStart + MILLIS_PER_HOUR - 1) == offset) {
+        offsetHour = hour;
+        offsetZone = tz;
+      } else {
+        offsetHour = Long.MIN_VALUE;
+      }
+    }
+    long local = millis + offset;
+    long localDay = floorDiv(local, MILLIS_PER_DAY);
+    if (localDay != epochDay) {
+      setDay(localDay);
+    }
+    if (year < MIN_YEAR || year > MAX_YEAR) {
+      return -1;
+    }
+    return (int) (local - localDay * MILLIS_PER_DAY);
+  }
+
+  /** Computes the Gregorian date of a day counted from 1970-01-01. */
+  private void setDay(long localDay) {
+    long z = localDay + 719468;
+    long era = floorDiv(z, 146097);
+    int dayOfEra = (int) (z - era * 146097);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+        - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4
+        - yearOfEra / 100);
+    int m = (5 * dayOfYear + 2) / 153;
+    day = dayOfYear - (153 * m + 2) / 5 + 1;
+    month = (m < 10) ? m + 3 : m - 9;
+    year = (int) (era * 400 + yearOfEra) + ((month <= 2) ? 1 : 0);
+    // 1970-01-01 was a Thursday.
+    dayOfWeek = (int) (localDay - floorDiv(localDay + 4, 7) * 7 + 4);
+    epochDay = localDay;
+  }
+
+  /** Returns the day, counted from 1970-01-01, of a Gregorian date. */
+  private static long toEpochDay(int year, int month, int day) {
+    int y = (month <= 2) ? year - 1 : year;
+    long era = floorDiv(y, 400);
+    int yearOfEra = (int) (y - era * 400);
+    int dayOfYear = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5
+        + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+        + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  private static long floorDiv(long x, long y) {
+    long q = x / y;
+    return (x % y < 0) ? q - 1 : q;
+  }
+
+  private void appendTime(int millisOfDay, int precision) {
+    int seconds = millisOfDay / 1000;
+    appendNumber(seconds / 3600, 2);
+    buffer.append(':');
+    appendNumber((seconds / 60) % 60, 2);
+    if (precision >= SECONDS) {
+      buffer.append(':');
+      appendNumber(seconds % 60, 2);
+      if (precision == MILLIS) {
+        buffer.append('.');
+        appendNumber(millisOfDay % 1000, 3);
+      }
+    }
+  }
+
+  /** Appends the offset as "+hhmm" or "-hhmm", as SimpleDateFormat does. */
+  private void appendOffset() {
+    int minutes = offset / 60000;
+    if (minutes < 0) {
+      buffer.append('-');
+      minutes = -minutes;
+    } else {
+      buffer.append('+');
+    }
+    appendNumber(minutes / 60, 2);
+    appendNumber(minutes % 60, 2);
+  }
+
+  /** Appends a non-negative number, padded with zeros. */
+  private void appendNumber(int value, int width) {
+    int start = buffer.length();
+    do {
+      buffer.append((char) ('0' + value % 10));
+      value /= 10;
+    } while (value > 0);
+    while (buffer.length() - start < width) {
+      buffer.append('0');
+    }
+    // The digits were appended in reverse.
+    for (int i = start, j = buffer.length() - 1; i < j; i++, j--) {
+      char c = buffer.charAt(i);
+      buffer.setCharAt(i, buffer.charAt(j));
+      buffer.setCharAt(j, c);
+    }
+  }
+
+  /** Gets this thread's lenient SimpleDateFormat for a precision. */
+  private SimpleDateFormat getFormat(int precision, TimeZone tz) {
+    SimpleDateFormat format = formats[precision];
+    if (format == null) {
+      format = (precision == RFC822)
+          ? new SimpleDateFormat(PATTERNS[precision], Locale.ENGLISH)
+          : new SimpleDateFormat(PATTERNS[precision]);
+      format.setCalendar(Calendar.getInstance());
+      format.setLenient(true);
+      formats[precision] = format;
+    }
+    format.setTimeZone(tz);
+    return format;
+  }
+}
@@ -15,13 +15,17 @@
 package com.google.enterprise.connector.spi;
 
 /**
- * HasTimeout.  This should be implemented by a TraversalManager if it wants
- * to supply the ConnectorManager with its own timeout value.
+ * HasTimeout.  This may be implemented by an {@link AuthorizationManager}
+ * to supply the Connector Manager with the time allowed for it to
+ * authorize the documents in a search request.  Documents that are not
+ * authorized in time are considered INDETERMINATE.
+ * <p>
+ * Before version 3.4, this was intended for a {@link TraversalManager},
+ * and was never called.  It is still not called for a
+ * {@code TraversalManager}.
  *
  * @since 1.0
- * @deprecated This Interface has been fully deprecated.  It is never called.
  */
-@Deprecated
 public interface HasTimeout {
   /**
    * Gets the connector's preferred timeout.
@@ -19,10 +19,8 @@ import com.google.enterprise.connector.util.InputStreamFactory;
 
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.Locale;
 import java.util.TimeZone;
 import java.util.logging.Logger;
 
@@ -214,32 +212,6 @@ public abstract class Value {
   @Override
   public abstract String toString();
 
-  private static final Calendar CALENDAR = Calendar.getInstance();
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_MILLIS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_SECS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_MINS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mmZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_DATE =
-      new SimpleDateFormat("yyyy-MM-dd");
-  private static final SimpleDateFormat RFC822_DATE_FORMAT =
-      new SimpleDateFormat("EEE', 'dd' 'MMM' 'yyyy' 'HH:mm:ss Z",
-          Locale.ENGLISH);
-
-  static {
-    ISO8601_DATE_FORMAT_MILLIS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_MILLIS.setLenient(true);
-    ISO8601_DATE_FORMAT_SECS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_SECS.setLenient(true);
-    ISO8601_DATE_FORMAT_MINS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_MINS.setLenient(true);
-    ISO8601_DATE_FORMAT_DATE.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_DATE.setLenient(true);
-    RFC822_DATE_FORMAT.setCalendar(CALENDAR);
-    RFC822_DATE_FORMAT.setLenient(true);
-  }
-
   /**
    * Sets the time zone used to format date values for the feed to the
    * given time zone.
@@ -250,7 +222,7 @@ public abstract class Value {
    * @see TimeZone#getDefault
    * @since 2.4.4
    */
-  public static synchronized void setFeedTimeZone(String id) {
+  public static void setFeedTimeZone(String id) {
     TimeZone tz;
     if (id == null || id.length() == 0) {
       id = "default"; // For the log message.
@@ -259,7 +231,7 @@ public abstract class Value {
       tz = TimeZone.getTimeZone(id);
     }
     LOGGER.config("Setting feed time zone to " + id + " = " + tz.getID());
-    CALENDAR.setTimeZone(tz);
+    DateFormatter.setTimeZone(tz);
   }
 
   /**
@@ -267,8 +239,8 @@ public abstract class Value {
    *
    * @since 2.4.4
    */
-  static synchronized String getFeedTimeZone() {
-    return CALENDAR.getTimeZone().getID();
+  static String getFeedTimeZone() {
+    return DateFormatter.getTimeZone().getID();
   }
 
   /**
@@ -281,9 +253,9 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in ISO-8601 date format
    */
-  public static synchronized String calendarToFeedXml(Calendar calendar) {
-    Date date = calendar.getTime();
-    return ISO8601_DATE_FORMAT_DATE.format(date);
+  public static String calendarToFeedXml(Calendar calendar) {
+    return DateFormatter.get().formatIso8601(calendar.getTimeInMillis(),
+        DateFormatter.DATE);
   }
 
   /**
@@ -294,12 +266,10 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in RFC 822 format
    */
-  public static synchronized String calendarToRfc822(Calendar calendar) {
-    Date date = calendar.getTime();
-    // Fix UTC time zone marker. The SimpleDateFormat Z pattern letter
-    // always produces an offset string, e.g., "-0800" or "+000". For
-    // UTC, the use of "GMT" (RFC 822) or "Z" (ISO 8601) is preferred.
-    return RFC822_DATE_FORMAT.format(date).replaceFirst("\\+0000$", "GMT");
+  public static String calendarToRfc822(Calendar calendar) {
+    // For UTC, the use of "GMT" (RFC 822) or "Z" (ISO 8601) is preferred
+    // to an offset string, e.g., "-0800" or "+0000".
+    return DateFormatter.get().formatRfc822(calendar.getTimeInMillis());
   }
 
   /**
@@ -310,39 +280,19 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in ISO-8601 format
    */
-  public static synchronized String calendarToIso8601(Calendar calendar) {
-    Date date = calendar.getTime();
-    String isoString;
+  public static String calendarToIso8601(Calendar calendar) {
+    long millis = calendar.getTimeInMillis();
+    int precision;
     if (calendar.isSet(Calendar.MILLISECOND)) {
-      isoString = ISO8601_DATE_FORMAT_MILLIS.format(date);
+      precision = DateFormatter.MILLIS;
     } else if (calendar.isSet(Calendar.SECOND)) {
-      isoString = ISO8601_DATE_FORMAT_SECS.format(date);
+      precision = DateFormatter.SECONDS;
     } else if (calendar.isSet(Calendar.MINUTE)) {
-      isoString = ISO8601_DATE_FORMAT_MINS.format(date);
+      precision = DateFormatter.MINUTES;
     } else {
-      isoString = ISO8601_DATE_FORMAT_DATE.format(date);
-    }
-    // Fix UTC time zone marker.
-    return isoString.replaceFirst("\\+0000$", "Z");
-  }
-
-  private static synchronized Date iso8601ToDate(String s)
-      throws ParseException {
-    Date date = null;
-    try {
-      date = ISO8601_DATE_FORMAT_MILLIS.parse(s);
-    } catch (ParseException e1) {
-      try {
-        date = ISO8601_DATE_FORMAT_SECS.parse(s);
-      } catch (ParseException e2) {
-        try {
-          date = ISO8601_DATE_FORMAT_MINS.parse(s);
-        } catch (ParseException e3) {
-          date = ISO8601_DATE_FORMAT_DATE.parse(s);
-        }
-      }
+      precision = DateFormatter.DATE;
     }
-    return date;
+    return DateFormatter.get().formatIso8601(millis, precision);
   }
 
   /**
@@ -355,11 +305,9 @@ public abstract class Value {
    * @return a Calendar object
    * @throws ParseException if the the String can not be parsed
    */
-  public static synchronized Calendar iso8601ToCalendar(String dateString)
+  public static Calendar iso8601ToCalendar(String dateString)
       throws ParseException {
-    // Fix UTC time zone marker. For parsing, the Z pattern letter
-    // does not accept "Z" for UTC.
-    Date date = iso8601ToDate(dateString.replaceFirst("Z$", "+0000"));
+    Date date = DateFormatter.get().parseIso8601(dateString);
     Calendar calendar = Calendar.getInstance();
     calendar.setTime(date);
     return calendar;
@@ -35,6 +35,10 @@ public class FileSizeLimitInfo {
   // Default target feed size is 10MB - about 75-100 typical documents.
   private long maxFeedSize = 10 * 1024 * 1024;
 
+  // Maximum amount of feed data held in memory before spilling the feed
+  // to a temporary file. Zero (the default) keeps the entire feed in memory.
+  private long maxFeedMemorySize = 0L;
+
   public void setMaxDocumentSize(long maxDocumentSize) {
     if (maxDocumentSize <= 0) {
       throw new IllegalArgumentException("maxDocumentSize must be positive.");
@@ -65,9 +69,43 @@ public class FileSizeLimitInfo {
     return maxFeedSize;
   }
 
+  /**
+   * Sets the maximum number of bytes of a feed that are held in memory.
+   * Feed data beyond this amount is spilled to a temporary file.
+   * A value of zero keeps the entire feed in memory.
+   *
+   * @param maxFeedMemorySize the maximum in-memory size of a feed, in bytes
+   */
+  public void setMaxFeedMemorySize(long maxFeedMemorySize) {
+    if (maxFeedMemorySize < 0) {
+      throw new IllegalArgumentException(
+          "maxFeedMemorySize must not be negative.");
+    }
+    this.maxFeedMemorySize = maxFeedMemorySize;
+  }
+
+  /**
+   * Returns the maximum number of bytes of a feed that are held in memory,
+   * or zero if the entire feed is held in memory.
+   */
+  public long maxFeedMemorySize() {
+    return maxFeedMemorySize;
+  }
+
+  /**
+   * Returns the number of bytes of feed data that will be held in memory
+   * for a single feed.  This is the smaller of {@link #maxFeedSize()} and
+   * a non-zero {@link #maxFeedMemorySize()}.
+   */
+  public long feedMemorySize() {
+    return (maxFeedMemorySize > 0 && maxFeedMemorySize < maxFeedSize)
+        ? maxFeedMemorySize : maxFeedSize;
+  }
+
   @Override
   public String toString() {
     return "FileSizeLimitInfo: maxDocumentSize = " + maxDocumentSize
-           + ", maxFeedSize = " + maxFeedSize;
+           + ", maxFeedSize = " + maxFeedSize
+           + ", maxFeedMemorySize = " + maxFeedMemorySize;
   }
 }
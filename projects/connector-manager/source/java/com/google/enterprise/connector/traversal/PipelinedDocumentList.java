@@ -0,0 +1,237 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.traversal;
+
+import com.google.common.base.Preconditions;
+import com.google.enterprise.connector.logging.NDC;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link DocumentList} that fetches documents from another
+ * {@code DocumentList} in a separate thread, so that the repository
+ * I/O of fetching the next documents overlaps the construction of the
+ * feed from the previous ones.
+ * <p>
+ * At most {@code depth} documents are fetched ahead of the consumer.
+ * Documents, and any per-document exceptions, are returned in the order
+ * they were fetched.  Since the checkpoint of the underlying list covers
+ * every document it has returned, the consumer must {@link #stop stop}
+ * the fetching, then continue to consume documents until
+ * {@link #nextDocument} returns {@code null}, before calling
+ * {@link #checkpoint}.
+ */
+class PipelinedDocumentList implements DocumentList {
+  private static final Logger LOGGER =
+      Logger.getLogger(PipelinedDocumentList.class.getName());
+
+  /** Marks the end of the fetched documents. */
+  private static final Fetched END = new Fetched(null, null);
+
+  /** A fetched document, or the exception thrown while fetching it. */
+  private static class Fetched {
+    final Document document;
+    final Exception exception;
+
+    Fetched(Document document, Exception exception) {
+      this.document = document;
+      this.exception = exception;
+    }
+  }
+
+  private final DocumentList documentList;
+  private final BlockingQueue<Fetched> queue;
+  private final Thread fetcher;
+
+  /** Set when no more documents should be fetched. */
+  private volatile boolean isStopped = false;
+
+  /** Set once the END marker has been consumed. */
+  private boolean isDone = false;
+
+  /** Set once the fetched documents have been abandoned. */
+  private boolean isClosed = false;
+
+  /**
+   * Creates a {@code PipelinedDocumentList} and starts fetching documents.
+   *
+   * @param documentList the {@code DocumentList} to fetch from
+   * @param depth the maximum number of documents to fetch ahead
+   * @param connectorName the name of the connector, for thread names
+   *        and logging
+   */
+  PipelinedDocumentList(DocumentList documentList, int depth,
+      String connectorName) {
+    Preconditions.checkArgument(depth > 0, "depth must be positive");
+    this.documentList = documentList;
+    this.queue = new ArrayBlockingQueue<Fetched>(depth);
+    final String ndc = NDC.peek();
+    this.fetcher = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          NDC.push(ndc);
+          try {
+            fetch();
+          } finally {
+            NDC.remove();
+          }
+        }
+      }, "DocumentFetcher-" + connectorName);
+    this.fetcher.setDaemon(true);
+    this.fetcher.start();
+  }
+
+  /** Fetches documents until the list is exhausted or fetching stops. */
+  private void fetch() {
+    try {
+      while (!isStopped) {
+        Fetched fetched;
+        try {
+          Document document = documentList.nextDocument();
+          if (document == null) {
+            break;
+          }
+          fetched = new Fetched(document, null);
+        } catch (RepositoryDocumentException e) {
+          // A skipped document.  Proceed on to the next one.
+          fetched = new Fetched(null, e);
+        } catch (RepositoryException e) {
+          // Hand off the failure, and stop fetching.
+          queue.put(new Fetched(null, e));
+          break;
+        } catch (RuntimeException e) {
+          // Treated as a skipped document by the QueryTraverser.
+          fetched = new Fetched(null, e);
+        }
+        queue.put(fetched);
+      }
+    } catch (InterruptedException e) {
+      LOGGER.log(Level.FINEST, "Document fetcher interrupted", e);
+      return;
+    } catch (Throwable t) {
+      // Errors are handed to the consumer, which stops the batch.
+      if (!hand(new Fetched(null,
+              new RepositoryException("Error fetching documents", t)))) {
+        return;
+      }
+    }
+    hand(END);
+  }
+
+  /**
+   * Hands a fetched item to the consumer, waiting for room in the queue.
+   *
+   * @return {@code false} if interrupted while waiting
+   */
+  private boolean hand(Fetched fetched) {
+    try {
+      queue.put(fetched);
+      return true;
+    } catch (InterruptedException e) {
+      LOGGER.log(Level.FINEST, "Document fetcher interrupted", e);
+      return false;
+    }
+  }
+
+  /**
+   * Returns the next fetched document, waiting for it if necessary.
+   *
+   * @return the next document, or {@code null} if there are no more
+   * @throws RepositoryDocumentException if the document was skipped
+   * @throws RepositoryException if fetching the document failed
+   * @throws RuntimeException if fetching the document failed
+   */
+  @Override
+  public Document nextDocument() throws RepositoryException {
+    if (isDone || isClosed) {
+      return null;
+    }
+    Fetched fetched;
+    try {
+      fetched = queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryException("Interrupted while fetching documents", e);
+    }
+    if (fetched == END) {
+      isDone = true;
+      return null;
+    }
+    if (fetched.exception instanceof RepositoryException) {
+      throw (RepositoryException) fetched.exception;
+    } else if (fetched.exception instanceof RuntimeException) {
+      throw (RuntimeException) fetched.exception;
+    }
+    return fetched.document;
+  }
+
+  /**
+   * Stops fetching documents.  Documents already fetched, including one
+   * being fetched when this is called, are still returned by
+   * {@link #nextDocument}.
+   */
+  void stop() {
+    isStopped = true;
+  }
+
+  /**
+   * Stops fetching documents and abandons any documents already fetched,
+   * then waits for the fetcher thread to exit, so that the underlying
+   * {@code DocumentList} is no longer in use.  The documents returned by
+   * the underlying list will not all have been fed, so the caller must
+   * not call {@link #checkpoint} after this.
+   */
+  void close() {
+    isStopped = true;
+    try {
+      // The fetcher exits after its current call to nextDocument,
+      // once there is room to hand off the result.
+      while (fetcher.isAlive()) {
+        queue.clear();
+        fetcher.join(100L);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    queue.clear();
+    isClosed = true;
+  }
+
+  /**
+   * Returns the checkpoint of the underlying {@code DocumentList}.
+   *
+   * @throws IllegalStateException if the fetched documents have not all
+   *         been consumed, or have been abandoned
+   */
+  @Override
+  public String checkpoint() throws RepositoryException {
+    Preconditions.checkState(isDone && !isClosed,
+        "Checkpoint requested before all fetched documents were consumed");
+    try {
+      fetcher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepositoryException("Interrupted while fetching documents", e);
+    }
+    return documentList.checkpoint();
+  }
+}
@@ -28,6 +28,7 @@ import java.util.Set;
  */
 public class ProductionTraversalContext extends SimpleTraversalContext {
   private MimeTypeMap mimeTypeMap = new MimeTypeMap();
+  private int pipelineDepth = 0;
 
   public synchronized void setFileSizeLimitInfo(
       FileSizeLimitInfo fileSizeLimitInfo) {
@@ -38,6 +39,32 @@ public class ProductionTraversalContext extends SimpleTraversalContext {
     this.mimeTypeMap = mimeTypeMap;
   }
 
+  /**
+   * Sets the number of documents that a traversal may fetch from the
+   * repository ahead of adding them to the feed.  Fetching ahead lets
+   * repository I/O overlap feed construction, but requires that a
+   * connector's documents remain valid after the next document is
+   * fetched.  Zero, the default, fetches and feeds documents one at
+   * a time on the traversal thread.
+   *
+   * @param pipelineDepth the number of documents to fetch ahead
+   */
+  public synchronized void setPipelineDepth(int pipelineDepth) {
+    if (pipelineDepth < 0) {
+      throw new IllegalArgumentException(
+          "Illegal value for pipelineDepth: " + pipelineDepth);
+    }
+    this.pipelineDepth = pipelineDepth;
+  }
+
+  /**
+   * Returns the number of documents that a traversal may fetch from the
+   * repository ahead of adding them to the feed.
+   */
+  public synchronized int getPipelineDepth() {
+    return pipelineDepth;
+  }
+
   @Override
   public synchronized int mimeTypeSupportLevel(String mimeType) {
     return mimeTypeMap.mimeTypeSupportLevel(mimeType);
@@ -152,6 +152,19 @@ public class QueryTraverser implements Traverser {
       return new BatchResult(TraversalDelayPolicy.POLL, 0);
     }
 
+    // If configured, fetch documents from the repository in a separate
+    // thread, while the previously fetched documents are being fed.
+    PipelinedDocumentList pipeline = null;
+    int pipelineDepth = getPipelineDepth();
+    if (pipelineDepth > 0) {
+      pipeline =
+          new PipelinedDocumentList(resultSet, pipelineDepth, connectorName);
+      resultSet = pipeline;
+    }
+    // True once a pipeline has been told to stop fetching documents.
+    // The documents already fetched must still be fed before checkpointing.
+    boolean isDraining = false;
+
     Pusher pusher = null;
     BatchResult result = null;
     int counter = 0;
@@ -163,12 +176,20 @@ public class QueryTraverser implements Traverser {
         if (Thread.currentThread().isInterrupted() || isCancelled()) {
           LOGGER.fine("Traversal for connector " + connectorName
                       + " has been interrupted; breaking out of batch run.");
+          if (pipeline != null) {
+            // Some fetched documents were not fed, so don't checkpoint.
+            result = new BatchResult(TraversalDelayPolicy.ERROR);
+          }
           break;
         }
-        if (clock.getTimeMillis() >= timeoutTime) {
+        if (!isDraining && clock.getTimeMillis() >= timeoutTime) {
           LOGGER.fine("Traversal batch for connector " + connectorName
               + " is completing due to time limit.");
-          break;
+          if (pipeline == null) {
+            break;
+          }
+          pipeline.stop();
+          isDraining = true;
         }
 
         String docid = null;
@@ -203,11 +224,20 @@ public class QueryTraverser implements Traverser {
           LOGGER.finer("Sending document (" + docid + ") from connector "
               + connectorName + " to Pusher");
 
-          if (pusher.take(nextDocument) != PusherStatus.OK) {
+          PusherStatus status = pusher.take(nextDocument);
+          if (status != PusherStatus.OK && !isDraining) {
             LOGGER.fine("Traversal batch for connector " + connectorName
                 + " is completing at the request of the Pusher,"
                 + " after processing " + counter + " documents.");
-            break;
+            if (pipeline == null) {
+              break;
+            } else if (status == PusherStatus.DISABLED) {
+              // The remaining fetched documents cannot be fed.
+              result = new BatchResult(TraversalDelayPolicy.ERROR);
+              break;
+            }
+            pipeline.stop();
+            isDraining = true;
           }
         } catch (SkippedDocumentException e) {
           /* TODO (bmj): This is a temporary solution and should be replaced.
@@ -224,7 +254,7 @@ public class QueryTraverser implements Traverser {
         }
       }
       // No more documents. Wrap up any accumulated feed data and send it off.
-      if (!isCancelled()) {
+      if (result == null && !isCancelled()) {
         pusher.flush();
       }
     } catch (OutOfMemoryError e) {
@@ -269,6 +299,11 @@ public class QueryTraverser implements Traverser {
         result = new BatchResult(TraversalDelayPolicy.ERROR);
       }
 
+      // Abandon any fetched documents that will not be fed.
+      if (pipeline != null && result != null) {
+        pipeline.close();
+      }
+
       // Checkpoint completed work as well as skip past troublesome documents
       // (e.g. documents that are too large and will always fail).
       if ((result == null) && (checkpointAndSave(resultSet) == null)) {
@@ -287,6 +322,16 @@ public class QueryTraverser implements Traverser {
     return result;
   }
 
+  /**
+   * Returns the number of documents to fetch ahead of feeding them,
+   * or zero if documents are fetched and fed one at a time.
+   */
+  private int getPipelineDepth() {
+    return (traversalContext instanceof ProductionTraversalContext)
+        ? ((ProductionTraversalContext) traversalContext).getPipelineDepth()
+        : 0;
+  }
+
   private String checkpointAndSave(DocumentList pm) {
     String connectorState = null;
     LOGGER.fine("CHECKPOINT: Generating checkpoint for connector "
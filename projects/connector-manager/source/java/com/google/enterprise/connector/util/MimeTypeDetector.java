@@ -14,7 +14,11 @@
 
 package com.google.enterprise.connector.util;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
 import com.google.enterprise.connector.spi.TraversalContext;
 
@@ -28,6 +32,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -50,13 +55,27 @@ public class MimeTypeDetector {
   private static MimeUtil2 extensionDetector;
   private static MimeUtil2 magicDetector;
 
+  /** The maximum number of filename extensions to remember. */
+  private static final int EXTENSION_CACHE_SIZE = 1000;
+
+  /**
+   * The MIME type names determined by the extension detector, keyed by
+   * filename extension.  This allows most lookups to avoid synchronizing
+   * on the shared extension detector.
+   */
+  private static final Cache<String, List<String>> extensionCache =
+      CacheBuilder.newBuilder().maximumSize(EXTENSION_CACHE_SIZE).build();
+
   /**
    * The mime-util library leaks memory like a sieve on each new instance,
    * and is not thread-safe. So we want to share instances of MimeUtil2.
    * To avoid problems with mime-util trying to open a file with the given
    * name, we use two separate instances, one using only the extension
    * detector which we give the file name to, and the other using only the
-   * magic detector which we give the byte[] to.
+   * magic detector which we give the byte[] to.  The results of the
+   * extension detector are cached, so access to it is rarely contended.
+   * The magic detector keeps its rules and the known MIME types in static
+   * mutable state, so access to it must remain serialized.
    */
   private static synchronized void init() {
     if (magicDetector == null) {
@@ -193,7 +212,7 @@ public class MimeTypeDetector {
         InputStreamFactory inputStreamFactory) throws IOException {
     Preconditions.checkArgument((filename != null || inputStreamFactory != null),
         "filename and inputStreamFactory may not both be null");
-    Collection<MimeType> mimeTypes = getMimeTypes(filename);
+    List<String> mimeTypes = getMimeTypes(filename);
     String bestMimeType = pickBestMimeType(mimeTypes);
     if (UNKNOWN_MIME_TYPE.equals(bestMimeType) && inputStreamFactory != null) {
       InputStream is = inputStreamFactory.getInputStream();
@@ -212,24 +231,66 @@ public class MimeTypeDetector {
     return bestMimeType;
   }
 
+  /**
+   * Returns the MIME type names for the filename extension. The extension
+   * detector only considers the extensions in the last component of the
+   * path, so its results are cached by that.
+   */
   @SuppressWarnings("unchecked")
-  private Collection<MimeType> getMimeTypes(String filename) {
+  private List<String> getMimeTypes(String filename) {
     if (filename == null) {
       return null;
     }
-    synchronized (extensionDetector) {
-      return extensionDetector.getMimeTypes(filename);
+    String extension = getExtension(filename);
+    List<String> mimeTypeNames = extensionCache.getIfPresent(extension);
+    if (mimeTypeNames == null) {
+      Collection<MimeType> mimeTypes;
+      synchronized (extensionDetector) {
+        mimeTypes = extensionDetector.getMimeTypes(filename);
+      }
+      mimeTypeNames = getMimeTypeNames(mimeTypes);
+      // A local directory of the same name yields a result that does not
+      // depend on the extension.
+      if (!mimeTypes.contains(MimeUtil2.DIRECTORY_MIME_TYPE)) {
+        extensionCache.put(extension, mimeTypeNames);
+      }
     }
+    return mimeTypeNames;
   }
 
   @SuppressWarnings("unchecked")
-  private Collection<MimeType> getMimeTypes(byte[] content) {
+  private List<String> getMimeTypes(byte[] content) {
     if (content == null) {
       return null;
     }
+    Collection<MimeType> mimeTypes;
     synchronized (magicDetector) {
-      return magicDetector.getMimeTypes(content);
+      mimeTypes = magicDetector.getMimeTypes(content);
     }
+    return getMimeTypeNames(mimeTypes);
+  }
+
+  /**
+   * Returns the extension of the last component of a file name or path,
+   * as defined by mime-util: everything following the first '.'.
+   */
+  @VisibleForTesting
+  static String getExtension(String filename) {
+    int slash =
+        Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\'));
+    return MimeUtil2.getExtension(filename.substring(slash + 1));
+  }
+
+  /** Returns the names of the known MIME types, in order. */
+  private static List<String> getMimeTypeNames(
+      Collection<MimeType> mimeTypes) {
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    for (MimeType mimeType : mimeTypes) {
+      if (!MimeUtil2.UNKNOWN_MIME_TYPE.equals(mimeType)) {
+        builder.add(mimeTypeStringValue(mimeType));
+      }
+    }
+    return builder.build();
   }
 
   /**
@@ -237,30 +298,22 @@ public class MimeTypeDetector {
    * from the MIME types collected by the filename extension MIME type
    * detector and/or the document content MIME type detector.
    *
-   * @param extensionMimeTypes a Collection of MimeTypes as determined by
+   * @param extensionMimeTypes a List of MIME type names as determined by
    *        the filename extension (may be {@code null})
-   * @param contentMimeTypes a Collection of MimeTypes as determined by
+   * @param contentMimeTypes a List of MIME type names as determined by
    *        the document content (may be {@code null})
    * @return most suitable MIME type for the document
    */
-  private String pickBestMimeType(Collection<MimeType> extensionMimeTypes,
-                                  Collection<MimeType> contentMimeTypes) {
+  private String pickBestMimeType(List<String> extensionMimeTypes,
+                                  List<String> contentMimeTypes) {
     // Use a LinkedHashSet so we preserve the order of the mimetypes
     // as they are returned by MimeUtil.
     Set<String> mimeTypeNames = new LinkedHashSet<String>();
     if (extensionMimeTypes != null) {
-      for (MimeType mimeType : extensionMimeTypes) {
-        if (!MimeUtil2.UNKNOWN_MIME_TYPE.equals(mimeType)) {
-          mimeTypeNames.add(mimeTypeStringValue(mimeType));
-        }
-      }
+      mimeTypeNames.addAll(extensionMimeTypes);
     }
     if (contentMimeTypes != null) {
-      for (MimeType mimeType : contentMimeTypes) {
-        if (!MimeUtil2.UNKNOWN_MIME_TYPE.equals(mimeType)) {
-          mimeTypeNames.add(mimeTypeStringValue(mimeType));
-        }
-      } 
+      mimeTypeNames.addAll(contentMimeTypes);
     }
     if (mimeTypeNames.isEmpty()) {
       return UNKNOWN_MIME_TYPE;
@@ -271,7 +324,7 @@ public class MimeTypeDetector {
     return traversalContext.preferredMimeType(mimeTypeNames);
   }
 
-  private String pickBestMimeType(Collection<MimeType> mimeTypes) {
+  private String pickBestMimeType(List<String> mimeTypes) {
     return pickBestMimeType(mimeTypes, null);
   }
 
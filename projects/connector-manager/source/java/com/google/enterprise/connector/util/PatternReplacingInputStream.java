@@ -0,0 +1,197 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util;
+
+import com.google.common.base.Preconditions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An {@code InputStream} that replaces all matches of a regular expression
+ * in the decoded text of another {@code InputStream}, without buffering
+ * the whole stream.
+ * <p>
+ * The text is examined through a window that holds at most a few
+ * thousand characters more than the maximum match length.  Matches are
+ * replaced as by {@link Matcher#replaceAll(String)}, provided that no
+ * match, nor any lookbehind or lookahead, spans more than
+ * {@code maxMatchLength} characters.  Longer matches may be truncated
+ * or missed.
+ * <p>
+ * The output is always re-encoded, so malformed input is replaced with
+ * the substitution character of the encoding, even if no match is found.
+ *
+ * @since 3.4
+ */
+public class PatternReplacingInputStream extends InputStream {
+  /** The number of new characters to examine in each window. */
+  private static final int CHUNK_SIZE = 8192;
+
+  private final Reader reader;
+  private final Matcher matcher;
+  private final String replacement;
+  private final int maxMatchLength;
+
+  /** The window. The first {@code regionStart} chars are context only. */
+  private final StringBuilder window = new StringBuilder();
+  private final char[] chars = new char[CHUNK_SIZE];
+  private int regionStart = 0;
+  private boolean atEOF = false;
+
+  /** The encoded output of the processed window. */
+  private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+  private final Writer writer;
+  private byte[] output = new byte[0];
+  private int outputPos = 0;
+
+  /**
+   * Constructs a {@code PatternReplacingInputStream}.
+   *
+   * @param in the source {@code InputStream}
+   * @param encoding the name of the character encoding of the source
+   *        stream, which is also used to encode the output
+   * @param pattern the regular expression to match
+   * @param replacement the replacement string, which may refer to
+   *        capturing groups as {@code $1, $2}, etc.
+   * @param maxMatchLength the maximum length of a match, in characters
+   * @throws UnsupportedEncodingException if the encoding is not supported
+   */
+  public PatternReplacingInputStream(InputStream in, String encoding,
+      Pattern pattern, String replacement, int maxMatchLength)
+      throws UnsupportedEncodingException {
+    Preconditions.checkNotNull(in, "in may not be null");
+    Preconditions.checkNotNull(pattern, "pattern may not be null");
+    Preconditions.checkNotNull(replacement, "replacement may not be null");
+    Preconditions.checkArgument(maxMatchLength > 0,
+        "maxMatchLength must be positive");
+    this.reader = new InputStreamReader(in, encoding);
+    this.writer = new OutputStreamWriter(encoded, encoding);
+    this.matcher = pattern.matcher(window);
+    this.replacement = replacement;
+    this.maxMatchLength = maxMatchLength;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return output[outputPos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    Preconditions.checkPositionIndexes(off, off + len, b.length);
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    int count = Math.min(len, output.length - outputPos);
+    System.arraycopy(output, outputPos, b, off, count);
+    outputPos += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return output.length - outputPos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  /**
+   * Processes windows until there is output available to read.
+   *
+   * @return {@code true} if there is output, {@code false} at end of stream
+   */
+  private boolean fill() throws IOException {
+    while (outputPos == output.length) {
+      if (atEOF && regionStart == window.length()) {
+        return false;
+      }
+      processWindow();
+    }
+    return true;
+  }
+
+  /**
+   * Reads another chunk of text into the window, and replaces the matches
+   * that are known to be complete.  Text that may yet be part of a match
+   * is kept for the next window, along with some preceding context.
+   */
+  private void processWindow() throws IOException {
+    int target = regionStart + maxMatchLength + CHUNK_SIZE;
+    while (!atEOF && window.length() < target) {
+      int count = reader.read(chars, 0,
+          Math.min(chars.length, target - window.length()));
+      if (count == -1) {
+        atEOF = true;
+      } else {
+        window.append(chars, 0, count);
+      }
+    }
+
+    // A match must start before the limit to be known to be complete.
+    // Context before the region is visible to lookbehind and boundaries,
+    // but is not a start of input for anchors.
+    int limit = atEOF ? window.length() + 1
+        : window.length() - maxMatchLength;
+    matcher.reset(window);
+    matcher.region(regionStart, window.length());
+    matcher.useTransparentBounds(true);
+    matcher.useAnchoringBounds(false);
+
+    StringBuffer buffer = new StringBuffer();
+    boolean found = false;
+    int end = regionStart;
+    while (matcher.find() && matcher.start() < limit) {
+      matcher.appendReplacement(buffer, replacement);
+      found = true;
+      end = matcher.end();
+    }
+    // appendReplacement starts at the beginning of the window, so
+    // discard the context that has already been output.
+    if (found) {
+      buffer.delete(0, regionStart);
+    }
+    int consumed = atEOF ? window.length() : Math.max(end, limit);
+    buffer.append(window, end, consumed);
+
+    writer.write(buffer.toString());
+    writer.flush();
+    output = encoded.toByteArray();
+    outputPos = 0;
+    encoded.reset();
+
+    // Keep some context for lookbehind and word boundaries.
+    int keep = Math.max(0, consumed - maxMatchLength);
+    window.delete(0, keep);
+    regionStart = consumed - keep;
+  }
+}
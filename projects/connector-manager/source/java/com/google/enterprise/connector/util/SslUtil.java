@@ -59,9 +59,32 @@ public class SslUtil {
 
   private static SSLSocketFactory getTrustingFactory()
       throws GeneralSecurityException {
+    return newTrustingContext().getSocketFactory();
+  }
+
+  /**
+   * Returns a new {@code SSLContext} that trusts all certificates.
+   * Connections that share the returned context, or its socket factory,
+   * may resume each other's SSL sessions.
+   *
+   * @return a new all-trusting SSL context
+   * @throws GeneralSecurityException if the context could not be created
+   * @since 3.4
+   */
+  public static SSLContext newTrustingContext()
+      throws GeneralSecurityException {
     SSLContext sc = SSLContext.getInstance("SSL");
     sc.init(null, trustAllCerts, null);
-    return sc.getSocketFactory();
+    return sc;
+  }
+
+  /**
+   * Returns a {@code HostnameVerifier} that accepts all hostnames.
+   *
+   * @since 3.4
+   */
+  public static HostnameVerifier getTrustingHostnameVerifier() {
+    return trustAllHosts;
   }
 
   /**
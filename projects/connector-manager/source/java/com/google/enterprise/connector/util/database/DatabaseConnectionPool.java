@@ -14,9 +14,26 @@
 
 package com.google.enterprise.connector.util.database;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,6 +45,25 @@ import javax.sql.DataSource;
  * time-consuming to open.  This pool maintains a LIFO stack of open
  * Connections in an attempt to re-use existing Connections to the database.
  * <p>
+ * Connections are checked out and released without locking.  At most
+ * {@link #setMaxSize maxSize} Connections may be checked out at once;
+ * further requests wait up to {@link #setMaxWait maxWait} milliseconds for
+ * a Connection to be released.  A pooled Connection is validated when it
+ * is checked out only if it has been idle for at least
+ * {@link #setValidationIdleTime validationIdleTime} milliseconds.
+ * <p>
+ * A background task closes Connections that have been idle for more than
+ * {@link #setMaxIdleTime maxIdleTime} milliseconds, keeping at least
+ * {@link #setMinIdle minIdle} of them, and logs a warning for each
+ * Connection that has been checked out for more than
+ * {@link #setLeakDetectionThreshold leakDetectionThreshold} milliseconds.
+ * If {@code FINE} logging is enabled, the warning includes the stack trace
+ * of the caller that checked out the Connection.
+ * <p>
+ * {@link PreparedStatement PreparedStatements} obtained from
+ * {@link #prepareStatement prepareStatement} are cached with their
+ * Connection, and are closed and discarded when the pool closes it.
+ * <p>
  * This class requires a JDBC driver that supports the {@code isValid}
  * method of {@code java.sql.Connection}, part of the JDBC 4.0
  * specification in Java 6.
@@ -37,8 +73,82 @@ import javax.sql.DataSource;
 public class DatabaseConnectionPool {
   private static final Logger LOGGER =
       Logger.getLogger(DatabaseConnectionPool.class.getName());
+
+  /**
+   * The timer that runs the maintenance tasks for all the pools, and the
+   * number of tasks scheduled on it.  The timer is cancelled when there
+   * are none left.  Guarded by DatabaseConnectionPool.class.
+   */
+  private static Timer maintenanceTimer;
+  private static int maintenanceTaskCount = 0;
+
   private final DataSource dataSource;
-  private final LinkedList<Connection> connections = new LinkedList<Connection>();
+  private final Clock clock;
+
+  /** The top of the LIFO stack of idle Connections. */
+  private final AtomicReference<IdleConnection> idleConnections =
+      new AtomicReference<IdleConnection>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  /** The Connections that are checked out, with when and by whom. */
+  private final ConcurrentMap<Connection, Checkout> checkouts =
+      new ConcurrentHashMap<Connection, Checkout>();
+  private final AtomicInteger activeCount = new AtomicInteger();
+
+  /** Prepared Statements for each pooled Connection, by SQL query. */
+  private final ConcurrentMap<Connection, Map<String, PreparedStatement>>
+      statementCache =
+      new ConcurrentHashMap<Connection, Map<String, PreparedStatement>>();
+
+  /** Lock and count for threads waiting for a Connection to be released. */
+  private final Object waitLock = new Object();
+  private int waiters = 0;
+
+  /** The maintenance task.  Guarded by DatabaseConnectionPool.class. */
+  private MaintenanceTask maintenanceTask;
+  private final AtomicBoolean maintenanceScheduled = new AtomicBoolean();
+
+  private volatile int maxSize = 100;
+  private volatile int minIdle = 2;
+  private volatile long maxWait = 30 * 1000L;
+  private volatile long validationIdleTime = 5 * 1000L;
+  private volatile long maxIdleTime = 10 * 60 * 1000L;
+  private volatile long leakDetectionThreshold = 10 * 60 * 1000L;
+  private volatile long maintenanceInterval = 60 * 1000L;
+
+  /* Metrics. */
+  private final AtomicLong checkoutCount = new AtomicLong();
+  private final AtomicLong waitCount = new AtomicLong();
+  private final AtomicLong totalWaitMillis = new AtomicLong();
+  private final AtomicLong maxWaitMillis = new AtomicLong();
+  private final AtomicLong timeoutCount = new AtomicLong();
+  private final AtomicLong createdCount = new AtomicLong();
+  private final AtomicLong invalidCount = new AtomicLong();
+  private final AtomicLong leakCount = new AtomicLong();
+
+  /** An entry in the stack of idle Connections. */
+  private static class IdleConnection {
+    final Connection connection;
+    final long idleSince;
+    IdleConnection next;
+
+    IdleConnection(Connection connection, long idleSince) {
+      this.connection = connection;
+      this.idleSince = idleSince;
+    }
+  }
+
+  /** A record of a checked out Connection. */
+  private static class Checkout {
+    final long time;
+    final Throwable caller;
+    boolean reported = false;
+
+    Checkout(long time, Throwable caller) {
+      this.time = time;
+      this.caller = caller;
+    }
+  }
 
   /**
    * Constructs a pool to hold cached {@link Connection Connections}
@@ -47,7 +157,13 @@ public class DatabaseConnectionPool {
    * @param dataSource a JDBC {@link DataSource}
    */
   public DatabaseConnectionPool(DataSource dataSource) {
+    this(dataSource, new SystemClock());
+  }
+
+  @VisibleForTesting
+  DatabaseConnectionPool(DataSource dataSource, Clock clock) {
     this.dataSource = dataSource;
+    this.clock = clock;
   }
 
   @Override
@@ -64,26 +180,155 @@ public class DatabaseConnectionPool {
     return dataSource;
   }
 
+  /**
+   * Sets the maximum number of {@link Connection Connections} that may be
+   * checked out of the pool at the same time.  The default is 100.
+   *
+   * @param maxSize a positive number of connections
+   * @since 3.4
+   */
+  public void setMaxSize(int maxSize) {
+    if (maxSize > 0) {
+      this.maxSize = maxSize;
+      signalWaiters();
+    } else {
+      LOGGER.warning("Invalid maximum pool size: " + maxSize);
+    }
+  }
+
+  /**
+   * Sets the number of idle {@link Connection Connections} that are kept
+   * open, regardless of how long they have been idle.  The default is 2.
+   *
+   * @param minIdle a non-negative number of connections
+   * @since 3.4
+   */
+  public void setMinIdle(int minIdle) {
+    if (minIdle >= 0) {
+      this.minIdle = minIdle;
+    } else {
+      LOGGER.warning("Invalid minimum idle connections: " + minIdle);
+    }
+  }
+
+  /**
+   * Sets the maximum time to wait for a {@link Connection} when
+   * {@code maxSize} Connections are already checked out.  The default is
+   * 30 seconds.
+   *
+   * @param maxWait a non-negative time in milliseconds
+   * @since 3.4
+   */
+  public void setMaxWait(long maxWait) {
+    if (maxWait >= 0) {
+      this.maxWait = maxWait;
+    } else {
+      LOGGER.warning("Invalid maximum wait: " + maxWait);
+    }
+  }
+
+  /**
+   * Sets how long a pooled {@link Connection} must have been idle before
+   * it is validated with a round trip to the database when it is checked
+   * out.  A Connection that has been idle for less time is only checked to
+   * not be closed.  A time of zero validates every Connection as it is
+   * checked out.  The default is 5 seconds.
+   *
+   * @param validationIdleTime a non-negative time in milliseconds
+   * @since 3.4
+   */
+  public void setValidationIdleTime(long validationIdleTime) {
+    if (validationIdleTime >= 0) {
+      this.validationIdleTime = validationIdleTime;
+    } else {
+      LOGGER.warning("Invalid validation idle time: " + validationIdleTime);
+    }
+  }
+
+  /**
+   * Sets how long a pooled {@link Connection} may be idle before it is
+   * closed, if there are more than {@code minIdle} idle Connections.
+   * The default is 10 minutes.
+   *
+   * @param maxIdleTime a positive time in milliseconds
+   * @since 3.4
+   */
+  public void setMaxIdleTime(long maxIdleTime) {
+    if (maxIdleTime > 0) {
+      this.maxIdleTime = maxIdleTime;
+    } else {
+      LOGGER.warning("Invalid maximum idle time: " + maxIdleTime);
+    }
+  }
+
+  /**
+   * Sets how long a {@link Connection} may be checked out before a
+   * possible leak is logged.  A time of zero disables leak detection.
+   * The default is 10 minutes.
+   *
+   * @param leakDetectionThreshold a non-negative time in milliseconds
+   * @since 3.4
+   */
+  public void setLeakDetectionThreshold(long leakDetectionThreshold) {
+    if (leakDetectionThreshold >= 0) {
+      this.leakDetectionThreshold = leakDetectionThreshold;
+    } else {
+      LOGGER.warning("Invalid leak detection threshold: "
+          + leakDetectionThreshold);
+    }
+  }
+
+  /**
+   * Sets how often the background task closes idle {@link Connection
+   * Connections} and looks for leaks.  A time of zero disables the
+   * background task.  This takes effect when the pool is first used.
+   * The default is 1 minute.
+   *
+   * @param maintenanceInterval a non-negative time in milliseconds
+   * @since 3.4
+   */
+  public void setMaintenanceInterval(long maintenanceInterval) {
+    if (maintenanceInterval >= 0) {
+      this.maintenanceInterval = maintenanceInterval;
+    } else {
+      LOGGER.warning("Invalid maintenance interval: " + maintenanceInterval);
+    }
+  }
+
   /**
    * Returns a {@link Connection} from the connection pool.
    * If the pool is empty, a new {@code Connection} is
-   * obtained from the {@link DataSource}.
+   * obtained from the {@link DataSource}.  If {@code maxSize}
+   * Connections are already checked out, waits up to {@code maxWait}
+   * milliseconds for one to be released.
    *
    * @return a {@link Connection} to the {@link DataSource}
    * @throws SQLException if a Connection cannot be obtained
    */
-  public synchronized Connection getConnection() throws SQLException {
-    while (!connections.isEmpty()) {
-      // Get a cached connection, but check if it is still functional.
-      Connection conn = connections.removeFirst();
-      if (isAlive(conn)) {
-        return conn;
+  public Connection getConnection() throws SQLException {
+    scheduleMaintenance();
+    if (!tryReserve()) {
+      waitToReserve();
+    }
+    checkoutCount.incrementAndGet();
+    try {
+      Connection conn = popUsableConnection();
+      if (conn == null) {
+        // Pool is empty.  Get a new connection from the dataSource.
+        conn = dataSource.getConnection();
+        createdCount.incrementAndGet();
       }
-      // Close dead connection.
-      close(conn);
+      Throwable caller = LOGGER.isLoggable(Level.FINE)
+          ? new Throwable("Connection checked out here") : null;
+      checkouts.put(conn, new Checkout(clock.getTimeMillis(), caller));
+      return conn;
+    } catch (SQLException e) {
+      unreserve();
+      throw e;
+    } catch (RuntimeException e) {
+      unreserve();
+      throw e;
     }
-    // Pool is empty.  Get a new connection from the dataSource.
-    return dataSource.getConnection();
   }
 
   /**
@@ -92,19 +337,376 @@ public class DatabaseConnectionPool {
    *
    * @param connection a Connection to to return to the pool
    */
-  public synchronized void releaseConnection(Connection connection) {
-    connections.addFirst(connection);
+  public void releaseConnection(Connection connection) {
+    Checkout checkout = checkouts.remove(connection);
+    push(new IdleConnection(connection, clock.getTimeMillis()));
+    if (checkout != null) {
+      unreserve();
+    } else {
+      LOGGER.fine("Released a Connection that was not checked out of the "
+          + "pool: " + connection);
+    }
+  }
+
+  /**
+   * Returns a {@link PreparedStatement} for the query, prepared on a
+   * {@link Connection} checked out of this pool.  The statement is cached
+   * with the Connection, and reused whenever the same query is prepared
+   * on it again.  Callers must not close the statement; it is closed
+   * when the pool closes the Connection.
+   *
+   * @param connection a Connection checked out of this pool
+   * @param query an SQL query
+   * @return a PreparedStatement for the query
+   * @throws SQLException if the statement cannot be prepared
+   * @since 3.4
+   */
+  public PreparedStatement prepareStatement(Connection connection,
+      String query) throws SQLException {
+    Map<String, PreparedStatement> statements = statementCache.get(connection);
+    if (statements == null) {
+      // A checked out Connection is used by only one thread at a time.
+      statements = new HashMap<String, PreparedStatement>();
+      statementCache.put(connection, statements);
+    }
+    PreparedStatement statement = statements.get(query);
+    if (statement == null) {
+      statement = connection.prepareStatement(query);
+      statements.put(query, statement);
+    }
+    return statement;
+  }
+
+  /**
+   * Closes and discards the cached {@link PreparedStatement
+   * PreparedStatements} for a {@link Connection}, after a failure that
+   * may have left them unusable.
+   *
+   * @param connection a Connection checked out of this pool
+   * @since 3.4
+   */
+  public void closeStatements(Connection connection) {
+    Map<String, PreparedStatement> statements =
+        statementCache.remove(connection);
+    if (statements != null) {
+      for (PreparedStatement statement : statements.values()) {
+        try {
+          statement.close();
+        } catch (SQLException ignored) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Empties the connection pool, closing all its idle
+   * {@link Connection Connections}, and stops its background task.
+   * The background task is started again if the pool is used again.
+   */
+  public void closeConnections() {
+    cancelMaintenance();
+    IdleConnection idle = idleConnections.getAndSet(null);
+    while (idle != null) {
+      idleCount.decrementAndGet();
+      close(idle.connection);
+      idle = idle.next;
+    }
+  }
+
+  /** Returns the number of Connections currently checked out. */
+  public int getActiveConnectionCount() {
+    return activeCount.get();
+  }
+
+  /** Returns the number of idle Connections in the pool. */
+  public int getIdleConnectionCount() {
+    return idleCount.get();
+  }
+
+  /** Returns the number of times a Connection has been checked out. */
+  public long getCheckoutCount() {
+    return checkoutCount.get();
+  }
+
+  /** Returns the number of new Connections obtained from the DataSource. */
+  public long getCreatedCount() {
+    return createdCount.get();
+  }
+
+  /** Returns the number of pooled Connections found to be invalid. */
+  public long getInvalidCount() {
+    return invalidCount.get();
+  }
+
+  /** Returns the number of checkouts that had to wait for a Connection. */
+  public long getWaitCount() {
+    return waitCount.get();
+  }
+
+  /** Returns the total time, in milliseconds, spent waiting. */
+  public long getTotalWaitMillis() {
+    return totalWaitMillis.get();
+  }
+
+  /** Returns the longest time, in milliseconds, spent waiting. */
+  public long getMaxWaitMillis() {
+    return maxWaitMillis.get();
+  }
+
+  /** Returns the number of checkouts that timed out waiting. */
+  public long getTimeoutCount() {
+    return timeoutCount.get();
+  }
+
+  /** Returns the number of possibly leaked Connections detected. */
+  public long getLeakCount() {
+    return leakCount.get();
+  }
+
+  /** Reserves a Connection if fewer than maxSize are checked out. */
+  private boolean tryReserve() {
+    while (true) {
+      int active = activeCount.get();
+      if (active >= maxSize) {
+        return false;
+      }
+      if (activeCount.compareAndSet(active, active + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private void unreserve() {
+    activeCount.decrementAndGet();
+    signalWaiters();
+  }
+
+  private void signalWaiters() {
+    synchronized (waitLock) {
+      if (waiters > 0) {
+        waitLock.notifyAll();
+      }
+    }
+  }
+
+  /** Waits up to maxWait milliseconds to reserve a Connection. */
+  private void waitToReserve() throws SQLException {
+    long start = clock.getTimeMillis();
+    long deadline = start + maxWait;
+    waitCount.incrementAndGet();
+    try {
+      synchronized (waitLock) {
+        waiters++;
+        try {
+          while (!tryReserve()) {
+            long remaining = deadline - clock.getTimeMillis();
+            if (remaining <= 0) {
+              timeoutCount.incrementAndGet();
+              throw new SQLException("Timed out waiting for a database "
+                  + "connection after " + maxWait + " ms; " + activeCount.get()
+                  + " connections are in use");
+            }
+            waitLock.wait(remaining);
+          }
+        } finally {
+          waiters--;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a database connection");
+    } finally {
+      long waited = clock.getTimeMillis() - start;
+      totalWaitMillis.addAndGet(waited);
+      long max = maxWaitMillis.get();
+      while (waited > max && !maxWaitMillis.compareAndSet(max, waited)) {
+        max = maxWaitMillis.get();
+      }
+    }
+  }
+
+  private void push(IdleConnection idle) {
+    do {
+      idle.next = idleConnections.get();
+    } while (!idleConnections.compareAndSet(idle.next, idle));
+    idleCount.incrementAndGet();
+  }
+
+  private IdleConnection pop() {
+    while (true) {
+      IdleConnection top = idleConnections.get();
+      if (top == null) {
+        return null;
+      }
+      if (idleConnections.compareAndSet(top, top.next)) {
+        idleCount.decrementAndGet();
+        return top;
+      }
+    }
+  }
+
+  /**
+   * Pops idle Connections until one is usable, closing the others.
+   *
+   * @return a usable Connection, or {@code null} if there are none
+   */
+  private Connection popUsableConnection() {
+    IdleConnection idle;
+    while ((idle = pop()) != null) {
+      // Get a cached connection, but check if it is still functional.
+      if (isUsable(idle)) {
+        return idle.connection;
+      }
+      // Close dead connection.
+      invalidCount.incrementAndGet();
+      close(idle.connection);
+    }
+    return null;
+  }
+
+  /**
+   * Returns {@code true} if the idle Connection may be used.  Only
+   * Connections that have been idle for at least validationIdleTime
+   * are validated with a round trip to the database.
+   */
+  private boolean isUsable(IdleConnection idle) {
+    if (clock.getTimeMillis() - idle.idleSince >= validationIdleTime) {
+      return isAlive(idle.connection);
+    }
+    try {
+      return !idle.connection.isClosed();
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Closes idle Connections beyond minIdle that have been idle for longer
+   * than maxIdleTime, and logs Connections that have been checked out for
+   * longer than leakDetectionThreshold.
+   */
+  @VisibleForTesting
+  void performMaintenance() {
+    long now = clock.getTimeMillis();
+
+    // Take all the idle connections, and push back those to keep,
+    // in their original order.  The kept connections are pushed in new
+    // entries, because a concurrent pop() may still hold an old entry,
+    // and must not be able to swap it back onto the stack (the ABA
+    // problem).
+    List<IdleConnection> keep = new ArrayList<IdleConnection>();
+    IdleConnection idle = idleConnections.getAndSet(null);
+    while (idle != null) {
+      idleCount.decrementAndGet();
+      if (keep.size() < minIdle || now - idle.idleSince <= maxIdleTime) {
+        keep.add(idle);
+      } else {
+        LOGGER.finest("Closing idle connection " + idle.connection);
+        close(idle.connection);
+      }
+      idle = idle.next;
+    }
+    for (int i = keep.size() - 1; i >= 0; i--) {
+      IdleConnection kept = keep.get(i);
+      push(new IdleConnection(kept.connection, kept.idleSince));
+    }
+
+    long threshold = leakDetectionThreshold;
+    if (threshold > 0) {
+      for (Map.Entry<Connection, Checkout> entry : checkouts.entrySet()) {
+        Checkout checkout = entry.getValue();
+        if (!checkout.reported && now - checkout.time > threshold) {
+          checkout.reported = true;
+          leakCount.incrementAndGet();
+          LOGGER.log(Level.WARNING, "Database connection " + entry.getKey()
+              + " has been checked out for " + (now - checkout.time)
+              + " ms, and may have been leaked", checkout.caller);
+        }
+      }
+    }
+  }
+
+  /** Schedules the maintenance task when the pool is first used. */
+  private void scheduleMaintenance() {
+    long interval = maintenanceInterval;
+    if (interval > 0 && !maintenanceScheduled.get()) {
+      synchronized (DatabaseConnectionPool.class) {
+        if (maintenanceTask == null) {
+          if (maintenanceTimer == null) {
+            maintenanceTimer = new Timer("DatabaseConnectionPool", true);
+          }
+          maintenanceTask = new MaintenanceTask(this);
+          maintenanceTimer.schedule(maintenanceTask, interval, interval);
+          maintenanceTaskCount++;
+        }
+        maintenanceScheduled.set(true);
+      }
+    }
+  }
+
+  /** Cancels the maintenance task, if it is scheduled. */
+  private void cancelMaintenance() {
+    synchronized (DatabaseConnectionPool.class) {
+      if (maintenanceTask != null) {
+        maintenanceTask.stop();
+        maintenanceTask = null;
+      }
+      maintenanceScheduled.set(false);
+    }
+  }
+
+  /** Returns the number of maintenance tasks scheduled for all the pools. */
+  @VisibleForTesting
+  static synchronized int getMaintenanceTaskCount() {
+    return maintenanceTaskCount;
   }
 
   /**
-   * Empties the connection pool, closing all its
-   * {@link Connection Connections}.
+   * Runs the maintenance of a pool, without keeping an unused pool from
+   * being finalized.
    */
-  public synchronized void closeConnections() {
-    for (Connection conn : connections) {
-      close(conn);
+  private static class MaintenanceTask extends TimerTask {
+    private final WeakReference<DatabaseConnectionPool> poolRef;
+
+    /** Guarded by DatabaseConnectionPool.class. */
+    private boolean stopped = false;
+
+    MaintenanceTask(DatabaseConnectionPool pool) {
+      this.poolRef = new WeakReference<DatabaseConnectionPool>(pool);
+    }
+
+    /**
+     * Cancels this task, and the shared timer if no other tasks remain.
+     * This may be called both by the pool and by the task itself.
+     */
+    void stop() {
+      synchronized (DatabaseConnectionPool.class) {
+        if (stopped) {
+          return;
+        }
+        stopped = true;
+        cancel();
+        if (--maintenanceTaskCount == 0) {
+          maintenanceTimer.cancel();
+          maintenanceTimer = null;
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      DatabaseConnectionPool pool = poolRef.get();
+      if (pool == null) {
+        stop();
+        return;
+      }
+      try {
+        pool.performMaintenance();
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Database connection pool maintenance "
+            + "failed", e);
+      }
     }
-    connections.clear();
   }
 
   /**
@@ -122,8 +724,9 @@ public class DatabaseConnectionPool {
     }
   }
 
-  /** Closes the Connection silently. */
+  /** Closes the Connection and its cached statements silently. */
   private void close(Connection conn) {
+    closeStatements(conn);
     try {
       conn.close();
     } catch (SQLException ignored) {
@@ -93,7 +93,7 @@ public class ChangeQueue implements ChangeSource {
         DefaultCrawlActivityLogger.class.getName());
 
     @Override
-    public void scanBeginAt(Timestamp time) {
+    public synchronized void scanBeginAt(Timestamp time) {
       logCrawlStatistics();
       resetLogStatistics();
       startTime = time;
@@ -101,7 +101,7 @@ public class ChangeQueue implements ChangeSource {
     }
 
     @Override
-    public void scanEndAt(Timestamp time) {
+    public synchronized void scanEndAt(Timestamp time) {
       endTime = time;
       LOG.info("Scan completed at : " + endTime);
       logCrawlStatistics();
@@ -140,19 +140,19 @@ public class ChangeQueue implements ChangeSource {
     }
 
     @Override
-    public void gotChangedDocument(String documentId) {
+    public synchronized void gotChangedDocument(String documentId) {
       ++changedDocumentCount;
       LOG.fine("Changed document found during the crawl; document id is : " + documentId);
     }
 
     @Override
-    public void gotDeletedDocument(String documentId) {
+    public synchronized void gotDeletedDocument(String documentId) {
       ++deletedDocumentCount;
       LOG.fine("Deleted document found during the crawl; document id is : " + documentId);
     }
 
     @Override
-    public void gotNewDocument(String documentId) {
+    public synchronized void gotNewDocument(String documentId) {
       ++newDocumentCount;
       LOG.fine("New document found during the crawl; document id is : " + documentId);
     }
@@ -20,17 +20,22 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONWriter;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
@@ -42,6 +47,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 /**
  * Queue of {@code CheckpointAndChange} objects to be processed by the
@@ -52,6 +58,14 @@ import java.util.logging.Logger;
  * {@code CheckpointAndChange} objects remain until the client
  * indicates they have completed processing by calling {@link #resume(String)}
  * with the object's checkpoint or a later object's checkpoint.
+ * <p>
+ * The queue is persisted to a single recovery file in {@code persistDir}.
+ * The file begins with a snapshot of the whole queue, and each call to
+ * {@link #resume(String)} appends a checksummed journal record of just
+ * the changes removed from and added to the queue.  Once the journal
+ * has grown larger than the snapshot, the queue is compacted into a new
+ * recovery file.  On restart the snapshot is loaded and the journal
+ * replayed up to the first incomplete or corrupt record.
  *
  * @since 2.8
  */
@@ -65,6 +79,10 @@ public class CheckpointAndChangeQueue {
   private static final String RECOVERY_FILE_PREFIX = "recovery.";
   private static final String QUEUE_JSON_TAG = "Q";
   private static final String MONITOR_STATE_JSON_TAG = "MON";
+  private static final String REMOVED_JSON_TAG = "R";
+
+  /** The smallest journal that is worth compacting, in bytes. */
+  private static final long DEFAULT_COMPACTION_THRESHOLD = 64 * 1024L;
 
   private final AtomicInteger maximumQueueSize =
       new AtomicInteger(DEFAULT_MAXIMUM_QUEUE_SIZE);
@@ -77,6 +95,16 @@ public class CheckpointAndChangeQueue {
   private final File persistDir;  // place to persist enqueued values
   private MonitorRestartState monitorPoints = new MonitorRestartState();
 
+  /** The current recovery file, or null if the queue has not been saved. */
+  private RecoveryFile recoveryFile;
+  /** The length of the snapshot at the head of the recovery file. */
+  private long snapshotLength;
+  /** The length of the journal appended to the snapshot. */
+  private long journalLength;
+  /** Set if the recovery file does not match the queue. */
+  private boolean snapshotRequired = true;
+  private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
   /** Convenient way to log some IOException instances. */
   private static class LoggingIoException extends IOException {
     LoggingIoException(String msg) {
@@ -399,6 +427,8 @@ public class CheckpointAndChangeQueue {
       } catch (JSONException e) {
         throw new IOException("Failed writing recovery file.", e);
       }
+      // The journal records follow the snapshot, one per line.
+      writer.write('\n');
       writer.flush();
       outStream.getFD().sync();
     } finally {
@@ -406,9 +436,99 @@ public class CheckpointAndChangeQueue {
     }
   }
 
-  private void loadUpFromRecoveryState(RecoveryFile file) throws IOException {
+  /**
+   * Loads the snapshot from the recovery file, then replays the
+   * journal, if any.  Replay stops at the first incomplete or corrupt
+   * journal record, which can only be the result of a failed write.
+   *
+   * @return the length of the snapshot if it is followed by an empty
+   *         journal, or -1 if the journal must be compacted
+   */
+  private long loadUpFromRecoveryState(RecoveryFile file) throws IOException {
     // TODO(pjo): Move this method into RecoveryFile.
     new LoadingQueueReader().readJson(file);
+
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      // The snapshot is all on the first line.
+      long offset = 0;
+      int b;
+      do {
+        b = in.read();
+        offset++;
+      } while (b != -1 && b != '\n');
+      if (b == -1) {
+        return -1;
+      }
+
+      int replayed = 0;
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      while ((b = in.read()) != -1) {
+        if (b != '\n') {
+          line.write(b);
+          continue;
+        }
+        if (!replayJournalRecord(line.toByteArray())) {
+          LOG.warning("Ignoring corrupt journal record in recovery file "
+              + file.getAbsolutePath() + " at offset " + offset);
+          break;
+        }
+        offset += line.size() + 1;
+        line.reset();
+        replayed++;
+      }
+      LOG.fine("Replayed " + replayed + " journal records from "
+          + file.getAbsolutePath());
+      return (replayed == 0) ? offset : -1;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Applies a journal record to the queue, exactly as the call to
+   * {@link #resume(String)} that wrote it did.
+   *
+   * @return true if the record was valid and has been applied
+   */
+  private boolean replayJournalRecord(byte[] line) {
+    String record = new String(line, Charsets.UTF_8);
+    int space = record.indexOf(' ');
+    if (space < 0) {
+      return false;
+    }
+    String json = record.substring(space + 1);
+    try {
+      if (Long.parseLong(record.substring(0, space), 16) != checksum(json)) {
+        return false;
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    }
+
+    String removedThrough;
+    List<CheckpointAndChange> added = new ArrayList<CheckpointAndChange>();
+    try {
+      JSONObject journalRecord = new JSONObject(json);
+      removedThrough = journalRecord.optString(REMOVED_JSON_TAG, null);
+      JSONArray queue = journalRecord.getJSONArray(QUEUE_JSON_TAG);
+      for (int i = 0; i < queue.length(); i++) {
+        added.add(new CheckpointAndChange(queue.getJSONObject(i),
+            internalDocumentHandleFactory, clientDocumentHandleFactory));
+      }
+    } catch (JSONException e) {
+      return false;
+    }
+    removeCompletedChanges(removedThrough);
+    checkpointAndChangeList.addAll(added);
+    monitorPoints.updateOnGuaranteed(checkpointAndChangeList);
+    return true;
+  }
+
+  private static long checksum(String json) {
+    CRC32 crc = new CRC32();
+    crc.update(json.getBytes(Charsets.UTF_8));
+    return crc.getValue();
   }
 
   private RecoveryFile[] allRecoveryFiles() throws IOException {
@@ -435,11 +555,23 @@ public class CheckpointAndChangeQueue {
     ensurePersistDirExists();
     checkpointAndChangeList.clear();
     lastCheckpoint = constructLastCheckpoint(checkpointString);
+    recoveryFile = null;
+    snapshotRequired = true;
     if (null == checkpointString) {
       removeAllRecoveryState();
     } else {
       RecoveryFile current = removeExcessRecoveryState();
-      loadUpFromRecoveryState(current);
+      long length = loadUpFromRecoveryState(current);
+      recoveryFile = current;
+      if (length == current.length()) {
+        // A snapshot with an empty journal; append to it as is.
+        snapshotLength = length;
+        journalLength = 0;
+        snapshotRequired = false;
+      } else {
+        // Compact the journal, dropping any torn record at its end.
+        writeSnapshot();
+      }
     }
   }
 
@@ -460,26 +592,115 @@ public class CheckpointAndChangeQueue {
    */
   synchronized List<CheckpointAndChange> resume(String checkpointString)
       throws IOException {
-    removeCompletedChanges(checkpointString);
+    boolean removed = removeCompletedChanges(checkpointString);
+    int firstAdded = checkpointAndChangeList.size();
     loadUpFromChangeSource();
     monitorPoints.updateOnGuaranteed(checkpointAndChangeList);
-    RecoveryFile recoveryFile = new RecoveryFile(persistDir);
+    if (snapshotRequired || (journalLength >= compactionThreshold
+        && journalLength >= snapshotLength)) {
+      writeSnapshot();
+    } else {
+      appendJournalRecord(removed ? checkpointString : null, firstAdded);
+    }
+    return getList();
+  }
+
+  /**
+   * Writes the whole queue to a new recovery file, and deletes the
+   * previous one.
+   */
+  private void writeSnapshot() throws IOException {
+    RecoveryFile newFile = new RecoveryFile(persistDir);
+    try {
+      writeRecoveryState(newFile);
+    } catch (IOException e) {
+      // Avoid filling the disk with recovery files, if we cannot recover.
+      if (newFile.exists()) {
+        newFile.delete();
+      }
+      snapshotRequired = true;
+      throw e;
+    }
+    if (recoveryFile != null) {
+      recoveryFile.logOnFailDelete();
+    }
+    recoveryFile = newFile;
+    snapshotLength = newFile.length();
+    journalLength = 0;
+    snapshotRequired = false;
+  }
+
+  /**
+   * Appends a journal record of the changes completed and added by a
+   * call to {@link #resume(String)} to the recovery file.
+   *
+   * @param removedThrough the checkpoint through which changes were
+   *        removed from the queue, or null if none were removed
+   * @param firstAdded the index of the first change added to the queue
+   */
+  private void appendJournalRecord(String removedThrough, int firstAdded)
+      throws IOException {
+    List<CheckpointAndChange> added = checkpointAndChangeList.subList(
+        firstAdded, checkpointAndChangeList.size());
+    if (removedThrough == null && added.isEmpty()) {
+      return;
+    }
+    String json;
+    try {
+      JSONObject journalRecord = new JSONObject();
+      if (removedThrough != null) {
+        journalRecord.put(REMOVED_JSON_TAG, removedThrough);
+      }
+      JSONArray queue = new JSONArray();
+      for (CheckpointAndChange guaranteed : added) {
+        queue.put(guaranteed.getJson());
+      }
+      journalRecord.put(QUEUE_JSON_TAG, queue);
+      json = journalRecord.toString();
+    } catch (JSONException e) {
+      throw new IOException("Failed writing recovery journal.", e);
+    }
+    byte[] record = String.format("%08x %s\n", checksum(json), json)
+        .getBytes(Charsets.UTF_8);
+
+    FileOutputStream outStream = new FileOutputStream(recoveryFile, true);
     try {
       try {
-        writeRecoveryState(recoveryFile);
+        outStream.write(record);
+        outStream.getFD().sync();
       } finally {
-        // TODO: Enhance with mechanism that remembers
-        // information about recovery files to avoid re-reading.
-        removeExcessRecoveryState();
+        outStream.close();
       }
     } catch (IOException e) {
-      // Avoid filling the disk with recovery files, if we cannot recover.
-      if (recoveryFile.exists()) {
-        recoveryFile.delete();
-      }
+      // Drop any partial record, and start afresh on the next resume.
+      truncateRecoveryFile(snapshotLength + journalLength);
+      snapshotRequired = true;
       throw e;
     }
-    return getList();
+    journalLength += record.length;
+  }
+
+  private void truncateRecoveryFile(long length) {
+    try {
+      RandomAccessFile file = new RandomAccessFile(recoveryFile, "rw");
+      try {
+        file.setLength(length);
+      } finally {
+        file.close();
+      }
+    } catch (IOException e) {
+      LOG.severe("Failed to truncate: " + recoveryFile.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Sets the smallest journal size, in bytes, that will be compacted.
+   * The journal is compacted once it is at least this large, and
+   * larger than the snapshot.
+   */
+  @VisibleForTesting
+  synchronized void setCompactionThreshold(long compactionThreshold) {
+    this.compactionThreshold = compactionThreshold;
   }
 
   public synchronized void setMaximumQueueSize(int maximumQueueSize) {
@@ -520,9 +741,11 @@ public class CheckpointAndChangeQueue {
     writer.endObject();
   }
 
-  private void removeCompletedChanges(String checkpointString) {
+  /** @return true if any changes were removed */
+  private boolean removeCompletedChanges(String checkpointString) {
+    boolean removed = false;
     if (checkpointString == null) {
-      return;
+      return removed;
     } else {
       DiffingConnectorCheckpoint checkpoint
           = DiffingConnectorCheckpoint.fromJsonString(checkpointString);
@@ -538,10 +761,12 @@ public class CheckpointAndChangeQueue {
         } else {
           // Has been sent.  Remove it.
           iterator.remove();
+          removed = true;
           // Monitors can consider these changes sent too.
           // monitorPoints.updateOnCompleted(current.getChange());
         }
       }
+      return removed;
     }
   }
 
@@ -634,6 +859,8 @@ public class CheckpointAndChangeQueue {
   }
 
   void clean() {
+    recoveryFile = null;
+    snapshotRequired = true;
     try {
       removeAllRecoveryState();
     } catch (IOException e) {
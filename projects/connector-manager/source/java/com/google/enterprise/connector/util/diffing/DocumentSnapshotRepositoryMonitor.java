@@ -24,6 +24,7 @@ import com.google.enterprise.connector.spi.TraversalScheduleAware;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -158,6 +159,9 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
   /* The monitor should exit voluntarily if set to false */
   private volatile boolean isRunning = true;
 
+  /* Limits the number of concurrent passes, or null if there is no limit. */
+  private volatile Semaphore passPermits;
+
   /**
    * Creates a DocumentSnapshotRepositoryMonitor that monitors the
    * Repository rooted at {@code root}.
@@ -194,7 +198,10 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     if (readRecNum < 0) {
       readRecNum = 0;
     }
-    long writeRecNum = snapshotWriter.getRecordCount();
+    // Only the synced records survive a crash, and a checkpoint that
+    // covers fewer written records is safe: SnapshotStore.stitch drops
+    // the rest, and the next pass finds their documents as new.
+    long writeRecNum = snapshotWriter.getSyncedRecordCount();
     return new MonitorCheckpoint(name, snapNum, readRecNum, writeRecNum);
   }
 
@@ -310,6 +317,10 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
   private void doOnePass() throws SnapshotStoreException,
       InterruptedException {
     callback.passBegin();
+    Semaphore permits = passPermits;
+    if (permits != null) {
+      permits.acquire();
+    }
     try {
       // Open the most recent snapshot and read the first record.
       this.snapshotReader = snapshotStore.openMostRecentSnapshot();
@@ -341,6 +352,10 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
       } catch (IOException e) {
         LOG.log(Level.WARNING, "Failed closing snapshot reader and writer.", e);
         // Try to proceed anyway.  Weird they are not closing.
+      } finally {
+        if (permits != null) {
+          permits.release();
+        }
       }
     }
     if (current != null) {
@@ -457,6 +472,19 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     tryToRunForever();
   }
 
+  /**
+   * Sets a {@link Semaphore} shared by the monitors of the partitions of a
+   * {@link PartitionedSnapshotRepository}, which limits the number of
+   * partitions that are scanned at the same time.  A permit is held while
+   * this monitor scans its repository and compares it to the snapshot,
+   * but not while the monitor waits between passes.
+   *
+   * @param passPermits a {@code Semaphore}, or {@code null} for no limit
+   */
+  void setPassPermits(Semaphore passPermits) {
+    this.passPermits = passPermits;
+  }
+
   public void shutdown() {
     LOG.log(Level.WARNING, "Shutdown the monitor thread " + name
         + " @ " + this);
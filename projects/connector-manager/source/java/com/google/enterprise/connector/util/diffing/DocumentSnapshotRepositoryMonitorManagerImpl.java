@@ -26,6 +26,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
 
 /**
@@ -37,6 +38,11 @@ import java.util.logging.Logger;
  * their recovery method.  It creates and manages the
  * {@link DocumentSnapshotRepositoryMonitor} instances and passes guaranteed
  * checkpoints to these monitors.
+ * <p>
+ * Each partition of a {@link PartitionedSnapshotRepository} gets its own
+ * monitor, snapshot store and {@link MonitorCheckpoint}, and at most
+ * {@link #setPartitionScanThreads partitionScanThreads} partitions of a
+ * repository are scanned at the same time.
  *
  * @since 2.8
  */
@@ -72,6 +78,9 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
 
   private final DocumentSnapshotFactory documentSnapshotFactory;
 
+  /** The most partitions of a repository to scan at the same time. */
+  private volatile int partitionScanThreads = 4;
+
   /**
    * Constructs {@link DocumentSnapshotRepositoryMonitorManagerImpl}
    * for the {@link DiffingConnector}.
@@ -101,9 +110,46 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
     this.checkpointAndChangeQueue = checkpointAndChangeQueue;
   }
 
-  private void flagAllMonitorsToStop() {
+  /**
+   * Sets the maximum number of partitions of a
+   * {@link PartitionedSnapshotRepository} that are scanned at the same
+   * time.  This takes effect the next time the monitors are started.
+   *
+   * @param partitionScanThreads a positive number of partitions
+   * @since 3.4
+   */
+  public void setPartitionScanThreads(int partitionScanThreads) {
+    if (partitionScanThreads > 0) {
+      this.partitionScanThreads = partitionScanThreads;
+    } else {
+      LOG.warning("Invalid partition scan threads: " + partitionScanThreads);
+    }
+  }
+
+  /**
+   * Returns the repositories to monitor, replacing each
+   * {@link PartitionedSnapshotRepository} with its partitions.
+   */
+  private List<SnapshotRepository<? extends DocumentSnapshot>>
+      getMonitoredRepositories() {
+    List<SnapshotRepository<? extends DocumentSnapshot>> monitored =
+        new ArrayList<SnapshotRepository<? extends DocumentSnapshot>>();
     for (SnapshotRepository<? extends DocumentSnapshot> repository
         : repositories) {
+      if (repository instanceof PartitionedSnapshotRepository) {
+        monitored.addAll(
+            ((PartitionedSnapshotRepository<? extends DocumentSnapshot>)
+                repository).getPartitions());
+      } else {
+        monitored.add(repository);
+      }
+    }
+    return monitored;
+  }
+
+  private void flagAllMonitorsToStop() {
+    for (SnapshotRepository<? extends DocumentSnapshot> repository
+        : getMonitoredRepositories()) {
       String monitorName = makeMonitorNameFromStartPath(repository.getName());
       DocumentSnapshotRepositoryMonitor
           monitor = fileSystemMonitorsByName.get(monitorName);
@@ -152,7 +198,7 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
     Map<String, SnapshotStore> snapshotStores =
         new HashMap<String, SnapshotStore>();
     for (SnapshotRepository<? extends DocumentSnapshot> repository
-        : repositories) {
+        : getMonitoredRepositories()) {
       String monitorName = makeMonitorNameFromStartPath(repository.getName());
       File dir = new File(snapshotDir,  monitorName);
 
@@ -165,11 +211,11 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
         delete(dir);
       } else {
         SnapshotStore.stitch(dir, monitorPoints.get(monitorName),
-            documentSnapshotFactory);
+            documentSnapshotFactory, true);
       }
 
       SnapshotStore snapshotStore = new SnapshotStore(dir,
-          documentSnapshotFactory);
+          documentSnapshotFactory, true);
 
       snapshotStores.put(monitorName, snapshotStore);
     }
@@ -257,14 +303,15 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
    */
   private Thread newMonitorThread(
       SnapshotRepository<? extends DocumentSnapshot> repository,
-      SnapshotStore snapshotStore, MonitorCheckpoint startCp)
-      throws RepositoryDocumentException {
+      SnapshotStore snapshotStore, MonitorCheckpoint startCp,
+      Semaphore passPermits) throws RepositoryDocumentException {
     String monitorName = makeMonitorNameFromStartPath(repository.getName());
     DocumentSnapshotRepositoryMonitor monitor =
         new DocumentSnapshotRepositoryMonitor(monitorName, repository,
             snapshotStore, changeQueue.newCallback(), DOCUMENT_SINK, startCp,
             documentSnapshotFactory);
     monitor.setTraversalSchedule(traversalSchedule);
+    monitor.setPassPermits(passPermits);
     LOG.fine("Adding a new monitor for " + monitorName + ": " + monitor);
     fileSystemMonitorsByName.put(monitorName, monitor);
     return new Thread(monitor);
@@ -272,7 +319,10 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
 
   /**
    * Creates a {@link DocumentSnapshotRepositoryMonitor} thread for each
-   * startPath.
+   * startPath, and for each partition of a
+   * {@link PartitionedSnapshotRepository}.  The monitors of the partitions
+   * of a repository share a {@link Semaphore} that limits the number of
+   * partitions scanned at the same time.
    *
    * @throws RepositoryDocumentException if any of the threads cannot be
    *         started.
@@ -283,19 +333,37 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
 
     for (SnapshotRepository<? extends DocumentSnapshot> repository
             : repositories) {
-      String monitorName = makeMonitorNameFromStartPath(repository.getName());
-      SnapshotStore snapshotStore = snapshotStores.get(monitorName);
-      Thread monitorThread = newMonitorThread(repository, snapshotStore,
-          monitorPoints.get(monitorName));
-      threads.add(monitorThread);
-
-      LOG.info("starting monitor for <" + repository.getName() + ">");
-      monitorThread.setName(repository.getName());
-      monitorThread.setDaemon(true);
-      monitorThread.start();
+      if (repository instanceof PartitionedSnapshotRepository) {
+        Semaphore passPermits = new Semaphore(partitionScanThreads, true);
+        for (SnapshotRepository<? extends DocumentSnapshot> partition
+            : ((PartitionedSnapshotRepository<? extends DocumentSnapshot>)
+                repository).getPartitions()) {
+          startMonitorThread(partition, snapshotStores, monitorPoints,
+              passPermits);
+        }
+      } else {
+        startMonitorThread(repository, snapshotStores, monitorPoints, null);
+      }
     }
   }
 
+  private void startMonitorThread(
+      SnapshotRepository<? extends DocumentSnapshot> repository,
+      Map<String, SnapshotStore> snapshotStores,
+      Map<String, MonitorCheckpoint> monitorPoints, Semaphore passPermits)
+      throws RepositoryDocumentException {
+    String monitorName = makeMonitorNameFromStartPath(repository.getName());
+    SnapshotStore snapshotStore = snapshotStores.get(monitorName);
+    Thread monitorThread = newMonitorThread(repository, snapshotStore,
+        monitorPoints.get(monitorName), passPermits);
+    threads.add(monitorThread);
+
+    LOG.info("starting monitor for <" + repository.getName() + ">");
+    monitorThread.setName(repository.getName());
+    monitorThread.setDaemon(true);
+    monitorThread.start();
+  }
+
   @Override
   public synchronized boolean isRunning() {
     return isRunning;
@@ -320,7 +388,7 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
     this.traversalSchedule = traversalSchedule;
     changeQueue.setSleepInterval(traversalSchedule.getRetryDelay() * 1000);
     for (SnapshotRepository<? extends DocumentSnapshot> repository
-        : repositories) {
+        : getMonitoredRepositories()) {
       String monitorName = makeMonitorNameFromStartPath(repository.getName());
       DocumentSnapshotRepositoryMonitor monitor = 
           fileSystemMonitorsByName.get(monitorName);
@@ -0,0 +1,369 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import static com.google.enterprise.connector.util.diffing.IndexedSnapshotWriter.BLOCK_HEADER_LENGTH;
+import static com.google.enterprise.connector.util.diffing.IndexedSnapshotWriter.HEADER_LENGTH;
+import static com.google.enterprise.connector.util.diffing.IndexedSnapshotWriter.INDEX_ENTRY_LENGTH;
+import static com.google.enterprise.connector.util.diffing.IndexedSnapshotWriter.INDEX_MARKER;
+import static com.google.enterprise.connector.util.diffing.IndexedSnapshotWriter.MAGIC;
+import static com.google.enterprise.connector.util.diffing.IndexedSnapshotWriter.TRAILER_LENGTH;
+import static com.google.enterprise.connector.util.diffing.IndexedSnapshotWriter.TRAILER_MAGIC;
+import static com.google.enterprise.connector.util.diffing.IndexedSnapshotWriter.VERSION;
+
+import com.google.common.base.Charsets;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads snapshot records written by an {@link IndexedSnapshotWriter}.
+ * Blocks are read at their offsets in a {@link RandomAccessFile}, rather
+ * than a {@code FileChannel} that would be closed if the monitor thread
+ * were interrupted, and records are skipped using the block index, so
+ * that restarting at a checkpoint reads at most one block.  A snapshot
+ * without an index, left by a crash, is read sequentially up to the
+ * first incomplete or corrupt block.
+ */
+class IndexedRecordReader
+    implements SnapshotReader.SkippingRecordReader, Closeable {
+  private static final Logger LOG =
+      Logger.getLogger(IndexedRecordReader.class.getName());
+
+  private final String inputPath;
+  private final RandomAccessFile file;
+
+  /** The file offsets of the blocks, or null if there is no index. */
+  private long[] blockOffsets;
+
+  /** The number of the first record in each block. */
+  private long[] blockFirstRecords;
+
+  /** The offset of the end of the blocks. */
+  private long blocksEnd;
+
+  private final Inflater inflater = new Inflater();
+  private final CRC32 crc = new CRC32();
+  private final ByteBuffer blockHeader =
+      ByteBuffer.allocate(BLOCK_HEADER_LENGTH);
+  private byte[] compressed = new byte[0];
+  private byte[] block = new byte[0];
+
+  /* The header of the most recently read block. */
+  private int uncompressedLength;
+  private int compressedLength;
+  private int blockRecordCount;
+  private int checksum;
+
+  /** The offset of the next record in the current block. */
+  private int position;
+  private int blockLength;
+  private int blockRemaining;
+  private long nextBlockOffset = HEADER_LENGTH;
+
+  /** The number of records read or skipped. */
+  private long recordCount;
+  private boolean done;
+
+  /**
+   * Returns {@code true} if the file begins with the
+   * {@link IndexedSnapshotWriter#MAGIC} number.
+   */
+  static boolean isIndexedSnapshot(File input) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(input));
+    try {
+      return in.readInt() == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Opens the snapshot, and reads its index, if any.
+   *
+   * @param input the snapshot file
+   * @throws IOException if the file cannot be read
+   * @throws SnapshotReaderException if the file has an unknown version
+   */
+  IndexedRecordReader(File input) throws IOException, SnapshotReaderException {
+    this.inputPath = input.getAbsolutePath();
+    this.file = new RandomAccessFile(input, "r");
+    try {
+      ByteBuffer header = read(0, HEADER_LENGTH);
+      header.getInt();
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new SnapshotReaderException(String.format(
+            "unsupported snapshot version (%s, version %d)",
+            inputPath, version));
+      }
+      readIndex();
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    } catch (SnapshotReaderException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /** Reads the index, if the file ends with a valid trailer. */
+  private void readIndex() throws IOException {
+    long length = file.length();
+    blocksEnd = length;
+    if (length < HEADER_LENGTH + TRAILER_LENGTH) {
+      return;
+    }
+    ByteBuffer trailer = read(length - TRAILER_LENGTH, TRAILER_LENGTH);
+    long indexOffset = trailer.getLong();
+    if (trailer.getInt() != TRAILER_MAGIC || indexOffset < HEADER_LENGTH
+        || indexOffset > length - TRAILER_LENGTH - 16) {
+      LOG.fine("Reading unindexed snapshot " + inputPath);
+      return;
+    }
+    ByteBuffer index =
+        read(indexOffset, (int) (length - TRAILER_LENGTH - indexOffset));
+    int count = index.getInt(4);
+    if (index.getInt(0) != INDEX_MARKER
+        || index.capacity() != 16 + count * (long) INDEX_ENTRY_LENGTH) {
+      LOG.warning("Ignoring invalid index in snapshot " + inputPath);
+      return;
+    }
+    index.position(8);
+    blockOffsets = new long[count];
+    blockFirstRecords = new long[count];
+    for (int i = 0; i < count; i++) {
+      blockOffsets[i] = index.getLong();
+      blockFirstRecords[i] = index.getLong();
+    }
+    blocksEnd = indexOffset;
+  }
+
+  /** Reads {@code length} bytes at the given offset. */
+  private ByteBuffer read(long offset, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    read(offset, buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  private void read(long offset, ByteBuffer buffer) throws IOException {
+    file.seek(offset + buffer.position());
+    file.readFully(buffer.array(), buffer.arrayOffset() + buffer.position(),
+        buffer.remaining());
+    buffer.position(buffer.limit());
+  }
+
+  /**
+   * Reads the header of the block at the given offset.
+   *
+   * @return {@code false} if there is no complete block at that offset
+   */
+  private boolean readBlockHeader(long offset) throws IOException,
+      SnapshotReaderException {
+    if (offset + BLOCK_HEADER_LENGTH > blocksEnd) {
+      return false;
+    }
+    blockHeader.clear();
+    read(offset, blockHeader);
+    blockHeader.flip();
+    uncompressedLength = blockHeader.getInt();
+    compressedLength = blockHeader.getInt();
+    blockRecordCount = blockHeader.getInt();
+    checksum = blockHeader.getInt();
+    if (uncompressedLength < 0 || compressedLength < 0
+        || blockRecordCount < 0
+        || offset + BLOCK_HEADER_LENGTH + compressedLength > blocksEnd) {
+      return corrupt(offset);
+    }
+    return true;
+  }
+
+  /**
+   * Handles an invalid block.  If the snapshot has an index it was
+   * closed cleanly, so the block is corrupt.  Otherwise, the block was
+   * being written when the writer stopped, and is the end of the snapshot.
+   */
+  private boolean corrupt(long offset) throws SnapshotReaderException {
+    if (blockOffsets != null) {
+      throw new SnapshotReaderException(String.format(
+          "failed to read corrupt snapshot block (%s, offset %d)",
+          inputPath, offset));
+    }
+    LOG.fine("Snapshot " + inputPath + " ends with an incomplete block at "
+        + offset);
+    return false;
+  }
+
+  /**
+   * Reads and decompresses the block at the given offset.
+   *
+   * @return {@code false} if there is no complete block at that offset
+   */
+  private boolean loadBlock(long offset) throws IOException,
+      SnapshotReaderException {
+    blockRemaining = 0;
+    if (!readBlockHeader(offset)) {
+      return false;
+    }
+    if (compressed.length < compressedLength) {
+      compressed = new byte[compressedLength];
+    }
+    read(offset + BLOCK_HEADER_LENGTH,
+        ByteBuffer.wrap(compressed, 0, compressedLength));
+    crc.reset();
+    crc.update(compressed, 0, compressedLength);
+    if ((int) crc.getValue() != checksum) {
+      return corrupt(offset);
+    }
+    if (block.length < uncompressedLength) {
+      block = new byte[uncompressedLength];
+    }
+    inflater.reset();
+    inflater.setInput(compressed, 0, compressedLength);
+    try {
+      if (inflater.inflate(block, 0, uncompressedLength) != uncompressedLength
+          || !inflater.finished()) {
+        return corrupt(offset);
+      }
+    } catch (DataFormatException e) {
+      return corrupt(offset);
+    }
+    position = 0;
+    blockLength = uncompressedLength;
+    blockRemaining = blockRecordCount;
+    nextBlockOffset = offset + BLOCK_HEADER_LENGTH + compressedLength;
+    return true;
+  }
+
+  /**
+   * Advances to the next record, loading the next block if needed.
+   *
+   * @return the length of the record, or -1 at the end of the snapshot
+   */
+  private int nextRecord() throws IOException, SnapshotReaderException {
+    while (blockRemaining == 0) {
+      if (done || !loadBlock(nextBlockOffset)) {
+        done = true;
+        return -1;
+      }
+    }
+    if (position + 4 > blockLength) {
+      corrupt(nextBlockOffset);
+      done = true;
+      return -1;
+    }
+    int length = ByteBuffer.wrap(block, position, 4).getInt();
+    position += 4;
+    if (length < 0 || position + length > blockLength) {
+      corrupt(nextBlockOffset);
+      done = true;
+      return -1;
+    }
+    blockRemaining--;
+    recordCount++;
+    return length;
+  }
+
+  @Override
+  public String readRecord() throws SnapshotReaderException {
+    try {
+      int length = nextRecord();
+      if (length < 0) {
+        return null;
+      }
+      String stringForm = new String(block, position, length, Charsets.UTF_8);
+      position += length;
+      return stringForm;
+    } catch (IOException e) {
+      throw new SnapshotReaderException(
+          String.format("failed to read snapshot record (%s, record %d)",
+              inputPath, recordCount + 1), e);
+    }
+  }
+
+  @Override
+  public long skipRecords(long number) throws SnapshotReaderException {
+    long target = recordCount + number;
+    try {
+      if (target - recordCount >= blockRemaining) {
+        // Skip the rest of the current block.
+        recordCount += blockRemaining;
+        blockRemaining = 0;
+        if (blockOffsets != null) {
+          seekToBlock(target);
+        } else {
+          skipBlocks(target);
+        }
+      }
+      while (recordCount < target) {
+        int length = nextRecord();
+        if (length < 0) {
+          break;
+        }
+        position += length;
+      }
+    } catch (IOException e) {
+      throw new SnapshotReaderException(
+          String.format("failed to skip snapshot records (%s, record %d)",
+              inputPath, recordCount + 1), e);
+    }
+    return number - (target - recordCount);
+  }
+
+  /** Uses the index to load the block holding the target record. */
+  private void seekToBlock(long target) throws IOException,
+      SnapshotReaderException {
+    int i = Arrays.binarySearch(blockFirstRecords, target);
+    if (i < 0) {
+      i = -i - 2;
+    }
+    if (i >= 0 && blockFirstRecords[i] > recordCount) {
+      recordCount = blockFirstRecords[i];
+      if (!loadBlock(blockOffsets[i])) {
+        done = true;
+      }
+    }
+  }
+
+  /** Reads only the block headers to skip whole blocks. */
+  private void skipBlocks(long target) throws IOException,
+      SnapshotReaderException {
+    while (!done && readBlockHeader(nextBlockOffset)
+        && target - recordCount >= blockRecordCount) {
+      recordCount += blockRecordCount;
+      nextBlockOffset += BLOCK_HEADER_LENGTH + compressedLength;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    inflater.end();
+    file.close();
+  }
+}
@@ -0,0 +1,218 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.NullOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes snapshot records in a binary format, with block compression
+ * and a sparse index of the record offsets.
+ * <p>
+ * The file begins with {@link #MAGIC} and {@link #VERSION}.  Records are
+ * collected into blocks of about {@link #BLOCK_SIZE} bytes, each record
+ * as the length of its UTF-8 string form followed by the string form.
+ * Each block is written deflated, preceded by its uncompressed length,
+ * compressed length, record count, and the CRC32 checksum of the
+ * compressed bytes.  Every {@link #sync} ends the current block, so the
+ * synced records are always whole blocks on disk.
+ * <p>
+ * When the writer is closed, an index of the file offset and first
+ * record number of each block is written, preceded by
+ * {@link #INDEX_MARKER} and followed by the total number of records.
+ * Last is a trailer holding the offset of the index and
+ * {@link #TRAILER_MAGIC}.  A file left without a trailer by a crash may
+ * still be read sequentially, up to the first incomplete block.
+ *
+ * @see IndexedRecordReader
+ */
+class IndexedSnapshotWriter extends SnapshotWriter {
+  static final int MAGIC = 0x00534e50;  // "\0SNP"
+  static final int VERSION = 1;
+  static final int INDEX_MARKER = -1;
+  static final int TRAILER_MAGIC = 0x534e5049;  // "SNPI"
+
+  static final int HEADER_LENGTH = 8;
+  static final int BLOCK_HEADER_LENGTH = 16;
+  static final int INDEX_ENTRY_LENGTH = 16;
+  static final int TRAILER_LENGTH = 12;
+
+  /** The uncompressed size at which a block is written. */
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  /** A ByteArrayOutputStream that exposes its buffer. */
+  private static class BlockBuffer extends ByteArrayOutputStream {
+    BlockBuffer(int size) {
+      super(size);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+
+  private final DataOutputStream data;
+  private final BlockBuffer block = new BlockBuffer(BLOCK_SIZE + 1024);
+  private final DataOutputStream blockData = new DataOutputStream(block);
+  private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+  private final DataOutputStream indexData = new DataOutputStream(index);
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final CRC32 crc = new CRC32();
+  private byte[] compressed = new byte[BLOCK_SIZE];
+
+  /** The number of the first record in the current block. */
+  private long blockFirstRecord;
+  private int blockRecordCount;
+  private int blockCount;
+
+  /** The number of bytes written to the file. */
+  private long offset;
+
+  /**
+   * Creates an IndexedSnapshotWriter that writes to {@code output}, and
+   * syncs the records to disk in groups.
+   *
+   * @param output the snapshot file
+   * @param path name of output, for logging purposes
+   * @param syncRecordCount the most records to write between syncs
+   * @param syncIntervalMillis the most milliseconds between syncs,
+   *        checked when a record is written
+   * @throws IOException if the output file descriptor is not valid
+   * @throws SnapshotWriterException if the header cannot be written
+   */
+  IndexedSnapshotWriter(FileOutputStream output, String path,
+      int syncRecordCount, long syncIntervalMillis)
+      throws IOException, SnapshotWriterException {
+    // The superclass Writer is not used, but cannot be null.
+    super(new OutputStreamWriter(new NullOutputStream()), output.getFD(),
+        path, syncRecordCount, syncIntervalMillis);
+    this.data = new DataOutputStream(new BufferedOutputStream(output));
+    try {
+      data.writeInt(MAGIC);
+      data.writeInt(VERSION);
+    } catch (IOException e) {
+      throw new SnapshotWriterException("failed to write snapshot header", e);
+    }
+    this.offset = HEADER_LENGTH;
+  }
+
+  @Override
+  protected void writeRecord(DocumentSnapshot snapshot)
+      throws IOException, IllegalArgumentException {
+    String stringForm = snapshot.toString();
+    if (stringForm == null) {
+      throw new IllegalArgumentException(
+          "DocumentSnapshot.toString returned null.");
+    }
+    byte[] bytes = stringForm.getBytes(Charsets.UTF_8);
+    if (blockRecordCount == 0) {
+      blockFirstRecord = count;
+    }
+    blockData.writeInt(bytes.length);
+    blockData.write(bytes);
+    blockRecordCount++;
+    if (block.size() >= BLOCK_SIZE) {
+      writeBlock();
+    }
+  }
+
+  /** Compresses and writes the current block, and adds it to the index. */
+  private void writeBlock() throws IOException {
+    if (blockRecordCount == 0) {
+      return;
+    }
+    deflater.reset();
+    deflater.setInput(block.getBuffer(), 0, block.size());
+    deflater.finish();
+    int length = 0;
+    while (!deflater.finished()) {
+      if (length == compressed.length) {
+        compressed = Arrays.copyOf(compressed, 2 * length);
+      }
+      length += deflater.deflate(compressed, length, compressed.length - length);
+    }
+    crc.reset();
+    crc.update(compressed, 0, length);
+
+    indexData.writeLong(offset);
+    indexData.writeLong(blockFirstRecord);
+    blockCount++;
+
+    data.writeInt(block.size());
+    data.writeInt(length);
+    data.writeInt(blockRecordCount);
+    data.writeInt((int) crc.getValue());
+    data.write(compressed, 0, length);
+    offset += BLOCK_HEADER_LENGTH + length;
+
+    block.reset();
+    blockRecordCount = 0;
+  }
+
+  /**
+   * Writes the current block, and syncs the records written so far
+   * to disk.
+   */
+  @Override
+  public void sync() throws SnapshotWriterException {
+    if (syncedCount == count) {
+      return;
+    }
+    try {
+      writeBlock();
+      data.flush();
+    } catch (IOException e) {
+      throw new SnapshotWriterException("failed to write snapshot block", e);
+    }
+    super.sync();
+  }
+
+  /**
+   * Writes the last block and the index, and closes the output stream.
+   */
+  @Override
+  public void close() throws SnapshotWriterException {
+    try {
+      try {
+        writeBlock();
+        long indexOffset = offset;
+        data.writeInt(INDEX_MARKER);
+        data.writeInt(blockCount);
+        index.writeTo(data);
+        data.writeLong(count);
+        data.writeLong(indexOffset);
+        data.writeInt(TRAILER_MAGIC);
+        data.flush();
+        fileDescriptor.sync();
+      } finally {
+        deflater.end();
+        data.close();
+      }
+    } catch (IOException e) {
+      throw new SnapshotWriterException("failed to close snapshot", e);
+    }
+    syncedCount = count;
+  }
+}
@@ -0,0 +1,45 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import java.util.List;
+
+/**
+ * A {@link SnapshotRepository} that is divided into partitions, each
+ * holding an ordered range of document IDs.  The
+ * {@link DocumentSnapshotRepositoryMonitorManagerImpl} monitors each
+ * partition separately, with its own snapshot files and
+ * {@link MonitorCheckpoint}, and scans the partitions concurrently.
+ * The changes within a partition are still sent to the
+ * {@link ChangeQueue} in document ID order.
+ * <p>
+ * Changing the partitions of a repository discards the snapshots of the
+ * old partitions, so the next traversal finds all of the documents in
+ * the new partitions as new documents.
+ *
+ * @since 3.4
+ */
+public interface PartitionedSnapshotRepository<T extends DocumentSnapshot>
+    extends SnapshotRepository<T> {
+  /**
+   * Returns the partitions of this repository.  The partitions must hold
+   * disjoint ranges of document IDs that together cover the repository,
+   * and each partition must have a name, unique for the containing
+   * Connector, that identifies its range.
+   *
+   * @return a {@code List} of {@link SnapshotRepository} partitions
+   */
+  List<? extends SnapshotRepository<T>> getPartitions();
+}
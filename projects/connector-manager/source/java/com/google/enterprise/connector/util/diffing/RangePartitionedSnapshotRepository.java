@@ -0,0 +1,127 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A {@link PartitionedSnapshotRepository} that divides a repository
+ * into ranges of document IDs at a list of split keys.  Subclasses
+ * implement {@link #iterator(String, String)} to return the
+ * {@link DocumentSnapshot DocumentSnapshots} in a range.
+ * <p>
+ * For example, the split keys {@code "g"} and {@code "p"} divide a
+ * repository into three partitions, holding the document IDs less than
+ * {@code "g"}, those from {@code "g"} up to {@code "p"}, and those from
+ * {@code "p"} on.
+ *
+ * @since 3.4
+ */
+public abstract class RangePartitionedSnapshotRepository<
+    T extends DocumentSnapshot> implements PartitionedSnapshotRepository<T> {
+  private final String name;
+  private final List<SnapshotRepository<T>> partitions;
+
+  /**
+   * Constructs a {@code RangePartitionedSnapshotRepository}.
+   *
+   * @param name the name of this repository
+   * @param splitKeys the document IDs at which the partitions begin,
+   *        in strictly increasing order
+   * @throws IllegalArgumentException if the split keys are not in order
+   */
+  protected RangePartitionedSnapshotRepository(String name,
+      List<String> splitKeys) {
+    this.name = name;
+    ImmutableList.Builder<SnapshotRepository<T>> builder =
+        ImmutableList.builder();
+    String from = null;
+    for (String to : splitKeys) {
+      if (from != null && from.compareTo(to) >= 0) {
+        throw new IllegalArgumentException(
+            "Split keys are not in increasing order: " + splitKeys);
+      }
+      builder.add(new Partition(from, to));
+      from = to;
+    }
+    builder.add(new Partition(from, null));
+    this.partitions = builder.build();
+  }
+
+  /**
+   * Returns an {@link Iterator} over the {@link DocumentSnapshot
+   * DocumentSnapshots} in a range of document IDs, in document ID order.
+   * The returned {@code Iterator} may throw
+   * {@link SnapshotRepositoryRuntimeException}, as described for
+   * {@link SnapshotRepository#iterator()}.
+   *
+   * @param fromInclusive the least document ID in the range, or
+   *        {@code null} if the range has no lower bound
+   * @param toExclusive the document ID following the range, or
+   *        {@code null} if the range has no upper bound
+   * @return an {@code Iterator} over the range
+   */
+  protected abstract Iterator<T> iterator(String fromInclusive,
+      String toExclusive) throws SnapshotRepositoryRuntimeException;
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public Iterator<T> iterator() throws SnapshotRepositoryRuntimeException {
+    return iterator(null, null);
+  }
+
+  @Override
+  public List<SnapshotRepository<T>> getPartitions() {
+    return partitions;
+  }
+
+  /** A range of document IDs in this repository. */
+  private class Partition implements SnapshotRepository<T> {
+    private final String fromInclusive;
+    private final String toExclusive;
+    private final String partitionName;
+
+    Partition(String fromInclusive, String toExclusive) {
+      this.fromInclusive = fromInclusive;
+      this.toExclusive = toExclusive;
+      this.partitionName = name + " [" + ((fromInclusive == null) ? "" :
+          fromInclusive) + ", " + ((toExclusive == null) ? "" : toExclusive)
+          + ")";
+    }
+
+    @Override
+    public String getName() {
+      return partitionName;
+    }
+
+    @Override
+    public Iterator<T> iterator() throws SnapshotRepositoryRuntimeException {
+      return RangePartitionedSnapshotRepository.this.iterator(fromInclusive,
+          toExclusive);
+    }
+
+    @Override
+    public String toString() {
+      return partitionName;
+    }
+  }
+}
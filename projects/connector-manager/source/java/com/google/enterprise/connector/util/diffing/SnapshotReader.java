@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.util.diffing;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.CharBuffer;
 
@@ -29,6 +30,7 @@ public class SnapshotReader {
   
   private final String inputPath;
   private final BufferedReader in;
+  private final Closeable source;
   private final long snapshotNumber;
   private final DocumentSnapshotFactory documentSnapshotFactory;
   private long recordNumber;
@@ -47,6 +49,22 @@ public class SnapshotReader {
      */
     String readRecord() throws SnapshotReaderException;
   }
+
+  /**
+   * A {@link RecordReader} that can skip records without reading them.
+   */
+  interface SkippingRecordReader extends RecordReader {
+
+    /**
+     * Skips up to {@code number} records.
+     *
+     * @param number the number of records to skip
+     * @return the number of records skipped, which is less than
+     *         {@code number} only at the end of the snapshot
+     * @throws SnapshotReaderException
+     */
+    long skipRecords(long number) throws SnapshotReaderException;
+  }
   
   /**
    * Reads the records based on the length attribute present at the start of
@@ -158,6 +176,7 @@ public class SnapshotReader {
       DocumentSnapshotFactory documentSnapshotFactory)
       throws SnapshotReaderException {
     this.in = in;
+    this.source = in;
     /* Initial version of File System connector (2.6) used JSON.
     When diffing library was extracted (2.8) the requirement was loosened to
     allow for arbitrary Strings.  We have two
@@ -182,6 +201,27 @@ public class SnapshotReader {
     this.documentSnapshotFactory = documentSnapshotFactory;
   }
 
+  /**
+   * Constructs a SnapshotReader that reads records from the given
+   * {@link RecordReader}.
+   *
+   * @param recordReader the source of the records
+   * @param source closed when this reader is closed
+   * @param inputPath path to the snapshot
+   * @param snapshotNumber the number of the snapshot being read
+   */
+  SnapshotReader(RecordReader recordReader, Closeable source,
+      String inputPath, long snapshotNumber,
+      DocumentSnapshotFactory documentSnapshotFactory) {
+    this.in = null;
+    this.source = source;
+    this.recordReader = recordReader;
+    this.inputPath = inputPath;
+    this.recordNumber = 0;  //1 based.
+    this.snapshotNumber = snapshotNumber;
+    this.documentSnapshotFactory = documentSnapshotFactory;
+  }
+
   /**
    * @return the next record in this snapshot, or {@code null} if we have
    *         reached the end of the snapshot
@@ -242,6 +282,18 @@ public class SnapshotReader {
    */
   public void skipRecords(long number) throws SnapshotReaderException,
       InterruptedException {
+    if (recordReader instanceof SkippingRecordReader) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      long skipped = ((SkippingRecordReader) recordReader).skipRecords(number);
+      if (skipped < number) {
+        throw new SnapshotReaderException(String.format(
+            "failed to skip %d records; snapshot contains only %d",
+            number, recordNumber + skipped));
+      }
+      return;
+    }
     for (int k = 0; k < number; ++k) {
       if (Thread.interrupted()) {
         throw new InterruptedException();
@@ -265,6 +317,6 @@ public class SnapshotReader {
    * Closes the underlying input stream.
    */
   public void close() throws IOException {
-    in.close();
+    source.close();
   }
 }
\ No newline at end of file
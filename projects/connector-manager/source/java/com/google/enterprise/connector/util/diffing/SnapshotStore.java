@@ -41,6 +41,10 @@ import java.util.regex.Pattern;
 
 /**
  * An API for storing and retrieving snapshots.
+ * <p>
+ * Snapshots may be written in the original text format, or in an
+ * indexed binary format with block compression (see
+ * {@link IndexedSnapshotWriter}).  Snapshots in either format may be read.
  *
  * @since 2.8
  */
@@ -53,11 +57,28 @@ public class SnapshotStore {
     return new File(snapshotDir, name);
   }
 
-  private static SnapshotWriter getSnapshotWriter(File snapshotFile)
-      throws IOException, SnapshotWriterException {
+  /**
+   * The most snapshot records written between syncs.  Monitor checkpoints
+   * only cover the synced records, so after a crash, the documents in
+   * at most this many unsynced records will be found again as new.
+   */
+  @VisibleForTesting
+  static final int SYNC_RECORD_COUNT = 1000;
+
+  /** The most milliseconds between syncs while records are written. */
+  @VisibleForTesting
+  static final long SYNC_INTERVAL_MILLIS = 1000L;
+
+  private static SnapshotWriter getSnapshotWriter(File snapshotFile,
+      boolean indexed) throws IOException, SnapshotWriterException {
     FileOutputStream os = new FileOutputStream(snapshotFile);
+    if (indexed) {
+      return new IndexedSnapshotWriter(os, snapshotFile.getAbsolutePath(),
+          SYNC_RECORD_COUNT, SYNC_INTERVAL_MILLIS);
+    }
     Writer w = new OutputStreamWriter(os, Charsets.UTF_8);
-    return new SnapshotWriter(w, os.getFD(), snapshotFile.getAbsolutePath());
+    return new SnapshotWriter(w, os.getFD(), snapshotFile.getAbsolutePath(),
+        SYNC_RECORD_COUNT, SYNC_INTERVAL_MILLIS);
   }
 
   private static final Pattern SNAPSHOT_PATTERN =
@@ -65,6 +86,9 @@ public class SnapshotStore {
   private final File snapshotDir;
   private final DocumentSnapshotFactory documentSnapshotFactory;
 
+  // Whether new snapshots are written in the indexed binary format.
+  private final boolean indexed;
+
   // Whether there is a current writer or not.
   private boolean aWriterIsActive = false;
 
@@ -80,6 +104,22 @@ public class SnapshotStore {
   public SnapshotStore(File snapshotDirectory,
       DocumentSnapshotFactory documentSnapshotFactory)
       throws SnapshotStoreException {
+    this(snapshotDirectory, documentSnapshotFactory, false);
+  }
+
+  /**
+   * @param snapshotDirectory the directory in which to store the snapshots.
+   *        Must be non-{@code null}. If it does not exist, it will be created.
+   * @param documentSnapshotFactory factory for creating DocumentSnapshots
+   * @param indexed if {@code true}, new snapshots are written in the
+   *        indexed binary format; otherwise, in the text format
+   * @throws SnapshotStoreException if the snapshot directory does not exist and
+   *         cannot be created
+   * @since 3.4
+   */
+  public SnapshotStore(File snapshotDirectory,
+      DocumentSnapshotFactory documentSnapshotFactory, boolean indexed)
+      throws SnapshotStoreException {
     Preconditions.checkNotNull(snapshotDirectory);
     if (!snapshotDirectory.exists()) {
       if (!snapshotDirectory.mkdirs()) {
@@ -89,6 +129,7 @@ public class SnapshotStore {
     }
     this.snapshotDir = snapshotDirectory;
     this.documentSnapshotFactory = documentSnapshotFactory;
+    this.indexed = indexed;
     this.oldestSnapshotToKeep = 0;
   }
 
@@ -104,7 +145,7 @@ public class SnapshotStore {
     long nextIndex = (snapshots.isEmpty()) ? 1 : snapshots.first() + 1;
     File out = getSnapshotFile(snapshotDir, nextIndex);
     try {
-      SnapshotWriter writer = getSnapshotWriter(out);
+      SnapshotWriter writer = getSnapshotWriter(out, indexed);
       aWriterIsActive = true;
       return writer;
     } catch (IOException e) {
@@ -136,7 +177,7 @@ public class SnapshotStore {
     LOG.info("starting with empty snapshot");
     File out = getSnapshotFile(snapshotDir, 0);
     try {
-      SnapshotWriter writer = getSnapshotWriter(out);
+      SnapshotWriter writer = getSnapshotWriter(out, indexed);
       writer.close();
     } catch (IOException e) {
       throw new SnapshotStoreException("failed to open snapshot: " + out.getAbsolutePath(), e);
@@ -221,12 +262,20 @@ public class SnapshotStore {
       throws SnapshotStoreException {
     File input = getSnapshotFile(snapshotDir, number);
     try {
+      if (IndexedRecordReader.isIndexedSnapshot(input)) {
+        IndexedRecordReader recordReader = new IndexedRecordReader(input);
+        return new SnapshotReader(recordReader, recordReader,
+            input.getAbsolutePath(), number, documentSnapshotFactory);
+      }
       InputStream is = new FileInputStream(input);
       Reader r = new InputStreamReader(is, Charsets.UTF_8);
       return new SnapshotReader(new BufferedReader(r), input.getAbsolutePath(),
           number, documentSnapshotFactory);
     } catch (FileNotFoundException e) {
       throw new SnapshotStoreException("failed to open snapshot: " + number);
+    } catch (IOException e) {
+      throw new SnapshotReaderException("failed to open snapshot: " + number,
+          e);
     }
   }
 
@@ -252,6 +301,24 @@ public class SnapshotStore {
   public static void stitch(File snapshotDir, MonitorCheckpoint checkpoint,
       DocumentSnapshotFactory documentSnapshotFactory)
       throws IOException, SnapshotStoreException, InterruptedException {
+    stitch(snapshotDir, checkpoint, documentSnapshotFactory, false);
+  }
+
+  /**
+   * Writes a new snapshot that continues from the given checkpoint, made
+   * of the records written before the checkpoint followed by the records
+   * not yet read at the checkpoint.
+   *
+   * @param snapshotDir the snapshot directory
+   * @param checkpoint the monitor checkpoint to continue from
+   * @param documentSnapshotFactory factory for creating DocumentSnapshots
+   * @param indexed if {@code true}, the new snapshot is written in the
+   *        indexed binary format; otherwise, in the text format
+   * @since 3.4
+   */
+  public static void stitch(File snapshotDir, MonitorCheckpoint checkpoint,
+      DocumentSnapshotFactory documentSnapshotFactory, boolean indexed)
+      throws IOException, SnapshotStoreException, InterruptedException {
     long readSnapshotIndex = checkpoint.getSnapshotNumber();
     long writeSnapshotIndex = readSnapshotIndex + 1;
     boolean listSnapshotDir = false;
@@ -279,7 +346,7 @@ public class SnapshotStore {
     long recoveryFileIndex = checkpoint.getSnapshotNumber() + 2;
     File out = getSnapshotFile(snapshotDir, recoveryFileIndex);
     boolean iMadeIt = false;
-    SnapshotWriter writer = getSnapshotWriter(out);
+    SnapshotWriter writer = getSnapshotWriter(out, indexed);
       try {
       SnapshotReader part1 = openSnapshot(snapshotDir,
           checkpoint.getSnapshotNumber() + 1, documentSnapshotFactory);
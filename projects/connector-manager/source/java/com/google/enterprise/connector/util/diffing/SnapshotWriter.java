@@ -34,8 +34,21 @@ public class SnapshotWriter {
   protected long count;
   protected FileDescriptor fileDescriptor;
 
+  /** The number of unsynced records that forces a sync. */
+  protected final int syncRecordCount;
+
+  /** The milliseconds since the last sync after which a write syncs. */
+  protected final long syncIntervalMillis;
+
+  /** The number of records synced to disk. */
+  protected long syncedCount;
+
+  /** The time of the last sync. */
+  protected long lastSyncTime;
+
   /**
-   * Creates a SnapshotWriter that appends to {@code output}.
+   * Creates a SnapshotWriter that appends to {@code output}, and syncs
+   * each record to disk as it is written.
    *
    * @param output CSV writer that is being wrapped
    * @param fileDescriptor if non-{code null}, this will be flushed after
@@ -45,10 +58,40 @@ public class SnapshotWriter {
    */
   public SnapshotWriter(Writer output, FileDescriptor fileDescriptor,
       String path) throws SnapshotWriterException {
+    this(output, fileDescriptor, path, 1, 0L);
+  }
+
+  /**
+   * Creates a SnapshotWriter that appends to {@code output}, and syncs
+   * the records to disk in groups.  Each record is still flushed to
+   * {@code output} as it is written.  The records are synced once
+   * {@code syncRecordCount} records have been written since the last
+   * sync, by the first write at least {@code syncIntervalMillis}
+   * milliseconds after the last sync, and when the writer is closed.
+   * Only the first {@link #getSyncedRecordCount} records are sure to
+   * survive a crash.
+   *
+   * @param output CSV writer that is being wrapped
+   * @param fileDescriptor if non-{code null}, this will be synced to disk
+   *        with each group of records
+   * @param path name of output, for logging purposes
+   * @param syncRecordCount the most records to write between syncs
+   * @param syncIntervalMillis the most milliseconds between syncs,
+   *        checked when a record is written
+   * @throws SnapshotWriterException on any error
+   * @since 3.4
+   */
+  public SnapshotWriter(Writer output, FileDescriptor fileDescriptor,
+      String path, int syncRecordCount, long syncIntervalMillis)
+      throws SnapshotWriterException {
     this.output = new BufferedWriter(output);
     this.fileDescriptor = fileDescriptor;
     this.path = path;
     this.count = 0;
+    this.syncRecordCount = Math.max(1, syncRecordCount);
+    this.syncIntervalMillis = syncIntervalMillis;
+    this.syncedCount = 0;
+    this.lastSyncTime = System.currentTimeMillis();
   }
 
   /**
@@ -61,14 +104,50 @@ public class SnapshotWriter {
   public void write(DocumentSnapshot snapshot) throws SnapshotWriterException,
       IllegalArgumentException {
     try {
-      write(snapshot, output);
-      if (fileDescriptor != null) {
-        fileDescriptor.sync();
-      }
-      ++count;
+      writeRecord(snapshot);
     } catch (IOException e) {
       throw new SnapshotWriterException("failed to write snapshot record", e);
     }
+    ++count;
+    if (count - syncedCount >= syncRecordCount
+        || System.currentTimeMillis() - lastSyncTime >= syncIntervalMillis) {
+      sync();
+    }
+  }
+
+  /**
+   * Syncs the records written so far to disk.
+   *
+   * @throws SnapshotWriterException
+   * @since 3.4
+   */
+  public void sync() throws SnapshotWriterException {
+    if (syncedCount == count) {
+      return;
+    }
+    if (fileDescriptor != null) {
+      try {
+        fileDescriptor.sync();
+      } catch (IOException e) {
+        throw new SnapshotWriterException("failed to sync snapshot", e);
+      }
+    }
+    syncedCount = count;
+    lastSyncTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Writes a single record to the output.  Subclasses may override this
+   * to write records in a different format.
+   *
+   * @param snapshot record to write
+   * @throws IOException
+   * @throws IllegalArgumentException
+   * @since 3.4
+   */
+  protected void writeRecord(DocumentSnapshot snapshot)
+      throws IOException, IllegalArgumentException {
+    write(snapshot, output);
   }
 
   @VisibleForTesting
@@ -93,6 +172,7 @@ public class SnapshotWriter {
    * @throws SnapshotWriterException
    */
   public void close() throws SnapshotWriterException {
+    sync();
     try {
       output.close();
     } catch (IOException e) {
@@ -114,6 +194,14 @@ public class SnapshotWriter {
     return count;
   }
 
+  /**
+   * @return the number of records synced to disk.
+   * @since 3.4
+   */
+  public long getSyncedRecordCount() {
+    return syncedCount;
+  }
+
   @VisibleForTesting
   public Writer getOutput() {
     return output;
@@ -85,6 +85,26 @@ public abstract class AbstractDocumentFilter implements DocumentFilterFactory {
     return source.getPropertyNames();
   }
 
+  /**
+   * Returns the names of the {@link Property Properties} whose values
+   * this filter may change, add, or remove when accessed via
+   * {@link #findProperty(Document, String)}.  A {@link DocumentFilterChain}
+   * uses this to pass requests for any other property directly to an
+   * earlier filter in the chain.
+   * <p>
+   * The default implementation returns {@code null}, meaning any property
+   * may be affected.  Subclasses that only filter specific properties
+   * should override this method.  The result must not change once the
+   * filter has been configured.
+   *
+   * @return the Set of affected property names, or {@code null}
+   *         if any property may be affected
+   * @since 3.4
+   */
+  protected Set<String> getAffectedPropertyNames() {
+    return null;
+  }
+
   @Override
   public String toString() {
     String name = this.getClass().getName();
@@ -27,6 +27,7 @@ import com.google.enterprise.connector.spi.Value;
 import com.google.enterprise.connector.spiimpl.PrincipalValue;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -172,6 +173,14 @@ public class AclPropertyFilter extends AbstractDocumentFilter {
     }
   }
 
+  @Override
+  protected Set<String> getAffectedPropertyNames() {
+    if (caseSensitivityType == null && userDomain == null) {
+      return Collections.emptySet();
+    }
+    return aclUsersGroups;
+  }
+
   private String getPrincipalName(Principal principal, String name) {
     String principalName = principal.getName();
     if (aclUsers.contains(name)) {
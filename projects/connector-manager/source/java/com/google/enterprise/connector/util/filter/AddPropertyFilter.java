@@ -23,6 +23,7 @@ import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.SimpleProperty;
 import com.google.enterprise.connector.spi.Value;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -187,6 +188,12 @@ public class AddPropertyFilter extends AbstractDocumentFilter {
     return superSet;
   }
 
+  @Override
+  protected Set<String> getAffectedPropertyNames() {
+    Preconditions.checkState(propertyName != null, "must set propertyName");
+    return Collections.singleton(propertyName);
+  }
+
   @Override
   public String toString() {
     return super.toString() + ": (" + propertyName + " , "
@@ -148,6 +148,12 @@ public class CopyPropertyFilter extends AbstractDocumentFilter {
     return superSet;
   }
 
+  @Override
+  protected Set<String> getAffectedPropertyNames() {
+    Preconditions.checkState(nameMap != null, "must set propertyNameMap");
+    return nameMap.keySet();
+  }
+
   @Override
   public String toString() {
     return super.toString() + ": (" + nameMap + " , " + overwrite + ")";
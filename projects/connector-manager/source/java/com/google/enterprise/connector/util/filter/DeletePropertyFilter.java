@@ -108,6 +108,12 @@ public class DeletePropertyFilter extends AbstractDocumentFilter {
     return names;
   }
 
+  @Override
+  protected Set<String> getAffectedPropertyNames() {
+    Preconditions.checkState(propertyNames != null, "must set propertyName(s)");
+    return propertyNames;
+  }
+
   @Override
   public String toString() {
     return super.toString() + ": " + propertyNames;
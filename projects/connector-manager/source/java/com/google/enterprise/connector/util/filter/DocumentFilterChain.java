@@ -16,16 +16,34 @@ package com.google.enterprise.connector.util.filter;
 
 import com.google.common.base.Preconditions;
 import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
 import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.spiimpl.BinaryValue;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * {@link DocumentFilterChain} constructs a chain of {@link Document}
  * filters.  The filters are constructed from a {@link List} of
  * {@link DocumentFilterFactory DocumentFilterFactories}, and linked
  * together like pop-beads, each using the previous as its source Document.
+ * <p>
+ * The chain is analysed the first time it is used. Nested chains are
+ * flattened, and requests for a property are passed directly to the
+ * last filter that may affect that property, as declared by
+ * {@link AbstractDocumentFilter#getAffectedPropertyNames()}, bypassing
+ * the filters that would simply pass them through.  The head of the chain
+ * remembers the property names and values it has returned, so each
+ * filtered property is materialized at most once per document.
+ * Properties with binary values are not remembered.
  *
  * @since 2.8
  */
@@ -34,6 +52,11 @@ public class DocumentFilterChain implements DocumentFilterFactory {
   // The list of factories used to construct the filter chain.
   private final List<? extends DocumentFilterFactory> factories;
 
+  // The flattened list of filters, and the names of the properties each
+  // may affect ({@code null} if any), built the first time the chain is used.
+  private volatile List<DocumentFilterFactory> filters;
+  private volatile List<Set<String>> affectedNames;
+
   /**
    * Constructs an empty {@link DocumentFilterChain}. Documents will
    * will pass through unchanged.
@@ -67,10 +90,215 @@ public class DocumentFilterChain implements DocumentFilterFactory {
   public Document newDocumentFilter(Document source)
       throws RepositoryException {
     Preconditions.checkNotNull(source);
+    if (filters == null) {
+      compile();
+    }
+    if (filters.isEmpty()) {
+      return source;
+    }
+    Document[] layers = new Document[filters.size() + 1];
+    layers[0] = source;
+    for (int i = 0; i < filters.size(); i++) {
+      layers[i + 1] = filters.get(i).newDocumentFilter(
+          (i == 0) ? source : new LayerDocument(layers, i));
+    }
+    return new HeadDocument(new LayerDocument(layers, filters.size()));
+  }
+
+  /**
+   * Flattens the chain and records the names of the properties that each
+   * filter may affect.
+   */
+  private synchronized void compile() {
+    if (filters != null) {
+      return;
+    }
+    List<DocumentFilterFactory> flattened =
+        new ArrayList<DocumentFilterFactory>();
+    flatten(factories, flattened);
+    List<Set<String>> names = new ArrayList<Set<String>>(flattened.size());
+    for (DocumentFilterFactory factory : flattened) {
+      names.add(getAffectedPropertyNames(factory));
+    }
+    affectedNames = names;
+    filters = flattened;
+  }
+
+  private static void flatten(List<? extends DocumentFilterFactory> factories,
+      List<DocumentFilterFactory> flattened) {
     for (DocumentFilterFactory factory : factories) {
-      source = factory.newDocumentFilter(source);
+      if (factory.getClass() == DocumentFilterChain.class) {
+        flatten(((DocumentFilterChain) factory).factories, flattened);
+      } else {
+        flattened.add(factory);
+      }
+    }
+  }
+
+  /**
+   * Returns the names of the properties the filter may affect, or
+   * {@code null} if any property may be affected. The declaration is
+   * only trusted if it was made by the same class, or a subclass of the
+   * class, that implements {@code findProperty}.
+   */
+  private static Set<String> getAffectedPropertyNames(
+      DocumentFilterFactory factory) {
+    if (!(factory instanceof AbstractDocumentFilter)) {
+      return null;
+    }
+    try {
+      Class<?> findClass = factory.getClass().getMethod("findProperty",
+          Document.class, String.class).getDeclaringClass();
+      for (Class<?> c = factory.getClass(); c != null; c = c.getSuperclass()) {
+        for (Method method : c.getDeclaredMethods()) {
+          if (method.getName().equals("getAffectedPropertyNames")
+              && method.getParameterTypes().length == 0) {
+            return findClass.isAssignableFrom(c)
+                ? ((AbstractDocumentFilter) factory).getAffectedPropertyNames()
+                : null;
+          }
+        }
+      }
+    } catch (NoSuchMethodException e) {
+      // Not possible for an AbstractDocumentFilter.
+    }
+    return null;
+  }
+
+  /**
+   * The source {@link Document} for a filter in the chain.  Property
+   * requests are passed to the last earlier filter that may affect the
+   * property, or to the original document if there is none.
+   */
+  private class LayerDocument implements Document {
+    private final Document[] layers;
+    private final int index;
+
+    public LayerDocument(Document[] layers, int index) {
+      this.layers = layers;
+      this.index = index;
+    }
+
+    @Override
+    public Property findProperty(String name) throws RepositoryException {
+      int i = index;
+      while (i > 0) {
+        Set<String> names = affectedNames.get(i - 1);
+        if (names == null || names.contains(name)) {
+          break;
+        }
+        i--;
+      }
+      return layers[i].findProperty(name);
+    }
+
+    @Override
+    public Set<String> getPropertyNames() throws RepositoryException {
+      return layers[index].getPropertyNames();
+    }
+  }
+
+  /**
+   * The head of the chain, which remembers the property names and values
+   * it has returned.  A property's values are recorded as they are read,
+   * and replayed to later requests for the same property.
+   */
+  private static class HeadDocument implements Document {
+    private final Document source;
+    private Set<String> propertyNames;
+    private final Map<String, PropertyValues> properties =
+        new HashMap<String, PropertyValues>();
+
+    public HeadDocument(Document source) {
+      this.source = source;
+    }
+
+    @Override
+    public Property findProperty(String name) throws RepositoryException {
+      PropertyValues values = properties.get(name);
+      if (values == null) {
+        if (properties.containsKey(name)) {
+          return null;
+        }
+        Property property = source.findProperty(name);
+        if (property == null) {
+          properties.put(name, null);
+          return null;
+        }
+        values = new PropertyValues(name, property);
+        properties.put(name, values);
+      }
+      return values.iterator();
+    }
+
+    @Override
+    public Set<String> getPropertyNames() throws RepositoryException {
+      if (propertyNames == null) {
+        Set<String> names = source.getPropertyNames();
+        if (names == null) {
+          return null;
+        }
+        propertyNames =
+            Collections.unmodifiableSet(new LinkedHashSet<String>(names));
+      }
+      return propertyNames;
+    }
+
+    /** The values read so far from a filtered property. */
+    private class PropertyValues {
+      private final String name;
+      private final Property property;
+      private final List<Value> values = new ArrayList<Value>();
+      private boolean complete = false;
+
+      public PropertyValues(String name, Property property) {
+        this.name = name;
+        this.property = property;
+      }
+
+      public Property iterator() {
+        return new Property() {
+          private int index = 0;
+
+          @Override
+          public Value nextValue() throws RepositoryException {
+            return getValue(index++);
+          }
+        };
+      }
+
+      private Value getValue(int index) throws RepositoryException {
+        if (index < values.size()) {
+          return values.get(index);
+        } else if (complete) {
+          return null;
+        }
+        Value value;
+        try {
+          value = property.nextValue();
+        } catch (RepositoryException e) {
+          // Don't remember a property that could not be read.
+          forget();
+          throw e;
+        }
+        if (value == null) {
+          complete = true;
+        } else {
+          if (value instanceof BinaryValue) {
+            // Content streams may only be read once, so fetch them afresh.
+            forget();
+          }
+          values.add(value);
+        }
+        return value;
+      }
+
+      private void forget() {
+        if (properties.get(name) == this) {
+          properties.remove(name);
+        }
+      }
     }
-    return source;
   }
 
   @Override
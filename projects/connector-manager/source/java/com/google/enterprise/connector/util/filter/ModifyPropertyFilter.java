@@ -24,6 +24,7 @@ import com.google.enterprise.connector.spi.SimpleProperty;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.Value;
 import com.google.enterprise.connector.spiimpl.BinaryValue;
+import com.google.enterprise.connector.util.PatternReplacingInputStream;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -95,15 +96,28 @@ import java.util.regex.PatternSyntaxException;
      &lt;property name="overwrite" value="false"/&gt;
    &lt;/bean&gt;
    </code></pre>
+ * The following example rewrites links to an old host in the content of
+ * HTML and XML documents, without buffering the content in memory.
+ * <pre><code>
+   &lt;!-- Rewrite links to the old server. --&gt;
+   &lt;bean id="RewriteLinks"
+      class="com.google.enterprise.connector.util.filter.ModifyPropertyFilter"&gt;
+     &lt;property name="propertyName" value="google:content"/&gt;
+     &lt;property name="pattern" value="http://old\.example\.com/"/&gt;
+     &lt;property name="replacement" value="http://www.example.com/"/&gt;
+     &lt;property name="overwrite" value="true"/&gt;
+     &lt;property name="maxMatchLength" value="64"/&gt;
+   &lt;/bean&gt;
+   </code></pre>
  * <p>
  * When used with binary values, the entire value is buffered and the
- * modified value is stored in a {@code byte} array.
+ * modified value is stored in a {@code byte} array.  If {@code overwrite}
+ * is {@code true} and a {@code maxMatchLength} is set, binary values are
+ * instead modified as they are read, using a bounded amount of memory.
  *
  * @since 2.8
  */
 /*
- * TODO: Find a way to process the InputStreams without buffering them,
- * maybe using java.util.Scanner or a similar third-party tool.
  * TODO: Binary values based on byte arrays are likely rare outside
  * the tests, but it might be nice to build the string from the
  * underlying byte array directly, rather than copying it.
@@ -135,6 +149,12 @@ public class ModifyPropertyFilter extends AbstractDocumentFilter {
    */
   protected boolean overwrite = false;
 
+  /**
+   * The maximum length of a match in binary values, in characters,
+   * or 0 to buffer the entire value.
+   */
+  protected int maxMatchLength = 0;
+
   /**
    * Sets the the name of the {@link Property} to filter.
    * <p>
@@ -231,6 +251,24 @@ public class ModifyPropertyFilter extends AbstractDocumentFilter {
     this.overwrite = overwrite;
   }
 
+  /**
+   * Sets the maximum length, in characters, of a match in binary values.
+   * If positive, and {@code overwrite} is {@code true}, binary values are
+   * modified as they are read, rather than buffered in memory.  Matches
+   * longer than this, including any lookahead or lookbehind, may not be
+   * replaced.  Default {@code maxMatchLength} is 0, which buffers the
+   * entire value.
+   *
+   * @param maxMatchLength the maximum length of a match, or 0
+   * @throws IllegalArgumentException if {@code maxMatchLength} is negative
+   * @since 3.4
+   */
+  public void setMaxMatchLength(int maxMatchLength) {
+    Preconditions.checkArgument(maxMatchLength >= 0,
+                                "maxMatchLength may not be negative");
+    this.maxMatchLength = maxMatchLength;
+  }
+
   /**
    * Sets the the name of the character encoding type to be used.
    *
@@ -292,6 +330,17 @@ public class ModifyPropertyFilter extends AbstractDocumentFilter {
         }
         // It's a Binary Value, to be read using input stream
         InputStream in = ((BinaryValue) value).getInputStream();
+        if (overwrite && maxMatchLength > 0) {
+          // Replace the matches as the content is read.
+          try {
+            values.add(Value.getBinaryValue(new PatternReplacingInputStream(
+                in, encoding, pattern, replacement, maxMatchLength)));
+          } catch (UnsupportedEncodingException e) {
+            throw new RepositoryException("Error while converting"
+                + " data with " + encoding, e);
+          }
+          continue;
+        }
         byte[] data = null;
         try {
           data = ByteStreams.toByteArray(in);
@@ -359,6 +408,12 @@ public class ModifyPropertyFilter extends AbstractDocumentFilter {
     return mimeTypes;
   }
 
+  @Override
+  protected Set<String> getAffectedPropertyNames() {
+    Preconditions.checkState(propertyNames != null, "must set propertyNames");
+    return propertyNames;
+  }
+
   @Override
   public String toString() {
     StringBuilder buf = new StringBuilder();
@@ -149,6 +149,12 @@ public class SkipDocumentFilter extends AbstractDocumentFilter {
     return prop;
   }
 
+  @Override
+  protected Set<String> getAffectedPropertyNames() {
+    Preconditions.checkState(propertyName != null, "must set propertyName");
+    return ImmutableSet.of(propertyName);
+  }
+
   @Override
   public String toString() {
     return super.toString() + ": (" + propertyName + " , \""
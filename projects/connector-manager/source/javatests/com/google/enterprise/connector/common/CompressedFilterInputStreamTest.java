@@ -417,4 +417,32 @@ public class CompressedFilterInputStreamTest extends TestCase {
     is.close();
     assertTrue(Arrays.equals(result, expect));
   }
+
+  /** Tests that a shared Deflater may be reused by successive streams. */
+  public void testSharedDeflater() throws IOException {
+    Deflater deflater = new Deflater();
+    try {
+      checkShared(deflater, mediumInput, mediumExpected);
+      checkShared(deflater, bigInput, bigExpected);
+      checkShared(deflater, emptyInput, emptyExpected);
+      checkShared(deflater, smallInput, smallExpected);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private void checkShared(Deflater deflater, byte[] input, byte[] expected)
+      throws IOException {
+    CompressedFilterInputStream is = new CompressedFilterInputStream(
+        new ByteArrayInputStream(input), BUFF_SIZE, deflater);
+    byte[] result = new byte[expected.length];
+    int total = 0;
+    int val;
+    while (-1 != (val = is.read(result, total, result.length - total))) {
+      total += val;
+    }
+    is.close();
+    assertEquals(expected.length, total);
+    assertTrue(Arrays.equals(expected, result));
+  }
 }
@@ -558,5 +558,10 @@ public class ConnectorCoordinatorBatchTest extends TestCase {
     public boolean shouldDelay() {
       return false;
     }
+
+    @Override
+    public long getDelayMillis() {
+      return 0L;
+    }
   }
 }
@@ -194,6 +194,14 @@ class MockConnectorCoordinator implements ConnectorCoordinator {
     return true;
   }
 
+  @Override
+  public synchronized long getBatchDelayMillis() {
+    if (taskHandle != null && !taskHandle.isDone()) {
+      return Long.MAX_VALUE;
+    }
+    return hostLoadManager.getDelayMillis();
+  }
+
   public String getConnectorState() {
     return stateStore.getTraversalState();
   }
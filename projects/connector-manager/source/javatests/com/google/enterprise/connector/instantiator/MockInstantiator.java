@@ -266,6 +266,12 @@ public class MockInstantiator implements Instantiator {
     getConnectorCoordinator(connectorName).startBatch();
   }
 
+  @Override
+  public long getBatchDelayMillis(String connectorName)
+      throws ConnectorNotFoundException {
+    return getConnectorCoordinator(connectorName).getBatchDelayMillis();
+  }
+
   @Override
   public ConfigureResponse getConfigFormForConnector(String connectorName,
       String connectorTypeName, Locale locale) throws ConnectorNotFoundException
@@ -0,0 +1,206 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
+import com.google.enterprise.connector.spi.AuthorizationResponse.Status;
+import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Tests for {@link AuthorizationCache}. */
+public class AuthorizationCacheTest extends TestCase {
+  private static final String CONNECTOR = "connector1";
+
+  private final AuthenticationIdentity alice =
+      new SimpleAuthenticationIdentity("alice", "secret");
+  private final AuthenticationIdentity bob =
+      new SimpleAuthenticationIdentity("bob", "secret");
+
+  private AdjustableClock clock;
+  private AuthorizationCache cache;
+  private List<AuthorizationResponse> cached;
+  private List<String> uncached;
+
+  @Override
+  protected void setUp() {
+    clock = new AdjustableClock();
+    cache = new AuthorizationCache();
+    cache.setClock(clock);
+    cache.setMaxSize(100);
+    cache.setTtlSeconds(60);
+  }
+
+  private void lookup(AuthenticationIdentity identity, String... docids) {
+    cached = new ArrayList<AuthorizationResponse>();
+    uncached = new ArrayList<String>();
+    cache.lookup(CONNECTOR, identity, Arrays.asList(docids), cached, uncached);
+  }
+
+  private void store(AuthenticationIdentity identity, Status status,
+      String... docids) {
+    List<AuthorizationResponse> responses =
+        new ArrayList<AuthorizationResponse>();
+    for (String docid : docids) {
+      responses.add(new AuthorizationResponse(status, docid));
+    }
+    cache.store(CONNECTOR, identity, responses, docids.length,
+                clock.getTimeMillis());
+  }
+
+  public void testDisabledByDefault() {
+    cache = new AuthorizationCache();
+    assertFalse(cache.isEnabled());
+    store(alice, Status.PERMIT, "doc1");
+    lookup(alice, "doc1");
+    assertEquals(Arrays.asList("doc1"), uncached);
+    assertNull(cache.getStatistics(CONNECTOR));
+  }
+
+  public void testHit() {
+    store(alice, Status.PERMIT, "doc1");
+    store(alice, Status.DENY, "doc2");
+    lookup(alice, "doc1", "doc2", "doc3");
+    assertEquals(2, cached.size());
+    assertEquals("doc1", cached.get(0).getDocid());
+    assertEquals(Status.PERMIT, cached.get(0).getStatus());
+    assertEquals("doc2", cached.get(1).getDocid());
+    assertEquals(Status.DENY, cached.get(1).getStatus());
+    assertEquals(Arrays.asList("doc3"), uncached);
+
+    AuthorizationCache.Statistics stats = cache.getStatistics(CONNECTOR);
+    assertEquals(2, stats.getHitCount());
+    assertEquals(1, stats.getMissCount());
+  }
+
+  public void testIdentitiesAreSeparate() {
+    store(alice, Status.PERMIT, "doc1");
+    lookup(bob, "doc1");
+    assertEquals(Arrays.asList("doc1"), uncached);
+    lookup(new SimpleAuthenticationIdentity("alice", "wrong"), "doc1");
+    assertEquals(Arrays.asList("doc1"), uncached);
+    lookup(new SimpleAuthenticationIdentity("alice"), "doc1");
+    assertEquals(Arrays.asList("doc1"), uncached);
+    lookup(new SimpleAuthenticationIdentity("alice", "secret"), "doc1");
+    assertEquals(1, cached.size());
+  }
+
+  public void testConnectorsAreSeparate() {
+    store(alice, Status.PERMIT, "doc1");
+    cached = new ArrayList<AuthorizationResponse>();
+    uncached = new ArrayList<String>();
+    cache.lookup("connector2", alice, Arrays.asList("doc1"), cached, uncached);
+    assertEquals(Arrays.asList("doc1"), uncached);
+  }
+
+  public void testIndeterminateIsNotCached() {
+    store(alice, Status.INDETERMINATE, "doc1");
+    lookup(alice, "doc1");
+    assertEquals(Arrays.asList("doc1"), uncached);
+  }
+
+  public void testExpiry() {
+    store(alice, Status.PERMIT, "doc1");
+    clock.adjustTime(59 * 1000L);
+    lookup(alice, "doc1");
+    assertEquals(1, cached.size());
+    clock.adjustTime(2 * 1000L);
+    lookup(alice, "doc1");
+    assertEquals(Arrays.asList("doc1"), uncached);
+  }
+
+  public void testMaxSize() {
+    for (int i = 0; i < 1000; i++) {
+      store(alice, Status.PERMIT, "doc" + i);
+    }
+    int hits = 0;
+    for (int i = 0; i < 1000; i++) {
+      lookup(alice, "doc" + i);
+      hits += cached.size();
+    }
+    assertTrue(String.valueOf(hits), hits > 0 && hits <= 100);
+  }
+
+  public void testInvalidate() {
+    store(alice, Status.PERMIT, "doc1", "doc2");
+    store(bob, Status.PERMIT, "doc1");
+    clock.adjustTime(1000L);
+    cache.invalidate(CONNECTOR, "doc1");
+    lookup(alice, "doc1", "doc2");
+    assertEquals(Arrays.asList("doc1"), uncached);
+    lookup(bob, "doc1");
+    assertEquals(Arrays.asList("doc1"), uncached);
+
+    // A decision made after the document was fed is used.
+    clock.adjustTime(1000L);
+    store(alice, Status.DENY, "doc1");
+    lookup(alice, "doc1");
+    assertEquals(1, cached.size());
+    assertEquals(Status.DENY, cached.get(0).getStatus());
+  }
+
+  /** Tests that a decision made while the document is fed is not used. */
+  public void testInvalidateDuringAuthorization() {
+    long startTime = clock.getTimeMillis();
+    clock.adjustTime(1000L);
+    cache.invalidate(CONNECTOR, "doc1");
+    cache.store(CONNECTOR, alice,
+        Arrays.asList(new AuthorizationResponse(Status.PERMIT, "doc1")), 1,
+        startTime);
+    lookup(alice, "doc1");
+    assertEquals(Arrays.asList("doc1"), uncached);
+  }
+
+  /** Tests that evicted invalidations still invalidate older decisions. */
+  public void testEvictedInvalidation() {
+    store(alice, Status.PERMIT, "doc1");
+    clock.adjustTime(1000L);
+    for (int i = 0; i < 1000; i++) {
+      cache.invalidate(CONNECTOR, "other" + i);
+    }
+    lookup(alice, "doc1");
+    assertEquals(Arrays.asList("doc1"), uncached);
+  }
+
+  public void testInvalidateAll() {
+    store(alice, Status.PERMIT, "doc1");
+    cache.invalidateAll(CONNECTOR);
+    lookup(alice, "doc1");
+    assertEquals(Arrays.asList("doc1"), uncached);
+  }
+
+  public void testSavedMillis() {
+    lookup(alice, "doc1", "doc2");
+    long startTime = clock.getTimeMillis();
+    clock.adjustTime(200L);
+    cache.store(CONNECTOR, alice, Arrays.asList(
+        new AuthorizationResponse(Status.PERMIT, "doc1"),
+        new AuthorizationResponse(Status.PERMIT, "doc2")), 2, startTime);
+    lookup(alice, "doc1", "doc2");
+    lookup(alice, "doc1");
+
+    AuthorizationCache.Statistics stats = cache.getStatistics(CONNECTOR);
+    assertEquals(3, stats.getHitCount());
+    assertEquals(2, stats.getMissCount());
+    assertEquals(0.6, stats.getHitRate(), 0.001);
+    assertEquals(300L, stats.getSavedMillis());
+  }
+}
@@ -0,0 +1,108 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+import junit.framework.TestCase;
+
+/** Tests for {@link DocumentMetadataCache}. */
+public class DocumentMetadataCacheTest extends TestCase {
+  private static final String CONNECTOR = "connector1";
+
+  private final DocumentMetadataCache.Entry entry =
+      new DocumentMetadataCache.Entry(3600L, "text/plain", 42, true, "a=b");
+
+  private AdjustableClock clock;
+  private DocumentMetadataCache cache;
+
+  @Override
+  protected void setUp() {
+    clock = new AdjustableClock();
+    cache = new DocumentMetadataCache();
+    cache.setClock(clock);
+    cache.setMaxSize(100);
+    cache.setTtlSeconds(60);
+  }
+
+  private void put(String docid, DocumentMetadataCache.Entry entry) {
+    cache.put(CONNECTOR, docid, entry, cache.getTimeMillis());
+  }
+
+  public void testDisabledByDefault() {
+    cache = new DocumentMetadataCache();
+    assertFalse(cache.isEnabled());
+    put("doc1", entry);
+    assertNull(cache.get(CONNECTOR, "doc1"));
+  }
+
+  public void testHit() {
+    put("doc1", entry);
+    assertSame(entry, cache.get(CONNECTOR, "doc1"));
+    assertNull(cache.get(CONNECTOR, "doc2"));
+    assertNull(cache.get("connector2", "doc1"));
+  }
+
+  public void testUnknownSecurityIsNotCached() {
+    put("doc1", new DocumentMetadataCache.Entry(-1L, "text/html", null,
+        null, ""));
+    assertNull(cache.get(CONNECTOR, "doc1"));
+  }
+
+  public void testExpiry() {
+    put("doc1", entry);
+    clock.adjustTime(59 * 1000L);
+    assertSame(entry, cache.get(CONNECTOR, "doc1"));
+    clock.adjustTime(2 * 1000L);
+    assertNull(cache.get(CONNECTOR, "doc1"));
+  }
+
+  public void testMaxSize() {
+    cache.setMaxSize(1);
+    put("doc1", entry);
+    put("doc2", entry);
+    assertNull(cache.get(CONNECTOR, "doc1"));
+    assertSame(entry, cache.get(CONNECTOR, "doc2"));
+  }
+
+  public void testInvalidate() {
+    put("doc1", entry);
+    put("doc2", entry);
+    clock.adjustTime(1000L);
+    cache.invalidate(CONNECTOR, "doc1");
+    assertNull(cache.get(CONNECTOR, "doc1"));
+    assertSame(entry, cache.get(CONNECTOR, "doc2"));
+
+    // Metadata retrieved after the document was fed is cached.
+    clock.adjustTime(1000L);
+    put("doc1", entry);
+    assertSame(entry, cache.get(CONNECTOR, "doc1"));
+  }
+
+  /** Tests that metadata retrieved before the document was fed is not. */
+  public void testInvalidateDuringRetrieval() {
+    long startTime = cache.getTimeMillis();
+    clock.adjustTime(1000L);
+    cache.invalidate(CONNECTOR, "doc1");
+    cache.put(CONNECTOR, "doc1", entry, startTime);
+    assertNull(cache.get(CONNECTOR, "doc1"));
+  }
+
+  public void testInvalidateAll() {
+    put("doc1", entry);
+    cache.invalidateAll(CONNECTOR);
+    assertNull(cache.get(CONNECTOR, "doc1"));
+  }
+}
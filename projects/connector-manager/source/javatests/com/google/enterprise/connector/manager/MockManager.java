@@ -196,6 +196,11 @@ public class MockManager implements Manager {
     return results;
   }
 
+  @Override
+  public long getAuthorizationTimeoutMillis(String connectorName) {
+    return 30 * 1000L;
+  }
+
   @Override
   public InputStream getDocumentContent(String connectorName, String docid)
       throws ConnectorNotFoundException {
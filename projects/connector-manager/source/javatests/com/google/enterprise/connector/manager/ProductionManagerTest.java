@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.manager;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 import com.google.enterprise.connector.common.PropertiesUtils;
 import com.google.enterprise.connector.common.StringUtils;
 import com.google.enterprise.connector.instantiator.Configuration;
@@ -35,7 +37,9 @@ import com.google.enterprise.connector.spi.MockRetriever;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.RepositoryLoginException;
+import com.google.enterprise.connector.spi.Retriever;
 import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
+import com.google.enterprise.connector.spi.SimpleTraversalContext;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.Value;
 import com.google.enterprise.connector.traversal.TraversalStateStore;
@@ -43,6 +47,10 @@ import com.google.enterprise.connector.util.SystemClock;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Collection;
@@ -206,6 +214,48 @@ public class ProductionManagerTest extends TestCase {
     }
   }
 
+  /**
+   * Test that authorizeDocids with the cache enabled still returns null,
+   * or INDETERMINATE for the uncached documents, if the connector has no
+   * answer.
+   */
+  public void testAuthorizeDocidsCachedNoAnswer() throws Exception {
+    AuthorizationCache cache = new AuthorizationCache();
+    cache.setMaxSize(100);
+    manager.setAuthorizationCache(cache);
+    final boolean[] answer = { true };
+    instantiator.addConnector(connectorName, new MockConnector(null, null,
+        new AuthorizeAllAuthorizationManager() {
+          @Override
+          public Collection<AuthorizationResponse> authorizeDocids(
+              Collection<String> docids, AuthenticationIdentity identity) {
+            return answer[0] ? super.authorizeDocids(docids, identity) : null;
+          }
+        }, null, null));
+
+    // Nothing cached yet.
+    answer[0] = false;
+    assertNull(manager.authorizeDocids(connectorName,
+        Arrays.asList(new String[] { "foo", "bar" }), identity));
+
+    answer[0] = true;
+    manager.authorizeDocids(connectorName,
+        Arrays.asList(new String[] { "foo" }), identity);
+
+    // A partial hit.
+    answer[0] = false;
+    Collection<AuthorizationResponse> authorized = manager.authorizeDocids(
+        connectorName, Arrays.asList(new String[] { "foo", "bar" }), identity);
+    assertNotNull(authorized);
+    assertEquals(2, authorized.size());
+    for (AuthorizationResponse response : authorized) {
+      assertEquals(response.getDocid(), response.getDocid().equals("foo")
+          ? AuthorizationResponse.Status.PERMIT
+          : AuthorizationResponse.Status.INDETERMINATE,
+          response.getStatus());
+    }
+  }
+
   /** Check if the Collection of AuthorizationResponses contains a response
    *  for docid.
    */
@@ -318,6 +368,85 @@ public class ProductionManagerTest extends TestCase {
     assertEquals("docid", StringUtils.streamToString(in));
   }
 
+  /** Returns a Retriever that returns the content of a file. */
+  private Retriever newFileRetriever(final File file) {
+    return new MockRetriever() {
+      @Override
+      public InputStream getContent(String docid) throws RepositoryException {
+        try {
+          return new FileInputStream(file);
+        } catch (IOException e) {
+          throw new RepositoryException(e);
+        }
+      }
+    };
+  }
+
+  /** Test getDocumentContent with file content within the size limit. */
+  public void testGetDocumentContentFile() throws Exception {
+    File file = File.createTempFile("content", ".txt");
+    try {
+      Files.write("0123456789", file, Charsets.UTF_8);
+      SimpleTraversalContext traversalContext = new SimpleTraversalContext();
+      traversalContext.setMaxDocumentSize(10);
+      manager.setTraversalContext(traversalContext);
+      instantiator.addConnector(connectorName, new MockConnector(
+          null, null, null, newFileRetriever(file), null));
+      InputStream in = manager.getDocumentContent(connectorName, "docid");
+      assertTrue(in instanceof FileInputStream);
+      assertEquals("0123456789", StringUtils.streamToString(in));
+    } finally {
+      file.delete();
+    }
+  }
+
+  /** Test getDocumentContent with file content exceeding the size limit. */
+  public void testGetDocumentContentBigFile() throws Exception {
+    File file = File.createTempFile("content", ".txt");
+    try {
+      Files.write("0123456789", file, Charsets.UTF_8);
+      SimpleTraversalContext traversalContext = new SimpleTraversalContext();
+      traversalContext.setMaxDocumentSize(5);
+      manager.setTraversalContext(traversalContext);
+      instantiator.addConnector(connectorName, new MockConnector(
+          null, null, null, newFileRetriever(file), null));
+      InputStream in = manager.getDocumentContent(connectorName, "docid");
+      assertFalse(in instanceof FileInputStream);
+      // Big documents are replaced by alternate content.
+      assertEquals(" ", StringUtils.streamToString(in));
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Test getDocumentContent with streamed content exceeding the size limit.
+   * Content of unknown length is served in its entirety, since it may
+   * already have been partially written before it is found to be too large.
+   */
+  public void testGetDocumentContentBigStream() throws Exception {
+    final String content = "0123456789012345678901234567890123456789";
+    SimpleTraversalContext traversalContext = new SimpleTraversalContext();
+    traversalContext.setMaxDocumentSize(5);
+    manager.setTraversalContext(traversalContext);
+    instantiator.addConnector(connectorName, new MockConnector(
+        null, null, null, new MockRetriever() {
+          @Override
+          public InputStream getContent(String docid) {
+            return new ByteArrayInputStream(content.getBytes());
+          }
+        }, null));
+    InputStream in = manager.getDocumentContent(connectorName, "docid");
+    StringBuilder builder = new StringBuilder();
+    byte[] buffer = new byte[3];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      builder.append(new String(buffer, 0, count));
+    }
+    in.close();
+    assertEquals(content, builder.toString());
+  }
+
   /** Test getDocumentMetaData with ConnectorNotFound. */
   public void testGetDocumentMetaDataConnectorNotFound() throws Exception {
     try {
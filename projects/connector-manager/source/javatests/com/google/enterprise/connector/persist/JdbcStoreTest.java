@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.persist;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.scheduler.Schedule;
 import com.google.enterprise.connector.util.database.JdbcDatabase;
 
@@ -23,6 +25,8 @@ import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import javax.sql.DataSource;
@@ -80,6 +84,217 @@ public class JdbcStoreTest extends PersistentStoreTestAbstract {
     jdbcDatabase.getConnectionPool().releaseConnection(connection);
   }
 
+  /**
+   * Returns the number of rows and the modify stamp of the connector's
+   * state, read directly from the database.
+   */
+  private int[] getStateRow(String connectorName) throws SQLException {
+    Connection connection = jdbcDatabase.getConnectionPool().getConnection();
+    try {
+      PreparedStatement stmt = connection.prepareStatement(
+          "SELECT modify_stamp FROM google_connectors WHERE "
+          + "( connector_name=? AND property_name=? )");
+      try {
+        stmt.setString(1, connectorName);
+        stmt.setString(2, JdbcStore.STATE);
+        ResultSet rs = stmt.executeQuery();
+        int rows = 0;
+        int stamp = 0;
+        while (rs.next()) {
+          rows++;
+          stamp = rs.getInt(1);
+        }
+        return new int[] { rows, stamp };
+      } finally {
+        stmt.close();
+      }
+    } finally {
+      jdbcDatabase.getConnectionPool().releaseConnection(connection);
+    }
+  }
+
+  // Tests that a value is updated in place, bumping its modify stamp.
+  public void testUpdateBumpsModifyStamp() throws SQLException {
+    StoreContext storeContext = getStoreContext("connectorA");
+    store.storeConnectorState(storeContext, "state 1");
+    assertEquals(1, getStateRow("connectorA")[1]);
+    store.storeConnectorState(storeContext, "state 2");
+    store.removeConnectorState(storeContext);
+    store.storeConnectorState(storeContext, "state 3");
+    int[] row = getStateRow("connectorA");
+    assertEquals(1, row[0]);
+    assertEquals(4, row[1]);
+    assertEquals("state 3", store.getConnectorState(storeContext));
+  }
+
+  // Tests that written-behind states are coalesced and written together.
+  public void testWriteBehind() throws SQLException {
+    JdbcStore jdbcStore = (JdbcStore) store;
+    jdbcStore.setWriteBehindDelay(60 * 60 * 1000L);
+    StoreContext contextA = getStoreContext("connectorA");
+    StoreContext contextB = getStoreContext("connectorB");
+    // Create the table.
+    assertNull(store.getConnectorSchedule(contextA));
+    store.storeConnectorState(contextA, "state A1");
+    store.storeConnectorState(contextB, "state B1");
+    store.storeConnectorState(contextA, "state A2");
+
+    // The pending states are visible, but not yet written.
+    assertEquals("state A2", store.getConnectorState(contextA));
+    assertEquals("state B1", store.getConnectorState(contextB));
+    assertEquals(0, getStateRow("connectorA")[0]);
+    assertEquals(0, getStateRow("connectorB")[0]);
+
+    jdbcStore.flushConnectorStates();
+    assertEquals(1, getStateRow("connectorA")[1]);
+    assertEquals(1, getStateRow("connectorB")[1]);
+    assertEquals("state A2", store.getConnectorState(contextA));
+
+    store.removeConnectorState(contextB);
+    assertNull(store.getConnectorState(contextB));
+    assertEquals(1, getStateRow("connectorB")[1]);
+    jdbcStore.flushConnectorStates();
+    assertEquals(2, getStateRow("connectorB")[1]);
+    assertNull(store.getConnectorState(contextB));
+  }
+
+  // Tests that pending states are written before a synchronous write.
+  public void testWriteBehindDisabled() throws SQLException {
+    JdbcStore jdbcStore = (JdbcStore) store;
+    jdbcStore.setWriteBehindDelay(60 * 60 * 1000L);
+    StoreContext storeContext = getStoreContext("connectorA");
+    store.storeConnectorState(storeContext, "state 1");
+    jdbcStore.setWriteBehindDelay(0L);
+    store.storeConnectorState(storeContext, "state 2");
+    assertEquals(2, getStateRow("connectorA")[1]);
+    assertEquals("state 2", store.getConnectorState(storeContext));
+  }
+
+  /** Returns another store on the same database, as in an HA pair. */
+  private JdbcStore newRemoteStore() {
+    JdbcStore remoteStore = new JdbcStore();
+    remoteStore.setDatabase(jdbcDatabase);
+    remoteStore.setResourceClassLoader(new TestClassLoader());
+    return remoteStore;
+  }
+
+  // Tests that the inventory is updated with the changes from another store.
+  public void testIncrementalInventory() throws SQLException {
+    StoreContext contextA = getStoreContext("connectora");
+    StoreContext contextB = getStoreContext("connectorb");
+    store.storeConnectorConfiguration(contextA, getConfiguration());
+    ImmutableMap<StoreContext, ConnectorStamps> inventory =
+        store.getInventory();
+    assertEquals(ImmutableSet.of(contextA), inventory.keySet());
+
+    // Nothing has changed.
+    assertSame(inventory, store.getInventory());
+
+    JdbcStore remoteStore = newRemoteStore();
+    remoteStore.storeConnectorConfiguration(contextB, getConfiguration());
+    ImmutableMap<StoreContext, ConnectorStamps> newInventory =
+        store.getInventory();
+    assertEquals(ImmutableSet.of(contextA, contextB), newInventory.keySet());
+    // The unchanged connector keeps its stamps.
+    assertSame(inventory.get(contextA), newInventory.get(contextA));
+    inventory = newInventory;
+
+    remoteStore.storeConnectorState(contextA, getCheckpoint());
+    newInventory = store.getInventory();
+    assertNull(inventory.get(contextA).getCheckpointStamp());
+    assertNotNull(newInventory.get(contextA).getCheckpointStamp());
+    assertSame(inventory.get(contextB), newInventory.get(contextB));
+
+    remoteStore.removeConnectorConfiguration(contextA);
+    assertEquals(ImmutableSet.of(contextB), store.getInventory().keySet());
+    assertEquals(remoteStore.getInventory().toString(),
+        store.getInventory().toString());
+  }
+
+  /** Returns the number of rows holding the modification sequence. */
+  private int getSequenceRowCount() throws SQLException {
+    Connection connection = jdbcDatabase.getConnectionPool().getConnection();
+    try {
+      PreparedStatement stmt = connection.prepareStatement(
+          "SELECT COUNT(*) FROM google_connectors WHERE ( connector_name=? "
+          + "AND property_name=? )");
+      try {
+        stmt.setString(1, JdbcStore.SEQUENCE_CONNECTOR);
+        stmt.setString(2, JdbcStore.SEQUENCE);
+        ResultSet rs = stmt.executeQuery();
+        assertTrue(rs.next());
+        return rs.getInt(1);
+      } finally {
+        stmt.close();
+      }
+    } finally {
+      jdbcDatabase.getConnectionPool().releaseConnection(connection);
+    }
+  }
+
+  // Tests that the sequence is started once, when the table is first used.
+  public void testSequenceStartedWithTable() throws SQLException {
+    StoreContext storeContext = getStoreContext("connectora");
+    assertNull(store.getConnectorSchedule(storeContext));
+    assertEquals(1, getSequenceRowCount());
+
+    JdbcStore remoteStore = newRemoteStore();
+    assertNull(remoteStore.getConnectorSchedule(storeContext));
+    assertEquals(1, getSequenceRowCount());
+  }
+
+  // Tests that the sequence starts after the stamps of existing rows.
+  public void testSequenceStartsAfterExistingStamps() throws SQLException {
+    StoreContext storeContext = getStoreContext("connectora");
+    // Create the table.
+    assertNull(store.getConnectorSchedule(storeContext));
+    Connection connection = jdbcDatabase.getConnectionPool().getConnection();
+    try {
+      // Make the table look like one written before the sequence existed.
+      PreparedStatement stmt = connection.prepareStatement(
+          "DELETE FROM google_connectors");
+      try {
+        stmt.executeUpdate();
+      } finally {
+        stmt.close();
+      }
+      stmt = connection.prepareStatement(
+          "INSERT INTO google_connectors ( modify_stamp, connector_name, "
+          + "property_name, property_value ) VALUES ( 7, ?, ?, ? )");
+      try {
+        stmt.setString(1, "connectora");
+        stmt.setString(2, JdbcStore.STATE);
+        stmt.setString(3, "state 1");
+        stmt.executeUpdate();
+      } finally {
+        stmt.close();
+      }
+    } finally {
+      jdbcDatabase.getConnectionPool().releaseConnection(connection);
+    }
+
+    // A store started on the existing table starts the sequence.
+    newRemoteStore().storeConnectorState(storeContext, "state 2");
+    int[] row = getStateRow("connectora");
+    assertEquals(1, row[0]);
+    assertEquals(8, row[1]);
+  }
+
+  // Tests that the inventory is scanned in full periodically.
+  public void testFullInventoryInterval() throws SQLException {
+    StoreContext storeContext = getStoreContext("connectora");
+    store.storeConnectorConfiguration(storeContext, getConfiguration());
+    ImmutableMap<StoreContext, ConnectorStamps> inventory =
+        store.getInventory();
+    for (int i = 0; i < JdbcStore.FULL_INVENTORY_INTERVAL; i++) {
+      assertSame(inventory, store.getInventory());
+    }
+    ImmutableMap<StoreContext, ConnectorStamps> fullInventory =
+        store.getInventory();
+    assertNotSame(inventory, fullInventory);
+    assertEquals(inventory.keySet(), fullInventory.keySet());
+  }
+
   // A ClassLoader that looks for resources relative to the
   // current working directory and the source/resources directory.
   private class TestClassLoader extends ClassLoader {
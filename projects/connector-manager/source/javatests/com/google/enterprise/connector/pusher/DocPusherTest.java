@@ -255,7 +255,8 @@ public class DocPusherTest extends TestCase {
   }
 
   /**
-   * Test Take for a compressed content feed.
+   * Test Take for a compressed content feed.  Content this small is
+   * not worth compressing, so it is sent base64binary encoded.
    */
   public void testTakeCompressedContent() throws Exception {
     String[] expectedXml = new String[1];
@@ -268,8 +269,9 @@ public class DocPusherTest extends TestCase {
         + "<meta name=\"google:lastmodified\" content=\"Tue, 15 Nov 1994 12:45:26 GMT\"/>\n"
         + "<meta name=\"google:mimetype\" content=\"text/html\"/>\n"
         + "<meta name=\"jcr:lastModified\" content=\"1970-01-01\"/>\n"
-        + "</metadata>\n" + "<content encoding=\"base64compressed\">\n"
-        + "eJyzySjJzbE73Hd449HFh1cWHd54eCmQse7wNhDryJ7D647uQ4jY6INVAwBbqCBF"
+        + "</metadata>\n" + "<content encoding=\"base64binary\">\n"
+        + "PGh0bWw+w47DscWjw6lyw7HDpcWjw67DtsOxw6XEvMOu"
+        + "xb7DpcWjw67DtsOxPC9odG1sPg=="
         + "\n</content>\n" + "</record>\n";
 
     expectedXml[0] = buildExpectedXML(feedType, record);
@@ -630,8 +632,9 @@ public class DocPusherTest extends TestCase {
         "last-modified=\"Thu, 01 Jan 1970 01:00:00 GMT\"", resultXML);
     assertStringContains("url=" + googleConnectorUrl("doc1"), resultXML);
     assertStringContains("action=\"add\"", resultXML);
+    // Content this small is not worth compressing.
     assertStringContains(
-        "<content encoding=\"" + ContentEncoding.BASE64COMPRESSED + "\">",
+        "<content encoding=\"" + ContentEncoding.BASE64BINARY + "\">",
         resultXML);
   }
 
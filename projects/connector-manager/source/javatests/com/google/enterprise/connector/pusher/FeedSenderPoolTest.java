@@ -0,0 +1,169 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link FeedSenderPool}. */
+public class FeedSenderPoolTest extends TestCase {
+
+  /** A task that records how many tasks were running alongside it. */
+  private static class CountingTask implements Runnable {
+    private final AtomicInteger running;
+    private final AtomicInteger maxRunning;
+    private final CountDownLatch release;
+    private final CountDownLatch done;
+    private final List<Integer> order;
+    private final int id;
+
+    CountingTask(int id, AtomicInteger running, AtomicInteger maxRunning,
+        CountDownLatch release, CountDownLatch done, List<Integer> order) {
+      this.id = id;
+      this.running = running;
+      this.maxRunning = maxRunning;
+      this.release = release;
+      this.done = done;
+      this.order = order;
+    }
+
+    @Override
+    public void run() {
+      int now = running.incrementAndGet();
+      synchronized (maxRunning) {
+        if (now > maxRunning.get()) {
+          maxRunning.set(now);
+        }
+      }
+      order.add(id);
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        running.decrementAndGet();
+        done.countDown();
+      }
+    }
+  }
+
+  public void testInvalidArguments() {
+    try {
+      new FeedSenderPool(0, 1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new FeedSenderPool(1, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /** Tests that a single connector's feeds are sent one at a time, in order. */
+  public void testOneFeedPerConnector() throws Exception {
+    FeedSenderPool pool = new FeedSenderPool(4, 1);
+    Executor executor = pool.newExecutor();
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(0);
+    CountDownLatch done = new CountDownLatch(20);
+    List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    for (int i = 0; i < 20; i++) {
+      executor.execute(
+          new CountingTask(i, running, maxRunning, release, done, order));
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(1, maxRunning.get());
+    for (int i = 0; i < 20; i++) {
+      assertEquals(Integer.valueOf(i), order.get(i));
+    }
+  }
+
+  /** Tests that several connectors may send their feeds concurrently. */
+  public void testConcurrentConnectors() throws Exception {
+    FeedSenderPool pool = new FeedSenderPool(3, 1);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(5);
+    List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    for (int i = 0; i < 5; i++) {
+      pool.newExecutor().execute(
+          new CountingTask(i, running, maxRunning, release, done, order));
+    }
+    // Wait for the pool to fill up.
+    for (int i = 0; i < 100 && running.get() < 3; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(3, running.get());
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    // The pool size bounds the concurrency across connectors.
+    assertEquals(3, maxRunning.get());
+  }
+
+  /** Tests that a connector may send several feeds concurrently. */
+  public void testSeveralFeedsPerConnector() throws Exception {
+    FeedSenderPool pool = new FeedSenderPool(4, 2);
+    Executor executor = pool.newExecutor();
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(6);
+    List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    for (int i = 0; i < 6; i++) {
+      executor.execute(
+          new CountingTask(i, running, maxRunning, release, done, order));
+    }
+    for (int i = 0; i < 100 && running.get() < 2; i++) {
+      Thread.sleep(50);
+    }
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(2, maxRunning.get());
+  }
+
+  /** Tests that feeds waiting and being sent are counted as pending. */
+  public void testPendingCount() throws Exception {
+    FeedSenderPool pool = new FeedSenderPool(2, 1);
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(4);
+    List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    assertEquals(0, pool.getPendingCount());
+    Executor executor = pool.newExecutor();
+    for (int i = 0; i < 4; i++) {
+      executor.execute(
+          new CountingTask(i, running, maxRunning, release, done, order));
+    }
+    assertEquals(4, pool.getPendingCount());
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    // The count is decremented just after each task completes.
+    for (int i = 0; i < 100 && pool.getPendingCount() > 0; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(0, pool.getPendingCount());
+  }
+}
@@ -88,4 +88,13 @@ public class GsaFeedConnectionTest extends TestCase {
     assertFeedUrl("https", "myhost", 19902,
         new GsaFeedConnection("https", "myhost", 19900, 19902));
   }
+
+  public void testMaxConnections() throws MalformedURLException {
+    GsaFeedConnection feeder = new GsaFeedConnection(null, "myhost", 19900, -1);
+    assertEquals(Integer.MAX_VALUE, feeder.getMaxConnections());
+    feeder.setMaxConnections(4);
+    assertEquals(4, feeder.getMaxConnections());
+    feeder.setMaxConnections(0);
+    assertEquals(Integer.MAX_VALUE, feeder.getMaxConnections());
+  }
 }
@@ -0,0 +1,150 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Tests for {@link HttpConnectionPool}. */
+public class HttpConnectionPoolTest extends TestCase {
+  private HttpServer server;
+  private URL okUrl;
+  private URL missingUrl;
+  private URL largeUrl;
+
+  /** The remote ports of the connections the server has seen. */
+  private final Set<Integer> clientPorts =
+      Collections.synchronizedSet(new HashSet<Integer>());
+
+  @Override
+  protected void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/ok", new Responder(200, "Success"));
+    server.createContext("/missing", new Responder(404, "Not Found"));
+    server.createContext("/large",
+        new Responder(200, Strings.repeat("Success", 64 * 1024)));
+    server.start();
+    int port = server.getAddress().getPort();
+    okUrl = new URL("http", "localhost", port, "/ok");
+    missingUrl = new URL("http", "localhost", port, "/missing");
+    largeUrl = new URL("http", "localhost", port, "/large");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop(0);
+  }
+
+  private class Responder implements HttpHandler {
+    private final int status;
+    private final byte[] body;
+
+    Responder(int status, String body) {
+      this.status = status;
+      this.body = body.getBytes(Charsets.UTF_8);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      clientPorts.add(exchange.getRemoteAddress().getPort());
+      InputStream in = exchange.getRequestBody();
+      while (in.read() != -1) {
+      }
+      exchange.sendResponseHeaders(status, body.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+        out.write(body);
+        out.close();
+      } catch (IOException e) {
+        // The client discarded the connection without reading the body.
+      }
+    }
+  }
+
+  private void get(HttpConnectionPool pool, URL url) throws Exception {
+    HttpURLConnection uc = pool.openConnection(url, true);
+    if (uc.getResponseCode() == HttpURLConnection.HTTP_OK) {
+      InputStream in = uc.getInputStream();
+      while (in.read() != -1) {
+      }
+      in.close();
+    }
+    pool.release(uc);
+  }
+
+  public void testKeepAlive() throws Exception {
+    HttpConnectionPool pool = new HttpConnectionPool();
+    for (int i = 0; i < 5; i++) {
+      get(pool, okUrl);
+    }
+    assertEquals(5, pool.getRequestCount());
+    assertEquals(clientPorts.toString(), 1, clientPorts.size());
+  }
+
+  /** Tests that connections returning an error response are reused. */
+  public void testKeepAliveAfterError() throws Exception {
+    HttpConnectionPool pool = new HttpConnectionPool();
+    get(pool, okUrl);
+    get(pool, missingUrl);
+    get(pool, okUrl);
+    assertEquals(clientPorts.toString(), 1, clientPorts.size());
+  }
+
+  public void testNoKeepAlive() throws Exception {
+    HttpConnectionPool pool = new HttpConnectionPool();
+    pool.setKeepAlive(false);
+    for (int i = 0; i < 3; i++) {
+      get(pool, okUrl);
+    }
+    assertEquals(clientPorts.toString(), 3, clientPorts.size());
+  }
+
+  /**
+   * Tests that discarded connections are not reused. The response body
+   * is too large to have been read already, so the socket cannot be in
+   * the keep-alive cache yet.
+   */
+  public void testDiscard() throws Exception {
+    HttpConnectionPool pool = new HttpConnectionPool();
+    for (int i = 0; i < 3; i++) {
+      HttpURLConnection uc = pool.openConnection(largeUrl, true);
+      uc.getResponseCode();
+      pool.discard(uc);
+    }
+    assertEquals(clientPorts.toString(), 3, clientPorts.size());
+  }
+
+  public void testReuseRatioWithoutHttps() throws Exception {
+    HttpConnectionPool pool = new HttpConnectionPool();
+    get(pool, okUrl);
+    assertEquals(0, pool.getSecureRequestCount());
+    assertEquals(0.0, pool.getReuseRatio());
+  }
+}
@@ -0,0 +1,255 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.SpiConstants.ContentEncoding;
+import com.google.enterprise.connector.spi.SpiConstants.FeedType;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/** Tests for {@link XmlFeed} spilling, streaming and encoding feed data. */
+public class XmlFeedTest extends TestCase {
+  private static final String DATA_SOURCE = "junit";
+
+  private FileSizeLimitInfo inMemoryLimit;
+  private FileSizeLimitInfo spillingLimit;
+
+  @Override
+  protected void setUp() {
+    inMemoryLimit = new FileSizeLimitInfo();
+    inMemoryLimit.setMaxFeedSize(64 * 1024);
+    inMemoryLimit.setMaxDocumentSize(64 * 1024);
+
+    spillingLimit = new FileSizeLimitInfo();
+    spillingLimit.setMaxFeedSize(64 * 1024);
+    spillingLimit.setMaxDocumentSize(64 * 1024);
+    spillingLimit.setMaxFeedMemorySize(1024);
+  }
+
+  private XmlFeed newFeed(FileSizeLimitInfo limit) throws IOException {
+    return new XmlFeed(DATA_SOURCE, FeedType.CONTENT, limit, null,
+                       new MockFeedConnection());
+  }
+
+  private Document getDocument(int i) {
+    Map<String, Object> props =
+        ConnectorTestUtils.createSimpleDocumentBasicProperties("doc" + i);
+    props.put(SpiConstants.PROPNAME_CONTENT, Strings.repeat("content ", 100));
+    return ConnectorTestUtils.createSimpleDocument(props);
+  }
+
+  private void addRecords(XmlFeed feed, int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      feed.addRecord(getDocument(i));
+    }
+  }
+
+  public void testFeedMemorySize() {
+    assertEquals(64 * 1024, inMemoryLimit.feedMemorySize());
+    assertEquals(1024, spillingLimit.feedMemorySize());
+    spillingLimit.setMaxFeedMemorySize(128 * 1024);
+    assertEquals(64 * 1024, spillingLimit.feedMemorySize());
+  }
+
+  public void testNoSpill() throws Exception {
+    XmlFeed feed = newFeed(inMemoryLimit);
+    addRecords(feed, 10);
+    feed.close();
+    assertFalse(feed.isSpilled());
+    feed.release();
+  }
+
+  /** Tests that a spilled feed contains the same data as an unspilled one. */
+  public void testSpilledFeedMatchesInMemoryFeed() throws Exception {
+    XmlFeed expected = newFeed(inMemoryLimit);
+    addRecords(expected, 10);
+    expected.close();
+
+    XmlFeed feed = newFeed(spillingLimit);
+    addRecords(feed, 10);
+    feed.close();
+    assertTrue(feed.isSpilled());
+
+    assertEquals(expected.size(), feed.size());
+    assertEquals(expected.toString("UTF-8"), feed.toString("UTF-8"));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    feed.writeTo(out);
+    assertEquals(expected.toString("UTF-8"), out.toString("UTF-8"));
+
+    feed.release();
+    assertFalse(feed.isSpilled());
+    assertEquals(0, feed.size());
+  }
+
+  /** Tests rolling back a spilled feed to a point within the spill file. */
+  public void testResetIntoSpillFile() throws Exception {
+    XmlFeed expected = newFeed(inMemoryLimit);
+    addRecords(expected, 2);
+    int resetPoint = expected.size();
+    expected.addRecord(getDocument(100));
+    expected.reset(resetPoint);
+    addRecords(expected, 3);
+    expected.close();
+
+    XmlFeed feed = newFeed(spillingLimit);
+    addRecords(feed, 2);
+    assertEquals(resetPoint, feed.size());
+    feed.addRecord(getDocument(100));
+    assertTrue(feed.isSpilled());
+    feed.reset(resetPoint);
+    assertEquals(resetPoint, feed.size());
+    addRecords(feed, 3);
+    feed.close();
+
+    assertEquals(expected.toString("UTF-8"), feed.toString("UTF-8"));
+    feed.release();
+  }
+
+  public void testResetTooLarge() throws Exception {
+    XmlFeed feed = newFeed(spillingLimit);
+    addRecords(feed, 5);
+    try {
+      feed.reset(feed.size() + 1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    feed.release();
+  }
+
+  /** Tests that a streamed feed sends the same data as an unstreamed one. */
+  public void testStreamedFeedMatchesInMemoryFeed() throws Exception {
+    XmlFeed expected = newFeed(inMemoryLimit);
+    addRecords(expected, 10);
+    expected.close();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XmlFeed feed = newFeed(spillingLimit);
+    feed.startStreaming(out);
+    assertTrue(feed.isStreaming());
+    for (int i = 0; i < 10; i++) {
+      feed.addRecord(getDocument(i));
+      feed.commit();
+      assertEquals(feed.size(), out.size());
+    }
+    feed.close();
+    feed.commit();
+
+    assertFalse(feed.isSpilled());
+    assertEquals(expected.size(), feed.size());
+    assertEquals(expected.toString("UTF-8"), out.toString("UTF-8"));
+    feed.release();
+    assertFalse(feed.isStreaming());
+  }
+
+  /** Tests that uncommitted records of a streamed feed may be rolled back. */
+  public void testResetStreamedFeed() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XmlFeed feed = newFeed(inMemoryLimit);
+    feed.startStreaming(out);
+    addRecords(feed, 2);
+    feed.commit();
+    int committed = feed.size();
+
+    feed.addRecord(getDocument(100));
+    feed.reset(committed);
+    assertEquals(committed, feed.size());
+    assertEquals(committed, out.size());
+
+    try {
+      feed.reset(committed - 1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    feed.release();
+  }
+
+  public void testStreamedFeedDataNotAvailable() throws Exception {
+    XmlFeed feed = newFeed(inMemoryLimit);
+    feed.startStreaming(new ByteArrayOutputStream());
+    try {
+      feed.writeTo(new ByteArrayOutputStream());
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    feed.release();
+  }
+
+  public void testIsCompressible() {
+    assertTrue(XmlFeed.isCompressible("text/html"));
+    assertTrue(XmlFeed.isCompressible("text/plain; charset=UTF-8"));
+    assertTrue(XmlFeed.isCompressible("application/pdf"));
+    assertTrue(XmlFeed.isCompressible("application/msword"));
+    assertFalse(XmlFeed.isCompressible("application/zip"));
+    assertFalse(XmlFeed.isCompressible("IMAGE/JPEG"));
+    assertFalse(XmlFeed.isCompressible("image/png; name=x.png"));
+    assertFalse(XmlFeed.isCompressible("video/mp4"));
+    assertFalse(XmlFeed.isCompressible(
+        "application/vnd.openxmlformats-officedocument.wordprocessingml"
+        + ".document"));
+  }
+
+  private String feedContent(String mimeType, String content)
+      throws Exception {
+    Map<String, Object> props =
+        ConnectorTestUtils.createSimpleDocumentBasicProperties("doc");
+    props.put(SpiConstants.PROPNAME_MIMETYPE, mimeType);
+    props.put(SpiConstants.PROPNAME_CONTENT, content);
+    XmlFeed feed = new XmlFeed(DATA_SOURCE, FeedType.CONTENT, inMemoryLimit,
+        null, new MockFeedConnection() {
+          @Override
+          public String getContentEncodings() {
+            return ContentEncoding.BASE64COMPRESSED.toString();
+          }
+        });
+    try {
+      feed.addRecord(ConnectorTestUtils.createSimpleDocument(props));
+      feed.close();
+      return feed.toString("UTF-8");
+    } finally {
+      feed.release();
+    }
+  }
+
+  private static String encoding(ContentEncoding encoding) {
+    return "<content encoding=\"" + encoding + "\">";
+  }
+
+  public void testLargeContentIsCompressed() throws Exception {
+    String content = Strings.repeat("content ", XmlFeed.MIN_COMPRESSIBLE_SIZE);
+    String xml = feedContent("text/plain", content);
+    assertTrue(xml, xml.contains(encoding(ContentEncoding.BASE64COMPRESSED)));
+  }
+
+  public void testSmallContentIsNotCompressed() throws Exception {
+    String xml = feedContent("text/plain", "hello");
+    assertTrue(xml, xml.contains(encoding(ContentEncoding.BASE64BINARY)));
+  }
+
+  public void testCompressedContentIsNotCompressed() throws Exception {
+    String content = Strings.repeat("content ", XmlFeed.MIN_COMPRESSIBLE_SIZE);
+    String xml = feedContent("application/zip", content);
+    assertTrue(xml, xml.contains(encoding(ContentEncoding.BASE64BINARY)));
+  }
+}
@@ -0,0 +1,149 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.scheduler;
+
+import com.google.enterprise.connector.scheduler.LoadManagerSimulator.SimulatedFeedHost;
+import com.google.enterprise.connector.traversal.BatchResult;
+import com.google.enterprise.connector.traversal.TraversalDelayPolicy;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+import junit.framework.TestCase;
+
+/** Tests for {@link AdaptiveLoadManager}. */
+public class AdaptiveLoadManagerTest extends TestCase {
+  private static final long HOUR_IN_MILLIS = 60 * 60 * 1000L;
+
+  /** The target load: 10 documents per second. */
+  private static final int LOAD = 600;
+
+  private AdjustableClock clock;
+
+  @Override
+  protected void setUp() {
+    clock = new AdjustableClock(1000000L);
+  }
+
+  private AdaptiveLoadManager newLoadManager(SimulatedFeedHost feedHost) {
+    AdaptiveLoadManager alm =
+        new AdaptiveLoadManager(feedHost, null, null, clock);
+    alm.setLoad(LOAD);
+    alm.setBatchSize(100);
+    alm.setTargetResponseMillis(2000L);
+    alm.setMaxBacklogCount(0);
+    return alm;
+  }
+
+  private void assertRate(double expected, double actual, double tolerance) {
+    assertTrue("Expected " + expected + " +/- " + tolerance + " but was "
+        + actual, Math.abs(expected - actual) <= tolerance);
+  }
+
+  /** Tests that an uncongested feed host is fed at the target rate. */
+  public void testTargetRate() {
+    SimulatedFeedHost feedHost = new SimulatedFeedHost(clock, 100.0, 100L);
+    LoadManagerSimulator simulator = new LoadManagerSimulator(clock,
+        feedHost, newLoadManager(feedHost));
+    assertRate(10.0, simulator.run(HOUR_IN_MILLIS), 0.2);
+  }
+
+  /**
+   * Tests that the feed rate drops to the capacity of a congested feed
+   * host, keeping its response time bounded, and recovers once the
+   * congestion clears.
+   */
+  public void testCongestion() {
+    SimulatedFeedHost feedHost = new SimulatedFeedHost(clock, 100.0, 100L);
+    AdaptiveLoadManager alm = newLoadManager(feedHost);
+    LoadManagerSimulator simulator =
+        new LoadManagerSimulator(clock, feedHost, alm);
+    simulator.run(HOUR_IN_MILLIS / 4);
+
+    feedHost.setCapacity(4.0);
+    simulator.run(HOUR_IN_MILLIS / 4);
+    simulator.resetMaxResponseMillis();
+    double rate = simulator.run(HOUR_IN_MILLIS);
+    assertRate(4.0, rate, 1.0);
+    assertTrue(Long.toString(simulator.getMaxResponseMillis()),
+        simulator.getMaxResponseMillis() < 60 * 1000L);
+
+    feedHost.setCapacity(100.0);
+    simulator.run(HOUR_IN_MILLIS / 4);
+    assertRate(10.0, simulator.run(HOUR_IN_MILLIS), 0.2);
+  }
+
+  /** Tests that the rate is reduced at most once per period. */
+  public void testDecreaseOncePerPeriod() {
+    SimulatedFeedHost feedHost = new SimulatedFeedHost(clock, 1.0, 100L);
+    AdaptiveLoadManager alm = newLoadManager(feedHost);
+    double target = alm.getAllowedRate();
+
+    feedHost.feed(1000);
+    feedHost.feed(1);
+    assertTrue(alm.isCongested());
+    recordBatch(alm, 10);
+    assertEquals(target * AdaptiveLoadManager.DECREASE_FACTOR,
+                 alm.getAllowedRate(), 1e-9);
+    recordBatch(alm, 10);
+    assertEquals(target * AdaptiveLoadManager.DECREASE_FACTOR,
+                 alm.getAllowedRate(), 1e-9);
+
+    clock.adjustTime(60 * 1000L);
+    recordBatch(alm, 10);
+    assertEquals(target * AdaptiveLoadManager.DECREASE_FACTOR
+                 * AdaptiveLoadManager.DECREASE_FACTOR,
+                 alm.getAllowedRate(), 1e-9);
+  }
+
+  /** Tests that the rate is never reduced below the minimum. */
+  public void testMinimumRate() {
+    SimulatedFeedHost feedHost = new SimulatedFeedHost(clock, 1.0, 100L);
+    AdaptiveLoadManager alm = newLoadManager(feedHost);
+    double target = alm.getAllowedRate();
+
+    feedHost.feed(1000000);
+    feedHost.feed(1);
+    for (int i = 0; i < 10; i++) {
+      clock.adjustTime(60 * 1000L);
+      recordBatch(alm, 1);
+    }
+    assertEquals(target * AdaptiveLoadManager.MIN_RATE_FRACTION,
+                 alm.getAllowedRate(), 1e-9);
+  }
+
+  /** Tests that the next batch is delayed until its documents are due. */
+  public void testPacing() {
+    SimulatedFeedHost feedHost = new SimulatedFeedHost(clock, 100.0, 100L);
+    AdaptiveLoadManager alm = newLoadManager(feedHost);
+    assertEquals(100, alm.determineBatchSize().getHint());
+    assertFalse(alm.shouldDelay());
+
+    // 100 documents at 10 per second are due over 10 seconds.
+    recordBatch(alm, 100);
+    assertTrue(alm.shouldDelay());
+    assertEquals(0, alm.determineBatchSize().getHint());
+    long delay = alm.getDelayMillis();
+    assertTrue(Long.toString(delay), delay > 8000L && delay <= 10000L);
+    clock.adjustTime(delay);
+    assertFalse(alm.shouldDelay());
+    assertEquals(100, alm.determineBatchSize().getHint());
+  }
+
+  /** Records a one second batch ending now. */
+  private void recordBatch(AdaptiveLoadManager alm, int count) {
+    long now = clock.getTimeMillis();
+    alm.recordResult(new BatchResult(TraversalDelayPolicy.IMMEDIATE, count,
+        now - 1000L, now));
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.scheduler;
+
+import com.google.enterprise.connector.traversal.BatchResult;
+import com.google.enterprise.connector.traversal.TraversalDelayPolicy;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link FeedRateGovernor}. */
+public class FeedRateGovernorTest extends TestCase {
+  private AdjustableClock clock;
+  private FeedRateGovernor governor;
+
+  @Override
+  protected void setUp() {
+    clock = new AdjustableClock(1000000L);
+    governor = new FeedRateGovernor(clock);
+    governor.setLoad(600);  // 10 documents per second.
+    governor.setBurstSize(100);
+  }
+
+  public void testDisabled() {
+    governor.setLoad(0);
+    assertFalse(governor.isEnabled());
+    FeedRateGovernor.Share share = governor.newShare("c1", 1);
+    assertEquals(5000, share.acquire(5000));
+    assertEquals(0L, share.getDelayMillis(5000));
+  }
+
+  public void testBurstAndRefill() {
+    FeedRateGovernor.Share share = governor.newShare("c1", 1);
+    assertEquals(100L, governor.getAvailable());
+    assertEquals(100, share.acquire(500));
+    assertEquals(0, share.acquire(500));
+    assertEquals(10000L, share.getDelayMillis(500));
+
+    clock.adjustTime(5000L);
+    assertEquals(50L, governor.getAvailable());
+    assertEquals(5000L, share.getDelayMillis(500));
+    // A smaller request may be granted sooner.
+    assertEquals(50, share.acquire(50));
+
+    // The bucket holds no more than the burst size.
+    clock.adjustTime(60 * 60 * 1000L);
+    assertEquals(100L, governor.getAvailable());
+  }
+
+  public void testSettle() {
+    FeedRateGovernor.Share share = governor.newShare("c1", 1);
+    assertEquals(100, share.acquire(100));
+    // Only 40 of the 100 documents were fed.
+    share.settle(100, 40);
+    assertEquals(60L, governor.getAvailable());
+
+    // More documents than granted were fed: the excess is owed.
+    assertEquals(60, share.acquire(60));
+    share.settle(60, 80);
+    assertEquals(-20L, governor.getAvailable());
+    long delay = share.getDelayMillis(1);
+    assertTrue(Long.toString(delay), delay >= 2090L && delay <= 2100L);
+  }
+
+  /** Tests that active connectors share the bucket by weight. */
+  public void testWeightedFairShare() {
+    FeedRateGovernor.Share big = governor.newShare("big", 300);
+    FeedRateGovernor.Share small = governor.newShare("small", 100);
+    small.getDelayMillis(100);  // Marks small as active.
+    assertEquals(75, big.acquire(100));
+    assertEquals(25, small.acquire(100));
+  }
+
+  /** Tests that the share of an idle connector may be borrowed. */
+  public void testIdleShareIsBorrowed() {
+    FeedRateGovernor.Share busy = governor.newShare("busy", 100);
+    FeedRateGovernor.Share idle = governor.newShare("idle", 100);
+    idle.getDelayMillis(100);
+    assertEquals(50, busy.acquire(100));
+
+    // Once idle has been inactive for a period, busy may take it all.
+    clock.adjustTime(61 * 1000L);
+    assertEquals(100, busy.acquire(100));
+  }
+
+  /** Tests that concurrent requests never take more than the bucket. */
+  public void testConcurrentAcquire() throws Exception {
+    governor.setBurstSize(10000);
+    final int threads = 8;
+    final AtomicInteger total = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      final FeedRateGovernor.Share share = governor.newShare("c" + i, 1);
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < 1000; j++) {
+              total.addAndGet(share.acquire(7));
+            }
+          } catch (InterruptedException e) {
+            // Fall through.
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    start.countDown();
+    done.await();
+    assertTrue(Integer.toString(total.get()), total.get() <= 10000);
+    assertTrue(Integer.toString(total.get()), total.get() > 10000 - 7);
+  }
+
+  /** Tests that HostLoadManagers limit their combined feed rate. */
+  public void testHostLoadManagers() {
+    HostLoadManagerFactory factory = new HostLoadManagerFactory();
+    factory.setClock(clock);
+    factory.setBatchSize(100);
+    factory.setFeedRateGovernor(governor);
+
+    LoadManager[] managers = new LoadManager[4];
+    for (int i = 0; i < managers.length; i++) {
+      managers[i] = factory.newLoadManager("c" + i);
+      managers[i].setLoad(600);
+    }
+    // Run batches for ten minutes, round robin, as the scheduler would.
+    long endTime = clock.getTimeMillis() + 10 * 60 * 1000L;
+    int[] counts = new int[managers.length];
+    while (clock.getTimeMillis() < endTime) {
+      for (int i = 0; i < managers.length; i++) {
+        if (managers[i].shouldDelay()) {
+          continue;
+        }
+        int hint = managers[i].determineBatchSize().getHint();
+        if (hint > 0) {
+          long now = clock.getTimeMillis();
+          managers[i].recordResult(new BatchResult(
+              TraversalDelayPolicy.IMMEDIATE, hint, now, now));
+          counts[i] += hint;
+        }
+      }
+      clock.adjustTime(100L);
+    }
+    int total = 0;
+    for (int count : counts) {
+      total += count;
+    }
+    // The combined load is the global load, not four times the load,
+    // and is shared evenly.
+    assertTrue(Integer.toString(total), total <= 6000 + 100);
+    assertTrue(Integer.toString(total), total >= 6000 - 100);
+    for (int count : counts) {
+      assertTrue(Integer.toString(count), Math.abs(count - 1500) <= 150);
+    }
+  }
+}
@@ -19,7 +19,7 @@ import com.google.enterprise.connector.traversal.BatchResult;
 import com.google.enterprise.connector.traversal.BatchSize;
 import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
 import com.google.enterprise.connector.traversal.TraversalDelayPolicy;
-import com.google.enterprise.connector.util.testing.AdjustableClock;
+import com.google.enterprise.connector.util.MockClock;
 
 import junit.framework.TestCase;
 
@@ -28,7 +28,7 @@ import junit.framework.TestCase;
  */
 public class HostLoadManagerTest extends TestCase {
 
-  static AdjustableClock clock = new AdjustableClock();
+  private final MockClock clock = new MockClock(1000000L);
 
   // Adjust the current time to the minimum milliseconds of a second.
   // This can help us avoid running accross 1-second boundaries and
@@ -99,6 +99,25 @@ public class HostLoadManagerTest extends TestCase {
     assertFalse(hostLoadManager.shouldDelay());
   }
 
+  /**
+   * Test that getDelayMillis is consistent with shouldDelay.
+   */
+  public void testGetDelayMillis() {
+    HostLoadManager hostLoadManager = newHostLoadManager(60);
+    hostLoadManager.setPeriod(1); // 1 second.
+
+    assertEquals(0L, hostLoadManager.getDelayMillis());
+    hostLoadManager.recordResult(newBatchResult(60));
+    long delay = hostLoadManager.getDelayMillis();
+    assertTrue(Long.toString(delay), delay > 0 && delay <= 1000);
+
+    clock.adjustTime(delay - 1);
+    assertTrue(hostLoadManager.shouldDelay());
+    clock.adjustTime(1);
+    assertFalse(hostLoadManager.shouldDelay());
+    assertEquals(0L, hostLoadManager.getDelayMillis());
+  }
+
   /**
    * Test minimum batchSize.
    */
@@ -0,0 +1,168 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.scheduler;
+
+import com.google.enterprise.connector.pusher.FeedConnection;
+import com.google.enterprise.connector.pusher.FeedData;
+import com.google.enterprise.connector.pusher.FeedStatistics;
+import com.google.enterprise.connector.spi.SpiConstants.ContentEncoding;
+import com.google.enterprise.connector.traversal.BatchResult;
+import com.google.enterprise.connector.traversal.TraversalDelayPolicy;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+/**
+ * Drives a {@link LoadManager} against a simulated feed host, using an
+ * {@link AdjustableClock}, so that feed rate controllers may be tested
+ * over hours of simulated time in milliseconds of real time.
+ * <p>
+ * The simulated feed host processes documents at a fixed capacity.
+ * Documents fed faster than that accumulate in its backlog, and its
+ * response to each feed is delayed by the time it takes to work through
+ * the backlog that the feed joins.
+ */
+class LoadManagerSimulator {
+  /** The time taken to traverse each document, in milliseconds. */
+  private static final long MILLIS_PER_DOCUMENT = 10L;
+
+  /** The simulated feed host. */
+  static class SimulatedFeedHost implements FeedConnection, FeedStatistics {
+    private final AdjustableClock clock;
+    private final long baseResponseMillis;
+
+    /** The processing capacity, in documents per millisecond. */
+    private double capacity;
+
+    private double backlog = 0.0;
+    private long lastUpdate;
+    private long responseMillis;
+
+    SimulatedFeedHost(AdjustableClock clock, double docsPerSecond,
+        long baseResponseMillis) {
+      this.clock = clock;
+      this.capacity = docsPerSecond / 1000.0;
+      this.baseResponseMillis = baseResponseMillis;
+      this.lastUpdate = clock.getTimeMillis();
+      this.responseMillis = baseResponseMillis;
+    }
+
+    void setCapacity(double docsPerSecond) {
+      update();
+      this.capacity = docsPerSecond / 1000.0;
+    }
+
+    /** Processes the backlog up to the current time. */
+    private void update() {
+      long now = clock.getTimeMillis();
+      backlog = Math.max(0.0, backlog - (now - lastUpdate) * capacity);
+      lastUpdate = now;
+    }
+
+    /** Accepts a feed of the given number of documents. */
+    void feed(int count) {
+      update();
+      responseMillis = baseResponseMillis + Math.round(backlog / capacity);
+      backlog += count;
+    }
+
+    @Override
+    public long getAverageResponseMillis() {
+      return responseMillis;
+    }
+
+    @Override
+    public int getLastBacklogCount() {
+      update();
+      return (int) backlog;
+    }
+
+    @Override
+    public String sendData(FeedData feedData) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isBacklogged() {
+      return false;
+    }
+
+    @Override
+    public String getContentEncodings() {
+      return ContentEncoding.BASE64BINARY.toString();
+    }
+
+    @Override
+    public boolean supportsInheritedAcls() {
+      return false;
+    }
+  }
+
+  private final AdjustableClock clock;
+  private final SimulatedFeedHost feedHost;
+  private final LoadManager loadManager;
+
+  private long documentCount = 0L;
+  private long maxResponseMillis = 0L;
+
+  LoadManagerSimulator(AdjustableClock clock, SimulatedFeedHost feedHost,
+      LoadManager loadManager) {
+    this.clock = clock;
+    this.feedHost = feedHost;
+    this.loadManager = loadManager;
+  }
+
+  /**
+   * Runs traversal batches as the {@link TraversalScheduler} would
+   * schedule them, for the given length of simulated time.
+   *
+   * @param durationMillis the length of simulated time
+   * @return the achieved feed rate, in documents per second
+   */
+  double run(long durationMillis) {
+    long startTime = clock.getTimeMillis();
+    long startCount = documentCount;
+    long endTime = startTime + durationMillis;
+    while (clock.getTimeMillis() < endTime) {
+      if (loadManager.shouldDelay()) {
+        clock.adjustTime(Math.max(1L, loadManager.getDelayMillis()));
+        continue;
+      }
+      int size = loadManager.determineBatchSize().getHint();
+      if (size <= 0) {
+        clock.adjustTime(HostLoadManager.RECHECK_DELAY_MILLIS);
+        continue;
+      }
+      long batchStart = clock.getTimeMillis();
+      clock.adjustTime(size * MILLIS_PER_DOCUMENT);
+      feedHost.feed(size);
+      maxResponseMillis =
+          Math.max(maxResponseMillis, feedHost.getAverageResponseMillis());
+      loadManager.recordResult(new BatchResult(TraversalDelayPolicy.IMMEDIATE,
+          size, batchStart, clock.getTimeMillis()));
+      documentCount += size;
+    }
+    return (documentCount - startCount) * 1000.0
+        / (clock.getTimeMillis() - startTime);
+  }
+
+  /** Returns the largest feed response time seen so far. */
+  long getMaxResponseMillis() {
+    return maxResponseMillis;
+  }
+
+  /** Resets the largest feed response time seen so far. */
+  void resetMaxResponseMillis() {
+    maxResponseMillis = 0L;
+  }
+}
@@ -34,8 +34,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Tests the Scheduler.
@@ -199,4 +201,51 @@ public class TraversalSchedulerTest extends TestCase {
     schedules.addAll(getSchedules("connectorB"));
     runWithSchedules(schedules, createRealInstantiator());
   }
+
+  public void testWakeupQueueOrder() {
+    TraversalScheduler.WakeupQueue queue =
+        new TraversalScheduler.WakeupQueue();
+    assertEquals(Long.MAX_VALUE, queue.nextWakeupTime());
+    queue.add("c", 300L);
+    queue.add("a", 100L);
+    queue.add("b", 200L);
+    assertEquals(100L, queue.nextWakeupTime());
+
+    Set<String> due = new LinkedHashSet<String>();
+    queue.pollDue(99L, due);
+    assertTrue(due.isEmpty());
+    queue.pollDue(200L, due);
+    assertEquals("[a, b]", due.toString());
+    assertEquals(300L, queue.nextWakeupTime());
+  }
+
+  /** Tests that rescheduling or removing a connector supersedes its entry. */
+  public void testWakeupQueueReschedule() {
+    TraversalScheduler.WakeupQueue queue =
+        new TraversalScheduler.WakeupQueue();
+    queue.add("a", 100L);
+    queue.add("b", 200L);
+    queue.add("a", 300L);
+    queue.remove("b");
+    assertEquals(300L, queue.nextWakeupTime());
+
+    Set<String> due = new LinkedHashSet<String>();
+    queue.pollDue(250L, due);
+    assertTrue(due.isEmpty());
+    queue.pollDue(300L, due);
+    assertEquals("[a]", due.toString());
+    assertEquals(Long.MAX_VALUE, queue.nextWakeupTime());
+  }
+
+  public void testNotifier() throws Exception {
+    TraversalNotifier notifier = new TraversalNotifier();
+    assertTrue(notifier.await(1L).isEmpty());
+    notifier.wakeup("a");
+    notifier.wakeup("b");
+    notifier.wakeup("a");
+    long start = System.currentTimeMillis();
+    assertEquals("[a, b]", notifier.await(10000L).toString());
+    assertTrue(System.currentTimeMillis() - start < 5000L);
+    assertTrue(notifier.await(1L).isEmpty());
+  }
 }
@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.servlet;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 import com.google.enterprise.connector.servlet.AuthorizationParser.ConnectorQueries;
 import com.google.enterprise.connector.servlet.AuthorizationParser.QueryResources;
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
@@ -21,6 +23,9 @@ import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.StringReader;
+
 /**
  * Tests the AuthorizationParser class
  */
@@ -192,6 +197,68 @@ public class AuthorizationParserTest extends TestCase {
                  ap.getStatus().getMessageId());
   }
 
+  /** Tests that a request that fails to parse part way is discarded. */
+  public void testTruncatedXml() {
+    String xml = ONE_IDENTITY_TWO_QUERIES.substring(0,
+        ONE_IDENTITY_TWO_QUERIES.lastIndexOf("<ConnectorQuery>") + 20);
+    AuthorizationParser ap = new AuthorizationParser(xml);
+    assertEquals(ConnectorMessageCode.ERROR_PARSING_XML_REQUEST,
+                 ap.getStatus().getMessageId());
+    assertEquals(0, ap.countParsedIdentities());
+    assertEquals(0, ap.getNumDocs());
+  }
+
+  /** Tests that external entities are not read. */
+  public void testExternalEntity() throws Exception {
+    File secret = File.createTempFile("secret", ".txt");
+    try {
+      Files.write("secret", secret, Charsets.UTF_8);
+      String xml = "<?xml version=\"1.0\"?>\n"
+          + "<!DOCTYPE AuthorizationQuery [\n"
+          + "  <!ENTITY xxe SYSTEM \"" + secret.toURI() + "\">\n"
+          + "]>\n"
+          + "<AuthorizationQuery>\n"
+          + "<ConnectorQuery>\n"
+          + "  <Identity source=\"connector\">&xxe;</Identity>\n"
+          + "  <Resource>googleconnector://connector1.localhost/"
+          + "doc?docid=doc1a</Resource>\n"
+          + "</ConnectorQuery>\n"
+          + "</AuthorizationQuery>\n";
+      AuthorizationParser ap = new AuthorizationParser(xml);
+      assertEquals(0, countConnectorsForUsername(ap, "secret"));
+    } finally {
+      secret.delete();
+    }
+  }
+
+  /** Tests a large request read from a {@code Reader}. */
+  public void testLargeRequest() {
+    StringBuilder xml = new StringBuilder("<AuthorizationQuery>\n");
+    for (int i = 0; i < 1000; i++) {
+      xml.append("<ConnectorQuery>\n")
+          .append("  <Identity source=\"connector\">user")
+          .append(i % 10).append("</Identity>\n");
+      for (int j = 0; j < 10; j++) {
+        xml.append("  <Resource>googleconnector://connector").append(j % 2)
+            .append(".localhost/doc?docid=doc").append(i).append('_')
+            .append(j).append("</Resource>\n");
+      }
+      xml.append("</ConnectorQuery>\n");
+    }
+    xml.append("</AuthorizationQuery>\n");
+
+    AuthorizationParser ap =
+        new AuthorizationParser(new StringReader(xml.toString()));
+    assertTrue(ap.getStatus().isSuccess());
+    assertEquals(10000, ap.getNumDocs());
+    assertEquals(10, ap.countParsedIdentities());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(2, countConnectorsForUsername(ap, "user" + i));
+      assertEquals(500,
+          countUrlsForUsernameConnectorPair(ap, "user" + i, "connector0"));
+    }
+  }
+
   private static final String ONE_DOMAINSPECIFIC_IDENTITY =
       "<AuthorizationQuery>\n"
           + "<ConnectorQuery>\n"
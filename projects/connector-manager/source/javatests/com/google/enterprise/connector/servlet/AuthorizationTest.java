@@ -16,11 +16,19 @@ package com.google.enterprise.connector.servlet;
 
 import com.google.enterprise.connector.common.StringUtils;
 import com.google.enterprise.connector.manager.MockManager;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
 
 import junit.framework.TestCase;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -79,6 +87,23 @@ public class AuthorizationTest extends TestCase {
           + "  <Identity source=\"gsa\">username</Identity>\n"
           + "</ConnectorQuery>\n" + "</AuthorizationQuery>";
 
+  private static final String HANDLE_DO_POST1_RESULT =
+      "<CmResponse>\n" + "  <AuthorizationResponse>\n" + "    <Answer>\n"
+          + "      <Resource connectorname=\"connector1\">"
+          + ServletUtil.PROTOCOL
+          + "connector1.localhost" + ServletUtil.DOCID + "foo1</Resource>\n"
+          + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+          + "    <Answer>\n" + "      <Resource connectorname=\"connector2\">"
+          + ServletUtil.PROTOCOL
+          + "connector2.localhost" + ServletUtil.DOCID + "foo2</Resource>\n"
+          + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+          + "    <Answer>\n" + "      <Resource connectorname=\"connector3\">"
+          + ServletUtil.PROTOCOL
+          + "connector3.localhost" + ServletUtil.DOCID + "foo3</Resource>\n"
+          + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+          + "  </AuthorizationResponse>\n" + "  <StatusId>0</StatusId>\n"
+          + "</CmResponse>\n";
+
   /** Test invalid (empty) XML request. */
   public void testInvalidRequest() throws Exception {
     String expectedResult = "<CmResponse>\n" + "  <StatusId>"
@@ -90,23 +115,7 @@ public class AuthorizationTest extends TestCase {
   /**
    */
   public void testHandleDoPost1() {
-    String expectedResult =
-        "<CmResponse>\n" + "  <AuthorizationResponse>\n" + "    <Answer>\n"
-            + "      <Resource connectorname=\"connector1\">"
-            + ServletUtil.PROTOCOL
-            + "connector1.localhost" + ServletUtil.DOCID + "foo1</Resource>\n"
-            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
-            + "    <Answer>\n" + "      <Resource connectorname=\"connector2\">"
-            + ServletUtil.PROTOCOL
-            + "connector2.localhost" + ServletUtil.DOCID + "foo2</Resource>\n"
-            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
-            + "    <Answer>\n" + "      <Resource connectorname=\"connector3\">"
-            + ServletUtil.PROTOCOL
-            + "connector3.localhost" + ServletUtil.DOCID + "foo3</Resource>\n"
-            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
-            + "  </AuthorizationResponse>\n" + "  <StatusId>0</StatusId>\n"
-            + "</CmResponse>\n";
-    doTest(TEST_XML1, expectedResult, false, null, null, null);
+    doTest(TEST_XML1, HANDLE_DO_POST1_RESULT, false, null, null, null);
   }
 
   private static final String NULL_CONNECTOR_NAME_RESPONSE = "<CmResponse>\n"
@@ -544,6 +553,181 @@ public class AuthorizationTest extends TestCase {
         false, null, null, null);
   }
 
+  /**
+   * Tests that a connector that does not respond before its timeout gets
+   * INDETERMINATE answers, and does not hold up the other connectors.
+   */
+  public void testTimeout() throws Exception {
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    MockManager manager = new MockManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          if ("connector2".equals(connectorName)) {
+            try {
+              Thread.sleep(60 * 1000L);
+            } catch (InterruptedException e) {
+              interrupted.countDown();
+            }
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+
+        @Override
+        public long getAuthorizationTimeoutMillis(String connectorName) {
+          return "connector2".equals(connectorName) ? 200L : 30 * 1000L;
+        }
+      };
+    String expectedResult = HANDLE_DO_POST1_RESULT.replaceFirst(
+        "(foo2</Resource>\n      <Decision>)PERMIT", "$1INDETERMINATE");
+    long start = System.currentTimeMillis();
+    assertEquals(StringUtils.normalizeNewlines(expectedResult),
+        StringUtils.normalizeNewlines(handle(TEST_XML1, manager, true)));
+    assertTrue(System.currentTimeMillis() - start < 30 * 1000L);
+    // The timed out request is cancelled.
+    assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Tests that a connector that fails to authorize its documents gets
+   * INDETERMINATE answers, and does not affect the other connectors.
+   */
+  public void testFailedQuery() throws Exception {
+    MockManager manager = new MockManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          if ("connector2".equals(connectorName)) {
+            throw new RuntimeException("Test authorization failure");
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+      };
+    String expectedResult = HANDLE_DO_POST1_RESULT.replaceFirst(
+        "(foo2</Resource>\n      <Decision>)PERMIT", "$1INDETERMINATE");
+    assertEquals(StringUtils.normalizeNewlines(expectedResult),
+        StringUtils.normalizeNewlines(handle(TEST_XML1, manager, true)));
+  }
+
+  /**
+   * Tests that a connector that keeps its threads after its requests time
+   * out cannot use more than its share of the threads.
+   */
+  public void testMaxThreadsPerConnector() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    MockManager manager = new MockManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          if ("connector2".equals(connectorName)) {
+            calls.incrementAndGet();
+            // Ignore interrupts, like a connector blocked on the network.
+            while (release.getCount() > 0) {
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                // Keep waiting.
+              }
+            }
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+
+        @Override
+        public long getAuthorizationTimeoutMillis(String connectorName) {
+          return "connector2".equals(connectorName) ? 200L : 30 * 1000L;
+        }
+      };
+    String expectedResult = HANDLE_DO_POST1_RESULT.replaceFirst(
+        "(foo2</Resource>\n      <Decision>)PERMIT", "$1INDETERMINATE");
+    AuthorizationHandler.setMaxThreadsPerConnector(1);
+    try {
+      assertEquals(StringUtils.normalizeNewlines(expectedResult),
+          StringUtils.normalizeNewlines(handle(TEST_XML1, manager, true)));
+      // The hung thread is not released, so connector2 is not asked again.
+      assertEquals(StringUtils.normalizeNewlines(expectedResult),
+          StringUtils.normalizeNewlines(handle(TEST_XML1, manager, true)));
+      assertEquals(1, calls.get());
+    } finally {
+      release.countDown();
+      AuthorizationHandler.setMaxThreadsPerConnector(5);
+    }
+    // Once the thread is released, connector2 answers again.
+    assertEquals(StringUtils.normalizeNewlines(HANDLE_DO_POST1_RESULT),
+        StringUtils.normalizeNewlines(handle(TEST_XML1, manager, true)));
+    assertEquals(2, calls.get());
+  }
+
+  /** Tests that the connectors are queried at the same time. */
+  public void testConcurrentConnectors() throws Exception {
+    final CyclicBarrier barrier = new CyclicBarrier(3);
+    MockManager manager = new MockManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          try {
+            // Each connector waits for the other two.
+            barrier.await(10, TimeUnit.SECONDS);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+      };
+    assertEquals(StringUtils.normalizeNewlines(HANDLE_DO_POST1_RESULT),
+        StringUtils.normalizeNewlines(handle(TEST_XML1, manager, true)));
+  }
+
+  /** Tests that the answers are written as they arrive. */
+  public void testStreamedResponse() throws Exception {
+    String expectedResult = "<CmResponse>\n"
+        + "  <AuthorizationResponse>\n"
+        + "    <Answer>\n"
+        + "      <Resource connectorname=\"connector1\">"
+        + ServletUtil.PROTOCOL
+        + "connector1.localhost" + ServletUtil.DOCID + "foo1</Resource>\n"
+        + "      <Decision>PERMIT</Decision>\n"
+        + "    </Answer>\n"
+        + "  </AuthorizationResponse>\n"
+        + "  <StatusId>0</StatusId>\n"
+        + "</CmResponse>\n";
+    MockManager manager = MockManager.getInstance();
+    manager.setShouldVerifyIdentity(false);
+    assertEquals(StringUtils.normalizeNewlines(expectedResult),
+        StringUtils.normalizeNewlines(handle(TEST_XML4.replace(
+            "<Identity/>", "<Identity source=\"gsa\">CN=foo</Identity>"),
+            manager, false)));
+
+    // Answers for several connectors may arrive in any order.
+    String result = handle(TEST_XML1, manager, false);
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(result, result.contains("connector" + i + ".localhost"
+          + ServletUtil.DOCID + "foo" + i + "</Resource>\n"
+          + "      <Decision>PERMIT</Decision>\n"));
+    }
+    assertTrue(result, result.endsWith("  </AuthorizationResponse>\n"
+        + "  <StatusId>0</StatusId>\n" + "</CmResponse>\n"));
+  }
+
+  private String handle(String xmlBody, MockManager manager, boolean sorted) {
+    StringWriter writer = new StringWriter();
+    PrintWriter out = new PrintWriter(writer);
+    AuthorizationHandler authorizationHandler = (sorted)
+        ? AuthorizationHandler.makeAuthorizationHandlerForTest(xmlBody,
+            manager, out)
+        : new AuthorizationHandler(xmlBody, manager, out);
+    authorizationHandler.handleDoPost();
+    out.flush();
+    String result = writer.toString();
+    out.close();
+    return result;
+  }
+
   private void doTest(String xmlBody, String expectedResult,
       boolean verifyIdentity, String username, String password, String domain) {
     LOGGER.info("Test: " + getName());
@@ -553,15 +737,7 @@ public class AuthorizationTest extends TestCase {
     if (verifyIdentity) {
       manager.setExpectedIdentity(domain, username, password, null);
     }
-    StringWriter writer = new StringWriter();
-    PrintWriter out = new PrintWriter(writer);
-    AuthorizationHandler authorizationHandler =
-        AuthorizationHandler.makeAuthorizationHandlerForTest(xmlBody, manager,
-            out);
-    authorizationHandler.handleDoPost();
-    out.flush();
-    String result = writer.toString();
-    out.close();
+    String result = handle(xmlBody, manager, true);
     LOGGER.info("Expected Response:\n" + expectedResult);
     LOGGER.info("Actual Response:\n" + result);
     assertEquals(StringUtils.normalizeNewlines(expectedResult),
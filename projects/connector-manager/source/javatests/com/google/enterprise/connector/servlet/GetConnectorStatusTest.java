@@ -15,15 +15,20 @@
 package com.google.enterprise.connector.servlet;
 
 import com.google.enterprise.connector.common.StringUtils;
+import com.google.enterprise.connector.manager.AuthorizationCache;
 import com.google.enterprise.connector.manager.ConnectorStatus;
 import com.google.enterprise.connector.manager.Manager;
 import com.google.enterprise.connector.manager.MockManager;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
+import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
 
 import junit.framework.TestCase;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.logging.Logger;
 
 /**
@@ -161,4 +166,44 @@ public class GetConnectorStatusTest extends TestCase {
                                  status.getStatus(), null, null, null);
     }
   }
+
+  /** Test the authorization cache statistics. */
+  public void testAuthorizationCacheStatistics() {
+    String name = "foo";
+    String expectedResult =
+        "<CmResponse>\n" +
+        "  <StatusId>0</StatusId>\n" +
+        "  <ConnectorStatus>\n" +
+        "    <ConnectorName>" + name + "</ConnectorName>\n" +
+        "    <ConnectorType>Documentum</ConnectorType>\n" +
+        "    <Status>0</Status>\n" +
+        "    <ConnectorSchedules version=\"3\">" + name
+        + ":100:0:0-0</ConnectorSchedules>\n" +
+        "    <AuthorizationCache>\n" +
+        "      <Hits>0</Hits>\n" +
+        "      <Misses>1</Misses>\n" +
+        "      <HitRate>0.000</HitRate>\n" +
+        "      <SavedMillis>0</SavedMillis>\n" +
+        "    </AuthorizationCache>\n" +
+        "  </ConnectorStatus>\n" +
+        "</CmResponse>\n";
+    doTest(new CachingManager(), name, expectedResult);
+  }
+
+  /** A Manager that returns authorization cache statistics. */
+  private static class CachingManager extends MockManager {
+    @Override
+    public ConnectorStatus getConnectorStatus(String connectorName)
+        throws ConnectorNotFoundException {
+      AuthorizationCache cache = new AuthorizationCache();
+      cache.setMaxSize(100);
+      cache.lookup(connectorName, new SimpleAuthenticationIdentity("user"),
+          Collections.singletonList("doc1"),
+          new ArrayList<AuthorizationResponse>(), new ArrayList<String>());
+      ConnectorStatus status = super.getConnectorStatus(connectorName);
+      return new ConnectorStatus(status.getName(), status.getType(),
+          status.getStatus(), status.getSchedule(), null, null,
+          cache.getStatistics(connectorName));
+    }
+  }
 }
@@ -14,11 +14,14 @@
 
 package com.google.enterprise.connector.servlet;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.io.Files;
 import com.google.enterprise.connector.common.StringUtils;
 import com.google.enterprise.connector.instantiator.MockInstantiator;
 import com.google.enterprise.connector.instantiator.ThreadPool;
 import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.manager.DocumentMetadataCache;
 import com.google.enterprise.connector.manager.Manager;
 import com.google.enterprise.connector.manager.MockManager;
 import com.google.enterprise.connector.manager.ProductionManager;
@@ -41,6 +44,10 @@ import org.springframework.mock.web.MockHttpServletResponse;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.net.URLEncoder;
 import java.util.Collections;
 import java.util.Map;
@@ -110,6 +117,43 @@ public class GetDocumentContentTest extends TestCase {
     assertEquals(-1L, lastModified);
   }
 
+  /** A MockManager that counts the requests for document metadata. */
+  private static class CountingManager extends MockManager {
+    int metadataCount = 0;
+
+    @Override
+    public Document getDocumentMetaData(String connectorName, String docid)
+        throws ConnectorNotFoundException {
+      metadataCount++;
+      return super.getDocumentMetaData(connectorName, docid);
+    }
+  }
+
+  /** Test that cached metadata is used across requests. */
+  public void testMetadataCache() throws Exception {
+    CountingManager manager = new CountingManager();
+    DocumentMetadataCache cache = new DocumentMetadataCache();
+    cache.setMaxSize(10);
+    GetDocumentContent.setMetadataCache(cache);
+    try {
+      DocumentMetadataCache.Entry entry = GetDocumentContent.getMetadataEntry(
+          createMockRequest(), manager, "connector1", "xyzzy");
+      assertEquals(3600 * 1000, entry.getLastModified());
+      assertEquals(1, manager.metadataCount);
+      assertSame(entry, GetDocumentContent.getMetadataEntry(
+          createMockRequest(), manager, "connector1", "xyzzy"));
+      assertEquals(1, manager.metadataCount);
+
+      // Feeding the document again discards its cached metadata.
+      cache.invalidate("connector1", "xyzzy");
+      GetDocumentContent.getMetadataEntry(
+          createMockRequest(), manager, "connector1", "xyzzy");
+      assertEquals(2, manager.metadataCount);
+    } finally {
+      GetDocumentContent.setMetadataCache(null);
+    }
+  }
+
   /** Test getDocumentMetaData against a MockManager. */
   public void testGetDocumentMetaDataMockManager() throws Exception {
     Manager manager = MockManager.getInstance();
@@ -438,6 +482,153 @@ public class GetDocumentContentTest extends TestCase {
     assertEquals(403, res.getStatus());
   }
 
+  /** A MockManager that serves document content from a file. */
+  private static class FileManager extends MockManager {
+    private final File file;
+
+    FileManager(File file) {
+      this.file = file;
+    }
+
+    @Override
+    public InputStream getDocumentContent(String connectorName, String docid)
+        throws ConnectorNotFoundException {
+      try {
+        return new FileInputStream(file);
+      } catch (FileNotFoundException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /** Serves the content from a file for the request. */
+  private MockHttpServletResponse getFileContent(MockHttpServletRequest req,
+      String content) throws Exception {
+    File file = File.createTempFile("content", ".txt");
+    try {
+      Files.write(content, file, Charsets.UTF_8);
+      MockHttpServletResponse res = new MockHttpServletResponse();
+      GetDocumentContent.doGet(req, res, new FileManager(file));
+      return res;
+    } finally {
+      file.delete();
+    }
+  }
+
+  /** Test that a byte range that is not the GSA's HEAD probe is served. */
+  public void testGetDocumentContentRange() throws Exception {
+    String content = "NowIsTheTimeForAllGoodMen";
+    MockHttpServletRequest req = createMockRequest("connector1", docid);
+    req.addHeader("Range", "bytes=3-8");
+    MockHttpServletResponse res = getFileContent(req, content);
+    assertEquals(206, res.getStatus());
+    assertEquals("bytes 3-8/" + content.length(),
+                 res.getHeader("Content-Range"));
+    assertEquals(6, res.getContentLength());
+    assertEquals("IsTheT", res.getContentAsString());
+  }
+
+  public void testGetDocumentContentSuffixRange() throws Exception {
+    String content = "NowIsTheTimeForAllGoodMen";
+    MockHttpServletRequest req = createMockRequest("connector1", docid);
+    req.addHeader("Range", "bytes=-3");
+    MockHttpServletResponse res = getFileContent(req, content);
+    assertEquals(206, res.getStatus());
+    assertEquals("Men", res.getContentAsString());
+  }
+
+  public void testGetDocumentContentUnsatisfiableRange() throws Exception {
+    MockHttpServletRequest req = createMockRequest("connector1", docid);
+    req.addHeader("Range", "bytes=100-");
+    MockHttpServletResponse res = getFileContent(req, docid);
+    assertEquals(416, res.getStatus());
+    assertEquals("bytes */" + docid.length(), res.getHeader("Content-Range"));
+  }
+
+  /** Test that conditional and multiple ranges get the whole document. */
+  public void testGetDocumentContentIgnoredRange() throws Exception {
+    MockHttpServletRequest req = createMockRequest("connector1", docid);
+    req.addHeader("Range", "bytes=1-2,4-5");
+    MockHttpServletResponse res = getFileContent(req, docid);
+    assertEquals(200, res.getStatus());
+    assertEquals("bytes", res.getHeader("Accept-Ranges"));
+    assertEquals(docid, res.getContentAsString());
+
+    req = createMockRequest("connector1", docid);
+    req.addHeader("Range", "bytes=1-2");
+    req.addHeader("If-Range", "\"etag\"");
+    res = getFileContent(req, docid);
+    assertEquals(200, res.getStatus());
+    assertEquals(docid, res.getContentAsString());
+  }
+
+  /** Test that ranges are ignored for content that is not from a file. */
+  public void testGetDocumentContentStreamRange() throws Exception {
+    patchRealProductionManager();
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.addHeader("Range", "bytes=1-2");
+    MockHttpServletResponse res = getDocumentContent(req, docid);
+    assertNull(res.getHeader("Accept-Ranges"));
+    assertNull(res.getHeader("Content-Range"));
+  }
+
+  public void testParseRange() {
+    assertNull(GetDocumentContent.parseRange(null, 10));
+    assertNull(GetDocumentContent.parseRange("lines=1-2", 10));
+    assertNull(GetDocumentContent.parseRange("bytes=5-2", 10));
+    assertNull(GetDocumentContent.parseRange("bytes=a-b", 10));
+    assertNull(GetDocumentContent.parseRange("bytes=1-2,4-5", 10));
+    assertSame(GetDocumentContent.UNSATISFIABLE_RANGE,
+               GetDocumentContent.parseRange("bytes=10-", 10));
+    assertSame(GetDocumentContent.UNSATISFIABLE_RANGE,
+               GetDocumentContent.parseRange("bytes=-0", 10));
+    checkRange(2, 5, "bytes=2-5", 10);
+    checkRange(2, 9, "bytes=2-", 10);
+    checkRange(2, 9, "Bytes = 2-100", 10);
+    checkRange(7, 9, "bytes=-3", 10);
+    checkRange(0, 9, "bytes=-30", 10);
+  }
+
+  private void checkRange(long first, long last, String header, long length) {
+    GetDocumentContent.ByteRange range =
+        GetDocumentContent.parseRange(header, length);
+    assertNotNull(header, range);
+    assertEquals(header, first, range.first);
+    assertEquals(header, last, range.last);
+  }
+
+  /** Test copying ranges of file content and of other streams. */
+  public void testCopyContent() throws Exception {
+    String content = Strings.repeat("0123456789", 10000);
+    File file = File.createTempFile("content", ".txt");
+    try {
+      Files.write(content, file, Charsets.UTF_8);
+      checkCopyContent(content, new FileInputStream(file));
+    } finally {
+      file.delete();
+    }
+    checkCopyContent(content,
+        new ByteArrayInputStream(content.getBytes(Charsets.UTF_8)));
+  }
+
+  private void checkCopyContent(String content, InputStream in)
+      throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    in.mark(content.length());
+    GetDocumentContent.copyContent(in, out, 0L, -1L);
+    assertEquals(content, out.toString("UTF-8"));
+
+    if (in instanceof FileInputStream) {
+      ((FileInputStream) in).getChannel().position(0L);
+    } else {
+      in.reset();
+    }
+    out.reset();
+    GetDocumentContent.copyContent(in, out, 70000L, 12345L);
+    assertEquals(content.substring(70000, 82345), out.toString("UTF-8"));
+    in.close();
+  }
+
   /** Test requiring GSA to use authentication for private doc. */
   public void testHttpBasicWithoutCredentials() throws Exception {
     MockHttpServletRequest req = createMockRequest();
@@ -592,10 +783,22 @@ public class GetDocumentContentTest extends TestCase {
    * Test ContentLength.
    */
   public void testDoGetContentLength() throws Exception {
+    MockHttpServletRequest req = createMockRequest("connector1", docid);
+    MockHttpServletResponse res = getFileContent(req, docid);
+    assertEquals(200, res.getStatus());
+    assertEquals(docid.length(), res.getContentLength());
+  }
+
+  /**
+   * Test ContentLength, where the content is not from a file. The content
+   * is streamed without a length, even if the metadata supplies one.
+   */
+  public void testDoGetStreamContentLength() throws Exception {
     patchRealProductionManager();
     MockHttpServletRequest req = createMockRequest(connectorName, docid);
     MockHttpServletResponse res = getDocumentContent(req, docid);
-    assertEquals(docid.length(), res.getContentLength());
+    // MockHttpServletResponse reports an unset Content-Length as zero.
+    assertEquals(0, res.getContentLength());
   }
 
   /**
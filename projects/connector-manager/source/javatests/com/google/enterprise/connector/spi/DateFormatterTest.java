@@ -0,0 +1,187 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.spi;
+
+import junit.framework.TestCase;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests that {@link DateFormatter} matches {@code SimpleDateFormat}.
+ */
+public class DateFormatterTest extends TestCase {
+  private static final String[] PATTERNS = {
+    "yyyy-MM-dd",
+    "yyyy-MM-dd'T'HH:mmZ",
+    "yyyy-MM-dd'T'HH:mm:ssZ",
+    "yyyy-MM-dd'T'HH:mm:ss.SSSZ" };
+
+  private static final String[] TIME_ZONES = { "GMT", "America/Los_Angeles",
+      "Asia/Kolkata", "Australia/Lord_Howe", "Europe/Dublin", "GMT-05:00",
+      "Asia/Kathmandu", "Pacific/Apia" };
+
+  /** From 1583 to 2100, the fast path. */
+  private static final long MIN_FAST = -12180000000000L;
+  private static final long MAX_FAST = 4102444800000L;
+
+  @Override
+  protected void tearDown() {
+    Value.setFeedTimeZone("");
+  }
+
+  private static String expectedIso8601(long millis, int precision,
+      TimeZone tz) {
+    SimpleDateFormat format = new SimpleDateFormat(PATTERNS[precision]);
+    format.setTimeZone(tz);
+    return format.format(new Date(millis)).replaceFirst("\\+0000$", "Z");
+  }
+
+  private static String expectedRfc822(long millis, TimeZone tz) {
+    SimpleDateFormat format = new SimpleDateFormat(
+        "EEE', 'dd' 'MMM' 'yyyy' 'HH:mm:ss Z", Locale.ENGLISH);
+    format.setTimeZone(tz);
+    return format.format(new Date(millis)).replaceFirst("\\+0000$", "GMT");
+  }
+
+  /** Checks the formats of the given time, and parses them back. */
+  private static void checkTime(DateFormatter formatter, long millis,
+      TimeZone tz) throws ParseException {
+    for (int precision = DateFormatter.DATE;
+         precision <= DateFormatter.MILLIS; precision++) {
+      String formatted = formatter.formatIso8601(millis, precision);
+      assertEquals(expectedIso8601(millis, precision, tz), formatted);
+      if (precision == DateFormatter.MILLIS) {
+        assertEquals(formatted, expectedParse(formatted),
+            formatter.parseIso8601(formatted));
+      }
+    }
+    assertEquals(expectedRfc822(millis, tz), formatter.formatRfc822(millis));
+  }
+
+  public void testFormat() throws ParseException {
+    DateFormatter formatter = DateFormatter.get();
+    Random random = new Random(17);
+    for (String id : TIME_ZONES) {
+      TimeZone tz = TimeZone.getTimeZone(id);
+      DateFormatter.setTimeZone(tz);
+      checkTime(formatter, 0L, tz);
+      checkTime(formatter, -1L, tz);
+      for (int i = 0; i < 2000; i++) {
+        long millis =
+            MIN_FAST + (long) (random.nextDouble() * (MAX_FAST - MIN_FAST));
+        checkTime(formatter, millis, tz);
+      }
+    }
+  }
+
+  /** Tests each hour around the daylight saving time transitions. */
+  public void testDaylightSavingTime() throws ParseException {
+    DateFormatter formatter = DateFormatter.get();
+    TimeZone tz = TimeZone.getTimeZone("Australia/Lord_Howe");
+    DateFormatter.setTimeZone(tz);
+    long start = 1396094400000L;  // 2014-03-29
+    for (long millis = start; millis < start + 220L * 24 * 3600 * 1000;
+         millis += 15 * 60 * 1000L) {
+      checkTime(formatter, millis, tz);
+    }
+  }
+
+  /** Tests dates outside the fast path, formatted by SimpleDateFormat. */
+  public void testDistantDates() throws ParseException {
+    DateFormatter formatter = DateFormatter.get();
+    TimeZone tz = TimeZone.getTimeZone("GMT");
+    DateFormatter.setTimeZone(tz);
+    checkTime(formatter, -12219292800001L, tz);  // Before 1582-10-15
+    checkTime(formatter, -62135769600000L, tz);  // 0001-01-01
+    checkTime(formatter, 253402300800000L, tz);  // 10000-01-01
+  }
+
+  /** Parses a date the way that Value used to. */
+  private static Date expectedParse(String date) {
+    String s = date.replaceFirst("Z$", "+0000");
+    for (int precision = DateFormatter.MILLIS;
+         precision >= DateFormatter.DATE; precision--) {
+      SimpleDateFormat format = new SimpleDateFormat(PATTERNS[precision]);
+      format.setTimeZone(DateFormatter.getTimeZone());
+      try {
+        return format.parse(s);
+      } catch (ParseException e) {
+      }
+    }
+    return null;
+  }
+
+  public void testParse() throws ParseException {
+    DateFormatter.setTimeZone(TimeZone.getTimeZone("America/Los_Angeles"));
+    String[] dates = { "2014-03-09T02:30-0800", "2014-03-09T10:30:15Z",
+        "2014-03-09T10:30:15.5Z", "2014-03-09T10:30:15.123+0530trailing",
+        "2014-02-29T10:30:15.123+0530", "2014-03-09", "2014-03-09T02:30",
+        "1066-10-14T09:00:00.000Z", "12345-01-01T00:00:00Z" };
+    for (String date : dates) {
+      assertEquals(date, expectedParse(date),
+          DateFormatter.get().parseIso8601(date));
+    }
+  }
+
+  public void testParseFailure() {
+    try {
+      DateFormatter.get().parseIso8601("last Tuesday");
+      fail("Expected ParseException");
+    } catch (ParseException expected) {
+    }
+  }
+
+  /** Tests formatting and parsing on many threads at once. */
+  public void testThreads() throws Exception {
+    final TimeZone tz = TimeZone.getTimeZone("Europe/Dublin");
+    DateFormatter.setTimeZone(tz);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int t = 0; t < 8; t++) {
+        final long seed = t;
+        futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws ParseException {
+              DateFormatter formatter = DateFormatter.get();
+              Random random = new Random(seed);
+              for (int i = 0; i < 2000; i++) {
+                long millis = MIN_FAST
+                    + (long) (random.nextDouble() * (MAX_FAST - MIN_FAST));
+                checkTime(formatter, millis, tz);
+              }
+              return null;
+            }
+          }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,177 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.traversal;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+
+import junit.framework.TestCase;
+
+/** Tests for {@link PipelinedDocumentList}. */
+public class PipelinedDocumentListTest extends TestCase {
+
+  /**
+   * A {@link DocumentList} of {@code size} documents, whose checkpoint
+   * is the number of documents returned.  Documents whose number is
+   * divisible by {@code skip} throw {@code RepositoryDocumentException}.
+   */
+  private static class CountingDocumentList implements DocumentList {
+    private final int size;
+    private final int skip;
+    private int count = 0;
+
+    CountingDocumentList(int size, int skip) {
+      this.size = size;
+      this.skip = skip;
+    }
+
+    @Override
+    public synchronized Document nextDocument() throws RepositoryException {
+      if (count >= size) {
+        return null;
+      }
+      count++;
+      if (skip > 0 && count % skip == 0) {
+        throw new RepositoryDocumentException("skip " + count);
+      }
+      return ConnectorTestUtils.createSimpleDocument(Integer.toString(count));
+    }
+
+    @Override
+    public synchronized String checkpoint() {
+      return Integer.toString(count);
+    }
+
+    synchronized int getCount() {
+      return count;
+    }
+  }
+
+  private static String getDocid(Document document) throws Exception {
+    return Value.getSingleValueString(document, SpiConstants.PROPNAME_DOCID);
+  }
+
+  public void testInvalidDepth() {
+    try {
+      new PipelinedDocumentList(new CountingDocumentList(1, 0), 0, "test");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /** Tests that documents and exceptions are returned in order. */
+  public void testOrder() throws Exception {
+    CountingDocumentList documentList = new CountingDocumentList(20, 3);
+    PipelinedDocumentList pipeline =
+        new PipelinedDocumentList(documentList, 4, "test");
+    for (int i = 1; i <= 20; i++) {
+      try {
+        Document document = pipeline.nextDocument();
+        assertFalse(i % 3 == 0);
+        assertEquals(Integer.toString(i), getDocid(document));
+      } catch (RepositoryDocumentException e) {
+        assertEquals(0, i % 3);
+        assertEquals("skip " + i, e.getMessage());
+      }
+    }
+    assertNull(pipeline.nextDocument());
+    assertNull(pipeline.nextDocument());
+    assertEquals("20", pipeline.checkpoint());
+  }
+
+  /** Tests that a stopped pipeline returns the documents it fetched. */
+  public void testStop() throws Exception {
+    CountingDocumentList documentList = new CountingDocumentList(1000, 0);
+    PipelinedDocumentList pipeline =
+        new PipelinedDocumentList(documentList, 5, "test");
+    assertEquals("1", getDocid(pipeline.nextDocument()));
+    pipeline.stop();
+    int consumed = 1;
+    while (pipeline.nextDocument() != null) {
+      consumed++;
+    }
+    // The checkpoint covers exactly the documents consumed.
+    assertEquals(Integer.toString(consumed), pipeline.checkpoint());
+    assertEquals(consumed, documentList.getCount());
+    assertTrue(consumed < 1000);
+  }
+
+  public void testCheckpointBeforeEnd() throws Exception {
+    PipelinedDocumentList pipeline =
+        new PipelinedDocumentList(new CountingDocumentList(10, 0), 2, "test");
+    pipeline.nextDocument();
+    try {
+      pipeline.checkpoint();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    pipeline.close();
+  }
+
+  public void testClose() throws Exception {
+    CountingDocumentList documentList = new CountingDocumentList(1000, 0);
+    PipelinedDocumentList pipeline =
+        new PipelinedDocumentList(documentList, 5, "test");
+    pipeline.nextDocument();
+    pipeline.close();
+    int count = documentList.getCount();
+    assertTrue(count < 1000);
+    assertNull(pipeline.nextDocument());
+    try {
+      pipeline.checkpoint();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    // The underlying list is no longer in use.
+    Thread.sleep(100);
+    assertEquals(count, documentList.getCount());
+  }
+
+  public void testRepositoryException() throws Exception {
+    DocumentList documentList = new DocumentList() {
+        private int count = 0;
+
+        @Override
+        public Document nextDocument() throws RepositoryException {
+          if (++count > 2) {
+            throw new RepositoryException("failed");
+          }
+          return ConnectorTestUtils.createSimpleDocument(
+              Integer.toString(count));
+        }
+
+        @Override
+        public String checkpoint() {
+          throw new AssertionError("checkpoint");
+        }
+      };
+    PipelinedDocumentList pipeline =
+        new PipelinedDocumentList(documentList, 5, "test");
+    assertNotNull(pipeline.nextDocument());
+    assertNotNull(pipeline.nextDocument());
+    try {
+      pipeline.nextDocument();
+      fail("Expected RepositoryException");
+    } catch (RepositoryException expected) {
+      assertEquals("failed", expected.getMessage());
+    }
+    pipeline.close();
+  }
+}
@@ -288,6 +288,51 @@ public class QueryTraverserTest extends TestCase {
     checkResult(traversalManager.getDocumentCount(), result);
   }
 
+  /**
+   * Tests that a pipelined batch that times out feeds every document
+   * it fetched before checkpointing.
+   */
+  public void testPipelinedTimeout() {
+    traversalContext.setPipelineDepth(5);
+    NeverEndingDocumentlistTraversalManager traversalManager =
+        new NeverEndingDocumentlistTraversalManager(100);
+    QueryTraverser queryTraverser = new QueryTraverser(pusher, traversalManager,
+        stateStore, connectorName, traversalContext, clock);
+
+    BatchResult result = queryTraverser.runBatch(new BatchSize(100));
+    assertTrue(result.getCountProcessed() > 0);
+    checkResult(traversalManager.getDocumentCount(), result);
+  }
+
+  /**
+   * Tests that a pipelined batch stopped by the Pusher feeds every
+   * document it fetched before checkpointing.
+   */
+  public void testPipelinedBatchSize() {
+    traversalContext.setPipelineDepth(5);
+    LargeDocumentlistTraversalManager traversalManager =
+        new LargeDocumentlistTraversalManager(10);
+    QueryTraverser queryTraverser = new QueryTraverser(pusher, traversalManager,
+        stateStore, connectorName, traversalContext, clock);
+
+    BatchResult result = queryTraverser.runBatch(new BatchSize(10));
+    assertTrue(result.getCountProcessed() > 10);
+    checkResult(traversalManager.getDocumentCount(), result);
+  }
+
+  public void testPipelinedNextDocumentRepositoryException() {
+    traversalContext.setPipelineDepth(5);
+    checkExceptionHandling(new RepositoryException("NextDocumentException"),
+         Where.NEXT_DOCUMENT, 0);
+  }
+
+  public void testPipelinedNextDocumentRepositoryDocumentException() {
+    traversalContext.setPipelineDepth(5);
+    checkExceptionHandling(
+         new RepositoryDocumentException("NextDocumentRepositoryDocumentException"),
+         Where.NEXT_DOCUMENT, 1);
+  }
+
   private void checkExceptionHandling(Exception exception, Where where,
                                       long documentCount) {
     checkExceptionHandling(exception, where, documentCount, documentCount);
@@ -29,7 +29,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /** Tests for MimeTypeDetector.  */
 public class MimeTypeDetectorTest extends TestCase {
@@ -207,6 +210,59 @@ public class MimeTypeDetectorTest extends TestCase {
     }
   }
 
+  public void testGetExtension() {
+    assertEquals("pdf", MimeTypeDetector.getExtension("big.pdf"));
+    assertEquals("tar.gz", MimeTypeDetector.getExtension("a.b/c/big.tar.gz"));
+    assertEquals("xml", MimeTypeDetector.getExtension("smb://a.b/a/\\big.xml"));
+    assertEquals("", MimeTypeDetector.getExtension("a.b/big"));
+    assertEquals("", MimeTypeDetector.getExtension(""));
+  }
+
+  /** Test that cached extensions are not confused by the path. */
+  public void testFileExtensionCached() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      assertEquals("application/pdf", mimeTypeDetector.getMimeType(
+          "a.b/c/big.pdf", notUsedInputStreamFactory));
+      assertEquals("application/pdf", mimeTypeDetector.getMimeType(
+          "c/big.PDF", notUsedInputStreamFactory));
+      assertEquals(MimeTypeDetector.UNKNOWN_MIME_TYPE,
+          mimeTypeDetector.getMimeType("a.pdf/big", (byte[]) null));
+    }
+  }
+
+  /** Test that concurrent lookups return the correct results. */
+  public void testConcurrentDetection() throws Exception {
+    final String[][] expected = {
+        { "a/big.htm", "text/html" }, { "a/big.doc", "application/msword" },
+        { "a.b/big.xml", "text/xml" }, { "a/zork.xyzzy", null } };
+    final List<String> errors =
+        Collections.synchronizedList(new ArrayList<String>());
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 100; i++) {
+            String[] pair = expected[i % expected.length];
+            String mimeType = (pair[1] == null)
+                ? mimeTypeDetector.getMimeType(pair[0], PDF_PREFIX)
+                : mimeTypeDetector.getMimeType(pair[0], (byte[]) null);
+            String expectedType = (pair[1] == null)
+                ? "application/pdf" : pair[1];
+            if (!expectedType.equals(mimeType)) {
+              errors.add(pair[0] + ": " + mimeType);
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(Collections.emptyList(), errors);
+  }
+
   private static class NotUsedInputStreamFactory implements InputStreamFactory {
     public InputStream getInputStream() {
       throw new UnsupportedOperationException();
@@ -0,0 +1,56 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util;
+
+/**
+ * A {@link Clock} whose time only changes when the test changes it.
+ */
+public class MockClock implements Clock {
+  private long timeMillis;
+
+  /**
+   * Constructs a clock set to the supplied time.
+   *
+   * @param timeMillis the time, in milliseconds since midnight,
+   *        January 1, 1970 UTC
+   */
+  public MockClock(long timeMillis) {
+    this.timeMillis = timeMillis;
+  }
+
+  /**
+   * Sets the current time, in milliseconds.
+   *
+   * @param timeMillis the time, in milliseconds since midnight,
+   *        January 1, 1970 UTC
+   */
+  public synchronized void setTimeMillis(long timeMillis) {
+    this.timeMillis = timeMillis;
+  }
+
+  /**
+   * Advances the current time.
+   *
+   * @param millis the number of milliseconds to advance the clock
+   */
+  public synchronized void adjustTime(long millis) {
+    timeMillis += millis;
+  }
+
+  @Override
+  public synchronized long getTimeMillis() {
+    return timeMillis;
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.regex.Pattern;
+
+/**
+ * Tests {@link PatternReplacingInputStream}.
+ */
+public class PatternReplacingInputStreamTest extends TestCase {
+  private static final String TEXT =
+      "The_.quick_brown_fox.jumped.over\nthe lazy dog's_back. ";
+
+  /** Returns enough copies of TEXT to span several windows. */
+  private static String longText() {
+    return Strings.repeat(TEXT, 1000);
+  }
+
+  private static String replace(String text, String regex,
+      String replacement, int maxMatchLength) throws Exception {
+    InputStream in = new PatternReplacingInputStream(
+        new ByteArrayInputStream(text.getBytes("UTF-8")), "UTF-8",
+        Pattern.compile(regex), replacement, maxMatchLength);
+    try {
+      return new String(ByteStreams.toByteArray(in), "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Checks that the stream matches {@code String.replaceAll}. */
+  private static void check(String text, String regex, String replacement)
+      throws Exception {
+    assertEquals(text.replaceAll(regex, replacement),
+                 replace(text, regex, replacement, 16));
+  }
+
+  public void testIllegalArguments() throws Exception {
+    InputStream in = new ByteArrayInputStream(new byte[0]);
+    Pattern pattern = Pattern.compile("x");
+    try {
+      new PatternReplacingInputStream(in, "UTF-8", pattern, "", 0);
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      new PatternReplacingInputStream(in, "NoSuchEncoding", pattern, "", 1);
+      fail("UnsupportedEncodingException expected");
+    } catch (UnsupportedEncodingException expected) {
+      // Expected.
+    }
+  }
+
+  public void testEmpty() throws Exception {
+    check("", "[_.]+", " ");
+    check("", "x*", "-");
+  }
+
+  public void testShortText() throws Exception {
+    check(TEXT, "[_.]+", " ");
+  }
+
+  public void testNoMatch() throws Exception {
+    check(longText(), "xyzzy", " ");
+  }
+
+  public void testLongText() throws Exception {
+    check(longText(), "[_.]+", " ");
+  }
+
+  public void testGroupReferences() throws Exception {
+    check(longText(), "(\\w+)_(\\w+)", "$2 $1");
+  }
+
+  public void testZeroLengthMatches() throws Exception {
+    check(longText(), "_*", "-");
+  }
+
+  public void testAnchors() throws Exception {
+    check(longText(), "^The", "A");
+    check(longText(), "back\\. $", "end");
+    check(longText(), "(?m)^the", "A");
+  }
+
+  public void testLookaroundAndBoundaries() throws Exception {
+    check(longText(), "(?<=quick)_", " ");
+    check(longText(), "\\bthe\\b", "a");
+    check(longText(), "fox(?=\\.)", "cat");
+  }
+
+  public void testMultibyteCharacters() throws Exception {
+    check(Strings.repeat("Erd\u00f6s_\u00e9t\u00e9_\u20ac ", 5000),
+          "\u00e9", "e");
+  }
+
+  public void testSingleByteReads() throws Exception {
+    String text = longText();
+    InputStream in = new PatternReplacingInputStream(
+        new ByteArrayInputStream(text.getBytes("UTF-8")), "UTF-8",
+        Pattern.compile("[_.]+"), " ", 16);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      out.write(b);
+    }
+    assertEquals(-1, in.read());
+    assertEquals(text.replaceAll("[_.]+", " "), out.toString("UTF-8"));
+  }
+}
@@ -19,11 +19,14 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
 import org.h2.jdbcx.JdbcDataSource;
 
 import junit.framework.TestCase;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
 import javax.sql.DataSource;
@@ -64,6 +67,7 @@ public class DatabaseConnectionPoolTest extends TestCase {
     replay(ds, c1, c2, c3, c4);
 
     DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setValidationIdleTime(0);
     assertEquals(c1, pool.getConnection());
     assertEquals(c2, pool.getConnection());
     assertEquals(c3, pool.getConnection());
@@ -102,6 +106,51 @@ public class DatabaseConnectionPoolTest extends TestCase {
     verify(ds, c1, c2, c3);
   }
 
+  public void testStatementsClosedWithConnection() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    PreparedStatement s1 = createMock(PreparedStatement.class);
+    expect(ds.getConnection()).andReturn(c1);
+    expect(c1.prepareStatement("query")).andReturn(s1);
+    expect(c1.isClosed()).andReturn(false);
+    s1.close();
+    c1.close();
+    replay(ds, c1, s1);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    assertEquals(c1, pool.getConnection());
+    assertSame(s1, pool.prepareStatement(c1, "query"));
+    // The cached statement is reused after the connection is released.
+    pool.releaseConnection(c1);
+    assertEquals(c1, pool.getConnection());
+    assertSame(s1, pool.prepareStatement(c1, "query"));
+    pool.releaseConnection(c1);
+
+    // Closing the connection closes its cached statement.
+    pool.closeConnections();
+    verify(ds, c1, s1);
+  }
+
+  public void testMaintenanceCancelled() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1);
+    c1.close();
+    replay(ds, c1);
+
+    int taskCount = DatabaseConnectionPool.getMaintenanceTaskCount();
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    assertEquals(c1, pool.getConnection());
+    assertEquals(taskCount + 1,
+        DatabaseConnectionPool.getMaintenanceTaskCount());
+    pool.releaseConnection(c1);
+
+    // Closing the pool cancels its maintenance task.
+    pool.closeConnections();
+    assertEquals(taskCount, DatabaseConnectionPool.getMaintenanceTaskCount());
+    verify(ds, c1);
+  }
+
   public void testValidConnection() throws SQLException {    
     DataSource ds = createMock(DataSource.class);
     Connection alive = createMock(Connection.class);
@@ -113,6 +162,7 @@ public class DatabaseConnectionPoolTest extends TestCase {
     replay(ds, alive, deadAfterSomeTime);
     
     DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setValidationIdleTime(0);
     assertEquals(alive, pool.getConnection());
     assertEquals(deadAfterSomeTime, pool.getConnection());
    
@@ -149,4 +199,142 @@ public class DatabaseConnectionPoolTest extends TestCase {
     pool.closeConnections();    
     assertTrue(newOne.isClosed());
   }
+
+  public void testValidationOnlyAfterIdle() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1);
+    expect(c1.isClosed()).andReturn(false);
+    expect(c1.isValid(1)).andReturn(true);
+    replay(ds, c1);
+
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds, clock);
+    pool.setValidationIdleTime(5000);
+    assertEquals(c1, pool.getConnection());
+
+    // A recently used connection is not validated.
+    pool.releaseConnection(c1);
+    assertEquals(c1, pool.getConnection());
+
+    // An idle connection is validated.
+    pool.releaseConnection(c1);
+    clock.adjustTime(10000);
+    assertEquals(c1, pool.getConnection());
+    verify(ds, c1);
+  }
+
+  public void testMaxSize() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1);
+    expect(c1.isClosed()).andReturn(false);
+    replay(ds, c1);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setMaxSize(1);
+    pool.setMaxWait(0);
+    assertEquals(c1, pool.getConnection());
+    assertEquals(1, pool.getActiveConnectionCount());
+    try {
+      pool.getConnection();
+      fail("Expected SQLException");
+    } catch (SQLException expected) {
+      assertTrue(expected.getMessage(),
+          expected.getMessage().startsWith("Timed out"));
+    }
+    assertEquals(1, pool.getTimeoutCount());
+    assertEquals(1, pool.getWaitCount());
+
+    pool.releaseConnection(c1);
+    assertEquals(0, pool.getActiveConnectionCount());
+    assertEquals(1, pool.getIdleConnectionCount());
+    assertEquals(c1, pool.getConnection());
+    assertEquals(2, pool.getCheckoutCount());
+    assertEquals(1, pool.getCreatedCount());
+    verify(ds, c1);
+  }
+
+  public void testWaitForRelease() throws Exception {
+    DataSource ds = createMock(DataSource.class);
+    final Connection c1 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1);
+    expect(c1.isClosed()).andReturn(false);
+    replay(ds, c1);
+
+    final DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setMaxSize(1);
+    assertEquals(c1, pool.getConnection());
+    Thread releaser = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException ignored) {
+          }
+          pool.releaseConnection(c1);
+        }
+      };
+    releaser.start();
+    assertEquals(c1, pool.getConnection());
+    releaser.join();
+    assertEquals(1, pool.getWaitCount());
+    assertEquals(0, pool.getTimeoutCount());
+    assertTrue(pool.getTotalWaitMillis() > 0);
+    verify(ds, c1);
+  }
+
+  public void testIdleConnectionsClosed() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    Connection c2 = createMock(Connection.class);
+    Connection c3 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1).andReturn(c2).andReturn(c3);
+    c1.close();
+    c2.close();
+    replay(ds, c1, c2, c3);
+
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds, clock);
+    pool.setMinIdle(1);
+    pool.setMaxIdleTime(1000);
+    assertEquals(c1, pool.getConnection());
+    assertEquals(c2, pool.getConnection());
+    assertEquals(c3, pool.getConnection());
+    pool.releaseConnection(c1);
+    pool.releaseConnection(c2);
+    pool.releaseConnection(c3);
+
+    pool.performMaintenance();
+    assertEquals(3, pool.getIdleConnectionCount());
+
+    // Only the most recently used connection is kept.
+    clock.adjustTime(2000);
+    pool.performMaintenance();
+    assertEquals(1, pool.getIdleConnectionCount());
+    verify(ds, c1, c2, c3);
+  }
+
+  public void testLeakDetection() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1);
+    replay(ds, c1);
+
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds, clock);
+    pool.setLeakDetectionThreshold(1000);
+    assertEquals(c1, pool.getConnection());
+    pool.performMaintenance();
+    assertEquals(0, pool.getLeakCount());
+
+    clock.adjustTime(2000);
+    pool.performMaintenance();
+    assertEquals(1, pool.getLeakCount());
+
+    // A leak is only reported once.
+    pool.performMaintenance();
+    assertEquals(1, pool.getLeakCount());
+    verify(ds, c1);
+  }
 }
@@ -25,6 +25,8 @@ import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager
 
 import junit.framework.TestCase;
 
+import org.json.JSONObject;
+
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -413,6 +415,163 @@ public class CheckpointAndChangeQueueTest extends TestCase {
     assertEquals(original, getRecoveryFile(q2));
   }
 
+  public void testJournalAppendsToRecoveryFile() throws IOException {
+    ChangeSource changeSource = new MockChangeSource(6);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    List<CheckpointAndChange> batch = q.resume(null);
+    File[] files = persistDir.listFiles();
+    assertEquals(1, files.length);
+    File recoveryFile = files[0];
+    long length = recoveryFile.length();
+
+    String checkpoint = batch.get(1).getCheckpoint().toString();
+    q.resume(checkpoint);
+    files = persistDir.listFiles();
+    assertEquals(1, files.length);
+    assertEquals(recoveryFile, files[0]);
+    assertTrue(recoveryFile.length() > length);
+
+    // Nothing removed and nothing added; nothing is written.
+    length = recoveryFile.length();
+    q.resume(null);
+    assertEquals(length, recoveryFile.length());
+  }
+
+  public void testRecoveryReplaysJournal() throws IOException {
+    ChangeSource changeSource = new MockChangeSource(10);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    String checkpoint = null;
+    List<CheckpointAndChange> batch = null;
+    for (int i = 0; i < 4; i++) {
+      batch = q.resume(checkpoint);
+      checkpoint = batch.get(0).getCheckpoint().toString();
+    }
+    batch = q.resume(checkpoint);
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(q.getMonitorRestartPoints(), q2.getMonitorRestartPoints());
+    assertEquals(batch, q2.resume(checkpoint));
+    assertEquals(1, persistDir.listFiles().length);
+  }
+
+  public void testRecoveryIgnoresTornJournalRecord() throws IOException {
+    ChangeSource changeSource = new MockChangeSource(6);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    List<CheckpointAndChange> firstBatch = q.resume(null);
+    String checkpoint = firstBatch.get(1).getCheckpoint().toString();
+    List<CheckpointAndChange> secondBatch = q.resume(checkpoint);
+
+    // Simulate a crash part way through appending the next record.
+    File recoveryFile = persistDir.listFiles()[0];
+    FileWriter writer = new FileWriter(recoveryFile, true);
+    writer.write("0badf00d {\"R\":\"trunc");
+    writer.close();
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(secondBatch, q2.resume(checkpoint));
+
+    // The torn record was compacted away.
+    File[] files = persistDir.listFiles();
+    assertEquals(1, files.length);
+    assertFalse(recoveryFile.equals(files[0]));
+  }
+
+  public void testRecoveryIgnoresCorruptJournalRecord() throws IOException {
+    ChangeSource changeSource = new MockChangeSource(6);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    List<CheckpointAndChange> firstBatch = q.resume(null);
+    String checkpoint = firstBatch.get(1).getCheckpoint().toString();
+    List<CheckpointAndChange> secondBatch = q.resume(checkpoint);
+
+    // A complete record with the wrong checksum is not replayed.
+    String removed = secondBatch.get(1).getCheckpoint().toString();
+    File recoveryFile = persistDir.listFiles()[0];
+    FileWriter writer = new FileWriter(recoveryFile, true);
+    writer.write("00000000 {\"R\":" + JSONObject.quote(removed)
+        + ",\"Q\":[]}\n");
+    writer.close();
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(secondBatch, q2.resume(checkpoint));
+  }
+
+  public void testRecoveryFromLegacyRecoveryFile() throws Exception {
+    ChangeSource changeSource = new MockChangeSource(6);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    List<CheckpointAndChange> firstBatch = q.resume(null);
+    String checkpoint = firstBatch.get(1).getCheckpoint().toString();
+    List<CheckpointAndChange> secondBatch = q.resume(checkpoint);
+    String legacy = getRecoveryFile(q);
+    q.clean();
+    q.ensurePersistDirExists();
+
+    // A snapshot with no trailing newline and no journal.
+    FileWriter writer =
+        new FileWriter(new File(persistDir, "recovery." + System.nanoTime()));
+    writer.write(legacy);
+    writer.close();
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(secondBatch, q2.resume(checkpoint));
+    String nextCheckpoint = secondBatch.get(1).getCheckpoint().toString();
+    q2.resume(nextCheckpoint);
+    assertEquals(1, persistDir.listFiles().length);
+  }
+
+  public void testCompaction() throws IOException {
+    final int NUM_RESUME_CALLS = 100;
+    ChangeSource changeSource = new MockChangeSource(NUM_RESUME_CALLS * 3);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.setCompactionThreshold(0L);
+    String checkpoint = null;
+    q.start(checkpoint);
+    List<CheckpointAndChange> batch = q.resume(checkpoint);
+    long snapshotLength = persistDir.listFiles()[0].length();
+    for (int i = 0; i < NUM_RESUME_CALLS; i++) {
+      checkpoint = batch.get(1).getCheckpoint().toString();
+      batch = q.resume(checkpoint);
+      File[] files = persistDir.listFiles();
+      assertEquals(1, files.length);
+      // The journal never grows much larger than the snapshot.
+      assertTrue(files[0].length() < 4 * snapshotLength);
+    }
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(batch, q2.resume(checkpoint));
+  }
+
   public void testRecoveryStateCleanup() throws IOException {
     final int NUM_RESUME_CALLS = 20;
     ChangeSource changeSource = new MockChangeSource(NUM_RESUME_CALLS * 3);
@@ -14,11 +14,17 @@
 
 package com.google.enterprise.connector.util.diffing;
 
+import com.google.common.collect.ImmutableList;
 import com.google.enterprise.connector.spi.TraversalSchedule;
+import com.google.enterprise.connector.util.BasicChecksumGenerator;
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
 
 import junit.framework.TestCase;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 
 /**
  * Tests for {@link DocumentSnapshotRepositoryMonitorManagerImpl}.
@@ -104,4 +110,50 @@ public class DocumentSnapshotRepositoryMonitorManagerImplTest extends TestCase {
         false, false));
     assertEquals(8074000, queue.getSleepInterval());
   }
+
+  /** An empty repository, divided into partitions. */
+  private static class EmptyPartitionedRepository
+      extends RangePartitionedSnapshotRepository<MockDocumentSnapshot> {
+    EmptyPartitionedRepository(String name, String... splitKeys) {
+      super(name, ImmutableList.copyOf(splitKeys));
+    }
+
+    @Override
+    protected Iterator<MockDocumentSnapshot> iterator(String fromInclusive,
+        String toExclusive) {
+      return Collections.<MockDocumentSnapshot>emptyList().iterator();
+    }
+  }
+
+  /**
+   * Tests that each partition of a {@link PartitionedSnapshotRepository}
+   * gets its own monitor.
+   */
+  public void testPartitionedRepository() throws Exception {
+    TestDirectoryManager testDirectoryManager = new TestDirectoryManager(this);
+    File snapshotDir = testDirectoryManager.makeDirectory("snapshots");
+    File persistDir = testDirectoryManager.makeDirectory("queue");
+    ChangeQueue queue = new ChangeQueue(10, 0L,
+        new ChangeQueue.DefaultCrawlActivityLogger());
+    CheckpointAndChangeQueue checkpointAndChangeQueue =
+        new CheckpointAndChangeQueue(queue, persistDir,
+            new MockDocumentHandleFactory(), new MockDocumentHandleFactory());
+
+    DocumentSnapshotRepositoryMonitorManagerImpl manager =
+        new DocumentSnapshotRepositoryMonitorManagerImpl(
+            ImmutableList.of(new EmptyPartitionedRepository("p", "g", "p"),
+                new EmptyPartitionedRepository("q")),
+            new MockDocumentSnapshotFactory(), snapshotDir,
+            new BasicChecksumGenerator("SHA1"), queue,
+            checkpointAndChangeQueue);
+    manager.setTraversalSchedule(new MockTraversalSchedule(500, 1, false, true));
+    manager.setPartitionScanThreads(2);
+    manager.start(null);
+    try {
+      assertEquals(4, manager.getThreadCount());
+    } finally {
+      manager.stop();
+    }
+    assertEquals(0, manager.getThreadCount());
+  }
 }
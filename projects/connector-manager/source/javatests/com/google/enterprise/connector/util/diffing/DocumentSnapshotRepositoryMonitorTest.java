@@ -16,9 +16,14 @@ package com.google.enterprise.connector.util.diffing;
 
 import com.google.enterprise.connector.spi.TraversalSchedule;
 import com.google.enterprise.connector.util.diffing.DocumentSnapshotRepositoryMonitor;
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
 
 import junit.framework.TestCase;
 
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+
 /**
  * Tests for {@link DocumentSnapshotRepositoryMonitor}.
  */
@@ -160,4 +165,66 @@ public class DocumentSnapshotRepositoryMonitorTest extends TestCase {
           "but got NullPointerException instead.");
     }
   }
+
+  /** This mock callback throws InterruptedException to end the first pass. */
+  private class MockOnePassCallback extends MockOffTraversalCallback {
+    @Override
+    public void passComplete(MonitorCheckpoint mcp)
+        throws InterruptedException {
+      throw new InterruptedException();
+    }
+  }
+
+  public void testPassPermits() throws Exception {
+    final Semaphore permits = new Semaphore(1);
+    final int[] availableDuringPass = { -1 };
+    SnapshotRepository<MockDocumentSnapshot> repository =
+        new SnapshotRepository<MockDocumentSnapshot>() {
+          @Override
+          public String getName() {
+            return "partition";
+          }
+
+          @Override
+          public Iterator<MockDocumentSnapshot> iterator() {
+            availableDuringPass[0] = permits.availablePermits();
+            return Collections.<MockDocumentSnapshot>emptyList().iterator();
+          }
+        };
+    TestDirectoryManager testDirectoryManager = new TestDirectoryManager(this);
+    SnapshotStore snapshotStore = new SnapshotStore(
+        testDirectoryManager.makeDirectory("snapshots"),
+        new MockDocumentSnapshotFactory());
+    DocumentSnapshotRepositoryMonitor monitor =
+        new DocumentSnapshotRepositoryMonitor("nashi", repository,
+            snapshotStore, new MockOnePassCallback(), null, null,
+            new MockDocumentSnapshotFactory());
+    monitor.setPassPermits(permits);
+    try {
+      monitor.testTraversalSchedule();
+      fail("Expected InterruptedException, but got none.");
+    } catch (InterruptedException expected) {
+    }
+    assertEquals(0, availableDuringPass[0]);
+    assertEquals(1, permits.availablePermits());
+  }
+
+  /** Tests that a monitor waits for a permit before it scans. */
+  public void testNoPassPermits() {
+    DocumentSnapshotRepositoryMonitor monitor =
+        new DocumentSnapshotRepositoryMonitor("nashi", null,
+            null, new MockOffTraversalCallback() {
+              @Override
+              public void passBegin() {
+                Thread.currentThread().interrupt();
+              }
+            }, null, null, null);
+    monitor.setPassPermits(new Semaphore(0));
+    try {
+      // A NullPointerException would mean the monitor did not wait.
+      monitor.testTraversalSchedule();
+      fail("Expected InterruptedException, but got none.");
+    } catch (InterruptedException expected) {
+    }
+  }
 }
@@ -0,0 +1,239 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Strings;
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
+
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for {@link IndexedSnapshotWriter} and {@link IndexedRecordReader}.
+ */
+public class IndexedSnapshotWriterTest extends TestCase {
+  /** Enough records of this size to fill several blocks. */
+  private static final int RECORD_COUNT = 5000;
+  private static final String EXTRA = Strings.repeat("x", 100);
+
+  private File snapshotDir;
+  private File snapshotFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    TestDirectoryManager testDirectoryManager = new TestDirectoryManager(this);
+    snapshotDir = testDirectoryManager.makeDirectory("snapshots");
+    snapshotFile = new File(snapshotDir, "snap.1");
+  }
+
+  private static MockDocumentSnapshot newSnapshot(int k) {
+    return new MockDocumentSnapshot(String.format("%06d", k), EXTRA + k);
+  }
+
+  private IndexedSnapshotWriter newWriter() throws Exception {
+    return new IndexedSnapshotWriter(new FileOutputStream(snapshotFile),
+        snapshotFile.getPath(), 1000, Long.MAX_VALUE);
+  }
+
+  private void writeSnapshot(int count) throws Exception {
+    IndexedSnapshotWriter writer = newWriter();
+    for (int k = 0; k < count; k++) {
+      writer.write(newSnapshot(k));
+    }
+    writer.close();
+  }
+
+  private SnapshotReader newReader() throws Exception {
+    assertTrue(IndexedRecordReader.isIndexedSnapshot(snapshotFile));
+    IndexedRecordReader recordReader = new IndexedRecordReader(snapshotFile);
+    return new SnapshotReader(recordReader, recordReader,
+        snapshotFile.getPath(), 1, new MockDocumentSnapshotFactory());
+  }
+
+  private void assertRecords(SnapshotReader reader, int first, int last)
+      throws Exception {
+    for (int k = first; k < last; k++) {
+      assertEquals(newSnapshot(k), reader.read());
+    }
+  }
+
+  public void testEmptySnapshot() throws Exception {
+    writeSnapshot(0);
+    SnapshotReader reader = newReader();
+    assertNull(reader.read());
+    reader.close();
+  }
+
+  public void testWriteRead() throws Exception {
+    writeSnapshot(RECORD_COUNT);
+    // The records are compressed.
+    assertTrue(snapshotFile.length() < RECORD_COUNT * EXTRA.length() / 2);
+
+    SnapshotReader reader = newReader();
+    assertRecords(reader, 0, RECORD_COUNT);
+    assertNull(reader.read());
+    assertEquals(RECORD_COUNT + 1, reader.getRecordNumber());
+    reader.close();
+  }
+
+  public void testSkipRecords() throws Exception {
+    writeSnapshot(RECORD_COUNT);
+    SnapshotReader reader = newReader();
+    reader.skipRecords(0);
+    assertRecords(reader, 0, 2);
+    reader.skipRecords(10);
+    assertRecords(reader, 12, 13);
+    reader.skipRecords(3000);
+    assertRecords(reader, 3013, 3014);
+    reader.skipRecords(RECORD_COUNT - 3015);
+    assertRecords(reader, RECORD_COUNT - 1, RECORD_COUNT);
+    assertNull(reader.read());
+    reader.close();
+  }
+
+  /** Tests that an interrupt does not close the snapshot. */
+  public void testReadWhileInterrupted() throws Exception {
+    writeSnapshot(RECORD_COUNT);
+    Thread.currentThread().interrupt();
+    try {
+      SnapshotReader reader = newReader();
+      assertRecords(reader, 0, RECORD_COUNT);
+      assertNull(reader.read());
+      reader.close();
+    } finally {
+      assertTrue(Thread.interrupted());
+    }
+  }
+
+  public void testSkipTooManyRecords() throws Exception {
+    writeSnapshot(100);
+    SnapshotReader reader = newReader();
+    try {
+      reader.skipRecords(1000);
+      fail("skipped too many records");
+    } catch (SnapshotReaderException e) {
+      assertTrue(e.getMessage(),
+          e.getMessage().contains("snapshot contains only 100"));
+    }
+    reader.close();
+  }
+
+  /** Tests reading a snapshot whose writer stopped after a sync. */
+  public void testUnindexedSnapshot() throws Exception {
+    IndexedSnapshotWriter writer = newWriter();
+    for (int k = 0; k < RECORD_COUNT; k++) {
+      writer.write(newSnapshot(k));
+    }
+    writer.sync();
+    assertEquals(RECORD_COUNT, writer.getSyncedRecordCount());
+    // Write part of another block, as if the writer crashed.
+    long length = snapshotFile.length();
+    writer.write(newSnapshot(RECORD_COUNT));
+    writer.close();
+    RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+    file.setLength(length + 10);
+    file.close();
+
+    SnapshotReader reader = newReader();
+    assertRecords(reader, 0, RECORD_COUNT);
+    assertNull(reader.read());
+    reader.close();
+
+    reader = newReader();
+    reader.skipRecords(4321);
+    assertRecords(reader, 4321, RECORD_COUNT);
+    assertNull(reader.read());
+    reader.close();
+  }
+
+  public void testCorruptBlock() throws Exception {
+    writeSnapshot(RECORD_COUNT);
+    RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+    file.seek(IndexedSnapshotWriter.HEADER_LENGTH
+        + IndexedSnapshotWriter.BLOCK_HEADER_LENGTH + 10);
+    int b = file.read();
+    file.seek(file.getFilePointer() - 1);
+    file.write(b ^ 0xff);
+    file.close();
+
+    SnapshotReader reader = newReader();
+    try {
+      reader.read();
+      fail("read a corrupt block");
+    } catch (SnapshotReaderException expected) {
+      assertTrue(expected.getMessage(),
+          expected.getMessage().contains("corrupt snapshot block"));
+    }
+    reader.close();
+  }
+
+  public void testUnsupportedVersion() throws Exception {
+    DataOutputStream out =
+        new DataOutputStream(new FileOutputStream(snapshotFile));
+    out.writeInt(IndexedSnapshotWriter.MAGIC);
+    out.writeInt(IndexedSnapshotWriter.VERSION + 1);
+    out.close();
+    try {
+      new IndexedRecordReader(snapshotFile);
+      fail("read an unsupported version");
+    } catch (SnapshotReaderException expected) {
+      assertTrue(expected.getMessage(),
+          expected.getMessage().contains("unsupported snapshot version"));
+    }
+  }
+
+  public void testLegacySnapshotIsNotIndexed() throws IOException {
+    assertTrue(snapshotFile.createNewFile());
+    assertFalse(IndexedRecordReader.isIndexedSnapshot(snapshotFile));
+  }
+
+  /** Tests that an indexed store reads and stitches text snapshots. */
+  public void testMixedFormatStitch() throws Exception {
+    SnapshotStore legacy =
+        new SnapshotStore(snapshotDir, new MockDocumentSnapshotFactory());
+    SnapshotWriter ss1 = legacy.openNewSnapshotWriter();
+    for (int k = 0; k < 100; k++) {
+      ss1.write(newSnapshot(k));
+    }
+    legacy.close(null, ss1);
+
+    SnapshotStore store = new SnapshotStore(snapshotDir,
+        new MockDocumentSnapshotFactory(), true);
+    SnapshotReader in = store.openMostRecentSnapshot();
+    SnapshotWriter ss2 = store.openNewSnapshotWriter();
+    for (int k = 0; k < 10; k++) {
+      ss2.write(in.read());
+    }
+    store.close(in, ss2);
+    assertFalse(IndexedRecordReader.isIndexedSnapshot(
+        new File(snapshotDir, "snap.1")));
+    assertTrue(IndexedRecordReader.isIndexedSnapshot(
+        new File(snapshotDir, "snap.2")));
+
+    MonitorCheckpoint cp = new MonitorCheckpoint("foo", 1, 10, 10);
+    SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory(),
+        true);
+    SnapshotReader reader = store.openMostRecentSnapshot();
+    assertEquals(3, reader.getSnapshotNumber());
+    assertRecords(reader, 0, 100);
+    assertNull(reader.read());
+    store.close(reader, null);
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tests for {@link RangePartitionedSnapshotRepository}.
+ */
+public class RangePartitionedSnapshotRepositoryTest extends TestCase {
+  private static final List<String> DOCUMENT_IDS =
+      ImmutableList.of("a", "b", "f", "g", "h", "o", "p", "z");
+
+  /** A repository of the {@link #DOCUMENT_IDS}. */
+  private static class MockRepository
+      extends RangePartitionedSnapshotRepository<MockDocumentSnapshot> {
+    MockRepository(String... splitKeys) {
+      super("mock", Arrays.asList(splitKeys));
+    }
+
+    @Override
+    protected Iterator<MockDocumentSnapshot> iterator(String fromInclusive,
+        String toExclusive) {
+      List<MockDocumentSnapshot> snapshots =
+          new ArrayList<MockDocumentSnapshot>();
+      for (String documentId : DOCUMENT_IDS) {
+        if ((fromInclusive == null || documentId.compareTo(fromInclusive) >= 0)
+            && (toExclusive == null || documentId.compareTo(toExclusive) < 0)) {
+          snapshots.add(new MockDocumentSnapshot(documentId, ""));
+        }
+      }
+      return snapshots.iterator();
+    }
+  }
+
+  private static List<String> getDocumentIds(
+      SnapshotRepository<MockDocumentSnapshot> repository) {
+    List<String> documentIds = new ArrayList<String>();
+    for (MockDocumentSnapshot snapshot : repository) {
+      documentIds.add(snapshot.getDocumentId());
+    }
+    return documentIds;
+  }
+
+  public void testNoSplitKeys() {
+    MockRepository repository = new MockRepository();
+    List<SnapshotRepository<MockDocumentSnapshot>> partitions =
+        repository.getPartitions();
+    assertEquals(1, partitions.size());
+    assertEquals(DOCUMENT_IDS, getDocumentIds(partitions.get(0)));
+    assertEquals(DOCUMENT_IDS, getDocumentIds(repository));
+  }
+
+  public void testPartitions() {
+    MockRepository repository = new MockRepository("g", "p");
+    List<SnapshotRepository<MockDocumentSnapshot>> partitions =
+        repository.getPartitions();
+    assertEquals(3, partitions.size());
+    assertEquals(ImmutableList.of("a", "b", "f"),
+        getDocumentIds(partitions.get(0)));
+    assertEquals(ImmutableList.of("g", "h", "o"),
+        getDocumentIds(partitions.get(1)));
+    assertEquals(ImmutableList.of("p", "z"),
+        getDocumentIds(partitions.get(2)));
+
+    // The whole repository is still available.
+    assertEquals(DOCUMENT_IDS, getDocumentIds(repository));
+  }
+
+  public void testEmptyPartition() {
+    MockRepository repository = new MockRepository("c", "d");
+    assertEquals(Collections.emptyList(),
+        getDocumentIds(repository.getPartitions().get(1)));
+  }
+
+  public void testPartitionNames() {
+    MockRepository repository = new MockRepository("g", "p");
+    assertEquals("mock", repository.getName());
+    List<String> names = new ArrayList<String>();
+    for (SnapshotRepository<MockDocumentSnapshot> partition
+        : repository.getPartitions()) {
+      names.add(partition.getName());
+    }
+    assertEquals(Lists.newArrayList("mock [, g)", "mock [g, p)", "mock [p, )"),
+        names);
+  }
+
+  public void testUnorderedSplitKeys() {
+    try {
+      new MockRepository("p", "g");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testDuplicateSplitKeys() {
+    try {
+      new MockRepository("g", "g");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -163,6 +163,43 @@ public class SnapshotStoreTest extends TestCase {
     store.close(reader, null);
   }
 
+  /**
+   * Tests stitching with a checkpoint that covers fewer written records
+   * than read records, as when the last records written were not synced.
+   */
+  public void testStitchUnsyncedRecords() throws Exception {
+    SnapshotWriter ss1 = store.openNewSnapshotWriter();
+    writeRecords(ss1, "12345");
+    store.close(null, ss1);
+
+    SnapshotWriter ss2 = store.openNewSnapshotWriter();
+    writeRecords(ss2, "23456");
+    store.close(null, ss2);
+
+    // The monitor had read 7 records, but only 4 written records were synced.
+    MonitorCheckpoint cp = new MonitorCheckpoint("foo", 1, 7, 4);
+
+    SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory());
+    SnapshotStore after = new SnapshotStore(snapshotDir,
+        new MockDocumentSnapshotFactory());
+    SnapshotReader reader = after.openMostRecentSnapshot();
+    assertEquals(3, reader.getSnapshotNumber());
+
+    // The unsynced documents are missing, so the next pass finds them
+    // as new, and the snapshot remains in order.
+    for (int k = 0; k < 100; ++k) {
+      if (k >= 4 && k < 7) {
+        continue;
+      }
+      DocumentSnapshot rec = reader.read();
+      assertNotNull(rec);
+      String suffix = (k < 4) ? "23456" : "12345";
+      assertEquals(k + "." + suffix, rec.getDocumentId());
+    }
+    assertNull(reader.read());
+    store.close(reader, null);
+  }
+
   public void testStitchWithInterrupt() throws Exception {
     // Create the first snapshot with modification time 12345.
     SnapshotWriter ss1 = store.openNewSnapshotWriter();
@@ -145,4 +145,44 @@ public class SnapshotWriterTest extends TestCase {
     }
     assertEquals(100, writer.getRecordCount());
   }
+
+  public void testSyncEachRecord() throws SnapshotStoreException {
+    for (int k = 0; k < 3; ++k) {
+      writer.write(new MockDocumentSnapshot(Integer.toString(k), "extra." + k));
+      assertEquals(k + 1, writer.getSyncedRecordCount());
+    }
+    writer.close();
+  }
+
+  public void testGroupCommit() throws SnapshotStoreException {
+    writer = new SnapshotWriter(sw, null, "string", 10, Long.MAX_VALUE);
+    for (int k = 0; k < 25; ++k) {
+      writer.write(new MockDocumentSnapshot(Integer.toString(k), "extra." + k));
+      assertEquals(k + 1, writer.getRecordCount());
+      assertEquals(((k + 1) / 10) * 10, writer.getSyncedRecordCount());
+    }
+    writer.sync();
+    assertEquals(25, writer.getSyncedRecordCount());
+
+    writer.write(new MockDocumentSnapshot("25", "extra.25"));
+    assertEquals(25, writer.getSyncedRecordCount());
+    writer.close();
+    assertEquals(26, writer.getSyncedRecordCount());
+
+    // The records are all written, whether synced or not.
+    SnapshotReader reader =
+        new SnapshotReader(new BufferedReader(new StringReader(sw.toString())),
+            "test", 2, new MockDocumentSnapshotFactory());
+    for (int k = 0; k < 26; ++k) {
+      assertEquals(Integer.toString(k), reader.read().getDocumentId());
+    }
+    assertNull(reader.read());
+  }
+
+  public void testSyncInterval() throws SnapshotStoreException {
+    writer = new SnapshotWriter(sw, null, "string", 1000, 0L);
+    writer.write(new MockDocumentSnapshot("0", "extra.0"));
+    assertEquals(1, writer.getSyncedRecordCount());
+    writer.close();
+  }
 }
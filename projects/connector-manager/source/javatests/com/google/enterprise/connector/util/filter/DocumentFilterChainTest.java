@@ -14,12 +14,18 @@
 
 package com.google.enterprise.connector.util.filter;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SimpleProperty;
 import com.google.enterprise.connector.spi.Value;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Tests DocumentFilterChain.
@@ -83,4 +89,120 @@ public class DocumentFilterChainTest extends DocumentFilterTest {
         newFactory(PROP1, "foobar", SPACE), newFactory(PROP3, "xyzzy", SPACE)));
     checkDocument(chain.newDocumentFilter(createDocument()), createProperties());
   }
+
+  /** Returns a chain of filters that touch several different properties. */
+  private List<DocumentFilterFactory> mixedFactories() {
+    AddPropertyFilter add = new AddPropertyFilter();
+    add.setPropertyName(PROP2);
+    add.setPropertyValue(TEST_EXTRA_STRING);
+    CopyPropertyFilter copy = new CopyPropertyFilter();
+    copy.setPropertyNameMap(ImmutableMap.of(PROP2, "copy"));
+    DeletePropertyFilter delete = new DeletePropertyFilter();
+    delete.setPropertyName(PROP4);
+    return factoryList(newFactory(PROP1, PATTERN, SPACE), add, copy,
+        new DocumentFilterChain(factoryList(delete,
+            newFactory("copy", PATTERN, SPACE))),
+        newFactory(PROP2, PATTERN, SPACE));
+  }
+
+  /** Test that a chain produces the same document as unchained filters. */
+  public void testChainMatchesUnchainedFilters() throws Exception {
+    List<DocumentFilterFactory> factories = mixedFactories();
+    Document expected = createDocument();
+    for (DocumentFilterFactory factory : factories) {
+      expected = factory.newDocumentFilter(expected);
+    }
+    Map<String, List<Value>> expectedProps =
+        new HashMap<String, List<Value>>();
+    for (String name : expected.getPropertyNames()) {
+      expectedProps.put(name, getValues(expected.findProperty(name)));
+    }
+    assertFalse(expectedProps.containsKey(PROP4));
+    assertEquals(3, expectedProps.get("copy").size());
+
+    Document filter =
+        new DocumentFilterChain(factories).newDocumentFilter(createDocument());
+    checkDocument(filter, expectedProps);
+    // Properties are replayed on subsequent requests.
+    checkDocument(filter, expectedProps);
+    assertNull(filter.findProperty(PROP4));
+  }
+
+  /** Test that each property is fetched from the source at most once. */
+  public void testPropertyFetchedOnce() throws Exception {
+    CountingDocument source = new CountingDocument(createDocument());
+    DocumentFilterChain chain = new DocumentFilterChain(factoryList(
+        newFactory(PROP1, PATTERN, SPACE),
+        newFactory(PROP3, PATTERN, SPACE),
+        newFactory(PROP1, "XYZZY", SPACE)));
+    Document filter = chain.newDocumentFilter(source);
+    for (int i = 0; i < 3; i++) {
+      for (String name : filter.getPropertyNames()) {
+        getValues(filter.findProperty(name));
+      }
+      assertNull(filter.findProperty("nonexistent"));
+    }
+    assertEquals(1, source.namesCount);
+    for (String name : source.getPropertyNames()) {
+      assertEquals(name, Integer.valueOf(1), source.findCounts.get(name));
+    }
+    assertEquals(Integer.valueOf(1), source.findCounts.get("nonexistent"));
+  }
+
+  /**
+   * Test that a filter that overrides findProperty without declaring its
+   * affected properties sees every property request.
+   */
+  public void testUndeclaredFilter() throws Exception {
+    DeletePropertyFilter delete = new DeletePropertyFilter() {
+      @Override
+      public Property findProperty(Document source, String name)
+          throws RepositoryException {
+        if (PROP2.equals(name)) {
+          return new SimpleProperty(valueList(EXTRA_STRING));
+        }
+        return super.findProperty(source, name);
+      }
+    };
+    delete.setPropertyName(PROP1);
+    DocumentFilterChain chain =
+        new DocumentFilterChain(factoryList(delete, new NoopDocumentFilter()));
+    Document filter = chain.newDocumentFilter(createDocument());
+    assertNull(filter.findProperty(PROP1));
+    assertEquals(valueList(EXTRA_STRING).toString(),
+                 getValues(filter.findProperty(PROP2)).toString());
+  }
+
+  private static List<Value> getValues(Property property) throws Exception {
+    List<Value> values = new LinkedList<Value>();
+    Value value;
+    while ((value = property.nextValue()) != null) {
+      values.add(value);
+    }
+    return values;
+  }
+
+  /** A Document that counts requests made of it. */
+  private static class CountingDocument implements Document {
+    private final Document source;
+    int namesCount = 0;
+    Map<String, Integer> findCounts = new HashMap<String, Integer>();
+
+    CountingDocument(Document source) {
+      this.source = source;
+    }
+
+    @Override
+    public Property findProperty(String name) throws RepositoryException {
+      Integer count = findCounts.get(name);
+      findCounts.put(name, (count == null) ? 1 : count + 1);
+      return source.findProperty(name);
+    }
+
+    @Override
+    public Set<String> getPropertyNames() throws RepositoryException {
+      namesCount++;
+      return source.getPropertyNames();
+    }
+  }
 }
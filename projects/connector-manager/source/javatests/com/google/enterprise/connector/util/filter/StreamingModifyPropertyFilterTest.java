@@ -0,0 +1,44 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.filter;
+
+import java.util.Set;
+
+/**
+ * Tests the {@code ModifyPropertyFilter} class on binary values that
+ * are modified as they are read.
+ */
+public class StreamingModifyPropertyFilterTest
+    extends BinaryModifyPropertyFilterTest {
+
+  @Override
+  protected ModifyPropertyFilter createBasicFilter(
+      Set<String> propNames, String pattern, boolean overwrite) {
+    ModifyPropertyFilter factory =
+        super.createBasicFilter(propNames, pattern, overwrite);
+    factory.setMaxMatchLength(32);
+    return factory;
+  }
+
+  public void testIllegalMaxMatchLength() throws Exception {
+    ModifyPropertyFilter factory = new ModifyPropertyFilter();
+    try {
+      factory.setMaxMatchLength(-1);
+      fail("IllegalArgumentException expected");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+}